@@ -6,8 +6,10 @@ import java.util.Date;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 
+import org.helioviewer.gl3d.camera.GL3DCamera;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
 import org.helioviewer.gl3d.plugin.pfss.data.managers.FrameManager;
+import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 import org.helioviewer.gl3d.scenegraph.GL3DState;
 import org.helioviewer.viewmodel.renderer.physical.PhysicalRenderGraphics;
 import org.helioviewer.viewmodel.renderer.physical.PhysicalRenderer3d;
@@ -44,7 +46,7 @@ public class PfssPlugin3dRenderer extends PhysicalRenderer3d {
 			Date date = masterView.getCurrentFrameDateTime().getTime();
 			PfssFrame frame = manager.getFrame(date);
 			if(frame != null)
-				frame.display(gl, date);
+				frame.display(gl, date, selectLevelOfDetail());
 			
 			GL3DState.get().checkGLErrors("PfssPlugin3dRenderer.afterRender");
 		}
@@ -56,7 +58,27 @@ public class PfssPlugin3dRenderer extends PhysicalRenderer3d {
 		Date date = d;
 		PfssFrame frame = manager.getFrame(date);
 		if(frame != null)
-			frame.display(null,null);
+			frame.display(null,null,0);
+	}
+	
+	/**
+	 * Chooses the coarsest level of detail whose deviation is smaller than LOD_PIXEL_ERROR pixels at the current
+	 * camera distance.
+	 * @return level of detail, 0 if there is no active camera
+	 */
+	private int selectLevelOfDetail() {
+		GL3DCamera camera = GL3DState.get().getActiveCamera();
+		if(camera == null || camera.getHeight() <= 0)
+			return 0;
+		
+		double distance = Math.abs(camera.getZTranslation());
+		double pixelSize = 2 * distance * Math.tan(Math.toRadians(camera.getFOV() / 2)) / camera.getHeight();
+		double maxError = pixelSize * PfssSettings.LOD_PIXEL_ERROR;
+		
+		int level = 0;
+		while(level + 1 < PfssSettings.LOD_TOLERANCES.length && PfssSettings.LOD_TOLERANCES[level+1] <= maxError)
+			level++;
+		return level;
 	}
 	
 	/**
@@ -1,15 +1,20 @@
 package org.helioviewer.gl3d.plugin.pfss.data;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.helioviewer.base.logging.Log;
 import org.helioviewer.gl3d.plugin.pfss.data.caching.Cacheable;
 
 /**
@@ -21,11 +26,14 @@ import org.helioviewer.gl3d.plugin.pfss.data.caching.Cacheable;
  */
 public class PfssData implements Runnable, Cacheable {
 	private volatile boolean isLoaded = false;
+	private volatile boolean isFailed = false;
 	private volatile byte[] rawData;
 	private final Lock lock = new ReentrantLock();
 	private final Condition loaded = lock.newCondition();
 	private final String url;
 	private final FileDescriptor descriptor;
+	private final ArrayList<Runnable> loadedCallbacks = new ArrayList<>();
+	private final ArrayList<Runnable> failedCallbacks = new ArrayList<>();
 	
 	/**
 	 * 
@@ -39,43 +47,104 @@ public class PfssData implements Runnable, Cacheable {
 	
 	/**
 	 * Load the data into memory. this method signals all who are waiting on the condition "loaded"
+	 * 
+	 * If the data cannot be loaded, e.g. the download ends before the announced content length, it is marked as failed
+	 * instead, so the truncated data is neither decoded nor stored in the disk cache. The failed callbacks are run and
+	 * the loaded callbacks are dropped. A failed object is not loaded again, the caches have to replace it.
 	 */
 	public void loadData() {
 		InputStream in = null;
+		ArrayList<Runnable> callbacks = null;
 		lock.lock();
 		try {
-			URL u = new URL(url);
-			URLConnection uc = u.openConnection();
-			int contentLength = uc.getContentLength();
-			InputStream raw = uc.getInputStream();
-			in = new BufferedInputStream(raw);
-
-			rawData = new byte[contentLength];
-
-			int bytesRead = 0;
-			int offset = 0;
-			while (offset < contentLength) {
-				bytesRead = in.read(rawData, offset, rawData.length
-						- offset);
-				if (bytesRead == -1)
-					break;
-				offset += bytesRead;
+			File local = getLocalFile();
+			if(local != null) {
+				rawData = Files.readAllBytes(local.toPath());
+			} else {
+				URL u = new URL(url);
+				URLConnection uc = u.openConnection();
+				int contentLength = uc.getContentLength();
+				if (contentLength < 0)
+					throw new IOException("Download of " + url + " has no content length");
+				InputStream raw = uc.getInputStream();
+				in = new BufferedInputStream(raw);
+	
+				rawData = new byte[contentLength];
+	
+				int bytesRead = 0;
+				int offset = 0;
+				while (offset < contentLength) {
+					bytesRead = in.read(rawData, offset, rawData.length
+							- offset);
+					if (bytesRead == -1)
+						break;
+					offset += bytesRead;
+				}
+				if (offset < contentLength) {
+					rawData = null;
+					throw new IOException("Download of " + url + " ended after " + offset + " of " + contentLength + " bytes");
+				}
 			}
 			isLoaded = true;
-			loaded.signalAll();
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			synchronized (loadedCallbacks) {
+				callbacks = new ArrayList<>(loadedCallbacks);
+				loadedCallbacks.clear();
+				failedCallbacks.clear();
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Could not load pfss data from " + url, e);
+			rawData = null;
+			isFailed = true;
+			synchronized (loadedCallbacks) {
+				callbacks = new ArrayList<>(failedCallbacks);
+				loadedCallbacks.clear();
+				failedCallbacks.clear();
+			}
 		} finally {
+			loaded.signalAll();
 			try {
 				if (in != null)
 					in.close();
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.error("Could not close the download of " + url, e);
 			}
 			lock.unlock();
 		}
+		
+		if(callbacks != null) {
+			for(Runnable r : callbacks)
+				r.run();
+		}
+	}
+	
+	/**
+	 * Runs the callback as soon as the data has finished loading. If the data is already loaded, the callback is run 
+	 * immediately on the calling thread.
+	 * @param callback short running callback
+	 */
+	public void whenLoaded(Runnable callback) {
+		whenLoaded(callback, null);
+	}
+	
+	/**
+	 * Runs one of the callbacks as soon as the data has finished loading or failed to load. If that already happened,
+	 * the callback is run immediately on the calling thread.
+	 * @param callback short running callback, run if the data has been loaded
+	 * @param failed short running callback, run if the data could not be loaded, may be null
+	 */
+	public void whenLoaded(Runnable callback, Runnable failed) {
+		synchronized (loadedCallbacks) {
+			if(!isLoaded && !isFailed) {
+				loadedCallbacks.add(callback);
+				if(failed != null)
+					failedCallbacks.add(failed);
+				return;
+			}
+		}
+		if(isLoaded)
+			callback.run();
+		else if(failed != null)
+			failed.run();
 	}
 	
 	/**
@@ -87,13 +156,21 @@ public class PfssData implements Runnable, Cacheable {
 	}
 	
 	/**
-	 * Wait for Data to load.
+	 * 
+	 * @return true if the data could not be loaded and has to be requested again
+	 */
+	public boolean isFailed() {
+		return isFailed;
+	}
+	
+	/**
+	 * Wait for Data to load. Returns as well if the data could not be loaded.
 	 * @throws InterruptedException
 	 */
 	public void awaitLoaded() throws InterruptedException{
 		lock.lock();
 		try{
-			while(!isLoaded) loaded.await();
+			while(!isLoaded && !isFailed) loaded.await();
 		} finally {
 			lock.unlock();
 		}
@@ -107,11 +184,40 @@ public class PfssData implements Runnable, Cacheable {
 		return rawData;
 	}
 
+	/**
+	 * 
+	 * @return name of the file without the path
+	 */
+	public String getFileName() {
+		return url.substring(url.lastIndexOf('/')+1);
+	}
+	
+	/**
+	 * 
+	 * @return the file on the local filesystem or null if the data was not loaded from a local file
+	 */
+	public File getLocalFile() {
+		try {
+			URL u = new URL(url);
+			if("file".equals(u.getProtocol()))
+				return new File(u.toURI());
+		} catch (MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+			// not a local file
+		}
+		return null;
+	}
+
 	@Override
 	public void run() {
 		loadData();
 	}
 	
+	@Override
+	public long getSize() {
+		byte[] data = rawData;
+		return isLoaded && data != null ? data.length : 0;
+	}
+	
 	@Override
 	public FileDescriptor getDescriptor() {
 		return this.descriptor;
@@ -1,20 +1,19 @@
 package org.helioviewer.gl3d.plugin.pfss.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.RecursiveAction;
 
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DecodedFrameCache;
+import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssScheduler;
 import org.helioviewer.gl3d.plugin.pfss.data.decompression.ByteDecoder;
-import org.helioviewer.gl3d.plugin.pfss.data.decompression.DecompressedLine;
-import org.helioviewer.gl3d.plugin.pfss.data.decompression.DecompressedPoint;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ContainerFormats;
 import org.helioviewer.gl3d.plugin.pfss.data.decompression.IntermediateLineData;
 import org.helioviewer.gl3d.plugin.pfss.data.decompression.LineType;
-import org.helioviewer.gl3d.plugin.pfss.data.decompression.UnRar;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ReusableIntArray;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 import com.jogamp.common.nio.Buffers;
@@ -27,16 +26,46 @@ import nom.tam.fits.FitsException;
 /**
  * Reads in Memory PfssData and writes PfssFrames. Supports running in its own thread for asynchronous loading
  * 
+ * If PROGRESSIVE_LEVELS is set, the first levels of the prediction are decoded first and the frame gets the coarse
+ * lines, so it can be displayed before all lines are fully decoded and smoothed.
+ * 
  * @author Jonas Schwammberger
  *
  */
 public class PfssDecompressor implements Runnable {
+	private static final ThreadLocal<DecodeBuffers> decodeBuffers = new ThreadLocal<DecodeBuffers>() {
+		@Override
+		protected DecodeBuffers initialValue() {
+			return new DecodeBuffers();
+		}
+	};
+	
 	private final PfssData data;
 	private final PfssFrame frame;
+	private final PfssScheduler scheduler;
+	private final DecodedFrameCache decodedCache;
 
+	/**
+	 * Decompressor which decodes all lines on the calling thread
+	 * @param data
+	 * @param frame
+	 */
 	public PfssDecompressor(PfssData data, PfssFrame frame) {
+		this(data, frame, null, null);
+	}
+	
+	/**
+	 * 
+	 * @param data
+	 * @param frame
+	 * @param scheduler the lines get decoded in parallel on the scheduler
+	 * @param decodedCache the decoded buffers get stored in this cache, may be null
+	 */
+	public PfssDecompressor(PfssData data, PfssFrame frame, PfssScheduler scheduler, DecodedFrameCache decodedCache) {
 		this.data = data;
 		this.frame = frame;
+		this.scheduler = scheduler;
+		this.decodedCache = decodedCache;
 	}
 
 	/**
@@ -52,10 +81,9 @@ public class PfssDecompressor implements Runnable {
 		}
 		if (data.isLoaded() && !frame.isLoaded()) {
 			InputStream is = null;
-			ArrayList<DecompressedLine> decompressedLines = null;
+			IntermediateLineData lines = null;
 			try {
-				ByteArrayOutputStream out = UnRar.unrarData(data);
-				is = new ByteArrayInputStream(out.toByteArray());
+				is = ContainerFormats.open(data);
 				
 				Fits fits = new Fits(is, false);
 				BasicHDU hdus[] = fits.read();
@@ -73,208 +101,166 @@ public class PfssDecompressor implements Runnable {
 				byte[] phiRaw = ((byte[][]) bhdu.getColumn("CHANNEL_PHI"))[0];
 				byte[] thetaRaw = ((byte[][]) bhdu.getColumn("CHANNEL_THETA"))[0];
 				
-				int[] startRInt = ByteDecoder.decodeAdaptive(startR);
-				int[] startPhiInt = ByteDecoder.decodeAdaptive(startPhi);
-				int[] startThetaInt = ByteDecoder.decodeAdaptive(startTheta);
-				int[] endRInt = ByteDecoder.decodeAdaptive(endR);
-				int[] endPhiInt = ByteDecoder.decodeAdaptive(endPhi);
-				int[] endThetaInt = ByteDecoder.decodeAdaptive(endTheta);
-				int[] lengths = ByteDecoder.decodeAdaptiveUnsigned(line_length);
-				int[] rInt = ByteDecoder.decodeAdaptive(pRaw);
-				int[] phiInt = ByteDecoder.decodeAdaptive(phiRaw);
-				int[] thetaInt = ByteDecoder.decodeAdaptive(thetaRaw);
+				DecodeBuffers b = decodeBuffers.get();
+				ByteDecoder.decodeAdaptive(startR, b.startR);
+				ByteDecoder.decodeAdaptive(startPhi, b.startPhi);
+				ByteDecoder.decodeAdaptive(startTheta, b.startTheta);
+				ByteDecoder.decodeAdaptive(endR, b.endR);
+				ByteDecoder.decodeAdaptive(endPhi, b.endPhi);
+				ByteDecoder.decodeAdaptive(endTheta, b.endTheta);
+				ByteDecoder.decodeAdaptiveUnsigned(line_length, b.lengths);
+				ByteDecoder.decodeAdaptive(pRaw, b.r);
+				ByteDecoder.decodeAdaptive(phiRaw, b.phi);
+				ByteDecoder.decodeAdaptive(thetaRaw, b.theta);
 
-				IntermediateLineData[]lines = IntermediateLineData.splitToLines(lengths, rInt, phiInt, thetaInt);
-				IntermediateLineData.addStartPoint(lines, startRInt, startPhiInt, startThetaInt);
-				IntermediateLineData.addEndPoint(lines, endRInt, endPhiInt, endThetaInt);
-				for(IntermediateLineData l : lines) {
-					l.decodePrediction();
-					l.toCartesian(l0, b0);
-				}
-			
-				decompressedLines = new ArrayList<DecompressedLine>(lines.length);
-				for(IntermediateLineData line : lines) {
-					decompressedLines.add(new DecompressedLine(line));
+				lines = new IntermediateLineData(b.lengths.getArray(), b.lengths.size());
+				lines.setChannels(b.r.getArray(), b.phi.getArray(), b.theta.getArray());
+				lines.addStartPoints(b.startR.getArray(), b.startPhi.getArray(), b.startTheta.getArray());
+				lines.addEndPoints(b.endR.getArray(), b.endPhi.getArray(), b.endTheta.getArray());
+				
+				if(PfssSettings.PROGRESSIVE_LEVELS > 0) {
+					decode(lines, PfssSettings.PROGRESSIVE_LEVELS, l0, b0);
+					this.convertToBuffers(lines, false);
 				}
+				decode(lines, 0, l0, b0);
 				
 				//Decompression done.
 			} catch (FitsException e) {
 				e.printStackTrace();
+				lines = null;
 			} catch (IOException e) {
 				e.printStackTrace();
+				lines = null;
 			} finally {
 				try {
-					is.close();
+					if(is != null)
+						is.close();
 				} catch (IOException e) {
 				}
 
 			}
 			
-			this.subsampleAndConvertToBuffers(decompressedLines);
+			if(lines != null)
+				this.convertToBuffers(lines, true);
 		}	
 	}
 
 	
 	/**
-	 * subsamples and converts the data to the buffer representation needed for the graphics card.
+	 * converts the decoded lines to the buffer representation needed for the graphics card.
 	 * 
-	 * Also does average filtering.
-	 * @param lines
+	 * The vertices are copied in bulk. Each index buffer contains the segments of all levels of detail one after
+	 * another, each line adds the segments between its kept points for every level.
+	 * @param lines decoded and smoothed lines
+	 * @param complete false if only the coarse lines are decoded
 	 */
-	private void subsampleAndConvertToBuffers(ArrayList<DecompressedLine> lines) {
+	private void convertToBuffers(IntermediateLineData lines, boolean complete) {
+		int levels = PfssSettings.LOD_TOLERANCES.length;
+		float[] tolerances = new float[levels];
+		for(int k = 0; k < levels;k++) {
+			tolerances[k] = (float)(PfssSettings.LOD_TOLERANCES[k] * PfssSettings.LOD_TOLERANCES[k]);
+		}
 		
-		int stoSize= 0;
-		int stsSize = 0;
-		int otsSize = 0;
-		int totalSize = 0;
-		for(int i = 0; i < lines.size();i++)
+		int[] lodSunToOutside = new int[levels+1];
+		int[] lodSunToSun = new int[levels+1];
+		int[] lodOutsideToSun = new int[levels+1];
+		for(int i = 0; i < lines.getNumberOfLines();i++)
 		{
-			DecompressedLine currentLine = lines.get(i);
-			ArrayList<DecompressedPoint> subsampledPoints = new ArrayList<>();
-
-			DecompressedPoint last = currentLine.getPoint(0);
-			subsampledPoints.add(last);
-			
-			for(int j = 1; j < currentLine.getSize();j++) {
-				DecompressedPoint current = currentLine.getPoint(j);
-				
-				if((j + 1)< currentLine.getSize()) {
-					//check if point should be in line or not
-					DecompressedPoint next = currentLine.getPoint(j+1);
-					boolean colinear = current.AngleTo(next, last) > PfssSettings.ANGLE_OF_LOD;
-					colinear = false;
-					if(!colinear) {
-						DecompressedPoint average = getAveragePoint(currentLine, j);
-						average = average == null ? current : average;
-						
-						last = average;
-						subsampledPoints.add(average);
-					}
-					
-				} else {
-					//last point, always add
-					subsampledPoints.add(current);
-				}
-			}
-			
-			DecompressedLine subsampledLine = new DecompressedLine(subsampledPoints,currentLine.getType());
-			lines.set(i, subsampledLine);
-			switch(subsampledLine.getType())
-			{
-				case OUTSIDE_TO_SUN:
-					otsSize += subsampledLine.getSize()-1;
-					break;
-				case SUN_TO_OUTSIDE:
-					stoSize += subsampledLine.getSize()-1;
-					break;
-				case SUN_TO_SUN:
-					stsSize += subsampledLine.getSize()-1;
-					break;
-				default:
-					break;
+			int[] lod = getLineType(lines.getType(i), lodSunToOutside, lodSunToSun, lodOutsideToSun);
+			for(int k = 0; k < levels;k++)
+				lod[k+1] += (lines.countPoints(i, tolerances[k])-1)*2;
+		}
+		//level sizes to start offsets
+		for(int k = 0; k < levels;k++) {
+			lodSunToOutside[k+1] += lodSunToOutside[k];
+			lodSunToSun[k+1] += lodSunToSun[k];
+			lodOutsideToSun[k+1] += lodOutsideToSun[k];
+		}
+		
+		//coarse lines only reference the decoded points, so only these are copied
+		float[] significance = lines.getSignificance();
+		int[] vertexIndices = null;
+		int numVertices = lines.getTotalSize();
+		if(!complete) {
+			vertexIndices = new int[numVertices];
+			int kept = 0;
+			for(int i = 0; i < numVertices;i++) {
+				vertexIndices[i] = kept;
+				if(significance[i] >= 0)
+					kept++;
 			}
-			
-			totalSize += subsampledLine.getSize();
+			numVertices = kept;
 		}
 		
 		//copy to buffers
 		FloatBuffer vertices = Buffers
-				.newDirectFloatBuffer(totalSize * 3 );
+				.newDirectFloatBuffer(numVertices * 3);
 		IntBuffer indicesSunToOutside = Buffers
-				.newDirectIntBuffer(stoSize * 2);
+				.newDirectIntBuffer(lodSunToOutside[levels]);
 		IntBuffer indicesSunToSun = Buffers
-				.newDirectIntBuffer(stsSize * 2);
+				.newDirectIntBuffer(lodSunToSun[levels]);
 		IntBuffer indicesOutsideToSun = Buffers
-				.newDirectIntBuffer(otsSize * 2);
+				.newDirectIntBuffer(lodOutsideToSun[levels]);
 
-		int vertexIndex = 0;
-		for(int i = 0; i < lines.size();i++) {
-			DecompressedLine line = lines.get(i);
-			IntBuffer indexBuffer = getLineType(line.getType(), indicesSunToOutside,
-					indicesSunToSun, indicesOutsideToSun);
-			
-			int pointIndex = 0;
-			while(pointIndex+1 < line.getSize())
-			{
-				DecompressedPoint point = line.getPoint(pointIndex);
-				vertices.put(point.getX());
-				vertices.put(point.getY());
-				vertices.put(point.getZ());
-				indexBuffer.put(vertexIndex);
-				indexBuffer.put(vertexIndex+1);
-				vertexIndex++;
-				pointIndex++;
+		float[] points = lines.getPoints();
+		if(vertexIndices == null) {
+			vertices.put(points, 0, numVertices * 3);
+		} else {
+			for(int i = 0; i < lines.getTotalSize();i++) {
+				if(significance[i] >= 0)
+					vertices.put(points, i*3, 3);
+			}
+		}
+		for(int k = 0; k < levels;k++) {
+			for(int i = 0; i < lines.getNumberOfLines();i++) {
+				IntBuffer indexBuffer = getLineType(lines.getType(i), indicesSunToOutside,
+						indicesSunToSun, indicesOutsideToSun);
+				
+				int lastKept = lines.getOffset(i);
+				int lastIndex = lastKept + lines.getSize(i) - 1;
+				for(int vertexIndex = lastKept+1; vertexIndex <= lastIndex;vertexIndex++)
+				{
+					if(significance[vertexIndex] >= tolerances[k]) {
+						indexBuffer.put(vertexIndices == null ? lastKept : vertexIndices[lastKept]);
+						indexBuffer.put(vertexIndices == null ? vertexIndex : vertexIndices[vertexIndex]);
+						lastKept = vertexIndex;
+					}
+				}
 			}
-			DecompressedPoint point = line.getPoint(pointIndex);
-			vertices.put(point.getX());
-			vertices.put(point.getY());
-			vertices.put(point.getZ());
-			vertexIndex++;
 		}
 
 		vertices.flip();
 		indicesSunToOutside.flip();
 		indicesOutsideToSun.flip();
 		indicesSunToSun.flip();
-		frame.setLoadedData(vertices, indicesSunToOutside,
-				indicesSunToSun, indicesOutsideToSun);
-	}
-	
-	/**
-	 * Returns the average point from the line.
-	 * @param line
-	 * @param pointIndex
-	 * @return
-	 */
-	private DecompressedPoint getAveragePoint(DecompressedLine line, int pointIndex) {
-		DecompressedPoint answer = null;
-		int startOffset = 0;
-		int length = 0;
-
-		startOffset = 1;
-		length = PfssSettings.SMOOTH_FILTER_SIZE;
-		if(pointIndex - startOffset < 0) {
-			length -=  startOffset - pointIndex;
-			startOffset = pointIndex;
-		}
-			
-		float avX = 0;
-		float avY = 0;
-		float avZ = 0;
-		int count = 0;
-		for (int i = pointIndex - startOffset; i < (pointIndex - startOffset + length)
-				& i < line.getSize(); i++) {
-			DecompressedPoint current = line.getPoint(i);
-			avX += current.getX();
-			avY += current.getY();
-			avZ += current.getZ();
-			count++;
+		if(!complete) {
+			frame.setCoarseData(vertices, indicesSunToOutside, indicesSunToSun, indicesOutsideToSun, 
+					lodSunToOutside, lodSunToSun, lodOutsideToSun);
+			return;
 		}
-
-		answer = new DecompressedPoint(avX / count, avY / count, avZ / count);
+		frame.setLoadedData(vertices, indicesSunToOutside, indicesSunToSun, indicesOutsideToSun, 
+				lodSunToOutside, lodSunToSun, lodOutsideToSun);
 		
-		return answer;
+		if(decodedCache != null && frame.getDescriptor() != null)
+			decodedCache.put(frame.getDescriptor(), vertices, indicesSunToOutside, indicesSunToSun, indicesOutsideToSun,
+					lodSunToOutside, lodSunToSun, lodOutsideToSun);
 	}
 
 	/**
-	 * Helper function for determining the right line type
+	 * Helper function for choosing the buffer of a line type
 	 * 
 	 * Types: Sun_to_sun Outside_to_sun Sun_to_outside
 	 * 
-	 * @param ptr
-	 * @param startIndex
-	 *            index of start point of the fieldline
-	 * @param endIndex
-	 *            index of the endpoint of the fieldline
+	 * @param type type of the line
 	 * @param sto
-	 *            sun_to_outside indexbuffer
+	 *            sun_to_outside buffer
 	 * @param sts
-	 *            sun_to_sun indexbuffer
+	 *            sun_to_sun buffer
 	 * @param ots
-	 *            outside_to_sun indexbuffer
-	 * @return returns indexbuffer of the type
+	 *            outside_to_sun buffer
+	 * @return returns the buffer of the type
 	 */
-	private static IntBuffer getLineType(LineType type, IntBuffer sto, IntBuffer sts, IntBuffer ots) {
+	private static <T> T getLineType(LineType type, T sto, T sts, T ots) {
 		switch(type)
 		{
 			case OUTSIDE_TO_SUN:
@@ -293,6 +279,88 @@ public class PfssDecompressor implements Runnable {
 		readData();
 	}
 	
+	/**
+	 * Decoded columns of the fits file. Each decompression thread reuses its buffers for every frame.
+	 */
+	private static class DecodeBuffers {
+		final ReusableIntArray startR = new ReusableIntArray();
+		final ReusableIntArray startPhi = new ReusableIntArray();
+		final ReusableIntArray startTheta = new ReusableIntArray();
+		final ReusableIntArray endR = new ReusableIntArray();
+		final ReusableIntArray endPhi = new ReusableIntArray();
+		final ReusableIntArray endTheta = new ReusableIntArray();
+		final ReusableIntArray lengths = new ReusableIntArray();
+		final ReusableIntArray r = new ReusableIntArray();
+		final ReusableIntArray phi = new ReusableIntArray();
+		final ReusableIntArray theta = new ReusableIntArray();
+	}
+	
+	/**
+	 * Decodes all lines, in parallel if there is a scheduler
+	 * @param lines
+	 * @param coarseLevels number of prediction levels to decode, 0 to fully decode the lines
+	 * @param l0
+	 * @param b0
+	 */
+	private void decode(IntermediateLineData lines, int coarseLevels, double l0, double b0) {
+		if(scheduler == null)
+			decodeLines(lines, 0, lines.getNumberOfLines(), coarseLevels, l0, b0);
+		else
+			scheduler.invoke(new DecodeLinesTask(lines, 0, lines.getNumberOfLines(), coarseLevels, l0, b0));
+	}
+	
+	/**
+	 * Decodes the lines from inclusive to exclusive on the calling thread
+	 * @param lines
+	 * @param from
+	 * @param to
+	 * @param coarseLevels number of prediction levels to decode, 0 to fully decode the lines
+	 * @param l0
+	 * @param b0
+	 */
+	private static void decodeLines(IntermediateLineData lines, int from, int to, int coarseLevels, double l0, double b0) {
+		int[] queue = new int[lines.getQueueSize()];
+		for(int i = from; i < to;i++) {
+			if(coarseLevels > 0)
+				lines.decodeCoarseLine(i, coarseLevels, l0, b0);
+			else
+				lines.decodeLine(i, queue, l0, b0);
+		}
+	}
+	
+	/**
+	 * Decodes a range of lines. The range gets split up until it is small enough, so the lines are decoded in parallel
+	 */
+	private static class DecodeLinesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final IntermediateLineData lines;
+		private final int from;
+		private final int to;
+		private final int coarseLevels;
+		private final double l0;
+		private final double b0;
+		
+		public DecodeLinesTask(IntermediateLineData lines, int from, int to, int coarseLevels, double l0, double b0) {
+			this.lines = lines;
+			this.from = from;
+			this.to = to;
+			this.coarseLevels = coarseLevels;
+			this.l0 = l0;
+			this.b0 = b0;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to - from <= PfssSettings.LINES_PER_TASK) {
+				decodeLines(lines, from, to, coarseLevels, l0, b0);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new DecodeLinesTask(lines, from, middle, coarseLevels, l0, b0), 
+						new DecodeLinesTask(lines, middle, to, coarseLevels, l0, b0));
+			}
+		}
+	}
+	
 	public static void main(String[] args) {
 		String s = "file:///C:/Users/Jonas%20Schwammberger/Documents/GitHub/PFSSCompression/test/temp/";
 		FileDescriptor f = new FileDescriptor(new Date(0), new Date(1), "test4_extra.rar",0);
@@ -15,7 +15,7 @@ import org.helioviewer.gl3d.plugin.pfss.data.caching.Cacheable;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 import org.helioviewer.gl3d.scenegraph.math.GL3DVec3f;
 import org.helioviewer.viewmodel.view.LinkedMovieManager;
-import org.helioviewer.viewmodel.view.jp2view.JHVJPXView;
+import org.helioviewer.viewmodel.view.TimedMovieView;
 
 import com.jogamp.common.nio.Buffers;
 
@@ -23,6 +23,14 @@ import com.jogamp.common.nio.Buffers;
  * Represents a frame of PFSS Data
  * 
  * it is possible that an instance of the PfssFrame does not yet contain the data. If this is the case, display() won't do anything.
+ * A frame which has been released by the cache is not loaded again, it has to be replaced by a new frame from the cache.
+ * 
+ * Each index buffer contains the segments of all levels of detail one after another. The lod arrays hold the start of
+ * each level in the index buffer and the end of the last level.
+ * 
+ * A frame can first be loaded with coarse lines. When the fully decoded lines are set, the data on the videocard is
+ * replaced the next time the frame gets displayed. The GL thread takes the buffers and level of detail arrays together
+ * while holding the lock, so it never draws the index buffers of one decoding with the levels of another.
  * 
  * this class is threadsafe
  * @author Jonas Schwammberger
@@ -31,6 +39,9 @@ import com.jogamp.common.nio.Buffers;
 public class PfssFrame implements Cacheable {
 	private volatile boolean isLoaded = false;
 	private volatile boolean isInit = false;
+	private volatile boolean isComplete = false;
+	private volatile boolean isOutdated = false;
+	private volatile boolean isReleased = false;
 	private final FileDescriptor descriptor;
 	private final Lock lock = new ReentrantLock();
 	private final Condition isLoadedCondition = lock.newCondition();
@@ -39,6 +50,14 @@ public class PfssFrame implements Cacheable {
 	private IntBuffer indicesSunToOutside = null;
 	private IntBuffer indicesSunToSun = null;
 	private IntBuffer indicesOutsideToSun = null;
+	private int[] lodSunToOutside;
+	private int[] lodSunToSun;
+	private int[] lodOutsideToSun;
+	
+	//level of detail arrays of the data on the videocard, only used by the GL thread
+	private int[] initLodSunToOutside;
+	private int[] initLodSunToSun;
+	private int[] initLodOutsideToSun;
 	
 	private int[] buffers = null;
 	private int VBOVertices;
@@ -51,21 +70,63 @@ public class PfssFrame implements Cacheable {
 	}
 	
 	/**
-	 * The FrameManager sets the loaded data to this frame
+	 * The FrameManager sets the fully decoded data to this frame. It replaces coarse data.
+	 * 
+	 * @param vertices
+	 * @param indicesSunToOutside
+	 * @param indicesSunToSun
+	 * @param indicesOutsideToSun
+	 * @param lodSunToOutside start of each level of detail in indicesSunToOutside
+	 * @param lodSunToSun start of each level of detail in indicesSunToSun
+	 * @param lodOutsideToSun start of each level of detail in indicesOutsideToSun
+	 */
+	public void setLoadedData(FloatBuffer vertices, IntBuffer indicesSunToOutside, IntBuffer indicesSunToSun, IntBuffer indicesOutsideToSun,
+			int[] lodSunToOutside, int[] lodSunToSun, int[] lodOutsideToSun) {
+		lock.lock();
+		try {
+			if(!isReleased && (!isLoaded || !isComplete)) {
+				this.vertices = vertices;
+				this.indicesSunToOutside = indicesSunToOutside;
+				this.indicesSunToSun = indicesSunToSun;
+				this.indicesOutsideToSun = indicesOutsideToSun;
+				this.lodSunToOutside = lodSunToOutside;
+				this.lodSunToSun = lodSunToSun;
+				this.lodOutsideToSun = lodOutsideToSun;
+				isOutdated = isLoaded;
+				isComplete = true;
+				isLoaded = true;
+			}
+			isLoadedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets coarse lines to this frame, so it can be displayed before it is fully decoded. Does nothing if the frame
+	 * is already loaded.
 	 * 
 	 * @param vertices
 	 * @param indicesSunToOutside
 	 * @param indicesSunToSun
 	 * @param indicesOutsideToSun
+	 * @param lodSunToOutside start of each level of detail in indicesSunToOutside
+	 * @param lodSunToSun start of each level of detail in indicesSunToSun
+	 * @param lodOutsideToSun start of each level of detail in indicesOutsideToSun
 	 */
-	public void setLoadedData(FloatBuffer vertices, IntBuffer indicesSunToOutside, IntBuffer indicesSunToSun, IntBuffer indicesOutsideToSun) {
+	public void setCoarseData(FloatBuffer vertices, IntBuffer indicesSunToOutside, IntBuffer indicesSunToSun, IntBuffer indicesOutsideToSun,
+			int[] lodSunToOutside, int[] lodSunToSun, int[] lodOutsideToSun) {
 		lock.lock();
 		try {
-			if(!isLoaded) {
+			if(!isReleased && !isLoaded) {
 				this.vertices = vertices;
 				this.indicesSunToOutside = indicesSunToOutside;
 				this.indicesSunToSun = indicesSunToSun;
 				this.indicesOutsideToSun = indicesOutsideToSun;
+				this.lodSunToOutside = lodSunToOutside;
+				this.lodSunToSun = lodSunToSun;
+				this.lodOutsideToSun = lodOutsideToSun;
+				isComplete = false;
 				isLoaded = true;
 			}
 			isLoadedCondition.signalAll();
@@ -80,6 +141,26 @@ public class PfssFrame implements Cacheable {
 	 */
 	public void init(GL gl) {
 		if (!isInit && isLoaded && gl != null) {
+			FloatBuffer vertices;
+			IntBuffer indicesSunToOutside;
+			IntBuffer indicesSunToSun;
+			IntBuffer indicesOutsideToSun;
+			lock.lock();
+			try {
+				if(!isLoaded)
+					return;
+				vertices = this.vertices;
+				indicesSunToOutside = this.indicesSunToOutside;
+				indicesSunToSun = this.indicesSunToSun;
+				indicesOutsideToSun = this.indicesOutsideToSun;
+				initLodSunToOutside = lodSunToOutside;
+				initLodSunToSun = lodSunToSun;
+				initLodOutsideToSun = lodOutsideToSun;
+				isOutdated = false;
+			} finally {
+				lock.unlock();
+			}
+			
 			GL2 gl2 = gl.getGL2();
 			buffers = new int[4];
 			gl2.glGenBuffers(4, buffers, 0);
@@ -145,11 +226,18 @@ public class PfssFrame implements Cacheable {
 	 * 
 	 * @param gl
 	 * @param time
+	 * @param levelOfDetail 0 for all points, higher levels are simplified more
 	 */
-	public void display(GL gl, Date time) {
+	public void display(GL gl, Date time, int levelOfDetail) {
+		//fully decoded data replaces the coarse data on the videocard
+		if(isOutdated && isInit && gl != null) {
+			clear(gl);
+			init(gl);
+		}
+		
 		if(isInit && gl != null) {
 			
-			JHVJPXView masterView=(JHVJPXView) LinkedMovieManager.getActiveInstance().getMasterMovie();
+			TimedMovieView masterView=LinkedMovieManager.getActiveInstance().getMasterMovie();
 	        if(masterView==null || masterView.getCurrentFrameDateTime()==null)
 	            return;
 	        
@@ -169,7 +257,6 @@ public class PfssFrame implements Cacheable {
 			gl2.glDepthMask(false);
 			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBOVertices);
 			gl2.glVertexPointer(3, GL2.GL_FLOAT, 0, 0);
-			GL3DVec3f color;
 	
 			//merged
 			gl2.glRotated(DifferentialRotation.calculateRotationInDegrees(0,(currentDate.getTime()-descriptor.getStartDate().getTime())/1000d),0,1,0);
@@ -177,35 +264,18 @@ public class PfssFrame implements Cacheable {
 			gl2.glLineWidth(PfssSettings.LINE_WIDTH);
 			// gl.glPrimitiveRestartIndexNV(0);
 	
-			if (indicesSunToSun != null && indicesSunToSun.limit() > 0) {
-				color = PfssSettings.SUN_SUN_LINE_COLOR;
-				gl2.glColor4f(color.x, color.y, color.z, PfssSettings.LINE_ALPHA);
-				gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, VBOIndicesSunToSun);
-				gl2.glDrawElements(GL2.GL_LINES, indicesSunToSun.limit(),
-						GL2.GL_UNSIGNED_INT, 0);
-			}
-			if (indicesSunToOutside != null && indicesSunToOutside.limit() > 0) {
-				color = PfssSettings.SUN_OUT_LINE_COLOR;
-				gl2.glColor4f(color.x, color.y, color.z, PfssSettings.LINE_ALPHA);
-				gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, VBOIndicesSunToOutside);
-				gl2.glDrawElements(GL2.GL_LINES, indicesSunToOutside.limit(),
-						GL2.GL_UNSIGNED_INT, 0);
-			}
-	
-			if (indicesOutsideToSun != null && indicesOutsideToSun.limit() > 0) {
-				color = PfssSettings.OUT_SUN_LINE_COLOR;
-				gl2.glColor4f(color.x, color.y, color.z, PfssSettings.LINE_ALPHA);
-				gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, VBOIndicesOutsideToSun);
-				gl2.glDrawElements(GL2.GL_LINES, indicesOutsideToSun.limit(),
-						GL2.GL_UNSIGNED_INT, 0);
-			}
+			int level = Math.max(0, Math.min(levelOfDetail, initLodSunToSun.length - 2));
+			drawLines(gl2, VBOIndicesSunToSun, initLodSunToSun, level, PfssSettings.SUN_SUN_LINE_COLOR);
+			drawLines(gl2, VBOIndicesSunToOutside, initLodSunToOutside, level, PfssSettings.SUN_OUT_LINE_COLOR);
+			drawLines(gl2, VBOIndicesOutsideToSun, initLodOutsideToSun, level, PfssSettings.OUT_SUN_LINE_COLOR);
+			
 			gl2.glDisableClientState(GL2.GL_VERTEX_ARRAY);
 			gl2.glDisable(GL2.GL_LINE_SMOOTH);
 			gl2.glDisable(GL2.GL_BLEND);
 			gl2.glDepthMask(true);
 			gl2.glLineWidth(1f);
-		} else {
-			//if it is not loaded, await
+		} else if(gl == null) {
+			//not called by the GL thread, await the data
 			if(!this.isLoaded) {
 				try {
 					this.awaitLoaded();
@@ -213,19 +283,55 @@ public class PfssFrame implements Cacheable {
 					//ignore
 				}
 			}
-			
-			//loaded, but failed to initialize beforehand
-			if(this.isLoaded && !this.isInit && gl != null)
-			{
-				this.init(gl);
-			}
+		} else if(this.isLoaded && !this.isInit) {
+			//loaded, but failed to initialize beforehand. The GL thread never waits, nothing is drawn until the data is loaded
+			this.init(gl);
+		}
+	}
+	
+	/**
+	 * Draws the segments of one level of detail of an index buffer
+	 * @param gl2
+	 * @param vbo index buffer on the videocard
+	 * @param lod start of each level in the index buffer
+	 * @param level level of detail to draw
+	 * @param color
+	 */
+	private static void drawLines(GL2 gl2, int vbo, int[] lod, int level, GL3DVec3f color) {
+		int count = lod[level+1] - lod[level];
+		if(count > 0) {
+			gl2.glColor4f(color.x, color.y, color.z, PfssSettings.LINE_ALPHA);
+			gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, vbo);
+			gl2.glDrawElements(GL2.GL_LINES, count, GL2.GL_UNSIGNED_INT, (long)lod[level] * Buffers.SIZEOF_INT);
+		}
+	}
+	
+	/**
+	 * Drops the references to the decoded buffers, so their memory can be reclaimed. The data on the videocard has to
+	 * be removed with clear(), until then it can still be displayed.
+	 * 
+	 * A released frame is not loaded again.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			isReleased = true;
+			isLoaded = false;
+			isComplete = false;
+			vertices = null;
+			indicesSunToOutside = null;
+			indicesSunToSun = null;
+			indicesOutsideToSun = null;
+			isLoadedCondition.signalAll();
+		} finally {
+			lock.unlock();
 		}
 	}
 	
 	private void awaitLoaded() throws InterruptedException {
 		lock.lock();
 		try{
-			while(!isLoaded) isLoadedCondition.await();
+			while(!isLoaded && !isReleased) isLoadedCondition.await();
 		} finally {
 			lock.unlock();
 		}
@@ -239,6 +345,20 @@ public class PfssFrame implements Cacheable {
 		return isInit;
 	}
 	
+	/**
+	 * @return true if the fully decoded lines are loaded, false if the frame only contains coarse lines
+	 */
+	public boolean isComplete() {
+		return isComplete;
+	}
+	
+	/**
+	 * @return true if the frame has been evicted from the cache and has to be replaced to be displayed again
+	 */
+	public boolean isReleased() {
+		return isReleased;
+	}
+	
 	/**
 	 * @return true if all the data has been loaded into memory
 	 */
@@ -246,6 +366,22 @@ public class PfssFrame implements Cacheable {
 		return isLoaded;
 	}
 	
+	@Override
+	public long getSize() {
+		lock.lock();
+		try {
+			if(!isLoaded)
+				return 0;
+			long size = vertices.capacity() * Buffers.SIZEOF_FLOAT;
+			size += indicesSunToOutside.capacity() * Buffers.SIZEOF_INT;
+			size += indicesSunToSun.capacity() * Buffers.SIZEOF_INT;
+			size += indicesOutsideToSun.capacity() * Buffers.SIZEOF_INT;
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
 	@Override
 	public FileDescriptor getDescriptor() {
 		return this.descriptor;
@@ -9,4 +9,10 @@ import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
  */
 public interface Cacheable {
 	public FileDescriptor getDescriptor();
+	
+	/**
+	 * 
+	 * @return number of bytes the object currently occupies, 0 if it is not loaded yet
+	 */
+	public long getSize();
 }
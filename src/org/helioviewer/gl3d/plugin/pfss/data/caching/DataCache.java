@@ -3,6 +3,7 @@ package org.helioviewer.gl3d.plugin.pfss.data.caching;
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
 import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssDataCreator;
+import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssScheduler;
 import org.helioviewer.gl3d.plugin.pfss.data.managers.FileDescriptorManager;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
@@ -20,34 +21,30 @@ public class DataCache {
 	private final LRUCache<PfssData> cache;
 	
 	
-	public DataCache(FileDescriptorManager descriptors) {
+	public DataCache(FileDescriptorManager descriptors, PfssScheduler scheduler, DiskCache diskCache) {
 		this.descriptorManager = descriptors;
 		
-		this.dataCreator = new PfssDataCreator();
-		this.cache = new LRUCache<>(PfssSettings.DATA_CACHE_SIZE);
+		this.dataCreator = new PfssDataCreator(scheduler, diskCache);
+		this.cache = new LRUCache<>(PfssSettings.DATA_CACHE_SIZE, PfssSettings.DATA_PRELOAD_SIZE, PfssSettings.DATA_CACHE_BYTES, null);
 		this.readAheadCache = new LRUCache<>(PfssSettings.DATA_PRELOAD_SIZE);
 	}
 	
+	/**
+	 * Returns the cached PfssData. Entries which failed to load are replaced, so the data gets loaded again.
+	 * @param d
+	 * @return
+	 */
 	public PfssData get(FileDescriptor d) {
-		PfssData out = null;
-		if(cache.contains(d))
-		{
-			out = cache.get(d);
-		}
-		if(readAheadCache.contains(d))
-		{
-			PfssData data = readAheadCache.get(d);
-			cache.put(d, data);
-			readAhead(d);
-			out = data;
-			
-		} else {
-			//cache miss
-			PfssData data = dataCreator.getDataAsync(d);
-			cache.put(d, data);
-			readAhead(d);
-			out = data;
+		PfssData out = cache.get(d);
+		if(out == null || out.isFailed()) {
+			out = readAheadCache.contains(d) ? readAheadCache.get(d) : null;
+			if(out == null || out.isFailed()) {
+				//cache miss
+				out = dataCreator.getDataAsync(d);
+			}
+			cache.put(d, out);
 		}
+		readAhead(d);
 		
 		return out;
 	}
@@ -61,19 +58,27 @@ public class DataCache {
 		
 		for(int i = 0; i < readAheadCache.size();i++)
 		{
-			if(!readAheadCache.contains(next))
+			if(!readAheadCache.contains(next) || readAheadCache.get(next).isFailed())
 			{
 				PfssData read = null;
 				if(cache.contains(next)) {
 					read = cache.get(next);
-				} else {
+				}
+				if(read == null || read.isFailed()) {
 					read = dataCreator.getDataAsync(next);
 				}
 
 				readAheadCache.put(next, read);
 			}
+			next = descriptorManager.getNext(next);
 		}
 	}
 	
-	
+	/**
+	 * 
+	 * @return cache of the raw data. Its counters can be used for monitoring
+	 */
+	public LRUCache<PfssData> getCache() {
+		return cache;
+	}
 }
@@ -0,0 +1,211 @@
+package org.helioviewer.gl3d.plugin.pfss.data.caching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
+import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
+import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
+
+/**
+ * Persistent cache of fully decoded frames.
+ *
+ * A frame is stored as a flat file which contains a header, the level of detail tables, the vertex buffer and the three
+ * index buffers in the native byte order. Cached frames are memory mapped and the buffers are handed to the PfssFrame without copying them.
+ *
+ * The header contains the settings version of the decompression. Frames which were decoded with different smoothing
+ * or level of detail settings are not used.
+ *
+ * This class is threadsafe
+ */
+public class DecodedFrameCache {
+	private static final int MAGIC = 0x50465346; //PFSF
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_INTS = 8;
+	private static final int LOD_INTS = 3 * (PfssSettings.LOD_TOLERANCES.length + 1);
+	private static final int HEADER_SIZE = (HEADER_INTS + LOD_INTS) * 4;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Changes whenever a setting changes which influences the decoded buffers
+	 */
+	public static final int SETTINGS_VERSION = settingsVersion();
+
+	private final DiskCache diskCache;
+
+	/**
+	 *
+	 * @param diskCache storage of the decoded frames
+	 */
+	public DecodedFrameCache(DiskCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
+	private static int settingsVersion() {
+		int hash = 17;
+		hash = hash * 31 + PfssSettings.SMOOTH_FILTER_SIZE;
+		hash = hash * 31 + Arrays.hashCode(PfssSettings.LOD_TOLERANCES);
+		return hash;
+	}
+
+	private static String createKey(FileDescriptor descriptor) {
+		return DiskCache.createKey(descriptor.getYear(), descriptor.getMonth(), descriptor.getFileName())
+				+ "." + Integer.toHexString(SETTINGS_VERSION) + ".frame";
+	}
+
+	/**
+	 * Loads a frame from the cache
+	 * @param descriptor
+	 * @return loaded frame or null if it is not cached
+	 */
+	public PfssFrame get(FileDescriptor descriptor) {
+		String key = createKey(descriptor);
+		File file = diskCache.get(key);
+		if(file == null)
+			return null;
+
+		try {
+			MappedByteBuffer mapped;
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close();
+			}
+
+			mapped.order(ByteOrder.nativeOrder());
+			if(mapped.remaining() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT_VERSION
+					|| mapped.getInt(8) != SETTINGS_VERSION || mapped.getInt(28) != LOD_INTS) {
+				diskCache.remove(key);
+				return null;
+			}
+
+			int[] counts = new int[4];
+			long total = HEADER_SIZE;
+			for(int i = 0; i < counts.length;i++) {
+				counts[i] = mapped.getInt(12 + i*4);
+				total += counts[i] * 4l;
+			}
+			if(total != mapped.capacity()) {
+				diskCache.remove(key);
+				return null;
+			}
+
+			int levels = LOD_INTS / 3;
+			int[][] lod = new int[3][levels];
+			for(int i = 0; i < LOD_INTS;i++) {
+				lod[i / levels][i % levels] = mapped.getInt(HEADER_INTS*4 + i*4);
+			}
+			
+			int offset = HEADER_SIZE;
+			FloatBuffer vertices = slice(mapped, offset, counts[0]).asFloatBuffer();
+			offset += counts[0]*4;
+			IntBuffer indicesSunToOutside = slice(mapped, offset, counts[1]).asIntBuffer();
+			offset += counts[1]*4;
+			IntBuffer indicesSunToSun = slice(mapped, offset, counts[2]).asIntBuffer();
+			offset += counts[2]*4;
+			IntBuffer indicesOutsideToSun = slice(mapped, offset, counts[3]).asIntBuffer();
+
+			PfssFrame frame = new PfssFrame(descriptor);
+			frame.setLoadedData(vertices, indicesSunToOutside, indicesSunToSun, indicesOutsideToSun, lod[0], lod[1], lod[2]);
+			return frame;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int count) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		b.limit(offset + count*4);
+		return b.slice().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Stores the decoded buffers of a frame. The buffers have to be flipped, their positions are not changed.
+	 * @param descriptor
+	 * @param vertices
+	 * @param indicesSunToOutside
+	 * @param indicesSunToSun
+	 * @param indicesOutsideToSun
+	 * @param lodSunToOutside start of each level of detail in indicesSunToOutside
+	 * @param lodSunToSun start of each level of detail in indicesSunToSun
+	 * @param lodOutsideToSun start of each level of detail in indicesOutsideToSun
+	 */
+	public void put(FileDescriptor descriptor, final FloatBuffer vertices, final IntBuffer indicesSunToOutside,
+			final IntBuffer indicesSunToSun, final IntBuffer indicesOutsideToSun, 
+			final int[] lodSunToOutside, final int[] lodSunToSun, final int[] lodOutsideToSun) {
+		try {
+			diskCache.put(createKey(descriptor), new DiskCache.ContentWriter() {
+				@Override
+				public void write(FileChannel channel) throws IOException {
+					ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+					chunk.putInt(MAGIC);
+					chunk.putInt(FORMAT_VERSION);
+					chunk.putInt(SETTINGS_VERSION);
+					chunk.putInt(vertices.limit());
+					chunk.putInt(indicesSunToOutside.limit());
+					chunk.putInt(indicesSunToSun.limit());
+					chunk.putInt(indicesOutsideToSun.limit());
+					chunk.putInt(LOD_INTS);
+					chunk.asIntBuffer().put(lodSunToOutside).put(lodSunToSun).put(lodOutsideToSun);
+					chunk.position(HEADER_SIZE);
+
+					writeBuffer(channel, chunk, vertices);
+					writeBuffer(channel, chunk, indicesSunToOutside);
+					writeBuffer(channel, chunk, indicesSunToSun);
+					writeBuffer(channel, chunk, indicesOutsideToSun);
+					flush(channel, chunk);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copies the buffer through the chunk into the channel
+	 */
+	private static void writeBuffer(FileChannel channel, ByteBuffer chunk, Buffer source) throws IOException {
+		Buffer src = duplicate(source);
+		src.position(0);
+		while(src.hasRemaining()) {
+			if(chunk.remaining() < 4)
+				flush(channel, chunk);
+
+			int count = Math.min(chunk.remaining() / 4, src.remaining());
+			Buffer part = duplicate(src);
+			part.limit(src.position() + count);
+			if(part instanceof FloatBuffer)
+				chunk.asFloatBuffer().put((FloatBuffer)part);
+			else
+				chunk.asIntBuffer().put((IntBuffer)part);
+			chunk.position(chunk.position() + count * 4);
+			src.position(src.position() + count);
+		}
+	}
+
+	private static Buffer duplicate(Buffer b) {
+		if(b instanceof FloatBuffer)
+			return ((FloatBuffer)b).duplicate();
+		return ((IntBuffer)b).duplicate();
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.flip();
+		while(chunk.hasRemaining())
+			channel.write(chunk);
+		chunk.clear();
+	}
+}
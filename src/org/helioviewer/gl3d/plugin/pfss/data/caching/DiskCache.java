@@ -0,0 +1,230 @@
+package org.helioviewer.gl3d.plugin.pfss.data.caching;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Persistent cache of downloaded pfss files on the local filesystem.
+ * 
+ * The files are stored under their path on the server (year/month/filename). The cache is bounded by the number of bytes
+ * and evicts the least recently used files. The recency is stored in the modification date of the files, so it survives
+ * restarts of the application.
+ * 
+ * This class is threadsafe
+ */
+public class DiskCache {
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	private final File directory;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(256, 0.75f, true);
+	private long bytes = 0;
+	
+	/**
+	 * Creates the cache and indexes the files which are already in the directory
+	 * @param directory root directory of the cache
+	 * @param maxBytes maximum number of bytes of all cached files
+	 */
+	public DiskCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		
+		ArrayList<File> existing = new ArrayList<>();
+		collectFiles(directory, existing);
+		Collections.sort(existing, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long m1 = o1.lastModified();
+				long m2 = o2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		
+		String root = directory.getAbsolutePath();
+		for(File f : existing) {
+			if(f.getName().endsWith(PARTIAL_SUFFIX)) {
+				f.delete();
+				continue;
+			}
+			String key = f.getAbsolutePath().substring(root.length()+1).replace(File.separatorChar, '/');
+			files.put(key, f.length());
+			bytes += f.length();
+		}
+		synchronized (this) {
+			evict();
+		}
+	}
+	
+	private static void collectFiles(File dir, ArrayList<File> out) {
+		File[] content = dir.listFiles();
+		if(content == null)
+			return;
+		for(File f : content) {
+			if(f.isDirectory())
+				collectFiles(f, out);
+			else
+				out.add(f);
+		}
+	}
+	
+	/**
+	 * Creates the key of a file on the server
+	 * @param year
+	 * @param month zero based month
+	 * @param fileName
+	 * @return key of the file
+	 */
+	public static String createKey(int year, int month, String fileName) {
+		StringBuilder b = new StringBuilder();
+		b.append(year);
+		b.append("/");
+		if(month < 9)
+			b.append("0");
+		b.append(month+1);
+		b.append("/");
+		b.append(fileName);
+		return b.toString();
+	}
+	
+	/**
+	 * Returns the cached file and marks it as most recently used
+	 * @param key
+	 * @return the file or null if it is not cached
+	 */
+	public synchronized File get(String key) {
+		//get() refreshes the access order
+		Long size = files.get(key);
+		if(size == null)
+			return null;
+		
+		File f = toFile(key);
+		if(!f.exists()) {
+			files.remove(key);
+			bytes -= size;
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return f;
+	}
+	
+	/**
+	 * Returns the cached file if it was stored recently. The modification date of the file is not changed.
+	 * @param key
+	 * @param maxAge maximal age in milliseconds
+	 * @return the file or null if it is not cached or too old
+	 */
+	public synchronized File getIfFresh(String key, long maxAge) {
+		File f = toFile(key);
+		if(files.containsKey(key) && f.exists() && System.currentTimeMillis() - f.lastModified() <= maxAge) {
+			files.get(key);
+			return f;
+		}
+		return null;
+	}
+	
+	/**
+	 * Stores the data in the cache. An existing file with the same key is replaced.
+	 * @param key
+	 * @param data
+	 * @throws IOException if the file could not be written
+	 */
+	public void put(String key, final byte[] data) throws IOException {
+		put(key, new ContentWriter() {
+			@Override
+			public void write(FileChannel channel) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		});
+	}
+	
+	/**
+	 * Stores the content in the cache. The content is written to a temporary file first, so a partially written file
+	 * is never visible. An existing file with the same key is replaced.
+	 * @param key
+	 * @param writer writes the content of the file
+	 * @throws IOException if the file could not be written
+	 */
+	public void put(String key, ContentWriter writer) throws IOException {
+		File target = toFile(key);
+		target.getParentFile().mkdirs();
+		File partial = File.createTempFile(target.getName(), PARTIAL_SUFFIX, target.getParentFile());
+		try {
+			FileOutputStream out = new FileOutputStream(partial);
+			try {
+				writer.write(out.getChannel());
+			} finally {
+				out.close();
+			}
+			
+			synchronized (this) {
+				Long old = files.remove(key);
+				if(old != null)
+					bytes -= old;
+				target.delete();
+				if(!partial.renameTo(target))
+					throw new IOException("Unable to write cache file " + target);
+				files.put(key, target.length());
+				bytes += target.length();
+				evict();
+			}
+		} finally {
+			partial.delete();
+		}
+	}
+	
+	/**
+	 * Removes a file from the cache
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		Long size = files.remove(key);
+		if(size != null) {
+			bytes -= size;
+			toFile(key).delete();
+		}
+	}
+	
+	/**
+	 * Deletes the least recently used files until the cache is within its bounds. Has to hold the lock.
+	 */
+	private void evict() {
+		Iterator<Entry<String, Long>> it = files.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Entry<String, Long> eldest = it.next();
+			toFile(eldest.getKey()).delete();
+			bytes -= eldest.getValue();
+			it.remove();
+		}
+	}
+	
+	private File toFile(String key) {
+		return new File(directory, key.replace('/', File.separatorChar));
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes of all cached files
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Writes the content of a cache file
+	 */
+	public interface ContentWriter {
+		public void write(FileChannel channel) throws IOException;
+	}
+}
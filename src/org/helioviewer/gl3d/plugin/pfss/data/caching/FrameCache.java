@@ -4,10 +4,14 @@ import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
 import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssFrameCreator;
+import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssScheduler;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 /**
- * Responsible for caching and loading of PfssFrames. Each PfssFrame in this cache has no resources allocated outside of the JVM
+ * Responsible for caching and loading of PfssFrames. 
+ * 
+ * The cache is bounded by the bytes of the decoded buffers. Evicted frames are handed to the eviction listener, which has
+ * to release their resources outside of the JVM.
  * @author Jonas Schwammberger
  *
  */
@@ -16,25 +20,52 @@ public class FrameCache {
 	private final LRUCache<PfssFrame> cache;
 	private final DataCache dataCache;
 	private final PfssFrameCreator frameCreator;
+	private final DecodedFrameCache decodedCache;
 	
-	public FrameCache(DataCache dataCache) {
-		cache =new LRUCache<>(PfssSettings.FRAME_CACHE);
+	/**
+	 * 
+	 * @param dataCache
+	 * @param scheduler
+	 * @param listener gets notified of evicted frames
+	 * @param decodedCache persistent cache of decoded frames, may be null
+	 */
+	public FrameCache(DataCache dataCache, PfssScheduler scheduler, LRUCache.EvictionListener<PfssFrame> listener, DecodedFrameCache decodedCache) {
+		cache =new LRUCache<>(PfssSettings.FRAME_CACHE, PfssSettings.FRAME_PRELOAD, PfssSettings.FRAME_CACHE_BYTES, listener);
 		this.dataCache = dataCache;
-		frameCreator = new PfssFrameCreator();
+		this.decodedCache = decodedCache;
+		frameCreator = new PfssFrameCreator(scheduler, decodedCache);
 	}
 	
+	/**
+	 * Returns the cached frame. Released frames, e.g. because their data could not be loaded, are replaced by a new one.
+	 * @param key
+	 * @return
+	 */
 	public PfssFrame get(FileDescriptor key) {
-		if(cache.contains(key))
-			return cache.get(key);
-		else {
-			PfssFrame f = load(key);
+		PfssFrame f = cache.get(key);
+		if(f == null || f.isReleased()) {
+			f = load(key);
 			cache.put(key, f);
-			return f;
 		}
+		return f;
 	}
 	
 	private PfssFrame load(FileDescriptor key) {
+		if(decodedCache != null) {
+			PfssFrame cached = decodedCache.get(key);
+			if(cached != null)
+				return cached;
+		}
+		
 		PfssData data = dataCache.get(key);
 		return frameCreator.getFrameAsync(data);
 	}
+	
+	/**
+	 * 
+	 * @return cache of the decoded frames. Its counters can be used for monitoring
+	 */
+	public LRUCache<PfssFrame> getCache() {
+		return cache;
+	}
 }
@@ -1,63 +1,167 @@
 package org.helioviewer.gl3d.plugin.pfss.data.caching;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 
 /**
- * Implementation of a simple First-in-First-out Cache. In this usecase this cache uses the LRU algorithm.
+ * Implementation of a least recently used cache. Each get() refreshes the recency of the entry.
  * 
- * This class is not threadsafe
+ * The cache is bounded by the number of entries and by the number of bytes the entries occupy. The size of an entry 
+ * can grow after it was put into the cache (data which is loaded asynchronously), so the size is evaluated each time 
+ * the cache is trimmed. The cache never evicts below its minimal number of entries, so recently used objects stay 
+ * in the cache even if they are bigger than the byte limit.
+ * 
+ * This class is not threadsafe. The counters may be read from any thread.
  * @author Jonas Schwammberger
  *
  * @param <T>
  */
 public class LRUCache<T extends Cacheable> {
-	private final HashMap<FileDescriptor, Integer> cacheIndices;
-	private final ArrayList<T> cache;
-	private int oldestIndex;
+	private final LinkedHashMap<FileDescriptor, T> cache;
+	private final int capacity;
+	private final int minEntries;
+	private final long maxBytes;
+	private final EvictionListener<T> listener;
+	
+	private volatile long hits = 0;
+	private volatile long misses = 0;
+	private volatile long evictions = 0;
+	private volatile long bytes = 0;
 	
 	/**
 	 * 
 	 * @param size total size of the cache
 	 */
 	public LRUCache(int size) {
-		oldestIndex = 0;
-		cacheIndices = new HashMap<>(size,1);
-		cache = new ArrayList<T>(size);
-		
-		//init cache
-		for(int i = 0; i < size;i++) {
-			cache.add(null);
-		}
+		this(size, 0, Long.MAX_VALUE, null);
+	}
+	
+	/**
+	 * 
+	 * @param size maximal number of entries
+	 * @param minEntries number of entries which are never evicted because of the byte limit
+	 * @param maxBytes maximal number of bytes of all entries
+	 * @param listener gets notified for each evicted entry, may be null
+	 */
+	public LRUCache(int size, int minEntries, long maxBytes, EvictionListener<T> listener) {
+		this.capacity = size;
+		this.minEntries = minEntries;
+		this.maxBytes = maxBytes;
+		this.listener = listener;
+		cache = new LinkedHashMap<>(size, 0.75f, true);
 	}
 	
 	public void put(FileDescriptor key, T value) {
-		T oldest = cache.get(oldestIndex);
-		if(oldest != null) {
-			//unload
-			FileDescriptor d = oldest.getDescriptor();
-			cacheIndices.remove(d);
-		}
-		
-		//move index
-		cacheIndices.put(key, oldestIndex);
-		cache.set(oldestIndex, value);
-		
-		oldestIndex = ++oldestIndex % cache.size();
+		T old = cache.put(key, value);
+		if(old != null && old != value)
+			evicted(old);
+		trim();
 	}
 	
+	/**
+	 * Returns the value and marks it as most recently used
+	 * @param key
+	 * @return value or null if it is not in the cache
+	 */
 	public T get(FileDescriptor key) {
-		Integer index = cacheIndices.get(key);
-		return cache.get(index);
+		T value = cache.get(key);
+		if(value == null)
+			misses++;
+		else
+			hits++;
+		return value;
 	}
 	
+	/**
+	 * Does not change the recency of the value
+	 * @param key
+	 * @return true if the value is in the cache
+	 */
 	public boolean contains(FileDescriptor key) {
-		return this.cacheIndices.containsKey(key);
+		return this.cache.containsKey(key);
 	}
 	
+	/**
+	 * 
+	 * @return maximal number of entries
+	 */
 	public int size() {
-		return cache.size();
+		return capacity;
+	}
+	
+	/**
+	 * Evicts the least recently used entries until the cache is within its bounds
+	 */
+	public void trim() {
+		long total = 0;
+		for(T value : cache.values())
+			total += value.getSize();
+		
+		Iterator<Entry<FileDescriptor, T>> it = cache.entrySet().iterator();
+		int count = cache.size();
+		while(it.hasNext() && (count > capacity || (total > maxBytes && count > minEntries))) {
+			T eldest = it.next().getValue();
+			it.remove();
+			count--;
+			total -= eldest.getSize();
+			evicted(eldest);
+		}
+		bytes = total;
+	}
+	
+	private void evicted(T value) {
+		evictions++;
+		if(listener != null)
+			listener.evicted(value);
+	}
+	
+	/**
+	 * 
+	 * @return number of get() calls which found the value
+	 */
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * 
+	 * @return number of get() calls which did not find the value
+	 */
+	public long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * 
+	 * @return number of evicted entries
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes occupied by the entries at the last trim
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+	
+	@Override
+	public String toString() {
+		return "entries: " + cache.size() + "/" + capacity + ", bytes: " + bytes + ", hits: " + hits + ", misses: " + misses 
+				+ ", evictions: " + evictions;
+	}
+	
+	/**
+	 * Gets notified when the cache evicts an entry
+	 *
+	 * @param <T>
+	 */
+	public interface EvictionListener<T> {
+		public void evicted(T value);
 	}
 }
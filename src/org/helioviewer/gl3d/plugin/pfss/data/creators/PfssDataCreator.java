@@ -1,47 +1,55 @@
 package org.helioviewer.gl3d.plugin.pfss.data.creators;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.IOException;
 
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DiskCache;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 /**
- * Responsible for creating  PfssData objects. The PfssData objects will load asynchronously via threadpools
+ * Responsible for creating  PfssData objects. The PfssData objects will load asynchronously in the I/O stage of the scheduler
  * 
  * @author Jonas Schwammberger
  *
  */
 public class PfssDataCreator {
-	private final ExecutorService pool = Executors.newCachedThreadPool();
+	private final PfssScheduler scheduler;
+	private final DiskCache diskCache;
 	
-	public PfssDataCreator() {
+	public PfssDataCreator(PfssScheduler scheduler, DiskCache diskCache) {
+		this.scheduler = scheduler;
+		this.diskCache = diskCache;
 	}
 	
 	/**
-	 * Get PfssData Asynchronously
+	 * Get PfssData Asynchronously. The data is read from the disk cache if possible, otherwise it gets downloaded 
+	 * and stored in the disk cache.
 	 * @param desc
 	 * @return PfssData object which will be loaded in the future
 	 */
 	public PfssData getDataAsync(FileDescriptor desc) {
-		PfssData d = new PfssData(desc,createURL(desc));
-		pool.execute(d);
-		return d;
-	}
-	
-	private static String createURL(FileDescriptor file) {
-		StringBuilder b = new StringBuilder(PfssSettings.SERVER_URL);
-		b.append(file.getYear());
-		b.append("/");
-		if(file.getMonth() < 9)
-			b.append("0");
-		b.append(file.getMonth()+1);
-		b.append("/");
+		final String key = DiskCache.createKey(desc.getYear(), desc.getMonth(), desc.getFileName());
+		File cached = diskCache.get(key);
 		
-		//filename
-		b.append(file.getFileName());
-		
-		return b.toString();
+		final PfssData d;
+		if(cached != null) {
+			d = new PfssData(desc, cached.toURI().toString());
+		} else {
+			d = new PfssData(desc,PfssSettings.SERVER_URL + key);
+			d.whenLoaded(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						diskCache.put(key, d.getData());
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		scheduler.executeIO(desc, d);
+		return d;
 	}
 }
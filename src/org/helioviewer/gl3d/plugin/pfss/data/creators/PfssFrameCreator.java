@@ -1,23 +1,30 @@
 package org.helioviewer.gl3d.plugin.pfss.data.creators;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssDecompressor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DecodedFrameCache;
 
 /**
- * This class is responsible for creating PfssFrames out of PfssData objects. This task can take some time, it is implemented asynchronously
+ * This class is responsible for creating PfssFrames out of PfssData objects. This task can take some time, it is implemented asynchronously.
+ * The decompression is queued in the CPU stage of the scheduler as soon as the PfssData has finished loading. If the 
+ * PfssData cannot be loaded, the frame is released, so it gets replaced by a new one.
  * 
  * @author Jonas Schwammberger
  *
  */
 public class PfssFrameCreator {
-	private final ExecutorService pool = Executors.newCachedThreadPool();
+	private final PfssScheduler scheduler;
+	private final DecodedFrameCache decodedCache;
 	
-	public PfssFrameCreator(){
-		
+	/**
+	 * 
+	 * @param scheduler
+	 * @param decodedCache the decoded frames get stored in this cache, may be null
+	 */
+	public PfssFrameCreator(PfssScheduler scheduler, DecodedFrameCache decodedCache){
+		this.scheduler = scheduler;
+		this.decodedCache = decodedCache;
 	}
 	
 	/**
@@ -26,9 +33,19 @@ public class PfssFrameCreator {
 	 * @return PfssFrame object which will be fully loaded in the future
 	 */
 	public PfssFrame getFrameAsync(PfssData data) {
-		PfssFrame frame = new PfssFrame(data.getDescriptor());
-		PfssDecompressor r = new PfssDecompressor(data,frame);
-		pool.execute(r);
+		final PfssFrame frame = new PfssFrame(data.getDescriptor());
+		final PfssDecompressor r = new PfssDecompressor(data,frame,scheduler,decodedCache);
+		data.whenLoaded(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.executeCPU(frame.getDescriptor(), r);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				frame.release();
+			}
+		});
 		return frame;
 	}
 }
@@ -0,0 +1,133 @@
+package org.helioviewer.gl3d.plugin.pfss.data.creators;
+
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
+import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
+
+/**
+ * Bounded thread pools of the pfss plugin.
+ * 
+ * The work is split into two stages: The I/O stage downloads PfssData, the CPU stage decompresses PfssFrames. Both stages
+ * execute the task nearest to the currently displayed date first. The lines of one frame are decoded in parallel on a 
+ * shared fork join pool, so a single large frame is able to use all cores.
+ * 
+ * This class is threadsafe
+ */
+public class PfssScheduler {
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile long focus = 0;
+	
+	private final ThreadPoolExecutor ioPool;
+	private final ThreadPoolExecutor cpuPool;
+	private final ForkJoinPool linePool;
+	
+	public PfssScheduler() {
+		ioPool = createPool(PfssSettings.IO_THREADS, "PFSS-IO");
+		cpuPool = createPool(PfssSettings.DECODE_THREADS, "PFSS-Decode");
+		linePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+	
+	private static ThreadPoolExecutor createPool(int threads, String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+				30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Sets the date which is currently displayed. Tasks which are submitted afterwards are prioritized by their distance to it.
+	 * @param date
+	 */
+	public void setFocus(Date date) {
+		this.focus = date.getTime();
+	}
+	
+	/**
+	 * Queues a download task
+	 * @param descriptor file of the task
+	 * @param task
+	 */
+	public void executeIO(FileDescriptor descriptor, Runnable task) {
+		ioPool.execute(new PrioritizedTask(priority(descriptor), sequence.getAndIncrement(), task));
+	}
+	
+	/**
+	 * Queues a decompression task
+	 * @param descriptor file of the task
+	 * @param task
+	 */
+	public void executeCPU(FileDescriptor descriptor, Runnable task) {
+		cpuPool.execute(new PrioritizedTask(priority(descriptor), sequence.getAndIncrement(), task));
+	}
+	
+	/**
+	 * Executes a task on the fork join pool and waits for its completion
+	 * @param task
+	 */
+	public void invoke(ForkJoinTask<?> task) {
+		linePool.invoke(task);
+	}
+	
+	private long priority(FileDescriptor descriptor) {
+		if(descriptor == null)
+			return 0;
+		return Math.abs(descriptor.getStartDate().getTime() - focus);
+	}
+	
+	/**
+	 * Runnable ordered by its priority. Tasks with equal priority are executed in submission order.
+	 */
+	private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+		private final long priority;
+		private final long sequence;
+		private final Runnable task;
+		
+		public PrioritizedTask(long priority, long sequence, Runnable task) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask o) {
+			if(priority != o.priority)
+				return priority < o.priority ? -1 : 1;
+			if(sequence != o.sequence)
+				return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+	
+	/**
+	 * Creates named daemon threads, so the pools do not keep the application alive
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+		
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -1,14 +1,23 @@
 package org.helioviewer.gl3d.plugin.pfss.data.decompression;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * This class decodes the bytes of a PFSSData file.
  * 
+ * There are two implementations: The simple one counts the values first and decodes them afterwards byte by byte.
+ * The fast one decodes in a single pass into a reusable array. It looks at eight bytes at a time and decodes them 
+ * without branching if none of them has the continue flag set, which is the case for most prediction errors.
+ * 
  * @author Jonas Schwammberger
  */
 public class ByteDecoder {
 	public static final int continueFlag = 128;
 	public static final int signFlag = 64;
 	public static final int dataBitCount = 7;
+	
+	private static final long continueFlags = 0x8080808080808080L;
 
 	/**
 	 * decode the adaptive precision encoded data.
@@ -55,7 +64,7 @@ public class ByteDecoder {
 		int outIndex = 0;
 		for (int i = 0; i < data.length; i++) {
 			byte current = data[i];
-			int value = (int) (current & (continueFlag - 1));
+			int value = current & (continueFlag - 1);
 			
 			//add encoded bytes as long as the continue flag is set.
 			boolean run = (current & continueFlag) != 0;
@@ -88,4 +97,110 @@ public class ByteDecoder {
 		}
 		return out;
 	}
+
+	/**
+	 * decode the adaptive precision encoded data in a single pass.
+	 * 
+	 * @param data encoded byte array
+	 * @param output reusable output. Holds the decoded values afterwards.
+	 */
+	public static void decodeAdaptive(byte[] data, ReusableIntArray output) {
+		//each value is at least one byte long
+		int[] out = output.ensureCapacity(data.length);
+		ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		int outIndex = 0;
+		int lastWord = data.length - 8;
+		
+		int i = 0;
+		while (i < data.length) {
+			if (i <= lastWord) {
+				long word = words.getLong(i);
+				if ((word & continueFlags) == 0) {
+					//eight values of one byte each. Shifting the 7 data bits to the top extends the sign.
+					out[outIndex] = ((int) word << 25) >> 25;
+					out[outIndex + 1] = ((int) (word >>> 8) << 25) >> 25;
+					out[outIndex + 2] = ((int) (word >>> 16) << 25) >> 25;
+					out[outIndex + 3] = ((int) (word >>> 24) << 25) >> 25;
+					out[outIndex + 4] = ((int) (word >>> 32) << 25) >> 25;
+					out[outIndex + 5] = ((int) (word >>> 40) << 25) >> 25;
+					out[outIndex + 6] = ((int) (word >>> 48) << 25) >> 25;
+					out[outIndex + 7] = ((int) (word >>> 56) << 25) >> 25;
+					outIndex += 8;
+					i += 8;
+					continue;
+				}
+				
+				//decode the one byte values in front of the first continue flag
+				int singleBytes = Long.numberOfTrailingZeros(word & continueFlags) >>> 3;
+				for (int k = 0; k < singleBytes; k++) {
+					out[outIndex++] = ((int) (word >>> (k << 3)) << 25) >> 25;
+				}
+				i += singleBytes;
+			}
+			
+			byte current = data[i];
+			int value = current & (signFlag - 1);
+			int minus = -(current & signFlag);
+			while ((current & continueFlag) != 0) {
+				current = data[++i];
+				minus <<= dataBitCount;
+				value <<= dataBitCount;
+				value += current & (continueFlag - 1);
+			}
+			out[outIndex++] = value + minus;
+			i++;
+		}
+		output.setSize(outIndex);
+	}
+	
+	/**
+	 * decode the adaptive precision encoded unsigned data in a single pass.
+	 * 
+	 * @param data encoded byte array
+	 * @param output reusable output. Holds the decoded values afterwards.
+	 */
+	public static void decodeAdaptiveUnsigned(byte[] data, ReusableIntArray output) {
+		int[] out = output.ensureCapacity(data.length);
+		ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		int outIndex = 0;
+		int lastWord = data.length - 8;
+		
+		int i = 0;
+		while (i < data.length) {
+			if (i <= lastWord) {
+				long word = words.getLong(i);
+				if ((word & continueFlags) == 0) {
+					out[outIndex] = (int) word & 0x7F;
+					out[outIndex + 1] = (int) (word >>> 8) & 0x7F;
+					out[outIndex + 2] = (int) (word >>> 16) & 0x7F;
+					out[outIndex + 3] = (int) (word >>> 24) & 0x7F;
+					out[outIndex + 4] = (int) (word >>> 32) & 0x7F;
+					out[outIndex + 5] = (int) (word >>> 40) & 0x7F;
+					out[outIndex + 6] = (int) (word >>> 48) & 0x7F;
+					out[outIndex + 7] = (int) (word >>> 56) & 0x7F;
+					outIndex += 8;
+					i += 8;
+					continue;
+				}
+				
+				//decode the one byte values in front of the first continue flag
+				int singleBytes = Long.numberOfTrailingZeros(word & continueFlags) >>> 3;
+				for (int k = 0; k < singleBytes; k++) {
+					out[outIndex++] = (int) (word >>> (k << 3)) & 0x7F;
+				}
+				i += singleBytes;
+			}
+			
+			byte current = data[i];
+			int value = current & (continueFlag - 1);
+			while ((current & continueFlag) != 0) {
+				current = data[++i];
+				value <<= dataBitCount;
+				value += current & (continueFlag - 1);
+			}
+			out[outIndex++] = value;
+			i++;
+		}
+		output.setSize(outIndex);
+	}
 }
@@ -0,0 +1,48 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
+
+/**
+ * Registry of all known container formats. The container format of a PfssData object is determined by its file name.
+ * 
+ * This class is threadsafe
+ */
+public class ContainerFormats {
+	private static final CopyOnWriteArrayList<PfssContainer> formats = new CopyOnWriteArrayList<>();
+	
+	static {
+		formats.add(new UnRar());
+		formats.add(new FitsContainer());
+	}
+	
+	private ContainerFormats() {
+		
+	}
+	
+	/**
+	 * Adds a container format. Formats which were registered first take precedence.
+	 * @param format
+	 */
+	public static void register(PfssContainer format) {
+		formats.addIfAbsent(format);
+	}
+	
+	/**
+	 * Opens the fits file inside the PfssData
+	 * @param data fully loaded PfssData
+	 * @return stream of the fits file. The caller has to close it.
+	 * @throws IOException if no container format accepts the file or if the container could not be read
+	 */
+	public static InputStream open(PfssData data) throws IOException {
+		String fileName = data.getFileName();
+		for(PfssContainer format : formats) {
+			if(format.accepts(fileName))
+				return format.open(data);
+		}
+		throw new IOException("Unknown container format: "+fileName);
+	}
+}
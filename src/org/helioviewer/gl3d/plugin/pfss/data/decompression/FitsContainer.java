@@ -0,0 +1,30 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
+
+/**
+ * Container for fits files which are served as they are or gzip compressed. The data is decoded while streaming,
+ * neither temporary files nor copies of the data are created.
+ */
+public class FitsContainer implements PfssContainer {
+
+	@Override
+	public boolean accepts(String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".fits") || name.endsWith(".fits.gz") || name.endsWith(".fts") || name.endsWith(".fts.gz");
+	}
+
+	@Override
+	public InputStream open(PfssData data) throws IOException {
+		InputStream in = new ByteArrayInputStream(data.getData());
+		if(data.getFileName().toLowerCase().endsWith(".gz"))
+			return new GZIPInputStream(in);
+		return in;
+	}
+
+}
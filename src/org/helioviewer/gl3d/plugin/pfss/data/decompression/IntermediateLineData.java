@@ -1,231 +1,484 @@
 package org.helioviewer.gl3d.plugin.pfss.data.decompression;
 
-import java.util.LinkedList;
-
 import org.helioviewer.base.physics.Constants;
+import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 /**
- * This class is responsible for holding the intermediate data during decompression.
+ * This class is responsible for holding the intermediate data of all fieldlines of one frame during decompression.
+ *
+ * All lines are stored in one flat, interleaved float array (x,y,z for each point). The points of line i start at
+ * the point offset getOffset(i) and the line is getSize(i) points long. Prediction decoding, conversion to cartesian
+ * coordinates and smoothing are done in place, so no objects are created per line or per point.
+ *
+ * For the level of detail, each point gets a significance: the squared deviation the line would have if the point was
+ * left out by a Douglas-Peucker simplification. A level with a tolerance keeps all points with a significance of at
+ * least the squared tolerance, so coarser levels always contain a subset of the points of finer levels.
+ *
+ * The prediction coding is hierarchical, so a coarse version of a line is known after the first levels of the
+ * prediction are decoded. decodeCoarseLine only decodes these levels and marks the decoded points with an infinite
+ * significance, all other points get a negative significance and are left out of every level of detail.
+ *
+ * Lines are independent of each other. The per line methods can be called concurrently for different lines.
  * @author Jonas Schwammberger
  *
  */
 public class IntermediateLineData {
-	public float[][] channels;
-
-	public float[] startPoint;
-	public float[] endPoint;
-	public int size;
-	
-	private IntermediateLineData() {
-
-	}
-	
-	/**
-	 * decode prediction coding
-	 */
-	public void decodePrediction() {
-		multiplyPredictionError(this.channels);
-		
-		for(int i = 0; i < channels.length;i++) {
-			float[] decodedChannel = new float[channels[i].length+2];
-			decodedChannel[0] = startPoint[i];
-			decodedChannel[decodedChannel.length-1] = endPoint[i];
-			if(decodedChannel.length > 2) {
-				int channelIndex = 0;
-				LinkedList<Indices> queue = new LinkedList<>();
-				queue.add(new Indices(0, decodedChannel.length-1));
-				while(!queue.isEmpty()) {
-					prediction(queue,decodedChannel,channels[i],channelIndex);
-					channelIndex++;
-				}
-			}
-			this.channels[i] = decodedChannel;
+	private final float[] points;
+	private final float[] significance;
+	private final int[] offsets;
+	private final int[] sizes;
+	private final int[] channelOffsets;
+	private final LineType[] types;
+	private final int totalSize;
+	private final int maxSize;
+
+	private int[][] channels;
+	private int[][] startPoints;
+	private int[][] endPoints;
+
+	/**
+	 *
+	 * @param lengths array of all line lengths. These lengths do not contain the start and end point of the line
+	 */
+	public IntermediateLineData(int[] lengths) {
+		this(lengths, lengths.length);
+	}
+
+	/**
+	 *
+	 * @param lengths array of all line lengths. These lengths do not contain the start and end point of the line
+	 * @param numberOfLines number of valid lengths in the array
+	 */
+	public IntermediateLineData(int[] lengths, int numberOfLines) {
+		offsets = new int[numberOfLines];
+		sizes = new int[numberOfLines];
+		channelOffsets = new int[numberOfLines];
+		types = new LineType[numberOfLines];
+
+		int offset = 0;
+		int channelOffset = 0;
+		int max = 0;
+		for(int i = 0; i < numberOfLines;i++) {
+			offsets[i] = offset;
+			channelOffsets[i] = channelOffset;
+			sizes[i] = lengths[i]+2;
+
+			offset += sizes[i];
+			channelOffset += lengths[i];
+			max = Math.max(max, sizes[i]);
 		}
-		this.size = this.channels[0].length;
+		this.totalSize = offset;
+		this.maxSize = max;
+		this.points = new float[totalSize*3];
+		this.significance = new float[totalSize];
+	}
+
+	/**
+	 * Sets the concatenated, still prediction encoded channels of all lines. The arrays are not copied and may be longer than needed.
+	 * @param radius Channel
+	 * @param phi Channel
+	 * @param theta Channel
+	 */
+	public void setChannels(int[] radius, int[] phi, int[] theta) {
+		this.channels = new int[][]{radius,phi,theta};
+	}
+
+	/**
+	 * add the starting point to each fieldline.
+	 * @param radius all radi of the startpoints
+	 * @param phi all phi of the startpoins
+	 * @param theta all theta of the startpoints
+	 */
+	public void addStartPoints(int[] radius, int[] phi, int[] theta) {
+		this.startPoints = new int[][]{radius,phi,theta};
 	}
-	
+
 	/**
-	 * Multiplies the prediction errors
-	 * @param channels
+	 * add the end point to each fieldline.
+	 * @param radius all radii of the endpoints
+	 * @param phi all phi of the endpoints
+	 * @param theta all theta of the endpoints
 	 */
-	private static void multiplyPredictionError(float[][] channels) {
-		for(int i = 0; i < channels.length;i++) { 
-			float[] current = channels[i];
-			
-			for(int j = 0; j < 5 && j< current.length;j++) {
-				current[j] = current[j]*6;
-			}
-			
-			for(int j = 5; j < 16 && j< current.length;j++) {
-				current[j] *= 10;
-			}
+	public void addEndPoints(int[] radius, int[] phi, int[] theta) {
+		this.endPoints = new int[][]{radius,phi,theta};
+	}
 
-			for(int j = 16;  j < current.length;j++) {
-				current[j] *= 16;
-			}
+	/**
+	 * Fully decodes one line: prediction decoding, conversion to cartesian coordinates, line type, smoothing and
+	 * significance of the points.
+	 * @param line index of the line
+	 * @param queue scratch space of at least getQueueSize() ints. It must not be shared between threads.
+	 * @param longitudeToEarth l0
+	 * @param latitudeToEarth b0
+	 */
+	public void decodeLine(int line, int[] queue, double longitudeToEarth, double latitudeToEarth) {
+		decodePrediction(line);
+		toCartesian(line, longitudeToEarth, latitudeToEarth);
+		determineType(line);
+		smooth(line);
+		computeSignificance(line, queue);
+	}
+
+	/**
+	 * Decodes the first levels of the prediction of one line and converts the decoded points to cartesian
+	 * coordinates. The line is not smoothed.
+	 * @param line index of the line
+	 * @param levels number of prediction levels to decode
+	 * @param longitudeToEarth l0
+	 * @param latitudeToEarth b0
+	 */
+	public void decodeCoarseLine(int line, int levels, double longitudeToEarth, double latitudeToEarth) {
+		int offset = offsets[line];
+		int end = offset + sizes[line];
+		for(int i = offset; i < end;i++)
+			significance[i] = -1;
+		significance[offset] = Float.POSITIVE_INFINITY;
+		significance[end-1] = Float.POSITIVE_INFINITY;
+
+		decodePrediction(line, levels);
+		for(int i = offset; i < end;i++) {
+			if(significance[i] == Float.POSITIVE_INFINITY)
+				pointToCartesian(i*3, longitudeToEarth, latitudeToEarth);
 		}
+		determineType(line);
+	}
+
+	/**
+	 * decode prediction coding of all three channels of one line.
+	 * @param line index of the line
+	 */
+	public void decodePrediction(int line) {
+		decodePrediction(line, Integer.MAX_VALUE);
 	}
-	
-	/**
-	 * predict one value
-	 * @param queue Breadth first indices of the next prediction
-	 * @param decodedChannel decoded channel
-	 * @param encodedChanel
-	 * @param nextIndex
-	 */
-	private static void prediction(LinkedList<Indices> queue,float[] decodedChannel,float[] encodedChanel, int nextIndex) {
-		Indices i = queue.pollFirst();
-		float start = decodedChannel[i.startIndex];
-		float end = decodedChannel[i.endIndex];
-		
-		int toPredictIndex = (i.endIndex - i.startIndex) / 2 + i.startIndex;
-		float predictionError = encodedChanel[nextIndex];
-		
-		//predict
-		float predictionFactor0 = (toPredictIndex-i.startIndex)/(float)(i.endIndex - i.startIndex);
-		float predictionFactor1 = (i.endIndex-toPredictIndex)/(float)(i.endIndex - i.startIndex);
-		float prediction = (int)(predictionFactor0* start + predictionFactor1*end);
-		decodedChannel[toPredictIndex] = prediction-predictionError;
-		
-		//add next level of indices
-		if (i.startIndex + 1 != toPredictIndex){
-			Indices next = new Indices(i.startIndex,toPredictIndex);
-			queue.addLast(next);
-        }
-		if (i.endIndex - 1 != toPredictIndex) {
-			Indices next = new Indices(toPredictIndex,i.endIndex);
-			queue.addLast(next);
+
+	/**
+	 * decode prediction coding of all three channels of one line up to a level of the hierarchy.
+	 *
+	 * The traversal order is taken from the shared PredictionSchedule of the line length. Each predicted point gets an
+	 * infinite significance, until the significance of the line is computed.
+	 * @param line index of the line
+	 * @param levels number of levels to decode
+	 */
+	private void decodePrediction(int line, int levels) {
+		int offset = offsets[line];
+		int size = sizes[line];
+		int channelOffset = channelOffsets[line];
+
+		for(int c = 0; c < 3;c++) {
+			points[offset*3+c] = startPoints[c][line];
+			points[(offset+size-1)*3+c] = endPoints[c][line];
+		}
+
+		PredictionSchedule schedule = PredictionSchedule.get(size);
+		int[] indices = schedule.getIndices();
+		float[] factors = schedule.getFactors();
+		int predictions = schedule.getPredictions(levels);
+		int[] r = channels[0];
+		int[] phi = channels[1];
+		int[] theta = channels[2];
+
+		for(int channelIndex = 0; channelIndex < predictions;channelIndex++) {
+			float predictionFactor0 = factors[channelIndex*2];
+			float predictionFactor1 = factors[channelIndex*2+1];
+			int factor = predictionErrorFactor(channelIndex);
+			int errorIndex = channelOffset + channelIndex;
+
+			int start = (offset+indices[channelIndex*3])*3;
+			int target = (offset+indices[channelIndex*3+1])*3;
+			int end = (offset+indices[channelIndex*3+2])*3;
+			points[target] = predict(predictionFactor0, predictionFactor1, points[start], points[end]) - (float)r[errorIndex]*factor;
+			points[target+1] = predict(predictionFactor0, predictionFactor1, points[start+1], points[end+1]) - (float)phi[errorIndex]*factor;
+			points[target+2] = predict(predictionFactor0, predictionFactor1, points[start+2], points[end+2]) - (float)theta[errorIndex]*factor;
+			significance[target/3] = Float.POSITIVE_INFINITY;
 		}
 	}
-	
+
+	private static float predict(float predictionFactor0, float predictionFactor1, float start, float end) {
+		return (int)(predictionFactor0* start + predictionFactor1*end);
+	}
+
+	/**
+	 * The prediction errors were quantized with a factor depending on their position in the encoded channel.
+	 * @param channelIndex index in the encoded channel
+	 * @return factor to multiply the prediction error with
+	 */
+	private static int predictionErrorFactor(int channelIndex) {
+		if(channelIndex < 5)
+			return 6;
+		if(channelIndex < 16)
+			return 10;
+		return 16;
+	}
+
 	/**
-	 * Converts the spherical coordinates to cartesian. It centers the coordinates around the viewpoint of earth.
+	 * Converts the spherical coordinates of one line to cartesian. It centers the coordinates around the viewpoint of earth.
+	 * @param line index of the line
 	 * @param longitudeToEarth l0
 	 * @param latitudeToEarth b0
 	 */
-	public void toCartesian(double longitudeToEarth, double latitudeToEarth) {
-		for(int i = 0; i <this.size;i++) {
-			float rawR =  channels[0][i];
-			float rawPhi = channels[1][i];
-			float rawTheta = channels[2][i];
-			rawR += 8192;
-			rawPhi += 16384;
-			rawTheta += 8192;
-			
+	public void toCartesian(int line, double longitudeToEarth, double latitudeToEarth) {
+		int end = (offsets[line]+sizes[line])*3;
+		for(int i = offsets[line]*3; i < end;i+=3) {
+			pointToCartesian(i, longitudeToEarth, latitudeToEarth);
+		}
+	}
+
+	/**
+	 * Converts one point to cartesian coordinates
+	 * @param i index of the x coordinate of the point in the points array
+	 */
+	private void pointToCartesian(int i, double longitudeToEarth, double latitudeToEarth) {
+		float rawR =  points[i];
+		float rawPhi = points[i+1];
+		float rawTheta = points[i+2];
+		rawR += 8192;
+		rawPhi += 16384;
+		rawTheta += 8192;
+
 	        double r = rawR / 8192.0 * Constants.SunRadius;
 	        double p = rawPhi / 32768.0 * 2 * Math.PI;
 	        double t = rawTheta / 32768.0 * 2 * Math.PI;
-	        
+
 	        p -= longitudeToEarth / 180.0 * Math.PI;
 	        t += latitudeToEarth / 180.0 * Math.PI;
-	        
-	        channels[0][i] = (float)(r * Math.sin(t) * Math.sin(p)); 	//x
-	        channels[1][i] = (float)(r * Math.cos(t)); 					//y
-	        channels[2][i] = (float)(r * Math.sin(t) * Math.cos(p)); 	//z
+
+	        points[i] = (float)(r * Math.sin(t) * Math.sin(p)); 	//x
+	        points[i+1] = (float)(r * Math.cos(t)); 				//y
+	        points[i+2] = (float)(r * Math.sin(t) * Math.cos(p)); 	//z
+	}
+
+	/**
+	 * Determines the type of a line which is already in cartesian coordinates
+	 * @param line index of the line
+	 */
+	public void determineType(int line) {
+		double mag0 = magnitude(offsets[line]);
+		if(mag0 < Constants.SunRadius*1.05) {
+			double mag1 = magnitude(offsets[line]+sizes[line]-1);
+			if(mag1 > Constants.SunRadius*1.05) {
+				types[line] = LineType.SUN_TO_OUTSIDE;
+			} else {
+				types[line] = LineType.SUN_TO_SUN;
+			}
+		}
+		else {
+			types[line] = LineType.OUTSIDE_TO_SUN;
 		}
-	}	
-	
+	}
+
+	private double magnitude(int point) {
+		double x = points[point*3];
+		double y = points[point*3+1];
+		double z = points[point*3+2];
+		return Math.sqrt(x*x+y*y+z*z);
+	}
+
 	/**
-	 * add the starting point to each fieldline..
-	 * @param lines all lines
-	 * @param radius all radi of the startpoints
-	 * @param phi all phi of the startpoins
-	 * @param theta all theta of the startpoints
+	 * Average filtering of one line. The first and the last point are not changed.
+	 *
+	 * Each point gets averaged with its predecessor and the following points. The filter only looks one point back,
+	 * so only the original value of the predecessor has to be remembered.
+	 * @param line index of the line
 	 */
-	public static void addStartPoint(IntermediateLineData[] lines, int[] radius, int[] phi, int[] theta) {
-		for(int i = 0; i < lines.length;i++) {
-			IntermediateLineData l = lines[i];
-			
-			l.startPoint = new float[3];
-            l.startPoint[0] = radius[i];	
-            l.startPoint[1] = phi[i]; 				
-            l.startPoint[2] = theta[i];
+	public void smooth(int line) {
+		int offset = offsets[line];
+		int size = sizes[line];
+
+		float lastX = points[offset*3];
+		float lastY = points[offset*3+1];
+		float lastZ = points[offset*3+2];
+		for(int j = 1; j+1 < size;j++) {
+			int index = (offset+j)*3;
+			float avX = lastX;
+			float avY = lastY;
+			float avZ = lastZ;
+			int count = 1;
+			for (int i = j; i < j - 1 + PfssSettings.SMOOTH_FILTER_SIZE & i < size; i++) {
+				int current = (offset+i)*3;
+				avX += points[current];
+				avY += points[current+1];
+				avZ += points[current+2];
+				count++;
+			}
+
+			lastX = points[index];
+			lastY = points[index+1];
+			lastZ = points[index+2];
+			points[index] = avX / count;
+			points[index+1] = avY / count;
+			points[index+2] = avZ / count;
 		}
 	}
-	
+
 	/**
-	 * add the end point to each line. The starting point will be converted from spherical to euler coodinate system.
-	 * @param lines all lines
-	 * @param radius all radii of the startpoints
-	 * @param phi all phi of the startpoins
-	 * @param theta all theta of the startpoints
+	 * Computes the significance of each point of a smoothed line with a Douglas-Peucker simplification down to a
+	 * tolerance of zero. The start and end point are always kept.
+	 *
+	 * The significance of a point is capped by the significance of the points which split the line before it. The
+	 * queue is used as stack of start and end index pairs.
+	 * @param line index of the line
+	 * @param queue scratch space of at least getQueueSize() ints
 	 */
-	public static void addEndPoint(IntermediateLineData[] lines,
-			int[] radius, int[] phi, int[] theta) {
-		for(int i = 0; i < lines.length;i++) {
-			IntermediateLineData l = lines[i];
-           
-            l.endPoint = new float[3];
-            l.endPoint[0] = radius[i];
-            l.endPoint[1] = phi[i];
-            l.endPoint[2] = theta[i];
+	public void computeSignificance(int line, int[] queue) {
+		int first = offsets[line];
+		int last = first + sizes[line] - 1;
+		significance[first] = Float.POSITIVE_INFINITY;
+		significance[last] = Float.POSITIVE_INFINITY;
+
+		int tail = 0;
+		if(last - first > 1) {
+			queue[tail++] = first;
+			queue[tail++] = last;
+		}
+		while(tail > 0) {
+			int endIndex = queue[--tail];
+			int startIndex = queue[--tail];
+			float cap = Math.min(significance[startIndex], significance[endIndex]);
+
+			int farthest = startIndex + 1;
+			float maxDistance = -1;
+			for(int i = startIndex + 1; i < endIndex;i++) {
+				float distance = squaredDistanceToSegment(i, startIndex, endIndex);
+				if(distance > maxDistance) {
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+			significance[farthest] = Math.min(maxDistance, cap);
+
+			if(farthest - startIndex > 1) {
+				queue[tail++] = startIndex;
+				queue[tail++] = farthest;
+			}
+			if(endIndex - farthest > 1) {
+				queue[tail++] = farthest;
+				queue[tail++] = endIndex;
+			}
 		}
-		
 	}
-	
+
+	private float squaredDistanceToSegment(int point, int start, int end) {
+		float ax = points[start*3];
+		float ay = points[start*3+1];
+		float az = points[start*3+2];
+		float dx = points[end*3] - ax;
+		float dy = points[end*3+1] - ay;
+		float dz = points[end*3+2] - az;
+		float px = points[point*3] - ax;
+		float py = points[point*3+1] - ay;
+		float pz = points[point*3+2] - az;
+
+		float length = dx*dx + dy*dy + dz*dz;
+		float t = length > 0 ? (px*dx + py*dy + pz*dz) / length : 0;
+		t = Math.max(0, Math.min(1, t));
+		px -= t*dx;
+		py -= t*dy;
+		pz -= t*dz;
+		return px*px + py*py + pz*pz;
+	}
+
 	/**
-	 * split all concatenated channels to the correspoding line. In the end, all Channels will
-	 * @param lengths array of all line lengths. These lengths are before they were Run-Length Encoded
-	 * @param radius Channel
-	 * @param phi Channel
-	 * @param theta Channel
-	 * @return
-	 */
-	public static IntermediateLineData[] splitToLines(int[] lengths, int[]radius, int[] phi,int[] theta) {
-		 IntermediateLineData[] lines = new IntermediateLineData[lengths.length];
-		 int[][] channels = new int[][]{radius,phi,theta};
-		 
-		 int[] indices = new int[3];
-		 
-		 //go through all lines
-		 for(int i = 0; i < lines.length;i++) {
-			 IntermediateLineData currentLine = new IntermediateLineData();
-			 currentLine.size = lengths[i];
-			 currentLine.channels = new float[3][];
-
-			 //for all channels
-			 for(int j = 0; j < 3;j++) {
-				 int index = indices[j];
-				 
-				 float[] channel = toFloat(channels[j],index,currentLine.size);
-				 currentLine.channels[j] = channel;
-				 
-				 index += currentLine.size;
-				 indices[j] = index;
-			 }
-			 
-			 lines[i] = currentLine;
-		 }
-		 return lines;
-	 }
-	
-	/**
-	 * Copy from int array to float
-	 * @param data
-	 * @param start
-	 * @param length
-	 * @return
-	 */
-	private static float[] toFloat(int[] data,int start, int length) {
-		float[] out = new float[length];
-		for(int i = start; i < length+start;i++) {
-			out[i-start] = data[i];
+	 * Counts the points of a line which are kept by a level of detail
+	 * @param line index of the line
+	 * @param squaredTolerance squared tolerance of the level of detail
+	 * @return number of kept points, at least 2
+	 */
+	public int countPoints(int line, float squaredTolerance) {
+		int count = 0;
+		int end = offsets[line] + sizes[line];
+		for(int i = offsets[line]; i < end;i++) {
+			if(significance[i] >= squaredTolerance)
+				count++;
 		}
-		return out;
+		return count;
 	}
 
 	/**
-	 * Helper class to und Prediction coding
-	 * @author Jonas Schwammberger
 	 *
+	 * @return size of the scratch space needed by computeSignificance
 	 */
-	private static class Indices {
-		public int startIndex;
-		public int endIndex;
-		
-		public Indices(int start, int end) {
-			this.startIndex = start;
-			this.endIndex = end;
-		}
+	public int getQueueSize() {
+		return maxSize*2;
+	}
+
+	/**
+	 * @return number of lines
+	 */
+	public int getNumberOfLines() {
+		return sizes.length;
+	}
+
+	/**
+	 * @return total number of points of all lines
+	 */
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * @param line index of the line
+	 * @return point offset of the line in getPoints()
+	 */
+	public int getOffset(int line) {
+		return offsets[line];
+	}
+
+	/**
+	 * @param line index of the line
+	 * @return number of points of the line
+	 */
+	public int getSize(int line) {
+		return sizes[line];
+	}
+
+	/**
+	 * @param line index of the line
+	 * @return index of the first prediction error of the line in the channels
+	 */
+	int getChannelOffset(int line) {
+		return channelOffsets[line];
+	}
+
+	/**
+	 * @return prediction encoded radius, phi and theta channels
+	 */
+	int[][] getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return radius, phi and theta of all start points
+	 */
+	int[][] getStartPoints() {
+		return startPoints;
+	}
+
+	/**
+	 * @return radius, phi and theta of all end points
+	 */
+	int[][] getEndPoints() {
+		return endPoints;
+	}
+
+	/**
+	 * @param line index of the line
+	 * @return type of the decoded line
+	 */
+	public LineType getType(int line) {
+		return types[line];
+	}
+
+	/**
+	 * @return squared deviation of the line if the point was left out, for all points
+	 */
+	public float[] getSignificance() {
+		return significance;
+	}
+
+	/**
+	 * @return interleaved x,y,z coordinates of all points
+	 */
+	public float[] getPoints() {
+		return points;
 	}
 }
@@ -0,0 +1,92 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the prediction decoding with the shared PredictionSchedule to a breadth first traversal with a queue,
+ * which computes the traversal for every line again.
+ */
+public class IntermediateLineDataTest {
+
+	private static int[] random(Random random, int length, int min, int max) {
+		int[] values = new int[length];
+		for(int i = 0; i < length;i++)
+			values[i] = min + random.nextInt(max - min + 1);
+		return values;
+	}
+
+	@Test
+	public void testDecodePrediction() {
+		Random random = new Random(42);
+		int numberOfLines = 300;
+		int[] lengths = random(random, numberOfLines, 0, 200);
+		int channelSize = 0;
+		for(int length : lengths)
+			channelSize += length;
+
+		IntermediateLineData lines = new IntermediateLineData(lengths);
+		lines.setChannels(random(random, channelSize, -8, 8), random(random, channelSize, -8, 8), random(random, channelSize, -8, 8));
+		lines.addStartPoints(random(random, numberOfLines, 0, 8192), random(random, numberOfLines, 0, 8192), random(random, numberOfLines, 0, 8192));
+		lines.addEndPoints(random(random, numberOfLines, 0, 8192), random(random, numberOfLines, 0, 8192), random(random, numberOfLines, 0, 8192));
+
+		float[] expected = new float[lines.getTotalSize()*3];
+		int[] queue = new int[lines.getQueueSize()];
+		for(int i = 0; i < lines.getNumberOfLines();i++) {
+			predictWithQueue(lines, i, queue, expected);
+			lines.decodePrediction(i);
+		}
+		assertArrayEquals(expected, lines.getPoints(), 0);
+	}
+
+	/**
+	 * Reference prediction decoding which computes the breadth first traversal with a queue of index pairs.
+	 */
+	private static void predictWithQueue(IntermediateLineData lines, int line, int[] queue, float[] points) {
+		int offset = lines.getOffset(line);
+		int size = lines.getSize(line);
+		int channelOffset = lines.getChannelOffset(line);
+
+		int[][] start = lines.getStartPoints();
+		int[][] end = lines.getEndPoints();
+		int[][] channels = lines.getChannels();
+		for(int c = 0; c < 3;c++) {
+			points[offset*3+c] = start[c][line];
+			points[(offset+size-1)*3+c] = end[c][line];
+		}
+		if(size <= 2)
+			return;
+
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = 0;
+		queue[tail++] = size-1;
+		int channelIndex = 0;
+		while(head < tail) {
+			int startIndex = queue[head++];
+			int endIndex = queue[head++];
+			int toPredictIndex = (endIndex - startIndex) / 2 + startIndex;
+			float factor0 = (toPredictIndex-startIndex)/(float)(endIndex - startIndex);
+			float factor1 = (endIndex-toPredictIndex)/(float)(endIndex - startIndex);
+			int errorFactor = channelIndex < 5 ? 6 : channelIndex < 16 ? 10 : 16;
+
+			for(int c = 0; c < 3;c++) {
+				float prediction = (int)(factor0*points[(offset+startIndex)*3+c] + factor1*points[(offset+endIndex)*3+c]);
+				points[(offset+toPredictIndex)*3+c] = prediction - (float)channels[c][channelOffset+channelIndex]*errorFactor;
+			}
+			channelIndex++;
+
+			if (startIndex + 1 != toPredictIndex){
+				queue[tail++] = startIndex;
+				queue[tail++] = toPredictIndex;
+			}
+			if (endIndex - 1 != toPredictIndex) {
+				queue[tail++] = toPredictIndex;
+				queue[tail++] = endIndex;
+			}
+		}
+	}
+}
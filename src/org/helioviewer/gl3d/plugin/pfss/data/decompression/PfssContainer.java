@@ -0,0 +1,29 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
+
+/**
+ * A container format in which the compressed pfss fits files are packaged on the server.
+ * 
+ * Implementations are registered in ContainerFormats and chosen by the file name of the PfssData.
+ */
+public interface PfssContainer {
+	
+	/**
+	 * 
+	 * @param fileName name of the packaged file
+	 * @return true if this container format is able to read the file
+	 */
+	public boolean accepts(String fileName);
+	
+	/**
+	 * Opens the fits file inside the container. 
+	 * @param data fully loaded PfssData
+	 * @return stream of the fits file. The caller has to close it.
+	 * @throws IOException if the container could not be read
+	 */
+	public InputStream open(PfssData data) throws IOException;
+}
@@ -0,0 +1,128 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+/**
+ * Precomputed traversal of the prediction coding for one line length.
+ *
+ * The prediction traverses a line breadth first and always predicts the middle of an interval. The order only depends
+ * on the length of the line, so the start, target and end index of every prediction and the prediction factors are
+ * computed once per length and shared by all frames and threads.
+ *
+ * Schedules are immutable. get() is threadsafe.
+ */
+public class PredictionSchedule {
+	private static final Object lock = new Object();
+	private static volatile PredictionSchedule[] schedules = new PredictionSchedule[256];
+
+	private final int[] indices;
+	private final float[] factors;
+	private final int[] levelEnds;
+
+	private PredictionSchedule(int size) {
+		int predictions = Math.max(0, size-2);
+		indices = new int[predictions*3];
+		factors = new float[predictions*2];
+
+		int[] queue = new int[Math.max(2, size*2)];
+		int[] ends = new int[32];
+		int levels = 0;
+
+		int head = 0;
+		int tail = 0;
+		if(size > 2) {
+			queue[tail++] = 0;
+			queue[tail++] = size-1;
+		}
+		int levelEnd = tail;
+		int count = 0;
+		while(head < tail) {
+			if(head == levelEnd) {
+				ends[levels++] = count;
+				levelEnd = tail;
+			}
+			int startIndex = queue[head++];
+			int endIndex = queue[head++];
+			int toPredictIndex = (endIndex - startIndex) / 2 + startIndex;
+
+			indices[count*3] = startIndex;
+			indices[count*3+1] = toPredictIndex;
+			indices[count*3+2] = endIndex;
+			factors[count*2] = (toPredictIndex-startIndex)/(float)(endIndex - startIndex);
+			factors[count*2+1] = (endIndex-toPredictIndex)/(float)(endIndex - startIndex);
+			count++;
+
+			//add next level of indices
+			if (startIndex + 1 != toPredictIndex){
+				queue[tail++] = startIndex;
+				queue[tail++] = toPredictIndex;
+			}
+			if (endIndex - 1 != toPredictIndex) {
+				queue[tail++] = toPredictIndex;
+				queue[tail++] = endIndex;
+			}
+		}
+		if(count > 0)
+			ends[levels++] = count;
+
+		levelEnds = new int[levels];
+		System.arraycopy(ends, 0, levelEnds, 0, levels);
+	}
+
+	/**
+	 *
+	 * @param size number of points of the line, including start and end point
+	 * @return shared schedule of the line length
+	 */
+	public static PredictionSchedule get(int size) {
+		PredictionSchedule[] table = schedules;
+		if(size < table.length) {
+			PredictionSchedule schedule = table[size];
+			if(schedule != null)
+				return schedule;
+		}
+
+		synchronized(lock) {
+			table = schedules;
+			if(size >= table.length) {
+				PredictionSchedule[] grown = new PredictionSchedule[Math.max(size+1, table.length*2)];
+				System.arraycopy(table, 0, grown, 0, table.length);
+				table = grown;
+			}
+			if(table[size] == null) {
+				table[size] = new PredictionSchedule(size);
+			}
+			schedules = table;
+			return table[size];
+		}
+	}
+
+	/**
+	 * @return start, target and end index of every prediction in traversal order
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * @return factor of the start and of the end point of every prediction in traversal order
+	 */
+	public float[] getFactors() {
+		return factors;
+	}
+
+	/**
+	 * @param levels number of levels of the hierarchy
+	 * @return number of predictions in the first levels
+	 */
+	public int getPredictions(int levels) {
+		if(levels <= 0 || levelEnds.length == 0)
+			return 0;
+		return levelEnds[Math.min(levels, levelEnds.length)-1];
+	}
+
+	/**
+	 * @return number of all predictions
+	 */
+	public int getPredictions() {
+		return indices.length / 3;
+	}
+}
@@ -0,0 +1,47 @@
+package org.helioviewer.gl3d.plugin.pfss.data.decompression;
+
+/**
+ * Growable int array which is reused between decompressions, so the decoded values of each frame do not need a new allocation.
+ * 
+ * The backing array may be bigger than the number of values it holds. This class is not threadsafe.
+ */
+public class ReusableIntArray {
+	private int[] data = new int[0];
+	private int size = 0;
+	
+	/**
+	 * Grows the backing array if needed. The content is not preserved when it grows.
+	 * @param capacity minimal capacity
+	 * @return backing array with at least the requested capacity
+	 */
+	public int[] ensureCapacity(int capacity) {
+		if(data.length < capacity) {
+			data = new int[Math.max(capacity, data.length + (data.length >> 1))];
+		}
+		return data;
+	}
+	
+	/**
+	 * 
+	 * @return backing array. Only the first size() values are valid
+	 */
+	public int[] getArray() {
+		return data;
+	}
+	
+	/**
+	 * 
+	 * @return number of values held
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * 
+	 * @param size number of valid values in the backing array
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+}
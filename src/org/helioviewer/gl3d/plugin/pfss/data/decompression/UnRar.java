@@ -3,9 +3,11 @@ package org.helioviewer.gl3d.plugin.pfss.data.decompression;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
-import org.apache.tika.io.TikaInputStream;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
 
 import de.innosystec.unrar.Archive;
@@ -15,35 +17,82 @@ import de.innosystec.unrar.rarfile.FileHeader;
 /**
  * Wrapper class around the jUnrar library.
  * 
+ * The jUnrar library is only able to read archives from the local filesystem. If the PfssData is backed by a local file,
+ * the archive is read from there directly. Otherwise the downloaded data is written once to a temporary file which is 
+ * deleted right after the extraction.
  * @author Jonas Schwammberger
  *
  */
-public class UnRar {
+public class UnRar implements PfssContainer {
+
+	@Override
+	public boolean accepts(String fileName) {
+		return fileName.toLowerCase().endsWith(".rar");
+	}
+
+	@Override
+	public InputStream open(PfssData data) throws IOException {
+		return unrarData(data).toInputStream();
+	}
 
 	/**
 	 * Unrar PFSSData object
 	 * @param data to unrar
 	 * @return raw byte stream of unrar data
-	 * @throws IOException The jUnrar library seems unable to decompress a byteArrayInputStream and needs to have a file on the local filesystem. Throws an IOException if it was unable to write the temp file.
+	 * @throws IOException if the archive could not be read or the temporary file could not be written
 	 */
-	public static ByteArrayOutputStream unrarData(PfssData data) throws IOException {
+	public static ExtractedData unrarData(PfssData data) throws IOException {
+		File local = data.getLocalFile();
+		if(local != null)
+			return unrarFile(local);
+		
+		File temp = File.createTempFile("pfss", ".rar");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data.getData());
+			} finally {
+				out.close();
+			}
+			return unrarFile(temp);
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	private static ExtractedData unrarFile(File file) throws IOException {
 		Archive archive = null;
 		try {
-			
-			File file = TikaInputStream.get(new ByteArrayInputStream(data.getData())).getFile();
             archive = new Archive(file, null);
 			FileHeader fh = archive.nextFileHeader();
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			ExtractedData stream = new ExtractedData((int)fh.getFullUnpackSize());
 			archive.extractFile(fh, stream);
 			
-			
 			return stream;
 		} catch (RarException e) {
 			throw new IOException(e);
 		}
 		finally {
-			archive.close();
+			if(archive != null)
+				archive.close();
 		}
 	}
 	
+	/**
+	 * Output buffer of the extraction which can be read again without copying its content
+	 */
+	public static class ExtractedData extends ByteArrayOutputStream {
+		
+		public ExtractedData(int size) {
+			super(Math.max(size, 32));
+		}
+		
+		/**
+		 * 
+		 * @return stream over the extracted data. The data is not copied
+		 */
+		public InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
 }
@@ -1,7 +1,12 @@
 package org.helioviewer.gl3d.plugin.pfss.data.managers;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -12,6 +17,7 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DiskCache;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 /**
@@ -20,12 +26,19 @@ import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
  *
  */
 public class FileDescriptorManager {
+	private static final String LIST_FILE = "list.txt";
+	
+	private final DiskCache diskCache;
 	private ArrayList<FileDescriptor> descriptors;
 	private Date firstDate;
 	private Date endDate;
 	
-	public FileDescriptorManager() {
-		
+	/**
+	 * 
+	 * @param diskCache cache for the monthly file lists
+	 */
+	public FileDescriptorManager(DiskCache diskCache) {
+		this.diskCache = diskCache;
 	}
 	
 	/**
@@ -60,10 +73,7 @@ public class FileDescriptorManager {
 		descriptors = new ArrayList<>((endMonth-currentMonth)+1* 125); //heuristic: for each month, there are about 125 fits files.
 		
 		while(currentYear <= endYear && currentMonth <= endMonth) {
-			String m = (currentMonth) < 9 ? "0" + (currentMonth + 1)
-					: (currentMonth + 1) + "";
-			String url = PfssSettings.SERVER_URL + currentYear +"/"+m+"/list.txt";
-			this.readDescription(url, from, to,currentYear,currentMonth);
+			this.readDescription(from, to,currentYear,currentMonth);
 			
 			currentCal.add(Calendar.MONTH, 1);
 			currentYear = currentCal.get(Calendar.YEAR);
@@ -73,18 +83,16 @@ public class FileDescriptorManager {
 	
 	/**
 	 * Reads the description of one month
-	 * @param url
 	 * @param from
 	 * @param to
 	 * @param currentYear
 	 * @param currentMonth
 	 * @throws IOException
 	 */
-    private void readDescription(String url,Date from, Date to,int currentYear, int currentMonth) throws IOException {
+    private void readDescription(Date from, Date to,int currentYear, int currentMonth) throws IOException {
+    	BufferedReader in = null;
     	try {
-			URL u = new URL(url);
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(u.openStream()));
+			in = openDescription(currentYear, currentMonth);
 			
 			String dateString = null;
 			String fileName= null;
@@ -119,9 +127,73 @@ public class FileDescriptorManager {
 			e.printStackTrace();
 		} catch (IOException e) {
 			throw new IOException("Unable to find data for: "+currentYear +"/"+(currentMonth+1),e);
+		} finally {
+			if(in != null)
+				in.close();
 		}
 	}
     
+    /**
+     * Opens the description of one month. A fresh copy in the disk cache is used directly, otherwise the description gets
+     * downloaded. If the server is not reachable, the cached copy is used regardless of its age.
+     * @param year
+     * @param month
+     * @return reader of the description
+     * @throws IOException if the description could neither be downloaded nor found in the cache
+     */
+    private BufferedReader openDescription(int year, int month) throws IOException {
+    	String key = DiskCache.createKey(year, month, LIST_FILE);
+    	File cached = diskCache.getIfFresh(key, getMaxDescriptionAge(year, month));
+    	if(cached != null)
+    		return new BufferedReader(new FileReader(cached));
+    	
+    	byte[] description;
+    	try {
+    		description = download(new URL(PfssSettings.SERVER_URL + key));
+    	} catch (IOException e) {
+    		cached = diskCache.getIfFresh(key, Long.MAX_VALUE);
+    		if(cached != null)
+    			return new BufferedReader(new FileReader(cached));
+    		throw e;
+    	}
+    	
+    	try {
+    		diskCache.put(key, description);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
+    	return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(description)));
+    }
+    
+    /**
+     * The descriptions of past months rarely change, the description of the current month grows as new files get processed.
+     * @param year
+     * @param month
+     * @return how long a cached description of the month is considered fresh in milliseconds
+     */
+    private static long getMaxDescriptionAge(int year, int month) {
+    	Calendar monthEnd = new GregorianCalendar(year, month, 1);
+    	monthEnd.add(Calendar.MONTH, 1);
+    	Calendar recent = GregorianCalendar.getInstance();
+    	recent.add(Calendar.MONTH, -1);
+    	
+    	return monthEnd.before(recent) ? PfssSettings.DESCRIPTION_MAX_AGE_PAST : PfssSettings.DESCRIPTION_MAX_AGE;
+    }
+    
+    private static byte[] download(URL url) throws IOException {
+    	InputStream in = url.openStream();
+    	try {
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		byte[] buffer = new byte[8192];
+    		int read;
+    		while((read = in.read(buffer)) != -1)
+    			out.write(buffer, 0, read);
+    		return out.toByteArray();
+    	} finally {
+    		in.close();
+    	}
+    }
+    
     /**
      * Returns the index of the FileDescriptor which contains the date
      * @param d
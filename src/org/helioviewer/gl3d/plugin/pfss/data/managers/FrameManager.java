@@ -1,5 +1,6 @@
 package org.helioviewer.gl3d.plugin.pfss.data.managers;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -9,7 +10,11 @@ import javax.media.opengl.GL2;
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
 import org.helioviewer.gl3d.plugin.pfss.data.caching.DataCache;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DecodedFrameCache;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.DiskCache;
 import org.helioviewer.gl3d.plugin.pfss.data.caching.FrameCache;
+import org.helioviewer.gl3d.plugin.pfss.data.caching.LRUCache;
+import org.helioviewer.gl3d.plugin.pfss.data.creators.PfssScheduler;
 import org.helioviewer.gl3d.plugin.pfss.settings.PfssSettings;
 
 /**
@@ -22,6 +27,8 @@ public class FrameManager {
 	private final FileDescriptorManager descriptorManager;
 
 	private final FrameCache frameCache;
+	private final DataCache dataCache;
+	private final PfssScheduler scheduler;
 	private final ConcurrentLinkedQueue<PfssFrame> destructionQueue = new ConcurrentLinkedQueue<>();
 	private final ConcurrentLinkedQueue<PfssFrame> initQueue = new ConcurrentLinkedQueue<>();
 	
@@ -30,10 +37,21 @@ public class FrameManager {
 	private int lastIndex = 0;
 
 	public FrameManager() {
-		descriptorManager = new FileDescriptorManager();
+		DiskCache diskCache = new DiskCache(new File(PfssSettings.DISK_CACHE_DIRECTORY), PfssSettings.DISK_CACHE_BYTES);
+		descriptorManager = new FileDescriptorManager(diskCache);
 		preloadQueue = new PfssFrame[PfssSettings.FRAME_PRELOAD];
-		DataCache dataCache = new DataCache(descriptorManager);
-		frameCache = new FrameCache(dataCache);
+		scheduler = new PfssScheduler();
+		dataCache = new DataCache(descriptorManager, scheduler, diskCache);
+		DecodedFrameCache decodedCache = null;
+		if(PfssSettings.DECODED_CACHE_ENABLED)
+			decodedCache = new DecodedFrameCache(new DiskCache(new File(PfssSettings.DECODED_CACHE_DIRECTORY), PfssSettings.DECODED_CACHE_BYTES));
+		frameCache = new FrameCache(dataCache, scheduler, new LRUCache.EvictionListener<PfssFrame>() {
+			@Override
+			public void evicted(PfssFrame frame) {
+				frame.release();
+				destructionQueue.add(frame);
+			}
+		}, decodedCache);
 	}
 
 	/**
@@ -50,9 +68,13 @@ public class FrameManager {
 		if(!descriptorManager.isDateInRange(date))
 			return null;
 		
+		scheduler.setFocus(date);
+		
 		//still the same frame
-		if (preloadQueue[currentIndex].getDescriptor().isDateInRange(date))
+		if (preloadQueue[currentIndex].getDescriptor().isDateInRange(date)) {
+			reloadIfReleased(currentIndex);
 			return preloadQueue[currentIndex];
+		}
 
 		// advance to next
 		if (this.isNext(date)) {
@@ -64,6 +86,8 @@ public class FrameManager {
 			
 			//init next +1
 			int nextIndex = (currentIndex+1) % preloadQueue.length;
+			reloadIfReleased(currentIndex);
+			reloadIfReleased(nextIndex);
 			initQueue.add(preloadQueue[nextIndex]);
 
 		} else {
@@ -86,6 +110,19 @@ public class FrameManager {
 		return f.getDescriptor().isDateInRange(d);
 	}
 
+	/**
+	 * Replaces a preloaded frame which has been evicted from the frame cache in the meantime. The evicted frame does
+	 * not get loaded again, so it is requested anew from the cache.
+	 * @param index
+	 */
+	private void reloadIfReleased(int index) {
+		PfssFrame f = preloadQueue[index];
+		if(f.isReleased()) {
+			preloadQueue[index] = frameCache.get(f.getDescriptor());
+			initQueue.add(preloadQueue[index]);
+		}
+	}
+
 	/**
 	 * Queue an obsolete frame in for destruction
 	 * @param index
@@ -119,6 +156,7 @@ public class FrameManager {
 	 * @param d
 	 */
 	private void initPreloaded(Date d) {
+		scheduler.setFocus(d);
 		int index  = descriptorManager.getFileIndex(d);
 		index = index < 0 ? 0: index;
 		
@@ -165,5 +203,20 @@ public class FrameManager {
 		while ((f = destructionQueue.poll()) != null)
 			f.clear(gl);
 	}
-
+	
+	/**
+	 * 
+	 * @return cache of the decoded frames
+	 */
+	public FrameCache getFrameCache() {
+		return frameCache;
+	}
+	
+	/**
+	 * 
+	 * @return cache of the raw data
+	 */
+	public DataCache getDataCache() {
+		return dataCache;
+	}
 }
@@ -1,6 +1,10 @@
 package org.helioviewer.gl3d.plugin.pfss.settings;
 
+import java.io.File;
+
+import org.helioviewer.base.physics.Constants;
 import org.helioviewer.gl3d.scenegraph.math.GL3DVec3f;
+import org.helioviewer.jhv.JHVDirectory;
 
 /**
  * Important settings
@@ -23,18 +27,85 @@ public class PfssSettings {
 	 * size of frame cache, should be bigger than preload
 	 */
 	public final static int FRAME_CACHE = 20;
+	
+	/**
+	 * Maximum bytes of the decoded vertex and index buffers in the frame cache
+	 */
+	public final static long FRAME_CACHE_BYTES = 256l * 1024 * 1024;
 
 	/**
 	 * Maximum size of cache data.
 	 */
 	public final static int DATA_CACHE_SIZE = 1000;
 	
+	/**
+	 * Maximum bytes of the raw data in the data cache
+	 */
+	public final static long DATA_CACHE_BYTES = 128l * 1024 * 1024;
+	
 	/**
 	 * Number of Preloaded PFSSdata
 	 */
 	public final static int DATA_PRELOAD_SIZE = 25;
+	
+	/**
+	 * Directory of the persistent cache of downloaded files
+	 */
+	public final static String DISK_CACHE_DIRECTORY = JHVDirectory.CACHE.getPath() + "PFSS" + File.separator;
+	
+	/**
+	 * Maximum bytes of the persistent cache of downloaded files
+	 */
+	public final static long DISK_CACHE_BYTES = 2l * 1024 * 1024 * 1024;
+	
+	/**
+	 * True if decoded frames get stored on disk, so they do not have to be decompressed again
+	 */
+	public final static boolean DECODED_CACHE_ENABLED = true;
+	
+	/**
+	 * Directory of the persistent cache of decoded frames. It must not be inside DISK_CACHE_DIRECTORY, as the cache of
+	 * downloaded files indexes all files below its directory
+	 */
+	public final static String DECODED_CACHE_DIRECTORY = JHVDirectory.CACHE.getPath() + "PFSSDecoded" + File.separator;
+	
+	/**
+	 * Maximum bytes of the persistent cache of decoded frames
+	 */
+	public final static long DECODED_CACHE_BYTES = 4l * 1024 * 1024 * 1024;
+	
+	/**
+	 * Milliseconds a cached file list of the current or last month is used before it gets downloaded again
+	 */
+	public final static long DESCRIPTION_MAX_AGE = 60 * 60 * 1000;
+	
+	/**
+	 * Milliseconds a cached file list of an older month is used before it gets downloaded again
+	 */
+	public final static long DESCRIPTION_MAX_AGE_PAST = 7l * 24 * 60 * 60 * 1000;
+	
+	/**
+	 * Number of threads which download PfssData
+	 */
+	public final static int IO_THREADS = 4;
+	
+	/**
+	 * Number of frames which get decompressed at the same time. The lines of each frame are decompressed in parallel.
+	 */
+	public final static int DECODE_THREADS = 2;
+	
+	/**
+	 * Minimal number of lines a decompression task handles before it is split up
+	 */
+	public final static int LINES_PER_TASK = 128;
 
 	
+	/**
+	 * Number of prediction levels which are decoded first, so a frame can be displayed with coarse lines before it is
+	 * fully decoded. 0 disables the progressive decompression.
+	 */
+	public final static int PROGRESSIVE_LEVELS = 3;
+	
 	/**
 	 * URL of the dataserver
 	 */
@@ -68,10 +139,15 @@ public class PfssSettings {
 	public final static float LINE_ALPHA = 1.0f;
 
 	/**
-	 * Cos of angle for LOD in degree or radian, if you would use degree
-	 * Math.toRadian(DEGREEVALUE))
+	 * Maximal deviation in meters of the simplified lines for each level of detail. Level 0 contains every point
+	 * of the lines, every further level is simplified more.
+	 */
+	public final static double[] LOD_TOLERANCES = { 0, 0.001 * Constants.SunRadius, 0.004 * Constants.SunRadius, 0.016 * Constants.SunRadius };
+	
+	/**
+	 * Maximal deviation in pixels on screen which is allowed when choosing the level of detail
 	 */
-	public final static double ANGLE_OF_LOD = Math.cos(Math.toRadians(3.0));
+	public final static double LOD_PIXEL_ERROR = 1.0;
 	
 	public final static int SMOOTH_FILTER_SIZE = 3;
 	
@@ -0,0 +1,105 @@
+package org.helioviewer.gl3d.plugin.pfss.testframework;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.BinaryTableHDU;
+import nom.tam.fits.Fits;
+
+import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ByteDecoder;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ContainerFormats;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ReusableIntArray;
+
+/**
+ * Compares the simple two pass ByteDecoder with the single pass decoder on the columns of real compressed frames.
+ */
+public class ByteDecoderBenchmark {
+	private static final String[] signedColumns = new String[] {"START_R", "START_PHI", "START_THETA", "END_R", "END_PHI", 
+		"END_THETA", "CHANNEL_R", "CHANNEL_PHI", "CHANNEL_THETA"};
+	private static final int runs = 20;
+
+	public static void main(String[] args) throws Exception {
+		File compressedFolder = new File(TestSettings.compressedFolder);
+		File[] compressedFiles = compressedFolder.listFiles();
+		
+		System.out.println("preparing");
+		ArrayList<byte[]> signed = new ArrayList<>();
+		ArrayList<byte[]> unsigned = new ArrayList<>();
+		for(int i = 0; i < compressedFiles.length;i++) {
+			PfssData d = new PfssData(null,"file:///"+compressedFiles[i].getAbsolutePath());
+			d.loadData();
+			InputStream is = ContainerFormats.open(d);
+			try {
+				BasicHDU hdus[] = new Fits(is, false).read();
+				BinaryTableHDU bhdu = (BinaryTableHDU) hdus[1];
+				for(String column : signedColumns)
+					signed.add(((byte[][]) bhdu.getColumn(column))[0]);
+				unsigned.add(((byte[][]) bhdu.getColumn("LINE_LENGTH"))[0]);
+			} finally {
+				is.close();
+			}
+		}
+		
+		System.out.println("verifying");
+		ReusableIntArray out = new ReusableIntArray();
+		for(byte[] column : signed) {
+			ByteDecoder.decodeAdaptive(column, out);
+			if(!Arrays.equals(ByteDecoder.decodeAdaptive(column), Arrays.copyOf(out.getArray(), out.size())))
+				throw new IllegalStateException("decoders do not match");
+		}
+		for(byte[] column : unsigned) {
+			ByteDecoder.decodeAdaptiveUnsigned(column, out);
+			if(!Arrays.equals(ByteDecoder.decodeAdaptiveUnsigned(column), Arrays.copyOf(out.getArray(), out.size())))
+				throw new IllegalStateException("decoders do not match");
+		}
+		
+		System.out.println("warm up hotspot compiler");
+		runSimple(signed, unsigned);
+		runSinglePass(signed, unsigned, out);
+		
+		System.out.println("testing");
+		double simple = 0;
+		double singlePass = 0;
+		for(int i = 0; i < runs;i++) {
+			simple += runSimple(signed, unsigned);
+			singlePass += runSinglePass(signed, unsigned, out);
+		}
+		System.out.println("finished average milliseconds per run over all frames:");
+		System.out.println("two pass:    " + simple / runs);
+		System.out.println("single pass: " + singlePass / runs);
+	}
+	
+	private static double runSimple(ArrayList<byte[]> signed, ArrayList<byte[]> unsigned) {
+		long start = System.nanoTime();
+		long checksum = 0;
+		for(byte[] column : signed)
+			checksum += ByteDecoder.decodeAdaptive(column).length;
+		for(byte[] column : unsigned)
+			checksum += ByteDecoder.decodeAdaptiveUnsigned(column).length;
+		long end = System.nanoTime();
+		if(checksum < 0)
+			System.out.println(checksum);
+		return (end - start) / 1e6;
+	}
+	
+	private static double runSinglePass(ArrayList<byte[]> signed, ArrayList<byte[]> unsigned, ReusableIntArray out) {
+		long start = System.nanoTime();
+		long checksum = 0;
+		for(byte[] column : signed) {
+			ByteDecoder.decodeAdaptive(column, out);
+			checksum += out.size();
+		}
+		for(byte[] column : unsigned) {
+			ByteDecoder.decodeAdaptiveUnsigned(column, out);
+			checksum += out.size();
+		}
+		long end = System.nanoTime();
+		if(checksum < 0)
+			System.out.println(checksum);
+		return (end - start) / 1e6;
+	}
+}
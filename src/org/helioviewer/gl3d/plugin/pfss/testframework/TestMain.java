@@ -1,17 +1,24 @@
 package org.helioviewer.gl3d.plugin.pfss.testframework;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 
+import nom.tam.fits.BinaryTableHDU;
+import nom.tam.fits.Fits;
+
 import org.helioviewer.gl3d.plugin.pfss.data.FileDescriptor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssData;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssDecompressor;
 import org.helioviewer.gl3d.plugin.pfss.data.PfssFrame;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ByteDecoder;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.ContainerFormats;
+import org.helioviewer.gl3d.plugin.pfss.data.decompression.IntermediateLineData;
 
 public class TestMain {
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
 
 		File compressedFolder = new File(TestSettings.compressedFolder);
 		File[] compressedFiles = compressedFolder.listFiles();
@@ -49,6 +56,52 @@ public class TestMain {
 		}
 		System.out.println("finished median milliseconds:");
 		System.out.println(time/compressedFiles.length);
+		
+		benchmarkPrediction(compressedFiles);
+	}
+	
+	/**
+	 * Measures the prediction decoding with the shared PredictionSchedule. The schedule is verified against a queue
+	 * based traversal by IntermediateLineDataTest.
+	 * @param compressedFiles
+	 * @throws Exception
+	 */
+	private static void benchmarkPrediction(File[] compressedFiles) throws Exception {
+		System.out.println("preparing prediction benchmark");
+		ArrayList<IntermediateLineData> allLines = new ArrayList<>();
+		for(int i = 0; i < compressedFiles.length;i++) {
+			PfssData d = new PfssData(null,"file:///"+compressedFiles[i].getAbsolutePath());
+			d.loadData();
+			InputStream is = ContainerFormats.open(d);
+			try {
+				BinaryTableHDU bhdu = (BinaryTableHDU) new Fits(is, false).read()[1];
+				int[] lengths = ByteDecoder.decodeAdaptiveUnsigned(((byte[][]) bhdu.getColumn("LINE_LENGTH"))[0]);
+				IntermediateLineData lines = new IntermediateLineData(lengths);
+				lines.setChannels(column(bhdu, "CHANNEL_R"), column(bhdu, "CHANNEL_PHI"), column(bhdu, "CHANNEL_THETA"));
+				lines.addStartPoints(column(bhdu, "START_R"), column(bhdu, "START_PHI"), column(bhdu, "START_THETA"));
+				lines.addEndPoints(column(bhdu, "END_R"), column(bhdu, "END_PHI"), column(bhdu, "END_THETA"));
+				allLines.add(lines);
+			} finally {
+				is.close();
+			}
+		}
+		
+		System.out.println("testing");
+		double scheduleTime = 0;
+		for(int run = 0; run < 20;run++) {
+			for(IntermediateLineData lines : allLines) {
+				long start = System.nanoTime();
+				for(int i = 0; i < lines.getNumberOfLines();i++)
+					lines.decodePrediction(i);
+				scheduleTime += System.nanoTime() - start;
+			}
+		}
+		double frames = 20.0 * allLines.size();
+		System.out.println("precomputed schedule milliseconds per frame: " + scheduleTime / frames / 1e6);
+	}
+	
+	private static int[] column(BinaryTableHDU bhdu, String name) throws Exception {
+		return ByteDecoder.decodeAdaptive(((byte[][]) bhdu.getColumn(name))[0]);
 	}
 
 }
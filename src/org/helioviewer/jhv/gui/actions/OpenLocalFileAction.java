@@ -63,7 +63,8 @@ public class OpenLocalFileAction extends AbstractAction {
         if (retVal == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
 
-            if (selectedFile.exists() && selectedFile.isFile()) {
+            // a directory is opened as a series of FITS files
+            if (selectedFile.exists() && (selectedFile.isFile() || selectedFile.isDirectory())) {
 
                 // remember the current directory for future
                 Settings.getSingletonInstance().setProperty("default.local.path", fileChooser.getSelectedFile().getParent());
@@ -1,16 +1,21 @@
 package org.helioviewer.jhv.gui.components.statusplugins;
 
 import java.awt.Dimension;
+import java.awt.event.MouseEvent;
 
 import javax.swing.BorderFactory;
 import javax.swing.Icon;
 import javax.swing.JLabel;
 import javax.swing.JWindow;
+import javax.swing.ToolTipManager;
 
 import org.helioviewer.jhv.gui.IconBank;
 import org.helioviewer.jhv.gui.IconBank.JHVIcon;
 import org.helioviewer.jhv.layers.LayersModel;
+import org.helioviewer.viewmodel.view.MovieView;
 import org.helioviewer.viewmodel.view.View;
+import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPTransferMetrics;
 
 /**
  * Status panel for displaying the status of the JPIP connection.
@@ -24,6 +29,10 @@ import org.helioviewer.viewmodel.view.View;
  * <p>
  * This panel is not visible, if the active layer is not an remote JPIP image.
  * 
+ * <p>
+ * The tooltip shows the statistics of the data received for the current frame
+ * of the active layer, see {@link JPIPTransferMetrics}.
+ * 
  * @author Markus Langenberg
  */
 public class JPIPStatusPanel extends ViewStatusPanelPlugin {
@@ -52,6 +61,38 @@ public class JPIPStatusPanel extends ViewStatusPanelPlugin {
         setHorizontalTextPosition(JLabel.LEFT);
 
         LayersModel.getSingletonInstance().addLayersListener(this);
+        ToolTipManager.sharedInstance().registerComponent(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Returns the transfer statistics of the active layer.
+     */
+    public String getToolTipText(MouseEvent event) {
+        View view = LayersModel.getSingletonInstance().getActiveView();
+        if (view == null) {
+            return null;
+        }
+
+        JHVJP2View jp2View = view.getAdapter(JHVJP2View.class);
+        JPIPTransferMetrics metrics = jp2View == null ? null : jp2View.getTransferMetrics();
+        if (metrics == null) {
+            return null;
+        }
+
+        MovieView movieView = view.getAdapter(MovieView.class);
+        int layer = movieView == null ? 0 : movieView.getCurrentFrameNumber();
+        layer = Math.max(0, Math.min(layer, metrics.getNumLayers() - 1));
+
+        StringBuilder text = new StringBuilder("<html>");
+        text.append(String.format("Frame %d: %.1f kB in %d responses, %.1f kB/s", layer + 1, metrics.getReceivedBytes(layer) / 1000.0, metrics.getResponses(layer), metrics.getThroughput(layer)));
+        text.append(String.format("<br>Request length: %d bytes", metrics.getRequestLength()));
+        if (metrics.getRoundTripTime() >= 0) {
+            text.append(String.format("<br>Bandwidth: %.1f kB/s, round trip: %.0f ms", metrics.getBandwidth(), metrics.getRoundTripTime()));
+        }
+        text.append("</html>");
+        return text.toString();
     }
 
     public void updateStatus(ConnectionStatus connectionStatus) {
@@ -8,7 +8,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -44,7 +43,7 @@ import org.helioviewer.jhv.gui.IconBank;
 import org.helioviewer.jhv.gui.IconBank.JHVIcon;
 import org.helioviewer.jhv.gui.ImageViewerGui;
 import org.helioviewer.jhv.gui.interfaces.ShowableDialog;
-import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduCacheDirectory;
 
 /**
  * Dialog that allows the user to change default preferences and settings.
@@ -402,18 +401,22 @@ public class PreferencesDialog extends JDialog implements ShowableDialog {
      */
     private String getCacheSizeText() {
 
-        long len = 0;
-        File[] list = JHV_Kdu_cache.getCacheFiles(JHVDirectory.CACHE.getFile());
-
-        for (File f : list)
-            len += f.length();
+        KakaduCacheDirectory directory = KakaduCacheDirectory.getSingletonInstance();
+        directory.setDirectory(JHVDirectory.CACHE.getFile());
+        long len = directory.getTotalSize();
 
+        String text;
         if (len < 1024)
-            return ("Occupied size: " + len + " bytes");
+            text = "Occupied size: " + len + " bytes";
         else if (len < 1048576)
-            return ("Occupied size: " + ((double) Math.round(((double) len / 1024.0) * 100.0) / 100.0) + " Kbytes");
+            text = "Occupied size: " + ((double) Math.round(((double) len / 1024.0) * 100.0) / 100.0) + " Kbytes";
         else
-            return ("Occupied size: " + ((double) Math.round(((double) len / 1048576.0) * 100.0) / 100.0) + " Mbytes");
+            text = "Occupied size: " + ((double) Math.round(((double) len / 1048576.0) * 100.0) / 100.0) + " Mbytes";
+
+        double byteHitRate = directory.getByteHitRate();
+        if (byteHitRate >= 0)
+            text += ", " + Math.round(byteHitRate * 100.0) + "% of the data read from the cache";
+        return text;
     }
 
     /**
@@ -0,0 +1,150 @@
+package org.helioviewer.jhv.internal_plugins.filter;
+
+import java.util.Arrays;
+
+import org.helioviewer.jhv.internal_plugins.filter.SOHOLUTFilterPlugin.SOHOLUTFilter;
+import org.helioviewer.jhv.internal_plugins.filter.channelMixer.ChannelMixerFilter;
+import org.helioviewer.jhv.internal_plugins.filter.contrast.ContrastFilter;
+import org.helioviewer.jhv.internal_plugins.filter.gammacorrection.GammaCorrectionFilter;
+import org.helioviewer.viewmodel.changeevent.ChangeEvent;
+import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
+import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
+import org.helioviewer.viewmodel.imagetransport.Int32ImageTransport;
+import org.helioviewer.viewmodel.view.AbstractView;
+import org.helioviewer.viewmodel.view.StandardFilterView;
+import org.helioviewer.viewmodel.view.SubimageDataView;
+import org.helioviewer.viewmodel.view.View;
+
+/**
+ * Compares the throughput of the point filters applied one after another, as
+ * the filter views did formerly, with the fused filter views, which apply all
+ * of them in a single pass.
+ *
+ * The filters gamma correction, contrast, channel mixer and color table are
+ * applied in the order of the default view chain to 16 bit frames. The
+ * results of both ways are compared before they are timed. Finally, the time
+ * to rebuild the lookup table after a parameter change is measured.
+ *
+ * Usage: PointFilterBenchmark [size] [frames] [passes], the resources have to
+ * be on the class path for the color tables.
+ */
+public class PointFilterBenchmark {
+
+    /** Provides the frames to the first filter view */
+    private static class FrameView extends AbstractView implements SubimageDataView {
+        private ImageData data;
+
+        void setSubimageData(ImageData _data) {
+            data = _data;
+            notifyViewListeners(new ChangeEvent(new SubImageDataChangedReason(this)));
+        }
+
+        public ImageData getSubimageData() {
+            return data;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends View> T getAdapter(Class<T> c) {
+            return c.isInstance(this) ? (T) this : null;
+        }
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int numFrames = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        GammaCorrectionFilter gamma = new GammaCorrectionFilter();
+        ContrastFilter contrast = new ContrastFilter();
+        ChannelMixerFilter channelMixer = new ChannelMixerFilter();
+        SOHOLUTFilter lut = new SOHOLUTFilter();
+        gamma.setState("1.5");
+        contrast.setState("2.0");
+        channelMixer.setState("true false true");
+        lut.setState("SOHO EIT 171 ANGSTROM false");
+        StandardFilter[] filters = { gamma, contrast, channelMixer, lut };
+
+        FrameView frameView = new FrameView();
+        View lastView = frameView;
+        StandardFilterView[] filterViews = new StandardFilterView[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            filterViews[i] = new StandardFilterView();
+            filterViews[i].setView(lastView);
+            filterViews[i].setFilter(filters[i]);
+            lastView = filterViews[i];
+        }
+        StandardFilterView topView = filterViews[filters.length - 1];
+
+        ImageData[] frames = new ImageData[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            frames[i] = createFrame(size, i);
+        }
+
+        for (int i = 0; i < numFrames; i++) {
+            ImageData serial = applySerial(filters, frames[i]);
+            frameView.setSubimageData(frames[i]);
+            ImageData fused = topView.getSubimageData();
+            if (!Arrays.equals(getPixels(serial), getPixels(fused)) || !serial.getColorMask().equals(fused.getColorMask())) {
+                System.out.println("Results differ for frame " + i);
+                System.exit(1);
+            }
+        }
+        System.out.println(numFrames + " frames of " + size + "x" + size + " 16 bit samples, results equal");
+
+        for (int pass = 0; pass < passes; pass++) {
+            long start = System.nanoTime();
+            for (ImageData frame : frames) {
+                applySerial(filters, frame);
+            }
+            long serial = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (ImageData frame : frames) {
+                frameView.setSubimageData(frame);
+                topView.getSubimageData();
+            }
+            long fused = System.nanoTime() - start;
+
+            System.out.println(String.format("serial %.1f ms/frame, fused %.1f ms/frame, %.1f times faster", serial / 1e6 / numFrames, fused / 1e6 / numFrames, (double) serial / fused));
+        }
+
+        long start = System.nanoTime();
+        gamma.setState("1.6");
+        topView.getSubimageData();
+        System.out.println(String.format("parameter change, table rebuilt and frame filtered: %.1f ms", (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Applies the filters one after another.
+     */
+    private static ImageData applySerial(StandardFilter[] filters, ImageData data) {
+        for (StandardFilter filter : filters) {
+            data = filter.apply(data);
+        }
+        return data;
+    }
+
+    private static int[] getPixels(ImageData data) {
+        return ((Int32ImageTransport) data.getImageTransport()).getInt32PixelData();
+    }
+
+    /**
+     * Creates a frame with a radial gradient and some noise.
+     */
+    private static ImageData createFrame(int size, int seed) {
+        short[] pixels = new short[size * size];
+        int noise = seed * 7919;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                long dx = x - size / 2, dy = y - size / 2;
+                noise = noise * 1103515245 + 12345;
+                int value = (int) (0xFFFF - 0xFFFFl * (dx * dx + dy * dy) / (size * size / 2)) + ((noise >>> 16) & 0xFF);
+                pixels[y * size + x] = (short) Math.max(0, Math.min(0xFFFF, value));
+            }
+        }
+        return new SingleChannelShortImageData(size, size, 16, pixels, new ColorMask());
+    }
+}
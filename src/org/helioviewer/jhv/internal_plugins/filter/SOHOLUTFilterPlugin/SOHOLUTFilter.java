@@ -9,8 +9,9 @@ import javax.media.opengl.glu.GLU;
 import org.helioviewer.base.logging.Log;
 import org.helioviewer.viewmodel.filter.AbstractFilter;
 import org.helioviewer.viewmodel.filter.GLFragmentShaderFilter;
-import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.filter.PointFilter;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
+import org.helioviewer.viewmodel.imagedata.ColorMask;
 import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imageformat.SingleChannelImageFormat;
 import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
@@ -33,7 +34,7 @@ import org.helioviewer.viewmodel.view.opengl.shader.GLSingleChannelLookupFragmen
  * 
  * @author Helge Dietert
  */
-public class SOHOLUTFilter extends AbstractFilter implements StandardFilter, GLFragmentShaderFilter {
+public class SOHOLUTFilter extends AbstractFilter implements PointFilter, GLFragmentShaderFilter {
     // /////////////////////////
     // GENERAL //
     // /////////////////////////
@@ -129,6 +130,32 @@ public class SOHOLUTFilter extends AbstractFilter implements StandardFilter, GLF
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public boolean applyToTable(ImageData data, int[] table, boolean argb) {
+        if (argb || (lut.getName() == "Gray" && !invertLUT)) {
+            return argb;
+        }
+
+        int[] lookup = data.getImageTransport() instanceof Short16ImageTransport ? lut.getLut16() : lut.getLut8();
+        int last = lookup.length - 1;
+        for (int i = 0; i < table.length; i++) {
+            // color tables may be shorter than the table, e.g. built-in ones,
+            // values which cannot occur in the image are clamped
+            int index = invertLUT ? last - table[i] : table[i];
+            table[i] = lookup[index < 0 ? 0 : (index > last ? last : index)];
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ColorMask getColorMask(ColorMask mask) {
+        return mask;
+    }
+
     // /////////////////////////
     // OPENGL //
     // /////////////////////////
@@ -226,7 +253,9 @@ public class SOHOLUTFilter extends AbstractFilter implements StandardFilter, GLF
             tableString += " " + values[i];
         }
         setLUT(LUT.getStandardList().get(tableString.replaceAll("ANGSTROM", Character.toString(LUT.angstrom))), Boolean.parseBoolean(invertString));
-        panel.setValue(lut, invertLUT);
+        if (panel != null) {
+            panel.setValue(lut, invertLUT);
+        }
     }
 
     /**
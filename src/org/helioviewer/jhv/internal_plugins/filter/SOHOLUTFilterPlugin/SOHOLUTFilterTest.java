@@ -0,0 +1,78 @@
+package org.helioviewer.jhv.internal_plugins.filter.SOHOLUTFilterPlugin;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.helioviewer.viewmodel.filter.PointFilter;
+import org.helioviewer.viewmodel.filter.PointFilterChain;
+import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
+import org.helioviewer.viewmodel.imagetransport.Int32ImageTransport;
+import org.junit.Test;
+
+public class SOHOLUTFilterTest {
+
+    /** Number of entries of the built-in color table */
+    private static final int ENTRIES = 16;
+
+    /**
+     * Creates a color table as for a built-in palette, which is shorter than
+     * the range of the samples and used for 8 and 16 bit images.
+     */
+    private static LUT builtInLUT() {
+        int[] lookup = new int[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            lookup[i] = 0xFF000000 | (i * 16) << 16 | (255 - i * 16) << 8 | i;
+        }
+        return new LUT("built-in", lookup, lookup);
+    }
+
+    private static ImageData byteImage() {
+        byte[] pixels = new byte[64];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i % ENTRIES);
+        }
+        return new SingleChannelByte8ImageData(8, 8, pixels, new ColorMask());
+    }
+
+    private static ImageData shortImage() {
+        short[] pixels = new short[64];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) ((i * 7) % ENTRIES);
+        }
+        return new SingleChannelShortImageData(8, 8, 16, pixels, new ColorMask());
+    }
+
+    private static int[] pixels(ImageData _data) {
+        return ((Int32ImageTransport) _data.getImageTransport()).getInt32PixelData();
+    }
+
+    /**
+     * The fused table must give the same colors as applying the filter to the
+     * image.
+     */
+    private static void assertFusedEqualsApplied(SOHOLUTFilter _filter, ImageData _data) {
+        List<PointFilter> filters = Collections.<PointFilter> singletonList(_filter);
+        assertArrayEquals(pixels(_filter.apply(_data)), pixels(new PointFilterChain().apply(filters, _data)));
+    }
+
+    @Test
+    public void testShortBuiltInLUT() {
+        SOHOLUTFilter filter = new SOHOLUTFilter(builtInLUT());
+        assertFusedEqualsApplied(filter, byteImage());
+        assertFusedEqualsApplied(filter, shortImage());
+    }
+
+    @Test
+    public void testShortBuiltInLUTInverted() {
+        LUT lut = builtInLUT();
+        SOHOLUTFilter filter = new SOHOLUTFilter(lut);
+        filter.setLUT(lut, true);
+        assertFusedEqualsApplied(filter, byteImage());
+        assertFusedEqualsApplied(filter, shortImage());
+    }
+}
@@ -4,7 +4,7 @@ import javax.media.opengl.GL2;
 
 import org.helioviewer.viewmodel.filter.AbstractFilter;
 import org.helioviewer.viewmodel.filter.GLPostFilter;
-import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.filter.PointFilter;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.viewmodel.imagedata.ColorMask;
 import org.helioviewer.viewmodel.imagedata.ImageData;
@@ -31,7 +31,7 @@ import org.helioviewer.viewmodel.imagetransport.Short16ImageTransport;
  * 
  * @author Markus Langenberg
  */
-public class ChannelMixerFilter extends AbstractFilter implements StandardFilter, GLPostFilter {
+public class ChannelMixerFilter extends AbstractFilter implements PointFilter, GLPostFilter {
 
     private ColorMask colorMask = new ColorMask();
     private ChannelMixerPanel panel;
@@ -94,6 +94,23 @@ public class ChannelMixerFilter extends AbstractFilter implements StandardFilter
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The pixel values are not changed, only the color mask.
+     */
+    public boolean applyToTable(ImageData data, int[] table, boolean argb) {
+        return argb;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ColorMask getColorMask(ColorMask mask) {
+        return colorMask;
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -142,7 +159,9 @@ public class ChannelMixerFilter extends AbstractFilter implements StandardFilter
         }
 
         setColorMask(Boolean.parseBoolean(values[0]), Boolean.parseBoolean(values[1]), Boolean.parseBoolean(values[2]));
-        panel.setValue(colorMask);
+        if (panel != null) {
+            panel.setValue(colorMask);
+        }
     }
 
     /**
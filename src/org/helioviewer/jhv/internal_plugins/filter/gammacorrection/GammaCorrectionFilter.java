@@ -4,8 +4,9 @@ import javax.media.opengl.GL2;
 
 import org.helioviewer.viewmodel.filter.AbstractFilter;
 import org.helioviewer.viewmodel.filter.GLFragmentShaderFilter;
-import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.filter.PointFilter;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
+import org.helioviewer.viewmodel.imagedata.ColorMask;
 import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
 import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
@@ -43,7 +44,7 @@ import org.helioviewer.viewmodel.view.opengl.shader.GLTextureCoordinate;
  * 
  * @author Markus Langenberg
  */
-public class GammaCorrectionFilter extends AbstractFilter implements StandardFilter, GLFragmentShaderFilter {
+public class GammaCorrectionFilter extends AbstractFilter implements PointFilter, GLFragmentShaderFilter {
 
     private GammaCorrectionPanel panel;
 
@@ -103,7 +104,7 @@ public class GammaCorrectionFilter extends AbstractFilter implements StandardFil
     private void buildTable16(int bitDepth) {
         int maxValue = 1 << bitDepth;
 
-        if (gammaTable16 == null) {
+        if (gammaTable16 == null || gammaTable16.length != maxValue) {
             gammaTable16 = new short[maxValue];
         }
 
@@ -185,6 +186,53 @@ public class GammaCorrectionFilter extends AbstractFilter implements StandardFil
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public boolean applyToTable(ImageData data, int[] table, boolean argb) {
+        if (Math.abs(gamma - 1.0f) <= 0.01f) {
+            return argb;
+        }
+
+        // apply() rebuilds its tables independently
+        boolean rebuild = rebuildTable;
+
+        if (argb) {
+            // (A)RGB values: Filter each channel separate
+            buildTable8();
+            for (int i = 0; i < table.length; i++) {
+                int rgb = table[i];
+                int r = gammaTable8[(rgb >>> 16) & 0xFF] & 0xFF;
+                int g = gammaTable8[(rgb >>> 8) & 0xFF] & 0xFF;
+                int b = gammaTable8[rgb & 0xFF] & 0xFF;
+                table[i] = (rgb & 0xFF000000) | (r << 16) | (g << 8) | b;
+            }
+        } else if (data.getImageTransport() instanceof Short16ImageTransport) {
+            buildTable16(data.getImageTransport().getNumBitsPerPixel());
+            for (int i = 0; i < table.length; i++) {
+                // values beyond the bit depth are left unchanged
+                if (table[i] < gammaTable16.length) {
+                    table[i] = gammaTable16[table[i]] & 0xFFFF;
+                }
+            }
+        } else {
+            buildTable8();
+            for (int i = 0; i < table.length; i++) {
+                table[i] = gammaTable8[table[i]] & 0xFF;
+            }
+        }
+
+        rebuildTable = rebuild;
+        return argb;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ColorMask getColorMask(ColorMask mask) {
+        return mask;
+    }
+
     /**
      * Fragment shader for applying the gamma correction.
      */
@@ -259,7 +307,9 @@ public class GammaCorrectionFilter extends AbstractFilter implements StandardFil
      */
     public void setState(String state) {
         setGamma(Float.parseFloat(state));
-        panel.setValue(gamma);
+        if (panel != null) {
+            panel.setValue(gamma);
+        }
     }
 
     /**
@@ -11,9 +11,13 @@ import org.helioviewer.base.logging.Log;
 import org.helioviewer.viewmodel.filter.AbstractFilter;
 import org.helioviewer.viewmodel.filter.GLFragmentShaderFilter;
 import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.filter.TiledFilterExecutor;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imagedata.JavaBufferedImageData;
+import org.helioviewer.viewmodel.imageformat.ARGB32ImageFormat;
+import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.Int32ImageTransport;
 import org.helioviewer.viewmodel.view.opengl.shader.GLFragmentShaderProgram;
 import org.helioviewer.viewmodel.view.opengl.shader.GLShaderBuilder;
 import org.helioviewer.viewmodel.view.opengl.shader.GLShaderBuilder.GLBuildShaderException;
@@ -97,6 +101,12 @@ public class OpacityFilter extends AbstractFilter implements StandardFilter, GLF
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * For ARGB, RGB and 8 bit single channel images, the alpha values are
+     * scaled directly, in parallel stripes for large images, see
+     * {@link TiledFilterExecutor}. The colors stay unchanged, as in the OpenGL
+     * implementation. Other images are drawn with the opacity.
      */
     public ImageData apply(ImageData data) {
         if (data == null) {
@@ -106,6 +116,49 @@ public class OpacityFilter extends AbstractFilter implements StandardFilter, GLF
         if (opacity > 0.999f)
             return data;
 
+        if (data.getImageTransport() instanceof Int32ImageTransport || data.getImageTransport() instanceof Byte8ImageTransport) {
+            // resulting alpha value for every alpha value
+            final int[] alphaTable = new int[0x100];
+            float currentOpacity = opacity;
+            for (int i = 0; i < alphaTable.length; i++) {
+                alphaTable[i] = ((int) (i * currentOpacity + 0.5f)) << 24;
+            }
+
+            final int[] resultPixelData = new int[data.getWidth() * data.getHeight()];
+            final int width = data.getWidth();
+
+            if (data.getImageTransport() instanceof Byte8ImageTransport) {
+                final byte[] pixelData = ((Byte8ImageTransport) data.getImageTransport()).getByte8PixelData();
+                TiledFilterExecutor.execute(width, data.getHeight(), 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        int alpha = alphaTable[0xFF];
+                        for (int i = firstRow * width; i < endRow * width; i++) {
+                            resultPixelData[i] = alpha | ((pixelData[i] & 0xFF) * 0x010101);
+                        }
+                    }
+                });
+            } else {
+                final int[] pixelData = ((Int32ImageTransport) data.getImageTransport()).getInt32PixelData();
+                final boolean hasAlpha = data.getImageFormat() instanceof ARGB32ImageFormat;
+                TiledFilterExecutor.execute(width, data.getHeight(), 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        if (hasAlpha) {
+                            for (int i = firstRow * width; i < endRow * width; i++) {
+                                resultPixelData[i] = alphaTable[pixelData[i] >>> 24] | (pixelData[i] & 0x00FFFFFF);
+                            }
+                        } else {
+                            int alpha = alphaTable[0xFF];
+                            for (int i = firstRow * width; i < endRow * width; i++) {
+                                resultPixelData[i] = alpha | (pixelData[i] & 0x00FFFFFF);
+                            }
+                        }
+                    }
+                });
+            }
+
+            return new ARGBInt32ImageData(data, resultPixelData);
+        }
+
         if (data instanceof JavaBufferedImageData) {
             BufferedImage source = ((JavaBufferedImageData) data).getBufferedImage();
             BufferedImage target = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
@@ -188,7 +241,9 @@ public class OpacityFilter extends AbstractFilter implements StandardFilter, GLF
      */
     public void setState(String state) {
         setOpacity(Float.parseFloat(state));
-        panel.setValue(opacity);
+        if (panel != null) {
+            panel.setValue(opacity);
+        }
     }
 
     /**
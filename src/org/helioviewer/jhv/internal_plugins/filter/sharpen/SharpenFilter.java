@@ -2,6 +2,7 @@ package org.helioviewer.jhv.internal_plugins.filter.sharpen;
 
 import org.helioviewer.viewmodel.filter.AbstractFilter;
 import org.helioviewer.viewmodel.filter.StandardFilter;
+import org.helioviewer.viewmodel.filter.TiledFilterExecutor;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
@@ -54,8 +55,13 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
 
     private SharpenPanel panel;
 
-    private int convolveX[] = null;
-    private int convolveY[] = null;
+    /** Lowpass of the last single channel image */
+    private int lowpass[] = null;
+
+    /** Buffers of the stripes */
+    private int stripeSamples[][] = new int[0][];
+    private int stripeConvolveX[][] = new int[0][];
+    private int stripeLowpass[][] = new int[0][];
 
     private ImageData lastImageData;
 
@@ -98,70 +104,51 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
     // /////////////////////////
 
     /**
-     * Blurs a single channel image by applying a 3x3 Gauss lowpass filter.
-     * 
-     * Since a convolution with a Gauss kernel is separable, this function is
-     * optimized by doing so.
-     * 
-     * <p>
-     * If the image has more than one channel, this function has to be called
-     * multiple times.
+     * Returns the buffer of a stripe with at least the given length.
      * 
-     * @param width
-     *            Width of the image
-     * @param height
-     *            Height of the image
-     * @param input
-     *            Pixel data of the image, given as an integer
-     * @return Blurred single channel image
+     * @param buffers
+     *            buffers of all stripes
+     * @param stripe
+     *            index of the stripe
+     * @param length
+     *            minimum length
+     * @return Buffer of the stripe
      */
-    private int[] blur(int width, int height, byte input[]) {
-        if (convolveY == null || convolveY.length < width * height)
-            convolveY = new int[width * height];
-
-        for (int i = 0; i < width * height; i++) {
-            convolveY[i] = input[i] & 0xFF;
-        }
-
-        return blur(width, height, convolveY);
+    private static int[] getStripeBuffer(int[][] buffers, int stripe, int length) {
+        if (buffers[stripe] == null || buffers[stripe].length < length)
+            buffers[stripe] = new int[length];
+        return buffers[stripe];
     }
 
     /**
-     * Blurs a single channel image by applying a 3x3 Gauss lowpass filter.
-     * 
-     * Since a convolution with a Gauss kernel is separable, this function is
-     * optimized by doing so.
-     * 
-     * <p>
-     * If the image has more than one channel, this function has to be called
-     * multiple times.
+     * Prepares the buffers for filtering an image in the given number of
+     * stripes.
      * 
-     * @param width
-     *            Width of the image
-     * @param height
-     *            Height of the image
-     * @param input
-     *            Pixel data of the image, given as an integer
-     * @param mask
-     *            to apply on the input data
-     * @return Blurred single channel image
+     * @param numStripes
+     *            Number of stripes
+     * @param pixels
+     *            Number of pixels of the image
+     * @param keepLowpass
+     *            whether the lowpass of the last image is reused
      */
-    private int[] blur(int width, int height, short input[], int mask) {
-        if (convolveY == null || convolveY.length < width * height)
-            convolveY = new int[width * height];
-
-        for (int i = 0; i < width * height; i++) {
-            convolveY[i] = input[i] & mask;
+    private void prepareBuffers(int numStripes, int pixels, boolean keepLowpass) {
+        if (stripeSamples.length < numStripes) {
+            stripeSamples = new int[numStripes][];
+            stripeConvolveX = new int[numStripes][];
+            stripeLowpass = new int[numStripes][];
         }
-
-        return blur(width, height, convolveY);
+        if (!keepLowpass && (lowpass == null || lowpass.length < pixels))
+            lowpass = new int[pixels];
     }
 
     /**
-     * Blurs a single channel image by applying a 3x3 Gauss lowpass filter.
+     * Blurs a stripe of a single channel image by applying a 3x3 Gauss lowpass
+     * filter.
      * 
      * Since a convolution with a Gauss kernel is separable, this function is
-     * optimized by doing so.
+     * optimized by doing so. The convolution in x direction is computed for
+     * the halo rows of the stripe as well, since the convolution in y
+     * direction needs them.
      * 
      * <p>
      * If the image has more than one channel, this function has to be called
@@ -171,67 +158,91 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
      *            Width of the image
      * @param height
      *            Height of the image
-     * @param input
-     *            Pixel data of the image, given as an integer
-     * @return Blurred single channel image
+     * @param samples
+     *            Pixel data of the rows firstHaloRow up to endHaloRow, given
+     *            as integers
+     * @param convolveX
+     *            Buffer for the convolution in x direction, at least as large
+     *            as the samples
+     * @param firstHaloRow
+     *            First row of the samples
+     * @param endHaloRow
+     *            Row after the last row of the samples
+     * @param firstRow
+     *            First row to blur
+     * @param endRow
+     *            Row after the last row to blur
+     * @param output
+     *            Blurred rows
+     * @param outputOffset
+     *            Index of the first row within the output
      */
-    private int[] blur(int width, int height, int[] input) {
+    private static void blur(int width, int height, int[] samples, int[] convolveX, int firstHaloRow, int endHaloRow, int firstRow, int endRow, int[] output, int outputOffset) {
         if (width < 2 * span || height < 2 * span) {
-            return input;
+            System.arraycopy(samples, (firstRow - firstHaloRow) * width, output, outputOffset, (endRow - firstRow) * width);
+            return;
         }
-        if (convolveX == null || convolveX.length < width * height)
-            convolveX = new int[width * height];
-        if (convolveY == null || convolveY.length < width * height)
-            convolveY = new int[width * height];
 
         int tmpIndex;
 
-        // convolve borders in x direction
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < span; j++) {
-                tmpIndex = i * width + j;
+        // convolve in x direction
+        for (int i = 0; i < endHaloRow - firstHaloRow; i++) {
+            int rowStart = i * width;
+            int rowEnd = rowStart + width - 1;
 
-                convolveX[tmpIndex] = ((input[tmpIndex - j] + (input[tmpIndex] << 1) + input[tmpIndex + span]) >> 2);
+            // borders
+            for (int j = 0; j < span; j++) {
+                tmpIndex = rowStart + j;
+                convolveX[tmpIndex] = ((samples[rowStart] + (samples[tmpIndex] << 1) + samples[tmpIndex + span]) >> 2);
 
-                tmpIndex = (i + 1) * width - 1 - j;
-                convolveX[tmpIndex] = ((input[tmpIndex + j] + (input[tmpIndex] << 1) + input[tmpIndex - span]) >> 2);
+                tmpIndex = rowEnd - j;
+                convolveX[tmpIndex] = ((samples[rowEnd] + (samples[tmpIndex] << 1) + samples[tmpIndex - span]) >> 2);
             }
-        }
 
-        // convolve inner region in x direction
-        for (int i = 0; i < height; i++) {
+            // inner region
             for (int j = span; j < width - span; j++) {
-                tmpIndex = i * width + j;
-                convolveX[tmpIndex] = ((input[tmpIndex - span] + (input[tmpIndex] << 1) + input[tmpIndex + span]) >> 2);
+                tmpIndex = rowStart + j;
+                convolveX[tmpIndex] = ((samples[tmpIndex - span] + (samples[tmpIndex] << 1) + samples[tmpIndex + span]) >> 2);
             }
         }
 
         int spanTimesWidth = span * width;
-
-        // convolve borders in y direction
-        for (int i = 0; i < span; i++) {
-            for (int j = 0; j < width; j++) {
-                tmpIndex = i * width + j;
-                convolveY[tmpIndex] = ((convolveX[tmpIndex - i * width] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex + spanTimesWidth]) >> 2);
-
-                tmpIndex = (height - i) * width - 1 - j;
-                convolveY[tmpIndex] = ((convolveX[tmpIndex + i * width] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex - spanTimesWidth]) >> 2);
-            }
-        }
-
-        // convolve inner region in y direction
-        for (int i = span; i < height - span; i++) {
-            for (int j = 0; j < width; j++) {
-                tmpIndex = i * width + j;
-                convolveY[tmpIndex] = ((convolveX[tmpIndex - spanTimesWidth] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex + spanTimesWidth]) >> 2);
+        int firstRowStart = (0 - firstHaloRow) * width;
+        int lastRowStart = (height - 1 - firstHaloRow) * width;
+
+        // convolve in y direction
+        for (int i = firstRow; i < endRow; i++) {
+            int rowStart = (i - firstHaloRow) * width;
+            int outputStart = outputOffset + (i - firstRow) * width;
+
+            if (i < span) {
+                // upper border
+                for (int j = 0; j < width; j++) {
+                    tmpIndex = rowStart + j;
+                    output[outputStart + j] = ((convolveX[firstRowStart + j] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex + spanTimesWidth]) >> 2);
+                }
+            } else if (i >= height - span) {
+                // lower border
+                for (int j = 0; j < width; j++) {
+                    tmpIndex = rowStart + j;
+                    output[outputStart + j] = ((convolveX[lastRowStart + j] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex - spanTimesWidth]) >> 2);
+                }
+            } else {
+                // inner region
+                for (int j = 0; j < width; j++) {
+                    tmpIndex = rowStart + j;
+                    output[outputStart + j] = ((convolveX[tmpIndex - spanTimesWidth] + (convolveX[tmpIndex] << 1) + convolveX[tmpIndex + spanTimesWidth]) >> 2);
+                }
             }
         }
-
-        return convolveY;
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * Large images are filtered in stripes in parallel, see
+     * {@link TiledFilterExecutor}.
      */
     public ImageData apply(ImageData data) {
         if (data == null) {
@@ -242,21 +253,38 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
             return data;
         }
 
+        final int width = data.getWidth();
+        final int height = data.getHeight();
+        final float weighting = this.weighting;
+        int numStripes = TiledFilterExecutor.getNumStripes(width, height);
+
         // Single channel byte image
         try {
             if (data.getImageTransport() instanceof Byte8ImageTransport) {
-                byte[] pixelData = ((Byte8ImageTransport) data.getImageTransport()).getByte8PixelData();
+                final byte[] pixelData = ((Byte8ImageTransport) data.getImageTransport()).getByte8PixelData();
+                final byte[] resultPixelData = new byte[pixelData.length];
 
                 // lowpass
-                if (forceRefilter || lastImageData != data) {
-                    blur(data.getWidth(), data.getHeight(), pixelData);
-                }
-
-                // unsharp masking
-                byte[] resultPixelData = new byte[pixelData.length];
-                for (int i = 0; i < pixelData.length; i++) {
-                    resultPixelData[i] = (byte) Math.min(Math.max((1.0f + weighting) * (pixelData[i] & 0xFF) - weighting * convolveY[i], 0), 0xFF);
-                }
+                final boolean blur = forceRefilter || lastImageData != data;
+                prepareBuffers(numStripes, pixelData.length, !blur);
+
+                TiledFilterExecutor.executeStripes(numStripes, height, span, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        if (blur) {
+                            int haloPixels = (endHaloRow - firstHaloRow) * width;
+                            int[] samples = getStripeBuffer(stripeSamples, stripe, haloPixels);
+                            for (int i = 0, offset = firstHaloRow * width; i < haloPixels; i++) {
+                                samples[i] = pixelData[offset + i] & 0xFF;
+                            }
+                            blur(width, height, samples, getStripeBuffer(stripeConvolveX, stripe, haloPixels), firstHaloRow, endHaloRow, firstRow, endRow, lowpass, firstRow * width);
+                        }
+
+                        // unsharp masking
+                        for (int i = firstRow * width; i < endRow * width; i++) {
+                            resultPixelData[i] = (byte) Math.min(Math.max((1.0f + weighting) * (pixelData[i] & 0xFF) - weighting * lowpass[i], 0), 0xFF);
+                        }
+                    }
+                });
 
                 lastImageData = data;
 
@@ -264,21 +292,33 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
 
                 // Single channel short image
             } else if (data.getImageTransport() instanceof Short16ImageTransport) {
-                short[] pixelData = ((Short16ImageTransport) data.getImageTransport()).getShort16PixelData();
+                final short[] pixelData = ((Short16ImageTransport) data.getImageTransport()).getShort16PixelData();
+                final short[] resultPixelData = new short[pixelData.length];
 
                 // calculate mask
-                int mask = (1 << data.getImageTransport().getNumBitsPerPixel()) - 1;
+                final int mask = (1 << data.getImageTransport().getNumBitsPerPixel()) - 1;
 
                 // lowpass
-                if (forceRefilter || lastImageData != data) {
-                    blur(data.getWidth(), data.getHeight(), pixelData, mask);
-                }
-
-                // unsharp masking
-                short[] resultPixelData = new short[pixelData.length];
-                for (int i = 0; i < pixelData.length; i++) {
-                    resultPixelData[i] = (short) Math.min(Math.max((1.0f + weighting) * (pixelData[i] & mask) - weighting * convolveY[i], 0), 0xFFFF);
-                }
+                final boolean blur = forceRefilter || lastImageData != data;
+                prepareBuffers(numStripes, pixelData.length, !blur);
+
+                TiledFilterExecutor.executeStripes(numStripes, height, span, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        if (blur) {
+                            int haloPixels = (endHaloRow - firstHaloRow) * width;
+                            int[] samples = getStripeBuffer(stripeSamples, stripe, haloPixels);
+                            for (int i = 0, offset = firstHaloRow * width; i < haloPixels; i++) {
+                                samples[i] = pixelData[offset + i] & mask;
+                            }
+                            blur(width, height, samples, getStripeBuffer(stripeConvolveX, stripe, haloPixels), firstHaloRow, endHaloRow, firstRow, endRow, lowpass, firstRow * width);
+                        }
+
+                        // unsharp masking
+                        for (int i = firstRow * width; i < endRow * width; i++) {
+                            resultPixelData[i] = (short) Math.min(Math.max((1.0f + weighting) * (pixelData[i] & mask) - weighting * lowpass[i], 0), 0xFFFF);
+                        }
+                    }
+                });
 
                 lastImageData = data;
 
@@ -287,30 +327,41 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
                 // (A)RGB image: Filter each channel separate
             } else if (data.getImageTransport() instanceof Int32ImageTransport) {
 
-                int[] pixelData = ((Int32ImageTransport) data.getImageTransport()).getInt32PixelData();
-                int[] resultPixelData = new int[pixelData.length];
-
-                int[] channel = new int[pixelData.length];
-
-                // copy alpha channel unfiltered
-                for (int i = 0; i < pixelData.length; i++) {
-                    resultPixelData[i] = pixelData[i] & 0xFF000000;
-                }
-
-                // perform for each color channel
-                for (int c = 0; c < 3; c++) {
-                    for (int i = 0; i < pixelData.length; i++) {
-                        channel[i] = (pixelData[i] >>> c * 8) & 0xFF;
+                final int[] pixelData = ((Int32ImageTransport) data.getImageTransport()).getInt32PixelData();
+                final int[] resultPixelData = new int[pixelData.length];
+
+                prepareBuffers(numStripes, pixelData.length, true);
+
+                TiledFilterExecutor.executeStripes(numStripes, height, span, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        int haloPixels = (endHaloRow - firstHaloRow) * width;
+                        int first = firstRow * width;
+                        int end = endRow * width;
+                        int[] channel = getStripeBuffer(stripeSamples, stripe, haloPixels);
+                        int[] convolveX = getStripeBuffer(stripeConvolveX, stripe, haloPixels);
+                        int[] channelLowpass = getStripeBuffer(stripeLowpass, stripe, end - first);
+
+                        // copy alpha channel unfiltered
+                        for (int i = first; i < end; i++) {
+                            resultPixelData[i] = pixelData[i] & 0xFF000000;
+                        }
+
+                        // perform for each color channel
+                        for (int c = 0; c < 3; c++) {
+                            for (int i = 0, offset = firstHaloRow * width; i < haloPixels; i++) {
+                                channel[i] = (pixelData[offset + i] >>> c * 8) & 0xFF;
+                            }
+
+                            // blur
+                            blur(width, height, channel, convolveX, firstHaloRow, endHaloRow, firstRow, endRow, channelLowpass, 0);
+
+                            // unsharp masking
+                            for (int i = first; i < end; i++) {
+                                resultPixelData[i] |= (((int) Math.min(Math.max((1.0f + weighting) * ((pixelData[i] >>> c * 8) & 0xFF) - weighting * channelLowpass[i - first], 0), 0xFF)) << (c * 8));
+                            }
+                        }
                     }
-
-                    // blur
-                    blur(data.getWidth(), data.getHeight(), channel);
-
-                    // unsharp masking
-                    for (int i = 0; i < pixelData.length; i++) {
-                        resultPixelData[i] |= (((int) Math.min(Math.max((1.0f + weighting) * (channel[i] & 0xFF) - weighting * convolveY[i], 0), 0xFF)) << (c * 8));
-                    }
-                }
+                });
 
                 lastImageData = data;
 
@@ -337,7 +388,9 @@ public class SharpenFilter extends AbstractFilter implements StandardFilter {
      */
     public void setState(String state) {
         setWeighting(Float.parseFloat(state));
-        panel.setValue(weighting);
+        if (panel != null) {
+            panel.setValue(weighting);
+        }
     }
 
     /**
@@ -16,6 +16,7 @@ import org.helioviewer.viewmodel.view.StandardSolarRotationTrackingView;
 import org.helioviewer.viewmodel.view.SynchronizeOverviewChainView;
 import org.helioviewer.viewmodel.view.SynchronizeView;
 import org.helioviewer.viewmodel.view.View;
+import org.helioviewer.viewmodel.view.fitsview.JHVFITSSeriesView;
 import org.helioviewer.viewmodel.view.fitsview.JHVFITSView;
 import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
 import org.helioviewer.viewmodel.view.jp2view.JHVJPXView;
@@ -132,6 +133,11 @@ public abstract class StandardViewFactory implements ViewFactory {
 
                 return (T) newJP2;
 
+            } else if (source instanceof JHVFITSSeriesView) {
+                JHVFITSSeriesView newFITSSeries = new JHVFITSSeriesView((JHVFITSSeriesView) source);
+
+                return (T) newFITSSeries;
+
             } else if (source instanceof JHVFITSView) {
                 JHVFITSView sourceFITS = (JHVFITSView) source;
                 JHVFITSView newFITS = new JHVFITSView(sourceFITS.getFITSImage(), sourceFITS.getUri());
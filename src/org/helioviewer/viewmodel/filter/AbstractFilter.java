@@ -5,6 +5,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class AbstractFilter implements ObservableFilter {
 	private CopyOnWriteArrayList<FilterListener> listeners = new CopyOnWriteArrayList<FilterListener>();
+	private volatile int parameterVersion = 0;
 
     /**
      * {@inheritDoc}
@@ -24,8 +25,19 @@ public abstract class AbstractFilter implements ObservableFilter {
      * Notifies all registered listeners, that something has changed.
      */
     protected void notifyAllListeners() {
+       parameterVersion++;
        for (FilterListener f : listeners) {
     	   f.filterChanged(this);
        }
     }
+
+    /**
+     * Returns the version of the filter parameters, which is incremented
+     * whenever the listeners are notified about a change.
+     * 
+     * @return Parameter version
+     */
+    public int getParameterVersion() {
+        return parameterVersion;
+    }
 }
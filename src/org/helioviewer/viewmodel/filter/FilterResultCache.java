@@ -0,0 +1,251 @@
+package org.helioviewer.viewmodel.filter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.helioviewer.base.math.MathUtils;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.Int32ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.Short16ImageTransport;
+
+/**
+ * Keeps the latest results of a filter stage, so that a stage is not executed
+ * again for an input it has already filtered with the same parameters.
+ *
+ * <p>
+ * A result is keyed by the identity of the input image data, the filters of
+ * the stage and their parameter versions, see
+ * {@link AbstractFilter#getParameterVersion()}. Changing a parameter of a
+ * filter thus only misses the caches of the stages containing that filter,
+ * while the stages before them keep their results. Image data passed on by a
+ * stage, which hit its cache, is the same object as before, thus the
+ * following stages hit their caches, too.
+ *
+ * <p>
+ * Only filters with a parameter version are cached. Region and meta data
+ * filters are never cached, since their results depend on more than their
+ * parameters.
+ *
+ * <p>
+ * The number of results per stage is given by the system property
+ * {@link #CAPACITY_PROPERTY}, a value of 0 disables the caches. The least
+ * recently used result is dropped first. Pools of result buffers must not
+ * reuse a buffer as long as a cached result holds it, see
+ * {@link #holds(Object)}.
+ */
+public class FilterResultCache {
+
+    /** System property with the number of results kept per stage */
+    public static final String CAPACITY_PROPERTY = "jhv.filter.resultcache";
+
+    /** Default number of results kept per stage */
+    public static final int DEFAULT_CAPACITY = 2;
+
+    /** Upper limit of the system property */
+    private static final int MAX_CAPACITY = 16;
+
+    private static final int defaultCapacity = readCapacity();
+
+    /** A cached result */
+    private static class Entry {
+        final ImageData input;
+        final Filter[] filters;
+        final int[] versions;
+        final ImageData result;
+
+        Entry(ImageData _input, Filter[] _filters, int[] _versions, ImageData _result) {
+            input = _input;
+            filters = _filters;
+            versions = _versions;
+            result = _result;
+        }
+
+        boolean matches(ImageData _input, List<? extends Filter> _filters, int[] _versions) {
+            if (input != _input || filters.length != _filters.size() || !Arrays.equals(versions, _versions)) {
+                return false;
+            }
+
+            int i = 0;
+            for (Filter filter : _filters) {
+                if (filters[i++] != filter) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Cached results, the most recently used one first */
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    private final int capacity;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a cache with the capacity given by the system property.
+     */
+    public FilterResultCache() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Creates a cache with the given capacity.
+     *
+     * @param _capacity
+     *            number of results to keep, 0 disables the cache
+     */
+    public FilterResultCache(int _capacity) {
+        capacity = Math.max(0, _capacity);
+    }
+
+    private static int readCapacity() {
+        int capacity = DEFAULT_CAPACITY;
+        String value = System.getProperty(CAPACITY_PROPERTY);
+        if (value != null) {
+            try {
+                capacity = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return MathUtils.squeezeToInterval(capacity, 0, MAX_CAPACITY);
+    }
+
+    /**
+     * Returns the current parameter versions of the filters of a stage. The
+     * versions have to be read before the stage is executed, so that a
+     * concurrent parameter change leads to a miss afterwards.
+     *
+     * @param _filters
+     *            the filters of the stage
+     * @return Parameter versions, or null if the stage can not be cached
+     */
+    public static int[] getParameterVersions(List<? extends Filter> _filters) {
+        int[] versions = new int[_filters.size()];
+        int i = 0;
+        for (Filter filter : _filters) {
+            if (!(filter instanceof AbstractFilter) || filter instanceof RegionFilter || filter instanceof MetaDataFilter) {
+                return null;
+            }
+            versions[i++] = ((AbstractFilter) filter).getParameterVersion();
+        }
+        return versions;
+    }
+
+    /**
+     * Returns the cached result of a stage.
+     *
+     * @param _input
+     *            the input image data of the stage
+     * @param _filters
+     *            the filters of the stage, the first one to apply first
+     * @param _versions
+     *            the parameter versions, as returned by
+     *            {@link #getParameterVersions(List)}
+     * @return The cached result, or null if there is none
+     */
+    public synchronized ImageData get(ImageData _input, List<? extends Filter> _filters, int[] _versions) {
+        if (_input == null || _versions == null || capacity == 0) {
+            return null;
+        }
+
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.matches(_input, _filters, _versions)) {
+                iterator.remove();
+                entries.addFirst(entry);
+                hits++;
+                return entry.result;
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores the result of a stage, dropping the least recently used result
+     * if the cache is full.
+     *
+     * @param _input
+     *            the input image data of the stage
+     * @param _filters
+     *            the filters of the stage, the first one to apply first
+     * @param _versions
+     *            the parameter versions read before the stage was executed
+     * @param _result
+     *            the result of the stage
+     */
+    public synchronized void put(ImageData _input, List<? extends Filter> _filters, int[] _versions, ImageData _result) {
+        if (_input == null || _versions == null || _result == null || capacity == 0) {
+            return;
+        }
+
+        entries.addFirst(new Entry(_input, _filters.toArray(new Filter[_filters.size()]), _versions, _result));
+        while (entries.size() > capacity) {
+            entries.removeLast();
+        }
+    }
+
+    /**
+     * Returns whether a cached result holds the given pixel data.
+     *
+     * @param _pixelData
+     *            array of pixel data
+     * @return True, if the array is the pixel data of a cached result
+     */
+    public synchronized boolean holds(Object _pixelData) {
+        for (Entry entry : entries) {
+            if (getPixelData(entry.result) == _pixelData) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object getPixelData(ImageData _data) {
+        ImageTransport transport = _data.getImageTransport();
+        if (transport instanceof Byte8ImageTransport) {
+            return ((Byte8ImageTransport) transport).getByte8PixelData();
+        } else if (transport instanceof Short16ImageTransport) {
+            return ((Short16ImageTransport) transport).getShort16PixelData();
+        } else if (transport instanceof Int32ImageTransport) {
+            return ((Int32ImageTransport) transport).getInt32PixelData();
+        }
+        return null;
+    }
+
+    /**
+     * Drops all results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Maximum number of results kept
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of lookups, which found a result
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups, which found no result
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
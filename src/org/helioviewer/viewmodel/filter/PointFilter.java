@@ -0,0 +1,62 @@
+package org.helioviewer.viewmodel.filter;
+
+import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+
+/**
+ * Filter performing a point operation, which maps every pixel value
+ * independently of its position and its neighbors.
+ *
+ * <p>
+ * Consecutive point filters within the view chain are not applied one after
+ * another. Instead, the {@link org.helioviewer.viewmodel.view.StandardFilterView}
+ * of the last one composes them into a single lookup table for single channel
+ * images, which is applied to the image in one pass, see
+ * {@link PointFilterChain}. The lookup table is only rebuilt when the
+ * parameter version of one of the filters changes.
+ *
+ * <p>
+ * For other images, {@link StandardFilter#apply(ImageData)} is called as
+ * usual. Both ways must give the same result.
+ */
+public interface PointFilter extends StandardFilter, ObservableFilter {
+
+    /**
+     * Applies the point operation to the entries of a lookup table.
+     *
+     * <p>
+     * The table maps every sample value of a single channel image to the
+     * input value of this filter. The entries are either sample values, as
+     * long as no filter has mapped them to colors, or ARGB values. The filter
+     * has to replace every entry by the value it would produce when applied
+     * to it.
+     *
+     * @param data
+     *            the single channel image the table is built for, only its
+     *            format may be used
+     * @param table
+     *            the entries to map
+     * @param argb
+     *            whether the entries are ARGB values
+     * @return whether the entries are ARGB values afterwards
+     */
+    public boolean applyToTable(ImageData data, int[] table, boolean argb);
+
+    /**
+     * Returns the color mask of the filtered image.
+     *
+     * @param mask
+     *            color mask of the input image
+     * @return color mask of the output image
+     */
+    public ColorMask getColorMask(ColorMask mask);
+
+    /**
+     * Returns the version of the filter parameters, which changes whenever the
+     * result of {@link #applyToTable(ImageData, int[], boolean)} or
+     * {@link #getColorMask(ColorMask)} may change.
+     *
+     * @return Parameter version
+     */
+    public int getParameterVersion();
+}
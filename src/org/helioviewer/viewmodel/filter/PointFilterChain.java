@@ -0,0 +1,323 @@
+package org.helioviewer.viewmodel.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
+import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
+import org.helioviewer.viewmodel.imageformat.SingleChannelImageFormat;
+import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.Short16ImageTransport;
+
+/**
+ * Applies consecutive point filters to an image in a single pass.
+ *
+ * <p>
+ * For single channel images, the filters are composed into one lookup table,
+ * which maps every 8 or 16 bit sample value either to the resulting sample
+ * value or, if one of the filters applies a color table, to the resulting
+ * ARGB value. The table is only rebuilt if the filters, their parameter
+ * versions or the format of the image change.
+ *
+ * <p>
+ * The result is written into a pooled buffer. The last
+ * {@link #PROTECTED_BUFFERS} results may still be used downstream, older
+ * buffers of the same size are reused. Every result is wrapped into a new
+ * ImageData object, though, since filters such as the sharpen filter detect
+ * new images by identity. If the results are cached, the chain is created
+ * with the cache, whose results are never reused, however long they stay
+ * cached.
+ *
+ * <p>
+ * Large images are looked up in parallel stripes, see
+ * {@link TiledFilterExecutor}.
+ *
+ * <p>
+ * Images which are not single channel images are passed through the filters
+ * one after another, as before.
+ *
+ * <p>
+ * A chain is used by one thread at a time.
+ */
+public class PointFilterChain {
+
+    /** Number of results which may still be in use */
+    public static final int PROTECTED_BUFFERS = 2;
+
+    /** Filters the current table was built for, the first one first */
+    private PointFilter[] filters = new PointFilter[0];
+    private int[] versions = new int[0];
+
+    /** Format the current table was built for */
+    private boolean tableShort = false;
+    private int tableBitDepth = -1;
+
+    private int[] table = null;
+    private boolean tableARGB = false;
+    private boolean tableIdentity = true;
+
+    /** Pooled buffers, the oldest one first */
+    private final List<Object> buffers = new ArrayList<Object>();
+    private final int poolSize;
+    private final int protectedBuffers;
+    private final FilterResultCache cache;
+
+    private long tableBuilds = 0;
+
+    /**
+     * Creates a chain protecting the last {@link #PROTECTED_BUFFERS} results.
+     */
+    public PointFilterChain() {
+        this(PROTECTED_BUFFERS);
+    }
+
+    /**
+     * Creates a chain protecting the given number of results.
+     *
+     * @param _protectedBuffers
+     *            number of results which may still be in use
+     */
+    public PointFilterChain(int _protectedBuffers) {
+        this(_protectedBuffers, null);
+    }
+
+    /**
+     * Creates a chain protecting the given number of results and the results
+     * held by a cache.
+     *
+     * @param _protectedBuffers
+     *            number of results which may still be in use
+     * @param _cache
+     *            cache of the results, or null
+     */
+    public PointFilterChain(int _protectedBuffers, FilterResultCache _cache) {
+        protectedBuffers = Math.max(1, _protectedBuffers);
+        cache = _cache;
+        poolSize = protectedBuffers + (_cache != null ? _cache.getCapacity() : 0) + 1;
+    }
+
+    /**
+     * Applies the point filters to the image.
+     *
+     * @param _filters
+     *            the filters, the first one to apply first
+     * @param _data
+     *            the input image
+     * @return The filtered image
+     */
+    public ImageData apply(List<PointFilter> _filters, ImageData _data) {
+        if (_data == null) {
+            return null;
+        }
+
+        boolean isShort = _data.getImageTransport() instanceof Short16ImageTransport;
+        if (!(_data.getImageFormat() instanceof SingleChannelImageFormat) || !(isShort || _data.getImageTransport() instanceof Byte8ImageTransport)) {
+            for (PointFilter filter : _filters) {
+                _data = filter.apply(_data);
+            }
+            return _data;
+        }
+
+        int bitDepth = _data.getImageTransport().getNumBitsPerPixel();
+        if (!isTableValid(_filters, isShort, bitDepth)) {
+            buildTable(_filters, _data, isShort, bitDepth);
+        }
+
+        ColorMask mask = _data.getColorMask();
+        for (PointFilter filter : _filters) {
+            mask = filter.getColorMask(mask);
+        }
+
+        int width = _data.getWidth();
+        int height = _data.getHeight();
+        int formatBitDepth = ((SingleChannelImageFormat) _data.getImageFormat()).getBitDepth();
+
+        if (tableIdentity && !tableARGB) {
+            if (mask == _data.getColorMask()) {
+                return _data;
+            } else if (isShort) {
+                return new SingleChannelShortImageData(width, height, formatBitDepth, ((Short16ImageTransport) _data.getImageTransport()).getShort16PixelData(), mask);
+            } else {
+                return new SingleChannelByte8ImageData(width, height, ((Byte8ImageTransport) _data.getImageTransport()).getByte8PixelData(), mask);
+            }
+        }
+
+        final int[] lookup = table;
+        final int rowLength = width;
+
+        if (isShort) {
+            final short[] pixelData = ((Short16ImageTransport) _data.getImageTransport()).getShort16PixelData();
+            if (tableARGB) {
+                final int[] resultPixelData = acquireInts(pixelData.length);
+                TiledFilterExecutor.execute(width, height, 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        for (int i = firstRow * rowLength; i < endRow * rowLength; i++) {
+                            resultPixelData[i] = lookup[pixelData[i] & 0xFFFF];
+                        }
+                    }
+                });
+                return new ARGBInt32ImageData(width, height, resultPixelData, mask);
+            } else {
+                final short[] resultPixelData = acquireShorts(pixelData.length);
+                TiledFilterExecutor.execute(width, height, 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        for (int i = firstRow * rowLength; i < endRow * rowLength; i++) {
+                            resultPixelData[i] = (short) lookup[pixelData[i] & 0xFFFF];
+                        }
+                    }
+                });
+                return new SingleChannelShortImageData(width, height, formatBitDepth, resultPixelData, mask);
+            }
+        } else {
+            final byte[] pixelData = ((Byte8ImageTransport) _data.getImageTransport()).getByte8PixelData();
+            if (tableARGB) {
+                final int[] resultPixelData = acquireInts(pixelData.length);
+                TiledFilterExecutor.execute(width, height, 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        for (int i = firstRow * rowLength; i < endRow * rowLength; i++) {
+                            resultPixelData[i] = lookup[pixelData[i] & 0xFF];
+                        }
+                    }
+                });
+                return new ARGBInt32ImageData(width, height, resultPixelData, mask);
+            } else {
+                final byte[] resultPixelData = acquireBytes(pixelData.length);
+                TiledFilterExecutor.execute(width, height, 0, new TiledFilterExecutor.StripeTask() {
+                    public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow) {
+                        for (int i = firstRow * rowLength; i < endRow * rowLength; i++) {
+                            resultPixelData[i] = (byte) lookup[pixelData[i] & 0xFF];
+                        }
+                    }
+                });
+                return new SingleChannelByte8ImageData(width, height, resultPixelData, mask);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the current table was built for the given filters, their
+     * current parameters and the given format.
+     */
+    private boolean isTableValid(List<PointFilter> _filters, boolean _isShort, int _bitDepth) {
+        if (table == null || tableShort != _isShort || tableBitDepth != _bitDepth || filters.length != _filters.size()) {
+            return false;
+        }
+
+        int i = 0;
+        for (PointFilter filter : _filters) {
+            if (filters[i] != filter || versions[i] != filter.getParameterVersion()) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    /**
+     * Composes the filters into a new table.
+     */
+    private void buildTable(List<PointFilter> _filters, ImageData _data, boolean _isShort, int _bitDepth) {
+        filters = _filters.toArray(new PointFilter[_filters.size()]);
+        versions = new int[filters.length];
+        // read the versions first, a concurrent change leads to a rebuild
+        for (int i = 0; i < filters.length; i++) {
+            versions[i] = filters[i].getParameterVersion();
+        }
+
+        int[] newTable = new int[_isShort ? 0x10000 : 0x100];
+        for (int i = 0; i < newTable.length; i++) {
+            newTable[i] = i;
+        }
+
+        boolean argb = false;
+        for (PointFilter filter : filters) {
+            argb = filter.applyToTable(_data, newTable, argb);
+        }
+
+        boolean identity = !argb;
+        for (int i = 0; identity && i < newTable.length; i++) {
+            identity = newTable[i] == i;
+        }
+
+        table = newTable;
+        tableARGB = argb;
+        tableIdentity = identity;
+        tableShort = _isShort;
+        tableBitDepth = _bitDepth;
+        tableBuilds++;
+    }
+
+    /**
+     * Removes the oldest buffer from the pool, which is neither one of the
+     * last results nor held by the cache, once the pool is full.
+     *
+     * @return The buffer, which may be reused, or null
+     */
+    private Object removeOldest() {
+        if (buffers.size() < poolSize) {
+            return null;
+        }
+
+        for (int i = 0; i < buffers.size() - protectedBuffers; i++) {
+            Object buffer = buffers.get(i);
+            if (cache == null || !cache.holds(buffer)) {
+                return buffers.remove(i);
+            }
+        }
+
+        // the cache holds more results than its capacity, none is reused
+        buffers.remove(0);
+        return null;
+    }
+
+    /**
+     * Returns the oldest reusable buffer of the pool, if it has the requested
+     * type and length, otherwise a new one.
+     */
+    private int[] acquireInts(int _length) {
+        Object buffer = removeOldest();
+        if (!(buffer instanceof int[] && ((int[]) buffer).length == _length)) {
+            buffer = new int[_length];
+        }
+        buffers.add(buffer);
+        return (int[]) buffer;
+    }
+
+    private short[] acquireShorts(int _length) {
+        Object buffer = removeOldest();
+        if (!(buffer instanceof short[] && ((short[]) buffer).length == _length)) {
+            buffer = new short[_length];
+        }
+        buffers.add(buffer);
+        return (short[]) buffer;
+    }
+
+    private byte[] acquireBytes(int _length) {
+        Object buffer = removeOldest();
+        if (!(buffer instanceof byte[] && ((byte[]) buffer).length == _length)) {
+            buffer = new byte[_length];
+        }
+        buffers.add(buffer);
+        return (byte[]) buffer;
+    }
+
+    /**
+     * Drops the table and the pooled buffers.
+     */
+    public void clear() {
+        table = null;
+        filters = new PointFilter[0];
+        versions = new int[0];
+        buffers.clear();
+    }
+
+    /**
+     * @return Number of tables built so far
+     */
+    public long getTableBuilds() {
+        return tableBuilds;
+    }
+}
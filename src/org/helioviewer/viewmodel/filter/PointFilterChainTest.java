@@ -0,0 +1,118 @@
+package org.helioviewer.viewmodel.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
+import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
+import org.junit.Test;
+
+public class PointFilterChainTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final int OFFSET = 50;
+
+    /** Adds a constant to every sample */
+    private static class OffsetFilter extends AbstractFilter implements PointFilter {
+
+        public ImageData apply(ImageData data) {
+            byte[] pixels = ((Byte8ImageTransport) data.getImageTransport()).getByte8PixelData();
+            byte[] result = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                result[i] = (byte) Math.min(255, (pixels[i] & 0xFF) + OFFSET);
+            }
+            return new SingleChannelByte8ImageData(data, result);
+        }
+
+        public boolean applyToTable(ImageData data, int[] table, boolean argb) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = Math.min(255, table[i] + OFFSET);
+            }
+            return false;
+        }
+
+        public ColorMask getColorMask(ColorMask mask) {
+            return mask;
+        }
+
+        public boolean isMajorFilter() {
+            return false;
+        }
+
+        public void forceRefilter() {
+        }
+
+        public void setState(String state) {
+        }
+
+        public String getState() {
+            return null;
+        }
+    }
+
+    private static ImageData image(int _value) {
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        Arrays.fill(pixels, (byte) _value);
+        return new SingleChannelByte8ImageData(WIDTH, HEIGHT, pixels, new ColorMask());
+    }
+
+    private static int value(ImageData _data) {
+        byte[] pixels = ((Byte8ImageTransport) _data.getImageTransport()).getByte8PixelData();
+        for (byte pixel : pixels) {
+            assertEquals(pixels[0], pixel);
+        }
+        return pixels[0] & 0xFF;
+    }
+
+    /**
+     * Filters the image as StandardFilterView does, looking up the cache
+     * first.
+     */
+    private static ImageData filter(PointFilterChain _chain, FilterResultCache _cache, List<PointFilter> _filters, ImageData _input) {
+        int[] versions = FilterResultCache.getParameterVersions(_filters);
+        ImageData result = _cache.get(_input, _filters, versions);
+        if (result == null) {
+            result = _chain.apply(_filters, _input);
+            _cache.put(_input, _filters, versions, result);
+        }
+        return result;
+    }
+
+    @Test
+    public void testFusedResult() {
+        List<PointFilter> filters = Collections.<PointFilter> singletonList(new OffsetFilter());
+        PointFilterChain chain = new PointFilterChain();
+
+        assertEquals(150, value(chain.apply(filters, image(100))));
+        assertEquals(255, value(chain.apply(filters, image(230))));
+        assertEquals(1, chain.getTableBuilds());
+    }
+
+    @Test
+    public void testCachedResultIsNotOverwritten() {
+        List<PointFilter> filters = Collections.<PointFilter> singletonList(new OffsetFilter());
+        FilterResultCache cache = new FilterResultCache(2);
+        PointFilterChain chain = new PointFilterChain(PointFilterChain.PROTECTED_BUFFERS, cache);
+
+        // A keeps hitting the cache, while the pool wraps around
+        ImageData a = image(195);
+        ImageData[] others = { image(100), image(110), image(120), image(130), image(145) };
+
+        ImageData resultA = filter(chain, cache, filters, a);
+        assertEquals(245, value(resultA));
+        for (ImageData other : others) {
+            assertEquals(value(other) + OFFSET, value(filter(chain, cache, filters, other)));
+
+            ImageData hit = filter(chain, cache, filters, a);
+            assertEquals(resultA, hit);
+            assertEquals(245, value(hit));
+        }
+        assertEquals(5, cache.getHits());
+    }
+}
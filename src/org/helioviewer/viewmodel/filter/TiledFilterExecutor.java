@@ -0,0 +1,194 @@
+package org.helioviewer.viewmodel.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.helioviewer.base.math.MathUtils;
+
+/**
+ * Executes software filters in parallel on a fork-join pool shared by all
+ * filters.
+ *
+ * <p>
+ * A filter opting into the parallel execution splits its work into horizontal
+ * stripes of the image, which are filtered independently of each other. Every
+ * stripe has to write exactly the rows it covers into the output, thus the
+ * result does not depend on the number of stripes and equals the result of
+ * the serial execution.
+ *
+ * <p>
+ * Neighbourhood filters may read halo rows of the input above and below their
+ * stripe. Since the stripes are not synchronized, a stripe must not read
+ * intermediate results of another stripe, but has to compute intermediate
+ * results needed for its halo rows on its own.
+ *
+ * <p>
+ * Small images are filtered on the calling thread. By default, an image is
+ * split into at most as many stripes as there are processors. The maximum
+ * number of stripes may be changed with the system property
+ * {@link #STRIPES_PROPERTY}, a value of 1 disables the parallel execution.
+ */
+public class TiledFilterExecutor {
+
+    /** System property with the maximum number of stripes per image */
+    public static final String STRIPES_PROPERTY = "jhv.filter.stripes";
+
+    /** Minimum number of pixels per stripe, smaller images are not split */
+    public static final int MIN_STRIPE_PIXELS = 128 * 128;
+
+    /** Minimum number of rows per stripe */
+    public static final int MIN_STRIPE_HEIGHT = 16;
+
+    /** Upper limit of the system property */
+    private static final int MAX_STRIPES = 64;
+
+    private static final int parallelism = MathUtils.squeezeToInterval(Runtime.getRuntime().availableProcessors(), 1, 16);
+
+    private static final int maxStripes = readMaxStripes();
+
+    private static final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    /**
+     * Filters the rows of one stripe.
+     */
+    public interface StripeTask {
+
+        /**
+         * Filters the rows firstRow up to endRow. The rows firstHaloRow up to
+         * endHaloRow, which are clipped to the image, may be read.
+         *
+         * @param stripe
+         *            index of the stripe, less than the number of stripes,
+         *            e.g. to choose a scratch buffer
+         * @param firstRow
+         *            first row of the stripe
+         * @param endRow
+         *            row after the last row of the stripe
+         * @param firstHaloRow
+         *            first row which may be read
+         * @param endHaloRow
+         *            row after the last row which may be read
+         */
+        public void filterStripe(int stripe, int firstRow, int endRow, int firstHaloRow, int endHaloRow);
+    }
+
+    private TiledFilterExecutor() {
+    }
+
+    private static int readMaxStripes() {
+        int stripes = parallelism;
+        String value = System.getProperty(STRIPES_PROPERTY);
+        if (value != null) {
+            try {
+                stripes = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return MathUtils.squeezeToInterval(stripes, 1, MAX_STRIPES);
+    }
+
+    /**
+     * Returns the maximum number of stripes an image is split into.
+     *
+     * @return Maximum number of stripes, 1 if parallel execution is disabled
+     */
+    public static int getMaxStripes() {
+        return maxStripes;
+    }
+
+    /**
+     * Returns the number of stripes an image of the given size is split into.
+     *
+     * @param width
+     *            width of the image
+     * @param height
+     *            height of the image
+     * @return Number of stripes, 1 if the image is filtered serially
+     */
+    public static int getNumStripes(int width, int height) {
+        long pixels = (long) width * height;
+        long stripes = Math.min(pixels / MIN_STRIPE_PIXELS, height / MIN_STRIPE_HEIGHT);
+        return (int) Math.max(1, Math.min(maxStripes, stripes));
+    }
+
+    /**
+     * Filters an image stripe by stripe and waits until all stripes are done.
+     *
+     * @param width
+     *            width of the image
+     * @param height
+     *            height of the image
+     * @param haloRows
+     *            number of rows above and below a stripe the task may read
+     * @param task
+     *            the task filtering a stripe
+     */
+    public static void execute(int width, int height, int haloRows, StripeTask task) {
+        executeStripes(getNumStripes(width, height), height, haloRows, task);
+    }
+
+    /**
+     * Filters an image in the given number of stripes and waits until all
+     * stripes are done.
+     *
+     * @param numStripes
+     *            number of stripes
+     * @param height
+     *            height of the image
+     * @param haloRows
+     *            number of rows above and below a stripe the task may read
+     * @param task
+     *            the task filtering a stripe
+     */
+    public static void executeStripes(int numStripes, final int height, final int haloRows, final StripeTask task) {
+        if (height <= 0) {
+            return;
+        }
+        if (numStripes <= 1) {
+            task.filterStripe(0, 0, height, 0, height);
+            return;
+        }
+
+        final List<RecursiveAction> stripes = new ArrayList<RecursiveAction>(numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            final int stripe = i;
+            final int firstRow = getStripeStart(i, numStripes, height);
+            final int endRow = getStripeStart(i + 1, numStripes, height);
+
+            stripes.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                protected void compute() {
+                    task.filterStripe(stripe, firstRow, endRow, Math.max(0, firstRow - haloRows), Math.min(height, endRow + haloRows));
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                invokeAll(stripes);
+            }
+        });
+    }
+
+    /**
+     * Returns the first row of a stripe. The rows are distributed evenly, the
+     * stripe i covers the rows from getStripeStart(i) up to
+     * getStripeStart(i + 1).
+     *
+     * @param stripe
+     *            index of the stripe, may be equal to the number of stripes
+     * @param numStripes
+     *            number of stripes
+     * @param height
+     *            height of the image
+     * @return First row of the stripe
+     */
+    public static int getStripeStart(int stripe, int numStripes, int height) {
+        return (int) ((long) stripe * height / numStripes);
+    }
+}
@@ -21,6 +21,7 @@ import org.helioviewer.viewmodel.metadata.PixelBasedMetaData;
 import org.helioviewer.viewmodel.region.Region;
 import org.helioviewer.viewmodel.region.RegionAdapter;
 import org.helioviewer.viewmodel.region.StaticRegion;
+import org.helioviewer.viewmodel.view.fitsview.JHVFITSSeriesView;
 import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
 import org.helioviewer.viewmodel.viewport.Viewport;
 import org.helioviewer.viewmodel.viewportimagesize.ViewportImageSize;
@@ -238,6 +239,8 @@ public abstract class AbstractLayeredView extends AbstractView implements Layere
         }
         if (view.getAdapter(JHVJP2View.class) != null) {
             view.getAdapter(JHVJP2View.class).abolish();
+        } else if (view.getAdapter(JHVFITSSeriesView.class) != null) {
+            view.getAdapter(JHVFITSSeriesView.class).abolish();
         }
 
         ChangeEvent event = new ChangeEvent(new LayerChangedReason(this, LayerChangeType.LAYER_REMOVED, view, index));
@@ -286,6 +289,8 @@ public abstract class AbstractLayeredView extends AbstractView implements Layere
                 view.removeViewListener(this);
                 if (view.getAdapter(JHVJP2View.class) != null) {
                     view.getAdapter(JHVJP2View.class).abolish();
+                } else if (view.getAdapter(JHVFITSSeriesView.class) != null) {
+                    view.getAdapter(JHVFITSSeriesView.class).abolish();
                 }
                 event.addReason(new LayerChangedReason(this, LayerChangeType.LAYER_REMOVED, view, index));
             }
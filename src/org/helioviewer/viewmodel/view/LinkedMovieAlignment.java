@@ -0,0 +1,172 @@
+package org.helioviewer.viewmodel.view;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.helioviewer.viewmodel.view.cache.DateTimeCache;
+
+/**
+ * Alignment of a set of linked movies to their master movie.
+ *
+ * For every other movie of the set, the alignment holds a table which maps
+ * each frame of the master movie to the frame closest in time. Since the time
+ * stamps of the movies are parsed in the background, the tables are extended
+ * whenever a frame beyond the aligned ones is requested. An entry is only
+ * stored once it can not change anymore, that is when the time stamps of both
+ * movies are indexed far enough.
+ *
+ * The set of movies is immutable, the {@link LinkedMovieManager} creates a new
+ * alignment whenever the set or the master changes. The tables can be read by
+ * any thread without locking. A thread which finds another one extending the
+ * tables does not wait, but searches the time stamps itself.
+ */
+class LinkedMovieAlignment {
+
+    private final TimedMovieView master;
+    private final TimedMovieView[] slaves;
+
+    private final DateTimeCache masterTimes;
+    private final DateTimeCache[] slaveTimes;
+
+    /** Closest slave frame per master frame */
+    private final int[][] tables;
+
+    /** Number of master frames aligned per slave */
+    private final AtomicIntegerArray aligned;
+
+    private final ReentrantLock extendLock = new ReentrantLock();
+
+    /**
+     * Creates the alignment, the tables are filled on demand.
+     *
+     * @param _master
+     *            the master movie
+     * @param _movies
+     *            all linked movies, including the master movie
+     */
+    LinkedMovieAlignment(TimedMovieView _master, List<TimedMovieView> _movies) {
+        master = _master;
+        masterTimes = getDateTimeCache(master);
+
+        int numSlaves = _movies.contains(master) ? _movies.size() - 1 : _movies.size();
+        slaves = new TimedMovieView[numSlaves];
+        slaveTimes = new DateTimeCache[numSlaves];
+        tables = new int[numSlaves][];
+        aligned = new AtomicIntegerArray(numSlaves);
+
+        int i = 0;
+        for (TimedMovieView movie : _movies) {
+            if (movie == master)
+                continue;
+            slaves[i] = movie;
+            slaveTimes[i] = getDateTimeCache(movie);
+            tables[i] = masterTimes != null && slaveTimes[i] != null ? new int[master.getMaximumFrameNumber() + 1] : null;
+            i++;
+        }
+    }
+
+    private static DateTimeCache getDateTimeCache(TimedMovieView movie) {
+        return movie instanceof CachedMovieView ? ((CachedMovieView) movie).getDateTimeCache() : null;
+    }
+
+    /**
+     * @return The master movie
+     */
+    TimedMovieView getMaster() {
+        return master;
+    }
+
+    /**
+     * @return Number of linked movies besides the master movie
+     */
+    int getNumSlaves() {
+        return slaves.length;
+    }
+
+    /**
+     * @param _slave
+     *            index of the movie
+     * @return A linked movie besides the master movie
+     */
+    TimedMovieView getSlave(int _slave) {
+        return slaves[_slave];
+    }
+
+    /**
+     * Returns the frame of a linked movie closest in time to a frame of the
+     * master movie, without waiting for time stamps.
+     *
+     * @param _slave
+     *            index of the linked movie
+     * @param _masterFrame
+     *            frame of the master movie
+     * @return Closest frame of the linked movie, -1 if unknown so far or if
+     *         the time stamps of a movie were replaced
+     */
+    int getSlaveFrame(int _slave, int _masterFrame) {
+        int[] table = tables[_slave];
+        if (table == null || _masterFrame < 0 || _masterFrame >= table.length)
+            return -1;
+        if (getDateTimeCache(master) != masterTimes || getDateTimeCache(slaves[_slave]) != slaveTimes[_slave])
+            return -1;
+
+        if (_masterFrame < aligned.get(_slave))
+            return table[_masterFrame];
+
+        if (extendLock.tryLock()) {
+            try {
+                extend(_slave);
+            } finally {
+                extendLock.unlock();
+            }
+        }
+        if (_masterFrame < aligned.get(_slave))
+            return table[_masterFrame];
+
+        // not final yet, the closest frame indexed so far
+        if (_masterFrame >= masterTimes.getIndexedFrames())
+            return -1;
+        return slaveTimes[_slave].getClosestFrameNumber(masterTimes.getIndexedMillis(_masterFrame));
+    }
+
+    /**
+     * Returns the number of master frames, which are aligned to the given
+     * linked movie.
+     *
+     * @param _slave
+     *            index of the linked movie
+     * @return Number of aligned master frames
+     */
+    int getAlignedFrames(int _slave) {
+        return aligned.get(_slave);
+    }
+
+    /**
+     * Aligns further master frames to a linked movie, as far as their closest
+     * frames can not change anymore.
+     */
+    private void extend(int _slave) {
+        DateTimeCache slaveCache = slaveTimes[_slave];
+        int[] table = tables[_slave];
+
+        int masterIndexed = masterTimes.getIndexedFrames();
+        int slaveIndexed = slaveCache.getIndexedFrames();
+        if (slaveIndexed == 0)
+            return;
+
+        boolean slaveComplete = slaveCache.isIndexComplete();
+        boolean slaveAscending = slaveCache.isAscending();
+        long slaveLast = slaveCache.getIndexedMillis(slaveIndexed - 1);
+
+        int frame = aligned.get(_slave);
+        for (; frame < masterIndexed; frame++) {
+            long time = masterTimes.getIndexedMillis(frame);
+            // the closest frame is known, once a later one is indexed
+            if (!slaveComplete && !(slaveAscending && slaveLast >= time))
+                break;
+            table[frame] = slaveCache.getClosestFrameNumber(time);
+        }
+        aligned.set(_slave, frame);
+    }
+}
@@ -27,6 +27,13 @@ import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
  * LinkedMovieManager manages multiple sets of itself, one per set of linked
  * movies. The default instance (id = 0) always exists and can not be deleted.
  * 
+ * <p>
+ * During playback, the other movies are set by looking up the frame of the
+ * master movie in the alignment tables of a {@link LinkedMovieAlignment},
+ * which is replaced whenever the set of movies or the master changes. The
+ * rendering thread of the master reads the current alignment without locking
+ * this manager.
+ * 
  * @author Markus Langenberg
  */
 public class LinkedMovieManager {
@@ -49,7 +56,8 @@ public class LinkedMovieManager {
     private static Vector<LinkedMovieManager> instances = new Vector<LinkedMovieManager>();
     private static int activeInstance = 0;
     private LinkedList<TimedMovieView> linkedMovies = new LinkedList<TimedMovieView>();
-    private TimedMovieView masterView;
+    private volatile TimedMovieView masterView;
+    private volatile LinkedMovieAlignment alignment;
     private Semaphore updateSemaphore = new Semaphore(1);
     private Semaphore isPlayingSemaphore = new Semaphore(1);
     private ReentrantLock isPlayingLock = new ReentrantLock();
@@ -297,20 +305,34 @@ public class LinkedMovieManager {
      * Note, that this function will block recursive calls. The return value
      * indicates whether this function is already called.
      * 
+     * <p>
+     * This function does not lock the manager, the frames of the other movies
+     * are looked up in the current alignment.
+     * 
      * @param event
      *            ChangeEvent to append new reasons to.
      */
-    public synchronized void updateCurrentFrameToMaster(ChangeEvent event) {
-        if (masterView == null)
+    public void updateCurrentFrameToMaster(ChangeEvent event) {
+        LinkedMovieAlignment currentAlignment = alignment;
+        if (currentAlignment == null)
             return;
 
         if (updateSemaphore.tryAcquire()) {
 
             try {
-                ImmutableDateTime masterTime = masterView.getCurrentFrameDateTime();
-
-                for (TimedMovieView movieView : linkedMovies) {
-                    if (movieView != masterView) {
+                TimedMovieView master = currentAlignment.getMaster();
+                int masterFrame = master.getCurrentFrameNumber();
+                ImmutableDateTime masterTime = null;
+
+                for (int i = 0; i < currentAlignment.getNumSlaves(); i++) {
+                    TimedMovieView movieView = currentAlignment.getSlave(i);
+                    int frame = currentAlignment.getSlaveFrame(i, masterFrame);
+
+                    if (frame >= 0) {
+                        movieView.setCurrentFrame(frame, new ChangeEvent(event));
+                    } else {
+                        if (masterTime == null)
+                            masterTime = master.getCurrentFrameDateTime();
                         movieView.setCurrentFrame(masterTime, new ChangeEvent(event));
                     }
                 }
@@ -340,11 +362,14 @@ public class LinkedMovieManager {
      * @return True, if the function was not called so far and therefore
      *         performed successful, false otherwise.
      */
-    public synchronized boolean setCurrentFrame(ImmutableDateTime dateTime, ChangeEvent event, boolean forceSignal) {
+    public boolean setCurrentFrame(ImmutableDateTime dateTime, ChangeEvent event, boolean forceSignal) {
+        // recursive calls return before locking the manager
         if (updateSemaphore.tryAcquire()) {
             try {
-                for (TimedMovieView movieView : linkedMovies) {
-                    movieView.setCurrentFrame(dateTime, new ChangeEvent(event), forceSignal);
+                synchronized (this) {
+                    for (TimedMovieView movieView : linkedMovies) {
+                        movieView.setCurrentFrame(dateTime, new ChangeEvent(event), forceSignal);
+                    }
                 }
             } finally {
                 updateSemaphore.release();
@@ -365,11 +390,13 @@ public class LinkedMovieManager {
 
         boolean isPlaying = (masterView != null && masterView.isMoviePlaying());
         masterView = null;
+        alignment = null;
 
         if (linkedMovies.isEmpty()) {
             return;
         } else if (linkedMovies.size() == 1) {
             masterView = linkedMovies.element();
+            alignment = new LinkedMovieAlignment(masterView, linkedMovies);
             if (isPlaying) {
                 masterView.playMovie();
             }
@@ -415,6 +442,7 @@ public class LinkedMovieManager {
         }
 
         masterView = minimalIntervalView;
+        alignment = new LinkedMovieAlignment(masterView, linkedMovies);
         if (isPlaying) {
             masterView.playMovie();
         }
@@ -1,14 +1,21 @@
 package org.helioviewer.viewmodel.view;
 
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.FilterChangedReason;
 import org.helioviewer.viewmodel.changeevent.RegionChangedReason;
 import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.viewmodel.changeevent.ViewChainChangedReason;
 import org.helioviewer.viewmodel.filter.Filter;
+import org.helioviewer.viewmodel.filter.FilterResultCache;
 import org.helioviewer.viewmodel.filter.FilterListener;
 import org.helioviewer.viewmodel.filter.MetaDataFilter;
 import org.helioviewer.viewmodel.filter.ObservableFilter;
+import org.helioviewer.viewmodel.filter.PointFilter;
+import org.helioviewer.viewmodel.filter.PointFilterChain;
 import org.helioviewer.viewmodel.filter.RegionFilter;
 import org.helioviewer.viewmodel.filter.StandardFilter;
 import org.helioviewer.viewmodel.imagedata.ImageData;
@@ -27,6 +34,19 @@ import org.helioviewer.viewmodel.imagedata.ImageData;
  * For further information on how to use filters, see
  * {@link org.helioviewer.viewmodel.filter}
  * 
+ * <p>
+ * Consecutive views with {@link PointFilter}s are fused: a view, whose only
+ * listener is the next point filter view, leaves the filtering to that view.
+ * The last view of such a sequence applies all filters in a single pass using
+ * a {@link PointFilterChain}. If the data of a fused view is requested
+ * nevertheless, it is filtered on demand.
+ * 
+ * <p>
+ * Every view keeps its latest results in a {@link FilterResultCache}. If the
+ * view is asked to refilter an image it has already filtered with the same
+ * filter parameters, the cached result is passed on without executing the
+ * filter again.
+ * 
  * @author Ludwig Schmidt
  * @author Markus Langenberg
  * 
@@ -40,6 +60,11 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
     protected MetaDataView metaDataView;
     protected SubimageDataView subimageDataView;
 
+    protected PointFilterChain pointFilterChain;
+    protected boolean fusedIntoNextView = false;
+
+    protected final FilterResultCache resultCache = new FilterResultCache();
+
     /**
      * {@inheritDoc}
      */
@@ -56,6 +81,7 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
         }
 
         filter = f;
+        resultCache.clear();
 
         if (filter != null && (filter instanceof ObservableFilter)) {
             ((ObservableFilter) filter).addFilterListener(this);
@@ -76,6 +102,10 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
      * {@inheritDoc}
      */
     public ImageData getSubimageData() {
+        if (fusedIntoNextView && filteredData == null && subimageDataView != null) {
+            filteredData = applyPointFilters();
+        }
+
         if (filter instanceof StandardFilter && filteredData != null) {
             return filteredData;
         } else if (subimageDataView != null) {
@@ -105,12 +135,20 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
      * Calls the filter and fires a ChangeEvent afterwards.
      */
     protected void refilter() {
+        fusedIntoNextView = false;
+
         if (filter != null && view != null) {
             refilterPrepare();
 
             if (subimageDataView != null) {
-                if (filter instanceof StandardFilter) {
-                    filteredData = ((StandardFilter) filter).apply(subimageDataView.getSubimageData());
+                if (filter instanceof PointFilter && isFusedInto(getNextView())) {
+                    // filtered by the next view
+                    fusedIntoNextView = true;
+                    filteredData = null;
+                } else if (filter instanceof PointFilter) {
+                    filteredData = applyPointFilters();
+                } else if (filter instanceof StandardFilter) {
+                    filteredData = applyStandardFilter();
                 } else {
                     filteredData = subimageDataView.getSubimageData();
                 }
@@ -120,6 +158,81 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
         }
     }
 
+    /**
+     * Applies the filter of this view, unless the result is cached.
+     * 
+     * @return Filtered image data
+     */
+    protected ImageData applyStandardFilter() {
+        ImageData input = subimageDataView.getSubimageData();
+        List<Filter> filters = Collections.singletonList(filter);
+        int[] versions = FilterResultCache.getParameterVersions(filters);
+
+        ImageData result = resultCache.get(input, filters, versions);
+        if (result == null) {
+            result = ((StandardFilter) filter).apply(input);
+            resultCache.put(input, filters, versions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Applies the point filter of this view together with the point filters of
+     * the preceding views fused into this one.
+     * 
+     * @return Filtered image data
+     */
+    protected ImageData applyPointFilters() {
+        List<PointFilter> filters = new LinkedList<PointFilter>();
+        filters.add((PointFilter) filter);
+
+        StandardFilterView first = this;
+        while (first.subimageDataView instanceof StandardFilterView && ((StandardFilterView) first.subimageDataView).isFusedInto(first)) {
+            first = (StandardFilterView) first.subimageDataView;
+            filters.add(0, (PointFilter) first.filter);
+        }
+
+        ImageData input = first.subimageDataView.getSubimageData();
+        int[] versions = FilterResultCache.getParameterVersions(filters);
+
+        ImageData result = resultCache.get(input, filters, versions);
+        if (result == null) {
+            if (pointFilterChain == null) {
+                // cached results must not be overwritten
+                pointFilterChain = new PointFilterChain(PointFilterChain.PROTECTED_BUFFERS, resultCache);
+            }
+            result = pointFilterChain.apply(filters, input);
+            resultCache.put(input, filters, versions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the point filter of this view is applied by the given
+     * view. This is the case, if the given view is the only listener of this
+     * view and has a point filter, too.
+     * 
+     * @param nextView
+     *            the next view
+     * @return True, if this view is fused into the given one
+     */
+    protected boolean isFusedInto(StandardFilterView nextView) {
+        return nextView != null && filter instanceof PointFilter && view != null && subimageDataView != null && nextView.filter instanceof PointFilter && nextView.subimageDataView == this && getNextView() == nextView;
+    }
+
+    /**
+     * Returns the only listener of this view, if it is a filter view.
+     * 
+     * @return The next filter view, or null
+     */
+    private StandardFilterView getNextView() {
+        List<ViewListener> listeners = getAllViewListener();
+        if (listeners.size() == 1 && listeners.get(0) instanceof StandardFilterView) {
+            return (StandardFilterView) listeners.get(0);
+        }
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -166,6 +279,15 @@ public class StandardFilterView extends AbstractBasicView implements FilterView,
         notifyViewListeners(event);
     }
 
+    /**
+     * Returns the cache of the latest results of this view.
+     * 
+     * @return Result cache
+     */
+    public FilterResultCache getResultCache() {
+        return resultCache;
+    }
+
     /**
      * Updates the precomputed results for different view adapters.
      * 
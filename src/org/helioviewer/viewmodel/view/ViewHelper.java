@@ -1,6 +1,7 @@
 package org.helioviewer.viewmodel.view;
 
 import java.awt.RenderingHints;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.AbstractList;
@@ -14,6 +15,7 @@ import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.region.Region;
 import org.helioviewer.viewmodel.region.StaticRegion;
 import org.helioviewer.viewmodel.view.ScalingView.InterpolationMode;
+import org.helioviewer.viewmodel.view.fitsview.JHVFITSSeriesView;
 import org.helioviewer.viewmodel.view.fitsview.JHVFITSView;
 import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
 import org.helioviewer.viewmodel.view.jp2view.JHVJPXView;
@@ -491,6 +493,11 @@ public final class ViewHelper {
         if (uri == null || uri.getScheme() == null || uri.toString() == null)
             throw new IOException("Invalid URI.");
 
+        // a local directory is opened as a series of FITS files
+        if (uri.getScheme().equalsIgnoreCase("file") && new File(uri).isDirectory()) {
+            return new JHVFITSSeriesView(uri);
+        }
+
         String[] parts = uri.toString().split("\\.");
         String ending = parts[parts.length - 1];
 
@@ -15,6 +15,13 @@ import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
  * <p>
  * To parse the time stamps, this class has its own thread.
  * 
+ * <p>
+ * Besides, the parsed time stamps are indexed in a primitive array, so that
+ * the frame closest to a given point in time can be found by a binary search
+ * without waiting for the remaining time stamps. The binary search is used as
+ * long as the time stamps are in ascending order, otherwise the index is
+ * searched linearly.
+ * 
  * @author Markus Langenberg
  * 
  */
@@ -24,6 +31,11 @@ public abstract class DateTimeCache {
 
     private ImmutableDateTime[] cache;
 
+    /** Time stamps of the first indexedFrames frames in milliseconds */
+    private long[] millis;
+    private volatile int indexedFrames = 0;
+    private volatile boolean ascending = true;
+
     protected boolean stopParsing = false;
 
     protected int nextDateToParse = 0;
@@ -38,6 +50,7 @@ public abstract class DateTimeCache {
     public DateTimeCache(CachedMovieView _parent) {
         parent = _parent;
         cache = new ImmutableDateTime[_parent.getMaximumFrameNumber() + 1];
+        millis = new long[cache.length];
 
         parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.COMPLETE, 0)));
         parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.PARTIAL, 0)));
@@ -80,6 +93,105 @@ public abstract class DateTimeCache {
         return cache[frameNumber];
     }
 
+    /**
+     * Returns the frame whose time stamp is closest to the given point in
+     * time. If two frames are equally close, the later one is returned.
+     * 
+     * Does not wait for time stamps which are not parsed yet, instead the
+     * closest of the frames parsed so far is returned.
+     * 
+     * @param timeMillis
+     *            point in time in milliseconds
+     * @return Closest frame number, -1 if no time stamp is parsed yet
+     */
+    public int getClosestFrameNumber(long timeMillis) {
+        // read the count first, the time stamps below it are visible then
+        int n = indexedFrames;
+        if (n == 0)
+            return -1;
+
+        int next;
+        if (ascending) {
+            // first frame not before the given time
+            int low = 0, high = n;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (millis[mid] < timeMillis)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            next = low;
+        } else {
+            next = 0;
+            while (next < n && millis[next] < timeMillis)
+                next++;
+        }
+
+        if (next == n)
+            return n - 1;
+        if (next > 0 && timeMillis - millis[next - 1] < millis[next] - timeMillis)
+            return next - 1;
+        return next;
+    }
+
+    /**
+     * Returns the number of frames, whose time stamps are indexed.
+     * 
+     * @return Number of indexed frames
+     */
+    public int getIndexedFrames() {
+        return indexedFrames;
+    }
+
+    /**
+     * Returns the indexed time stamp of a frame without waiting.
+     * 
+     * @param frameNumber
+     *            frame number below {@link #getIndexedFrames()}
+     * @return Time stamp in milliseconds
+     */
+    public long getIndexedMillis(int frameNumber) {
+        if (frameNumber < 0 || frameNumber >= indexedFrames)
+            throw new IndexOutOfBoundsException("Frame " + frameNumber + " is not indexed yet");
+        return millis[frameNumber];
+    }
+
+    /**
+     * Returns whether the time stamps indexed so far are in ascending order.
+     * 
+     * @return True, if the index is searched by binary search
+     */
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Returns whether all time stamps are indexed.
+     * 
+     * @return True, if the time stamps of all frames are indexed
+     */
+    public boolean isIndexComplete() {
+        return indexedFrames == cache.length;
+    }
+
+    /**
+     * Appends the time stamp of the given frame to the index, if it is the
+     * next one missing.
+     * 
+     * @param frameNumber
+     *            frame whose time stamp has just been parsed
+     */
+    private void addToIndex(int frameNumber) {
+        if (frameNumber != indexedFrames || frameNumber >= cache.length || cache[frameNumber] == null)
+            return;
+
+        millis[frameNumber] = cache[frameNumber].getMillis();
+        if (frameNumber > 0 && millis[frameNumber] < millis[frameNumber - 1])
+            ascending = false;
+        indexedFrames = frameNumber + 1;
+    }
+
     /**
      * Starts the parsing thread
      */
@@ -135,6 +247,7 @@ public abstract class DateTimeCache {
                     if (frames.length - 1 == parent.getMaximumFrameNumber()) {
                         do {
                             cache[nextDateToParse] = new ImmutableDateTime(Integer.parseInt(frames[nextDateToParse]));
+                            addToIndex(nextDateToParse);
                             fireChangeEventIfNecessary();
                             nextDateToParse++;
 
@@ -155,6 +268,7 @@ public abstract class DateTimeCache {
                 }
 
             } else {
+                addToIndex(nextDateToParse);
                 fireChangeEventIfNecessary();
 
                 nextDateToParse++;
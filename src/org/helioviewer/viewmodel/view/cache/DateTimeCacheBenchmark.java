@@ -0,0 +1,169 @@
+package org.helioviewer.viewmodel.view.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
+
+/**
+ * Compares the lookup of the frame closest to a point in time by
+ * {@link DateTimeCache#getClosestFrameNumber(long)} with the linear scan
+ * formerly done by JHVJPXView.
+ *
+ * Several linked movies with different cadences are simulated: for every frame
+ * of the master movie, the closest frame of every other movie is looked up, as
+ * the LinkedMovieManager does during playback. The results of both lookups are
+ * compared before they are timed. Finally, a lookup in a movie whose time
+ * stamps are only partially parsed is checked to return without waiting.
+ *
+ * Usage: DateTimeCacheBenchmark [movies] [frames] [passes]
+ */
+public class DateTimeCacheBenchmark {
+
+    /** Time stamps are generated instead of being parsed from meta data */
+    private static class SyntheticDateTimeCache extends DateTimeCache {
+        private final long start;
+        private final long cadence;
+        private final int available;
+
+        SyntheticDateTimeCache(CachedMovieView _parent, long _start, long _cadence, int _available) {
+            super(_parent);
+            start = _start;
+            cadence = _cadence;
+            available = _available;
+        }
+
+        protected ImmutableDateTime parseDateTime(int frameNumber) {
+            if (frameNumber >= available)
+                return null;
+            // jitter of up to one second, as real cadences are not exact
+            return new ImmutableDateTime((start + frameNumber * cadence) / 1000 + (frameNumber * 7919) % 2);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int movies = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        DateTimeCache[] caches = new DateTimeCache[movies];
+        for (int i = 0; i < movies; i++) {
+            long cadence = 12000 * (i + 1);
+            caches[i] = createCache(frames, 1300000000000l + i * 5000, cadence, frames);
+        }
+
+        for (int i = 1; i < movies; i++) {
+            for (int frame = 0; frame < frames; frame++) {
+                long time = caches[0].getDateTime(frame).getMillis();
+                int expected = linearLookup(caches[i], time, frames - 1);
+                int actual = caches[i].getClosestFrameNumber(time);
+                if (expected != actual) {
+                    System.out.println("Lookup differs for movie " + i + ", master frame " + frame + ": " + expected + " != " + actual);
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println(movies + " movies with " + frames + " frames, lookups equal");
+
+        for (int pass = 0; pass < passes; pass++) {
+            long linear = timeMasterLoop(caches, frames, false);
+            long binary = timeMasterLoop(caches, frames, true);
+            System.out.println(String.format("master loop: linear %.2f ms, binary search %.3f ms, %.0f times faster", linear / 1e6, binary / 1e6, (double) linear / binary));
+        }
+
+        // only the first half of the time stamps are available
+        DateTimeCache partial = createCache(frames, 1300000000000l, 12000, frames / 2);
+        long end = caches[0].getDateTime(frames - 1).getMillis();
+        long start = System.nanoTime();
+        int frame = partial.getClosestFrameNumber(end);
+        System.out.println(String.format("partially parsed movie: frame %d of %d indexed frames after %.3f ms", frame, partial.getIndexedFrames(), (System.nanoTime() - start) / 1e6));
+        partial.stopParsing();
+
+        for (DateTimeCache cache : caches)
+            cache.stopParsing();
+    }
+
+    /**
+     * Looks up the closest frame of every other movie for every frame of the
+     * master movie.
+     */
+    private static long timeMasterLoop(DateTimeCache[] caches, int frames, boolean binarySearch) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            long time = caches[0].getDateTime(frame).getMillis();
+            for (int i = 1; i < caches.length; i++)
+                sum += binarySearch ? caches[i].getClosestFrameNumber(time) : linearLookup(caches[i], time, frames - 1);
+        }
+        long duration = System.nanoTime() - start;
+        if (sum < 0)
+            System.out.println(sum);
+        return duration;
+    }
+
+    /**
+     * The former lookup of JHVJPXView.setCurrentFrame(ImmutableDateTime, ...)
+     */
+    private static int linearLookup(DateTimeCache cache, long timeMillis, int lastFrame) {
+        int frameNumber = -1;
+        long lastDiff, currentDiff = -Long.MAX_VALUE;
+
+        do {
+            lastDiff = currentDiff;
+
+            if (cache.getDateTime(++frameNumber) == null) {
+                return -1;
+            }
+
+            currentDiff = cache.getDateTime(frameNumber).getMillis() - timeMillis;
+        } while (currentDiff < 0 && frameNumber < lastFrame);
+
+        if (-lastDiff < currentDiff) {
+            return frameNumber - 1;
+        } else {
+            return frameNumber;
+        }
+    }
+
+    /**
+     * Creates a cache and waits until the available time stamps are parsed.
+     */
+    private static DateTimeCache createCache(int frames, long start, long cadence, int available) throws InterruptedException {
+        DateTimeCache cache = new SyntheticDateTimeCache(createParent(frames), start, cadence, available);
+        cache.startParsing();
+        while (cache.getIndexedFrames() < available)
+            Thread.sleep(10);
+        return cache;
+    }
+
+    /**
+     * Creates a movie view, which only knows its number of frames.
+     */
+    private static CachedMovieView createParent(final int frames) {
+        final ImageCacheStatus status = (ImageCacheStatus) Proxy.newProxyInstance(ImageCacheStatus.class.getClassLoader(), new Class<?>[] { ImageCacheStatus.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getImageStatus"))
+                    return ImageCacheStatus.CacheStatus.COMPLETE;
+                if (method.getReturnType() == int.class)
+                    return frames - 1;
+                return null;
+            }
+        });
+
+        return (CachedMovieView) Proxy.newProxyInstance(CachedMovieView.class.getClassLoader(), new Class<?>[] { CachedMovieView.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getMaximumFrameNumber"))
+                    return frames - 1;
+                if (method.getName().equals("getImageCacheStatus"))
+                    return status;
+                if (method.getReturnType() == int.class)
+                    return 0;
+                if (method.getReturnType() == boolean.class)
+                    return false;
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,271 @@
+package org.helioviewer.viewmodel.view.fitsview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data unit of a FITS image, which converts the samples of any region into 8
+ * or 16 bit samples on demand.
+ *
+ * <p>
+ * The samples are read from byte buffers in FITS byte order, usually mapped
+ * from the file. Every buffer holds whole rows, thus images larger than a
+ * single buffer are split into several ones.
+ *
+ * <p>
+ * 8 bit samples are passed through. 16 bit samples are shifted to use all 16
+ * bits, unless there are negative samples. 32 bit and floating point samples
+ * are mapped linearly to 16 bit, either from a given range or from the range
+ * of all finite samples, see {@link #scan()}. Instead, the mapping of another
+ * data unit may be used, see {@link #setMapping(FITSDataUnit)}.
+ *
+ * <p>
+ * The buffers are only read using absolute positions, thus a data unit may be
+ * read by several threads at the same time.
+ */
+class FITSDataUnit {
+
+    private final ByteBuffer[] buffers;
+    private final int rowsPerBuffer;
+    private final int width;
+    private final int height;
+    private final int bitpix;
+    private final int bytesPerSample;
+
+    /** Bits to shift 16 bit samples to the left */
+    private int shift = 0;
+
+    /** Linear mapping of 32 bit and floating point samples */
+    private double low = 0.0;
+    private double factor = 0.0;
+
+    /**
+     * Creates a data unit.
+     *
+     * @param _buffers
+     *            buffers holding the samples, row by row
+     * @param _rowsPerBuffer
+     *            number of rows per buffer, the last one may hold less
+     * @param _width
+     *            width of the image
+     * @param _height
+     *            height of the image
+     * @param _bitpix
+     *            FITS data type, one of 8, 16, 32, -32 or -64
+     */
+    FITSDataUnit(ByteBuffer[] _buffers, int _rowsPerBuffer, int _width, int _height, int _bitpix) {
+        buffers = _buffers;
+        rowsPerBuffer = _rowsPerBuffer;
+        width = _width;
+        height = _height;
+        bitpix = _bitpix;
+        bytesPerSample = Math.abs(_bitpix) / 8;
+    }
+
+    /**
+     * Checks whether a FITS data type is supported.
+     *
+     * @param _bitpix
+     *            FITS data type
+     * @return True, if samples of the given type can be converted
+     */
+    static boolean isSupported(int _bitpix) {
+        return _bitpix == 8 || _bitpix == 16 || _bitpix == 32 || _bitpix == -32 || _bitpix == -64;
+    }
+
+    /**
+     * @return Width of the image
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the image
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns whether the samples are converted to 8 bit.
+     *
+     * @return True for 8 bit samples, false for 16 bit samples
+     */
+    boolean isByte() {
+        return bitpix == 8;
+    }
+
+    /**
+     * Sets the range of 32 bit and floating point samples, which is mapped to
+     * 16 bit. Samples outside are clipped.
+     *
+     * @param _min
+     *            value mapped to 0
+     * @param _max
+     *            value mapped to 65535
+     */
+    void setRange(double _min, double _max) {
+        low = _min;
+        factor = _max > _min ? 65535.0 / (_max - _min) : 0.0;
+    }
+
+    /**
+     * Uses the mapping of another data unit of the same data type, e.g. of
+     * the first frame of a series, so that both are converted alike. 16 bit
+     * samples exceeding 16 bits after shifting are clipped.
+     *
+     * @param _source
+     *            data unit whose mapping is used
+     * @return True, if the mapping was adopted, false if the data types differ
+     */
+    boolean setMapping(FITSDataUnit _source) {
+        if (_source.bitpix != bitpix) {
+            return false;
+        }
+        shift = _source.shift;
+        low = _source.low;
+        factor = _source.factor;
+        return true;
+    }
+
+    /**
+     * Reads all samples once to determine their mapping to 16 bit.
+     *
+     * For 16 bit samples, the shift is computed from the highest sample. For
+     * 32 bit and floating point samples, the range of all finite samples is
+     * mapped.
+     */
+    void scan() {
+        if (bitpix == 16) {
+            int highestValue = 0;
+            boolean hasNegativeValue = false;
+
+            for (int y = 0; y < height && !hasNegativeValue; y++) {
+                ByteBuffer buffer = getBuffer(y);
+                int index = getRowOffset(y);
+                for (int x = 0; x < width; x++, index += 2) {
+                    short value = buffer.getShort(index);
+                    if (value < 0) {
+                        hasNegativeValue = true;
+                        break;
+                    }
+                    highestValue = value > highestValue ? value : highestValue;
+                }
+            }
+
+            // if first bit is not set, shift bits
+            shift = hasNegativeValue || highestValue == 0 ? 0 : Integer.numberOfLeadingZeros(highestValue) - 16;
+
+        } else if (bitpix != 8) {
+            double minValue = Double.POSITIVE_INFINITY;
+            double maxValue = Double.NEGATIVE_INFINITY;
+
+            for (int y = 0; y < height; y++) {
+                ByteBuffer buffer = getBuffer(y);
+                int index = getRowOffset(y);
+                for (int x = 0; x < width; x++, index += bytesPerSample) {
+                    double value = getValue(buffer, index);
+                    // NaN and infinite samples are ignored
+                    if (value > Double.NEGATIVE_INFINITY && value < Double.POSITIVE_INFINITY) {
+                        minValue = value < minValue ? value : minValue;
+                        maxValue = value > maxValue ? value : maxValue;
+                    }
+                }
+            }
+
+            if (minValue > maxValue) {
+                minValue = maxValue = 0.0;
+            }
+            setRange(minValue, maxValue);
+        }
+    }
+
+    /**
+     * Converts the samples of a region into 8 bit samples. Only valid if
+     * {@link #isByte()} returns true.
+     *
+     * @param _x
+     *            first column of the region
+     * @param _y
+     *            first row of the region
+     * @param _width
+     *            width of the region
+     * @param _height
+     *            height of the region
+     * @param _output
+     *            output buffer of the size of the region
+     */
+    void read(int _x, int _y, int _width, int _height, byte[] _output) {
+        for (int y = 0; y < _height; y++) {
+            ByteBuffer buffer = getBuffer(_y + y);
+            int index = getRowOffset(_y + y) + _x;
+            for (int x = 0, outputIndex = y * _width; x < _width; x++) {
+                _output[outputIndex++] = buffer.get(index++);
+            }
+        }
+    }
+
+    /**
+     * Converts the samples of a region into 16 bit samples. Only valid if
+     * {@link #isByte()} returns false.
+     *
+     * @param _x
+     *            first column of the region
+     * @param _y
+     *            first row of the region
+     * @param _width
+     *            width of the region
+     * @param _height
+     *            height of the region
+     * @param _output
+     *            output buffer of the size of the region
+     */
+    void read(int _x, int _y, int _width, int _height, short[] _output) {
+        for (int y = 0; y < _height; y++) {
+            ByteBuffer buffer = getBuffer(_y + y);
+            int index = getRowOffset(_y + y) + _x * bytesPerSample;
+            int outputIndex = y * _width;
+
+            if (bitpix == 16 && shift == 0) {
+                for (int x = 0; x < _width; x++, index += 2) {
+                    _output[outputIndex++] = buffer.getShort(index);
+                }
+            } else if (bitpix == 16) {
+                for (int x = 0; x < _width; x++, index += 2) {
+                    int value = buffer.getShort(index) << shift;
+                    // only an adopted shift may exceed 16 bits
+                    _output[outputIndex++] = (short) (value > 0 ? (value < 65535 ? value : 65535) : 0);
+                }
+            } else {
+                for (int x = 0; x < _width; x++, index += bytesPerSample) {
+                    double value = (getValue(buffer, index) - low) * factor;
+                    // NaN is mapped to 0
+                    _output[outputIndex++] = (short) (value > 0.0 ? (value < 65535.0 ? (int) value : 65535) : 0);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer getBuffer(int _row) {
+        return buffers[_row / rowsPerBuffer];
+    }
+
+    private int getRowOffset(int _row) {
+        return (_row % rowsPerBuffer) * width * bytesPerSample;
+    }
+
+    private double getValue(ByteBuffer _buffer, int _index) {
+        switch (bitpix) {
+        case 32:
+            return _buffer.getInt(_index);
+        case -32:
+            return _buffer.getFloat(_index);
+        case -64:
+            return _buffer.getDouble(_index);
+        case 16:
+            return _buffer.getShort(_index);
+        default:
+            return _buffer.get(_index) & 0xFF;
+        }
+    }
+}
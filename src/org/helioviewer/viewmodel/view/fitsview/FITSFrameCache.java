@@ -0,0 +1,531 @@
+package org.helioviewer.viewmodel.view.fitsview;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.base.math.MathUtils;
+import org.helioviewer.viewmodel.changeevent.CacheStatusChangedReason;
+import org.helioviewer.viewmodel.changeevent.CacheStatusChangedReason.CacheType;
+import org.helioviewer.viewmodel.changeevent.ChangeEvent;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagetransport.Short16ImageTransport;
+import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.cache.DateTimeCache;
+import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
+
+/**
+ * Cache of the decoded frames of a series of FITS files, which also serves as
+ * the image cache status of the series.
+ *
+ * <p>
+ * A frame is decoded by opening its file and reading the area given by the
+ * current parameters, see {@link #setParameters(int, int, int, int, int)}.
+ * Thus, only the area shown at the resolution needed is kept per frame.
+ * Changing the parameters drops all frames. The samples of all frames are
+ * converted as those of a reference image, usually the first frame, so the
+ * brightness does not change between frames and no frame is scanned.
+ *
+ * <p>
+ * Frames ahead of the play cursor are decoded in the background on a worker
+ * pool shared by all series. A frame requested while a worker decodes it is
+ * awaited, a frame whose decoding has not started yet is decoded by the
+ * requesting thread instead of the worker. The budget of the cache is given in megabytes by
+ * the system property {@link #BUDGET_PROPERTY} and limited to a quarter of the
+ * maximum heap size. Only as many frames are decoded ahead as fit into the
+ * budget. When the budget is exceeded, the frame needed farthest in the future
+ * is dropped, which is the frame right behind the cursor when looping
+ * forwards. Both follow the direction of playback, see
+ * {@link #setPlayDirection(int, boolean)}. A series fitting into the budget
+ * thus stays completely cached.
+ *
+ * <p>
+ * Since the headers of local files are always accessible, every frame counts
+ * as partially cached. A frame counts as completely cached as long as it is
+ * decoded for the current parameters. As for remote JPX files, only the
+ * number of completely cached frames from the beginning is reported.
+ */
+class FITSFrameCache implements ImageCacheStatus {
+
+    /** System property with the budget of the cache in megabytes */
+    static final String BUDGET_PROPERTY = "jhv.fits.moviecache";
+
+    /** Default budget in megabytes */
+    private static final long DEFAULT_BUDGET = 256;
+
+    /** Number of frames decoded ahead at the same time per worker */
+    private static final int PENDING_PER_WORKER = 2;
+
+    private static final long budget = readBudget();
+
+    private static final int numWorkers = MathUtils.squeezeToInterval(Runtime.getRuntime().availableProcessors(), 1, 4);
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FITSDecode-" + (count++));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final CachedMovieView parent;
+    private final File[] files;
+    private final FITSImage reference;
+
+    private final ImageData[] frames;
+
+    /** Frames queued or being decoded on the worker pool */
+    private final boolean[] pending;
+
+    /** Frames being decoded on the worker pool */
+    private final boolean[] decoding;
+    private int numPending = 0;
+    private long bytes = 0;
+
+    /** Size of the latest decoded frame, used to estimate the window */
+    private long frameBytes = 0;
+
+    /** Current parameters, the level is negative if none are set */
+    private int level = -1;
+    private int x;
+    private int y;
+    private int height;
+    private int width;
+
+    /** Incremented whenever the parameters change */
+    private int generation = 0;
+
+    private int cursor = 0;
+    private boolean abolished = false;
+
+    /** Direction of playback, 1 forwards and -1 backwards */
+    private int direction = 1;
+
+    /** Whether playback reverses at both ends instead of wrapping around */
+    private boolean swing = false;
+
+    private volatile int completeUntil = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Default constructor.
+     *
+     * @param _parent
+     *            the series, whose change events are fired
+     * @param _files
+     *            the files of the frames, the first frame first
+     * @param _reference
+     *            image whose mapping of the samples is used for all frames
+     */
+    FITSFrameCache(CachedMovieView _parent, File[] _files, FITSImage _reference) {
+        parent = _parent;
+        files = _files;
+        reference = _reference;
+        frames = new ImageData[_files.length];
+        pending = new boolean[_files.length];
+        decoding = new boolean[_files.length];
+    }
+
+    private static long readBudget() {
+        long megabytes = DEFAULT_BUDGET;
+        String value = System.getProperty(BUDGET_PROPERTY);
+        if (value != null) {
+            try {
+                megabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Math.max(0, Math.min(megabytes * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Sets the area of the frames to decode. If it differs from the current
+     * one, all frames are dropped and pending decodings are discarded.
+     *
+     * @param _level
+     *            level of the resolution pyramid
+     * @param _x
+     *            X pixel coordinate of the top left point of the area
+     * @param _y
+     *            Y pixel coordinate of the top left point of the area
+     * @param _height
+     *            height in pixels of the area
+     * @param _width
+     *            width in pixels of the area
+     * @return True, if the parameters have changed
+     */
+    boolean setParameters(int _level, int _x, int _y, int _height, int _width) {
+        synchronized (this) {
+            if (_level == level && _x == x && _y == y && _height == height && _width == width) {
+                return false;
+            }
+
+            level = _level;
+            x = _x;
+            y = _y;
+            height = _height;
+            width = _width;
+
+            dropAll();
+        }
+        updateCompleteUntil();
+        return true;
+    }
+
+    /**
+     * Sets the direction of playback, in which frames are decoded ahead and
+     * kept.
+     *
+     * @param _direction
+     *            1 when playing forwards, -1 when playing backwards
+     * @param _swing
+     *            whether playback reverses at the first and last frame
+     *            instead of wrapping around
+     */
+    synchronized void setPlayDirection(int _direction, boolean _swing) {
+        direction = _direction < 0 ? -1 : 1;
+        swing = _swing;
+    }
+
+    /**
+     * Moves the play cursor to a frame and returns it decoded for the current
+     * parameters. If the frame is being decoded in the background, the
+     * decoding is awaited. Otherwise, if the frame is not cached, it is
+     * decoded by the calling thread.
+     *
+     * @param _frame
+     *            the frame number
+     * @return The image data of the frame, null if it cannot be decoded
+     */
+    ImageData getFrame(int _frame) {
+        int decodeGeneration;
+        int[] parameters;
+
+        synchronized (this) {
+            cursor = _frame;
+            while (decoding[_frame] && frames[_frame] == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (frames[_frame] != null) {
+                hits++;
+                return frames[_frame];
+            }
+
+            // take over a decoding which has not started yet
+            if (pending[_frame] && !decoding[_frame]) {
+                pending[_frame] = false;
+                numPending--;
+            }
+            misses++;
+            decodeGeneration = generation;
+            parameters = new int[] { level, x, y, height, width };
+        }
+
+        ImageData data = decode(_frame, parameters);
+        store(_frame, decodeGeneration, data, false);
+        return data;
+    }
+
+    /**
+     * Decodes the frames following the play cursor in the direction of
+     * playback in the background, as far as they fit into the budget. Frames which are already cached or pending
+     * are skipped.
+     */
+    synchronized void prefetch() {
+        if (abolished || level < 0 || frameBytes <= 0) {
+            return;
+        }
+
+        long window = Math.min(frames.length - 1, budget / frameBytes - 1);
+        for (int distance = 1; distance <= window && numPending < numWorkers * PENDING_PER_WORKER; distance++) {
+            int frame = getFrameAhead(distance);
+
+            if (frames[frame] == null && !pending[frame]) {
+                pending[frame] = true;
+                numPending++;
+                submit(frame, generation, new int[] { level, x, y, height, width });
+            }
+        }
+    }
+
+    /**
+     * Decodes a frame on the worker pool, unless the parameters have changed
+     * or the frame has been taken over by {@link #getFrame(int)} meanwhile.
+     */
+    private void submit(final int _frame, final int _generation, final int[] _parameters) {
+        workers.execute(new Runnable() {
+            public void run() {
+                if (startDecoding(_frame, _generation)) {
+                    store(_frame, _generation, decode(_frame, _parameters), true);
+                }
+                prefetch();
+            }
+        });
+    }
+
+    /**
+     * Marks a pending frame as being decoded by a worker.
+     *
+     * @return False, if the frame is no longer pending for the given
+     *         generation
+     */
+    private synchronized boolean startDecoding(int _frame, int _generation) {
+        if (_generation != generation || abolished || !pending[_frame]) {
+            return false;
+        }
+        decoding[_frame] = true;
+        return true;
+    }
+
+    /**
+     * Reads the area given by the parameters from the file of a frame.
+     */
+    private ImageData decode(int _frame, int[] _parameters) {
+        if (_parameters[0] < 0) {
+            return null;
+        }
+
+        try {
+            FITSImage image = new FITSImage(files[_frame].toURI().toURL().toString(), reference);
+            return image.getImageData(_parameters[0], _parameters[1], _parameters[2], _parameters[3], _parameters[4]);
+        } catch (Exception e) {
+            Log.warn("FITSFrameCache: Cannot decode " + files[_frame], e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a decoded frame, if it was decoded for the current parameters.
+     */
+    private void store(int _frame, int _generation, ImageData _data, boolean _prefetched) {
+        synchronized (this) {
+            if (_generation != generation || abolished) {
+                return;
+            }
+            if (_prefetched) {
+                pending[_frame] = false;
+                decoding[_frame] = false;
+                numPending--;
+                notifyAll();
+            }
+            if (_data == null || frames[_frame] != null) {
+                return;
+            }
+
+            long size = (long) _data.getWidth() * _data.getHeight() * (_data.getImageTransport() instanceof Short16ImageTransport ? 2 : 1);
+            frameBytes = size;
+            if (size > budget) {
+                return;
+            }
+
+            frames[_frame] = _data;
+            bytes += size;
+
+            while (bytes > budget) {
+                drop(getFarthestFrame());
+            }
+        }
+        updateCompleteUntil();
+    }
+
+    /**
+     * Returns the cached frame, which is needed farthest in the future when
+     * playing from the cursor.
+     */
+    private int getFarthestFrame() {
+        int farthest = cursor;
+        int farthestDistance = 0;
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (frames[frame] != null) {
+                int distance = getDistanceAhead(frame);
+                if (distance > farthestDistance) {
+                    farthest = frame;
+                    farthestDistance = distance;
+                }
+            }
+        }
+        return farthest;
+    }
+
+    /**
+     * Returns the frame shown the given number of frames after the cursor.
+     *
+     * When swinging, a full cycle covers 2 * (n - 1) frames, the cursor is
+     * at position cursor in it when playing forwards and at 2 * (n - 1) -
+     * cursor when playing backwards.
+     */
+    private int getFrameAhead(int _distance) {
+        int n = frames.length;
+        if (!swing || n < 2) {
+            return ((cursor + direction * _distance) % n + n) % n;
+        }
+
+        int period = 2 * (n - 1);
+        int position = ((direction > 0 ? cursor : period - cursor) + _distance) % period;
+        return position < n ? position : period - position;
+    }
+
+    /**
+     * Returns the number of frames until a frame is shown next, 0 for the
+     * frame at the cursor.
+     */
+    private int getDistanceAhead(int _frame) {
+        int n = frames.length;
+        if (!swing || n < 2) {
+            return (((_frame - cursor) * direction) % n + n) % n;
+        }
+
+        // each frame but the first and last one is shown twice per cycle
+        int period = 2 * (n - 1);
+        int position = direction > 0 ? cursor : period - cursor;
+        int first = ((_frame - position) % period + period) % period;
+        int second = ((period - _frame - position) % period + period) % period;
+        return Math.min(first, second);
+    }
+
+    private void drop(int _frame) {
+        ImageData data = frames[_frame];
+        if (data != null) {
+            bytes -= (long) data.getWidth() * data.getHeight() * (data.getImageTransport() instanceof Short16ImageTransport ? 2 : 1);
+            frames[_frame] = null;
+        }
+    }
+
+    private void dropAll() {
+        Arrays.fill(frames, null);
+        Arrays.fill(pending, false);
+        Arrays.fill(decoding, false);
+        numPending = 0;
+        bytes = 0;
+        generation++;
+        notifyAll();
+    }
+
+    /**
+     * Recalculates the number of completely cached frames from the beginning
+     * and fires a change event, if it has changed.
+     */
+    private void updateCompleteUntil() {
+        ChangeEvent changeEvent = null;
+
+        synchronized (this) {
+            int newCompleteUntil = -1;
+            while (newCompleteUntil + 1 < frames.length && frames[newCompleteUntil + 1] != null) {
+                newCompleteUntil++;
+            }
+
+            if (newCompleteUntil != completeUntil) {
+                completeUntil = newCompleteUntil;
+
+                DateTimeCache dateTimeCache = parent.getDateTimeCache();
+                if (dateTimeCache != null && completeUntil <= dateTimeCache.getMetaStatus()) {
+                    changeEvent = new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.COMPLETE, Math.max(completeUntil, 0)));
+                }
+            }
+        }
+
+        if (changeEvent != null) {
+            parent.fireChangeEvent(changeEvent);
+        }
+    }
+
+    /**
+     * Drops all frames and stops decoding in the background.
+     */
+    void abolish() {
+        synchronized (this) {
+            abolished = true;
+            dropAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * In this case, does nothing, since the status follows the cached frames.
+     */
+    public void setImageStatus(int compositionLayer, CacheStatus newStatus) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * In this case, drops the decoded frame.
+     */
+    public void downgradeImageStatus(int compositionLayer) {
+        synchronized (this) {
+            drop(compositionLayer);
+        }
+        updateCompleteUntil();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * In this case, returns COMPLETE for decoded frames and PARTIAL otherwise.
+     */
+    public synchronized CacheStatus getImageStatus(int compositionLayer) {
+        return frames[compositionLayer] != null ? CacheStatus.COMPLETE : CacheStatus.PARTIAL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getImageCachedPartiallyUntil() {
+        return frames.length - 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getImageCachedCompletelyUntil() {
+        return completeUntil;
+    }
+
+    /**
+     * @return Number of frames currently cached
+     */
+    synchronized int getNumCachedFrames() {
+        int count = 0;
+        for (ImageData frame : frames) {
+            if (frame != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of bytes currently cached
+     */
+    synchronized long getCachedBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of frames requested, which were cached
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of frames requested, which had to be decoded
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -1,16 +1,23 @@
 package org.helioviewer.viewmodel.view.fitsview;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-import nom.tam.fits.BasicHDU;
 import nom.tam.fits.Fits;
+import nom.tam.fits.FitsUtil;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
-import nom.tam.fits.ImageHDU;
+import nom.tam.util.ArrayDataInput;
+import nom.tam.util.BufferedFile;
 import nom.tam.util.Cursor;
 
-import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imagedata.JavaBufferedImageData;
 import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
 import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
@@ -20,6 +27,19 @@ import org.helioviewer.viewmodel.metadata.MetaDataContainer;
  * This class provides access to any FITS file and makes the image data
  * available.
  * 
+ * <p>
+ * Only the header is read when the image is opened. The data unit of an
+ * uncompressed local file is memory mapped, compressed or remote files are
+ * read into memory. The samples are scanned once to determine their mapping to
+ * 8 or 16 bit, unless the mapping of another image is given, see
+ * {@link FITSDataUnit}. Regions of the image are served at
+ * any level of a lazily built resolution pyramid, see {@link FITSTilePyramid}.
+ * 
+ * <p>
+ * The image is taken from the first HDU with at least two axes, which is
+ * either the primary HDU or an IMAGE extension. Of a data cube, only the first
+ * plane is used. Tile compressed images are not supported.
+ * 
  * @author Andreas Hoelzl
  * @author Stephan Pagel
  * */
@@ -31,9 +51,14 @@ public class FITSImage implements MetaDataContainer {
 
     private static final float MDI_THRESHOLD = 2000f;
 
+    /** Size of a FITS block, headers and data units are padded to */
+    private static final int BLOCK_SIZE = 2880;
+
     private Header header = null;
 
-    private BufferedImage image = null;
+    private FITSDataUnit dataUnit = null;
+
+    private FITSTilePyramid pyramid = null;
 
     // /////////////////////////////////////////////////////////////////////////
     // Methods
@@ -48,170 +73,279 @@ public class FITSImage implements MetaDataContainer {
      *             when an error occurred during reading the fits file.
      * */
     public FITSImage(String url) throws Exception {
+        this(url, null);
+    }
 
-        // access the FITS file
-        Fits fits = new Fits(url);
-
-        // get basic information from file
-        BasicHDU hdu = (ImageHDU) fits.readHDU();
-        int bitsPerPixel = hdu.getBitPix();
-        header = hdu.getHeader();
+    /**
+     * Constructor which converts the samples as another image, e.g. the first
+     * frame of a series, so that all frames share the same brightness. The
+     * samples are not scanned, unless the data types differ.
+     * 
+     * @param url
+     *            Specifies the location of the FITS file.
+     * @param reference
+     *            image whose mapping of the samples is used, null to
+     *            determine the mapping from this image
+     * @throws Exception
+     *             when an error occurred during reading the fits file.
+     * */
+    FITSImage(String url, FITSImage reference) throws Exception {
 
-        if (bitsPerPixel == BasicHDU.BITPIX_BYTE) {
+        File file = getLocalFile(url);
 
-            // get image row data
-            byte[][] data2D = (byte[][]) ((hdu).getKernel());
+        if (file != null && !FitsUtil.isCompressed(file)) {
+            mapDataUnit(file);
+        } else {
+            readDataUnit(url);
+        }
 
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
+        // if it is an MDI magnetogram image use threshold when converting
+        // the data, otherwise map the range of the samples, unless a
+        // reference image is given
+        String instrument = header.getStringValue("INSTRUME");
+        String measurement = header.getStringValue("DPC_OBSR");
+
+        if (reference != null && dataUnit.setMapping(reference.dataUnit)) {
+            // samples are converted as in the reference image
+        } else if (instrument != null && measurement != null && instrument.equals("MDI") && measurement.equals("FD_Magnetogram_Sum") && header.getIntValue("BITPIX") < 0) {
+            dataUnit.setRange(-MDI_THRESHOLD, MDI_THRESHOLD);
+        } else {
+            dataUnit.scan();
+        }
 
-            // transform image row data into 1D image row data
-            byte[] data = new byte[width * height];
+        pyramid = new FITSTilePyramid(dataUnit);
+    }
 
-            int counter = 0;
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
+    /**
+     * Returns the file of a local FITS file.
+     * 
+     * @return The file, or null if the location is not a local file
+     */
+    private static File getLocalFile(String url) {
+        try {
+            if (url.regionMatches(true, 0, "file:", 0, 5)) {
+                return new File(new URL(url).toURI());
             }
+        } catch (Exception e) {
+            return null;
+        }
 
-            // create buffered image from row data
-            SingleChannelByte8ImageData imageData = new SingleChannelByte8ImageData(width, height, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_SHORT) {
+        File file = new File(url);
+        return file.isFile() ? file : null;
+    }
 
-            // get image row data
-            short[][] data2D = (short[][]) ((hdu).getKernel());
+    /**
+     * Reads the headers up to the first image and returns its header.
+     * 
+     * <p>
+     * Only the primary HDU and IMAGE extensions are considered. Tables are
+     * skipped, but a tile compressed image stored in a binary table is
+     * rejected, since its rows would otherwise be shown as image.
+     * 
+     * @param input
+     *            the stream, positioned at the beginning of a header
+     * @return The header of the image
+     * @throws Exception
+     *             if there is no supported image or a header is invalid
+     */
+    private static Header readImageHeader(ArrayDataInput input) throws Exception {
+        while (true) {
+            Header imageHeader = Header.readHeader(input);
+            if (imageHeader == null) {
+                throw new IOException("FITS file contains no image");
+            }
 
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
+            String extension = imageHeader.getStringValue("XTENSION");
+            if (extension != null && imageHeader.getBooleanValue("ZIMAGE", false)) {
+                throw new IOException("Compressed FITS images are not supported");
+            }
 
-            // transform image row data into 1D image row data and
-            // analyze the highest value when transfering the data
-            short[] data = new short[width * height];
+            boolean isImage = extension == null || extension.trim().equals("IMAGE");
+            if (isImage && imageHeader.getIntValue("NAXIS", 0) >= 2 && imageHeader.getIntValue("NAXIS1", 0) > 0 && imageHeader.getIntValue("NAXIS2", 0) > 0) {
+                if (!FITSDataUnit.isSupported(imageHeader.getIntValue("BITPIX"))) {
+                    throw new IOException("FITS data type " + imageHeader.getIntValue("BITPIX") + " is not supported");
+                }
+                return imageHeader;
+            }
 
-            int highestValue = Integer.MIN_VALUE;
-            int counter = 0;
-            boolean hasNegativValue = false;
+            input.skipBytes(getDataSize(imageHeader));
+        }
+    }
 
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
+    /**
+     * Returns the size of the data unit of an HDU including the padding.
+     * Unlike Header.getDataSize, it is 0 for a header without axes and does
+     * not overflow for large data units.
+     */
+    private static long getDataSize(Header header) {
+        int naxis = header.getIntValue("NAXIS", 0);
+        if (naxis <= 0) {
+            return 0;
+        }
 
-                    if (!hasNegativValue)
-                        hasNegativValue = data2D[h][w] < 0;
+        long size = 1;
+        for (int i = 1; i <= naxis; i++) {
+            size *= header.getLongValue("NAXIS" + i, 0);
+        }
+        size = (size + header.getLongValue("PCOUNT", 0)) * header.getLongValue("GCOUNT", 1) * Math.abs(header.getIntValue("BITPIX")) / 8;
 
-                    highestValue = data2D[h][w] > highestValue ? data2D[h][w] : highestValue;
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
-            }
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
 
-            // if first bit is not set, shift bits
-            if (!hasNegativValue) {
-                // compute number of bits to shift
-                int shiftBits = BasicHDU.BITPIX_SHORT - ((int) Math.ceil(Math.log(highestValue) / Math.log(2)));
+    /**
+     * Reads the header of the first image of a local file without reading
+     * its data unit.
+     *
+     * @param file
+     *            the local FITS file, which may be compressed
+     * @return The header of the image
+     * @throws Exception
+     *             if there is no supported image or a header is invalid
+     */
+    static Header readHeader(File file) throws Exception {
 
-                // shift bits of all values
-                for (int i = 0; i < data.length; i++) {
-                    data[i] = (short) (data[i] << shiftBits);
-                }
+        ArrayDataInput input;
+        if (FitsUtil.isCompressed(file)) {
+            input = new Fits(file).getStream();
+            if (input == null) {
+                throw new IOException("FITS file cannot be opened");
             }
+        } else {
+            input = new BufferedFile(file, "r");
+        }
 
-            // create buffered image from row data
-            SingleChannelShortImageData imageData = new SingleChannelShortImageData(width, height, bitsPerPixel, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_INT) {
+        try {
+            return readImageHeader(input);
+        } finally {
+            input.close();
+        }
+    }
 
-            // get image row data
-            int[][] data2D = (int[][]) ((hdu).getKernel());
+    /**
+     * Reads the header and memory maps the data unit of a local file.
+     */
+    private void mapDataUnit(File file) throws Exception {
+
+        long offset;
+        BufferedFile input = new BufferedFile(file, "r");
+        try {
+            header = readImageHeader(input);
+            offset = (input.getFilePointer() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        } finally {
+            input.close();
+        }
 
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
+        int width = header.getIntValue("NAXIS1");
+        int height = header.getIntValue("NAXIS2");
+        int bitpix = header.getIntValue("BITPIX");
+        long rowSize = (long) width * Math.abs(bitpix) / 8;
 
-            // transform image row data into 1D image row data
-            int[] data = new int[width * height];
+        // every buffer holds whole rows
+        int rowsPerBuffer = (int) Math.max(1, Math.min(height, Integer.MAX_VALUE / rowSize));
+        ByteBuffer[] buffers = new ByteBuffer[(height + rowsPerBuffer - 1) / rowsPerBuffer];
 
-            int counter = 0;
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < offset + rowSize * height) {
+                throw new IOException("FITS file is truncated");
             }
 
-            // create buffered image from row data
-            JavaBufferedImageData imageData = new ARGBInt32ImageData(width, height, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_FLOAT) {
-
-            // get image row data
-            float[][] data2D = (float[][]) ((hdu).getKernel());
+            for (int i = 0; i < buffers.length; i++) {
+                int rows = Math.min(rowsPerBuffer, height - i * rowsPerBuffer);
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + i * rowsPerBuffer * rowSize, rows * rowSize);
+            }
+        } finally {
+            // the mapping stays valid
+            randomAccessFile.close();
+        }
 
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
+        dataUnit = new FITSDataUnit(buffers, rowsPerBuffer, width, height, bitpix);
+    }
 
-            // transform image row data into 1D image row data
-            short[] data = new short[width * height];
+    /**
+     * Reads the header and the data unit of a compressed or remote file into
+     * memory.
+     */
+    private void readDataUnit(String url) throws Exception {
 
-            // if it is an MDI magnetogram image use threshold when converting
-            // the data
-            // otherwise set minimum value to zero and maximum value to 2^16 and
-            // scale values between
-            String instrument = header.getStringValue("INSTRUME");
-            String measurement = header.getStringValue("DPC_OBSR");
+        Fits fits = new Fits(url);
+        ArrayDataInput input = fits.getStream();
+        if (input == null) {
+            throw new IOException("FITS file cannot be opened");
+        }
 
-            if (instrument != null && measurement != null && instrument.equals("MDI") && measurement.equals("FD_Magnetogram_Sum")) {
+        try {
+            header = readImageHeader(input);
 
-                int counter = 0;
-                float doubleThreshold = MDI_THRESHOLD * 2.0f;
+            int width = header.getIntValue("NAXIS1");
+            int height = header.getIntValue("NAXIS2");
+            int bitpix = header.getIntValue("BITPIX");
+            long size = (long) width * height * Math.abs(bitpix) / 8;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("FITS image is too large to be read into memory");
+            }
 
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
+            byte[] data = new byte[(int) size];
+            input.readFully(data);
 
-                        float value = data2D[h][w] + MDI_THRESHOLD;
-                        value = value < 0.0f ? 0.0f : value > doubleThreshold ? doubleThreshold : value;
-                        data[counter] = (short) ((value * 65535) / doubleThreshold);
-                        counter++;
-                    }
-                }
+            dataUnit = new FITSDataUnit(new ByteBuffer[] { ByteBuffer.wrap(data) }, height, width, height, bitpix);
+        } finally {
+            input.close();
+        }
+    }
 
-            } else {
+    /**
+     * Returns the number of levels of the resolution pyramid. Level 0 holds
+     * the full resolution, every further level halves width and height.
+     * 
+     * @return Number of levels
+     */
+    public int getNumLevels() {
+        return pyramid.getNumLevels();
+    }
 
-                // get the minimum and maximum value from current data
-                float minValue = Float.MAX_VALUE;
-                float maxValue = Float.MIN_VALUE;
+    /**
+     * Returns the image data of the specified area at the given level of the
+     * resolution pyramid.
+     * 
+     * <p>
+     * The area is given in pixels of the full resolution. The image data
+     * covers the area, rounded outwards to pixels of the level. Pixels outside
+     * of the image are 0.
+     * 
+     * @param level
+     *            Level of the resolution pyramid, 0 for full resolution.
+     * @param x
+     *            X pixel coordinate of the top left point of the region.
+     * @param y
+     *            Y pixel coordinate of the top left point of the region.
+     * @param height
+     *            Height in pixel of the region.
+     * @param width
+     *            Width in pixel of the region.
+     * @return Single channel image data of the specified area or null if the
+     *         width or height parameter is less than 1 pixel.
+     */
+    public ImageData getImageData(int level, int x, int y, int height, int width) {
 
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
 
-                        minValue = data2D[h][w] < minValue ? data2D[h][w] : minValue;
-                        maxValue = data2D[h][w] > maxValue ? data2D[h][w] : maxValue;
-                    }
-                }
+        level = Math.max(0, Math.min(level, pyramid.getNumLevels() - 1));
 
-                // transform image row data into 1D image row data
-                int counter = 0;
-                float difference = maxValue - minValue;
+        int levelX = x >> level;
+        int levelY = y >> level;
+        int levelWidth = ((x + width - 1) >> level) + 1 - levelX;
+        int levelHeight = ((y + height - 1) >> level) + 1 - levelY;
 
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-                        data[counter] = (short) (((data2D[h][w] - minValue) / difference) * 65536.0f);
-                        counter++;
-                    }
-                }
-            }
+        Object samples = pyramid.getRegion(level, levelX, levelY, levelWidth, levelHeight);
 
-            // create buffered image from row data
-            SingleChannelShortImageData imageData = new SingleChannelShortImageData(width, height, 16, data, new ColorMask());
-            image = imageData.getBufferedImage();
+        if (samples instanceof byte[]) {
+            return new SingleChannelByte8ImageData(levelWidth, levelHeight, (byte[]) samples, new ColorMask());
+        } else {
+            return new SingleChannelShortImageData(levelWidth, levelHeight, 16, (short[]) samples, new ColorMask());
         }
     }
 
@@ -232,17 +366,12 @@ public class FITSImage implements MetaDataContainer {
      * */
     public BufferedImage getImage(int x, int y, int height, int width) {
 
-        // check parameters and image source
-        if (image == null || width <= 0 || height <= 0) {
+        ImageData imageData = getImageData(0, x, y, height, width);
+        if (imageData == null) {
             return null;
         }
 
-        // create new buffered image with requested region
-        BufferedImage subImage = new BufferedImage(width, height, image.getType());
-        subImage.getGraphics().drawImage(image.getSubimage(x, y, width, height), 0, 0, null);
-
-        // return new buffered image
-        return subImage;
+        return ((JavaBufferedImageData) imageData).getBufferedImage();
     }
 
     /**
@@ -251,6 +380,17 @@ public class FITSImage implements MetaDataContainer {
      * @return XML string including all FITS header information.
      * */
     public String getHeaderAsXML() {
+        return getHeaderAsXML(header);
+    }
+
+    /**
+     * Returns the given FITS header as XML string.
+     * 
+     * @param header
+     *            the FITS header
+     * @return XML string including all information of the header.
+     */
+    static String getHeaderAsXML(Header header) {
 
         final String sep = System.getProperty("line.separator");
         StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + sep + "<meta>" + sep + "<fits>" + sep);
@@ -297,10 +437,10 @@ public class FITSImage implements MetaDataContainer {
      */
     public int getPixelHeight() {
 
-        if (image == null)
+        if (dataUnit == null)
             return 0;
 
-        return image.getHeight();
+        return dataUnit.getHeight();
     }
 
     /**
@@ -308,10 +448,10 @@ public class FITSImage implements MetaDataContainer {
      */
     public int getPixelWidth() {
 
-        if (image == null)
+        if (dataUnit == null)
             return 0;
 
-        return image.getWidth();
+        return dataUnit.getWidth();
     }
     
     /**
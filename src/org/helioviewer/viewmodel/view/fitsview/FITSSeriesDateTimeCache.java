@@ -0,0 +1,75 @@
+package org.helioviewer.viewmodel.view.fitsview;
+
+import java.io.File;
+
+import nom.tam.fits.Header;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.cache.DateTimeCache;
+import org.helioviewer.viewmodel.view.cache.HelioviewerDateTimeCache;
+import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
+
+/**
+ * Implementation of DateTimeCache for a series of FITS files.
+ *
+ * <p>
+ * The time stamp of a frame is read from the header of its file, the data
+ * unit is not touched. The keyword DATE-OBS is preferred over DATE_OBS. If
+ * the date does not contain the time, it is taken from TIME-OBS or TIME_OBS.
+ *
+ * <p>
+ * Frames whose header cannot be read get the time stamp 0, so that the
+ * parsing does not stall on a broken file.
+ */
+class FITSSeriesDateTimeCache extends DateTimeCache {
+
+    private final File[] files;
+
+    /**
+     * Default constructor.
+     *
+     * @param _parent
+     *            the cached movie view
+     * @param _files
+     *            the files of the frames, the first frame first
+     */
+    FITSSeriesDateTimeCache(CachedMovieView _parent, File[] _files) {
+        super(_parent);
+        files = _files;
+    }
+
+    /**
+     * {@inheritDoc} This class implements this function for FITS headers.
+     */
+    protected ImmutableDateTime parseDateTime(int frameNumber) {
+        try {
+            Header header = FITSImage.readHeader(files[frameNumber]);
+
+            String observedDate = getValue(header, "DATE-OBS", "DATE_OBS");
+            if (observedDate != null && observedDate.indexOf('T') < 0) {
+                String observedTime = getValue(header, "TIME-OBS", "TIME_OBS");
+                if (observedTime != null) {
+                    observedDate += "T" + observedTime;
+                }
+            }
+            return HelioviewerDateTimeCache.parseDateTime(observedDate);
+
+        } catch (Exception e) {
+            Log.warn("FITSSeriesDateTimeCache: Cannot read header of " + files[frameNumber], e);
+            return new ImmutableDateTime(0, 0, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Returns the trimmed value of the first of the given keywords present in
+     * the header.
+     */
+    private static String getValue(Header _header, String _key, String _alternativeKey) {
+        String value = _header.getStringValue(_key);
+        if (value == null) {
+            value = _header.getStringValue(_alternativeKey);
+        }
+        return value != null ? value.trim() : null;
+    }
+}
@@ -0,0 +1,257 @@
+package org.helioviewer.viewmodel.view.fitsview;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolution pyramid of a FITS image, which is built lazily tile by tile.
+ *
+ * <p>
+ * Level 0 holds the full resolution, every further level halves the width and
+ * the height by averaging 2x2 pixels of the level below. The last level fits
+ * into a single tile. A tile of level 0 is converted from the data unit when
+ * it is needed for the first time, a tile of any other level is computed from
+ * the at most four tiles below it. Thus, an overview of the image reads every
+ * sample exactly once, while a detail view only reads the samples it shows.
+ *
+ * <p>
+ * The tiles are kept in a cache, whose budget is given in megabytes by the
+ * system property {@link #BUDGET_PROPERTY} and limited to a quarter of the
+ * maximum heap size. When the budget is exceeded, the least recently used
+ * tiles are dropped and computed again on demand.
+ */
+class FITSTilePyramid {
+
+    /** System property with the budget of the tile cache in megabytes */
+    static final String BUDGET_PROPERTY = "jhv.fits.tilecache";
+
+    /** Width and height of a tile */
+    static final int TILE_SIZE = 512;
+
+    /** Default budget in megabytes */
+    private static final long DEFAULT_BUDGET = 128;
+
+    private static final long budget = readBudget();
+
+    private final FITSDataUnit data;
+    private final int numLevels;
+
+    /** Tiles by level and position, the least recently used one first */
+    private final LinkedHashMap<Long, Object> tiles = new LinkedHashMap<Long, Object>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * Creates the pyramid, no tile is computed yet.
+     *
+     * @param _data
+     *            the data unit of the image
+     */
+    FITSTilePyramid(FITSDataUnit _data) {
+        data = _data;
+
+        int levels = 1;
+        while (Math.max(getLevelSize(data.getWidth(), levels - 1), getLevelSize(data.getHeight(), levels - 1)) > TILE_SIZE) {
+            levels++;
+        }
+        numLevels = levels;
+    }
+
+    private static long readBudget() {
+        long megabytes = DEFAULT_BUDGET;
+        String value = System.getProperty(BUDGET_PROPERTY);
+        if (value != null) {
+            try {
+                megabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Math.max(0, Math.min(megabytes * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Returns the size of a dimension of the image at the given level.
+     */
+    private static int getLevelSize(int _size, int _level) {
+        return _size > 0 ? ((_size - 1) >> _level) + 1 : 0;
+    }
+
+    /**
+     * @return Number of levels, at least 1
+     */
+    int getNumLevels() {
+        return numLevels;
+    }
+
+    /**
+     * Returns whether the samples are 8 bit.
+     *
+     * @return True for 8 bit samples, false for 16 bit samples
+     */
+    boolean isByte() {
+        return data.isByte();
+    }
+
+    /**
+     * Copies a region of a level into a new array. Pixels outside of the
+     * image are 0.
+     *
+     * @param _level
+     *            the level
+     * @param _x
+     *            first column of the region, in pixels of the level
+     * @param _y
+     *            first row of the region, in pixels of the level
+     * @param _width
+     *            width of the region
+     * @param _height
+     *            height of the region
+     * @return byte[] or short[] array of the size of the region
+     */
+    synchronized Object getRegion(int _level, int _x, int _y, int _width, int _height) {
+        Object output = data.isByte() ? new byte[_width * _height] : new short[_width * _height];
+
+        int levelWidth = getLevelSize(data.getWidth(), _level);
+        int levelHeight = getLevelSize(data.getHeight(), _level);
+        int x0 = Math.max(_x, 0);
+        int y0 = Math.max(_y, 0);
+        int x1 = Math.min(_x + _width, levelWidth);
+        int y1 = Math.min(_y + _height, levelHeight);
+
+        for (int ty = y0 / TILE_SIZE; ty * TILE_SIZE < y1; ty++) {
+            for (int tx = x0 / TILE_SIZE; tx * TILE_SIZE < x1; tx++) {
+                Object tile = getTile(_level, tx, ty);
+                int tileWidth = Math.min(TILE_SIZE, levelWidth - tx * TILE_SIZE);
+
+                int fromX = Math.max(x0, tx * TILE_SIZE);
+                int toX = Math.min(x1, (tx + 1) * TILE_SIZE);
+                int fromY = Math.max(y0, ty * TILE_SIZE);
+                int toY = Math.min(y1, (ty + 1) * TILE_SIZE);
+
+                for (int y = fromY; y < toY; y++) {
+                    System.arraycopy(tile, (y - ty * TILE_SIZE) * tileWidth + fromX - tx * TILE_SIZE, output, (y - _y) * _width + fromX - _x, toX - fromX);
+                }
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Returns a tile, computing it if it is not cached.
+     */
+    private Object getTile(int _level, int _tx, int _ty) {
+        Long key = ((long) _level << 48) | ((long) _ty << 24) | _tx;
+        Object tile = tiles.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        int levelWidth = getLevelSize(data.getWidth(), _level);
+        int levelHeight = getLevelSize(data.getHeight(), _level);
+        int tileWidth = Math.min(TILE_SIZE, levelWidth - _tx * TILE_SIZE);
+        int tileHeight = Math.min(TILE_SIZE, levelHeight - _ty * TILE_SIZE);
+
+        if (_level == 0) {
+            if (data.isByte()) {
+                byte[] samples = new byte[tileWidth * tileHeight];
+                data.read(_tx * TILE_SIZE, _ty * TILE_SIZE, tileWidth, tileHeight, samples);
+                tile = samples;
+            } else {
+                short[] samples = new short[tileWidth * tileHeight];
+                data.read(_tx * TILE_SIZE, _ty * TILE_SIZE, tileWidth, tileHeight, samples);
+                tile = samples;
+            }
+        } else {
+            tile = downsample(_level, _tx, _ty, tileWidth, tileHeight);
+        }
+
+        put(key, tile, (long) tileWidth * tileHeight * (data.isByte() ? 1 : 2));
+        return tile;
+    }
+
+    /**
+     * Computes a tile by averaging 2x2 pixels of the tiles of the level below.
+     * At the right and bottom border, only the pixels within the image are
+     * averaged.
+     */
+    private Object downsample(int _level, int _tx, int _ty, int _tileWidth, int _tileHeight) {
+        int[] sum = new int[_tileWidth * _tileHeight];
+        byte[] count = new byte[_tileWidth * _tileHeight];
+
+        int childLevelWidth = getLevelSize(data.getWidth(), _level - 1);
+        int childLevelHeight = getLevelSize(data.getHeight(), _level - 1);
+
+        for (int cy = 2 * _ty; cy <= 2 * _ty + 1 && cy * TILE_SIZE < childLevelHeight; cy++) {
+            for (int cx = 2 * _tx; cx <= 2 * _tx + 1 && cx * TILE_SIZE < childLevelWidth; cx++) {
+                Object child = getTile(_level - 1, cx, cy);
+                int childWidth = Math.min(TILE_SIZE, childLevelWidth - cx * TILE_SIZE);
+                int childHeight = Math.min(TILE_SIZE, childLevelHeight - cy * TILE_SIZE);
+
+                // offset of the child within the tile, in pixels of the tile
+                int offsetX = (cx - 2 * _tx) * TILE_SIZE / 2;
+                int offsetY = (cy - 2 * _ty) * TILE_SIZE / 2;
+
+                for (int y = 0; y < childHeight; y++) {
+                    int index = (offsetY + (y >> 1)) * _tileWidth + offsetX;
+                    int childIndex = y * childWidth;
+
+                    if (child instanceof byte[]) {
+                        byte[] samples = (byte[]) child;
+                        for (int x = 0; x < childWidth; x++) {
+                            sum[index + (x >> 1)] += samples[childIndex + x] & 0xFF;
+                            count[index + (x >> 1)]++;
+                        }
+                    } else {
+                        short[] samples = (short[]) child;
+                        for (int x = 0; x < childWidth; x++) {
+                            sum[index + (x >> 1)] += samples[childIndex + x] & 0xFFFF;
+                            count[index + (x >> 1)]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (data.isByte()) {
+            byte[] tile = new byte[sum.length];
+            for (int i = 0; i < sum.length; i++) {
+                tile[i] = (byte) ((sum[i] + (count[i] >> 1)) / count[i]);
+            }
+            return tile;
+        } else {
+            short[] tile = new short[sum.length];
+            for (int i = 0; i < sum.length; i++) {
+                tile[i] = (short) ((sum[i] + (count[i] >> 1)) / count[i]);
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * Stores a tile, dropping the least recently used tiles if the budget is
+     * exceeded.
+     */
+    private void put(Long _key, Object _tile, long _size) {
+        if (budget == 0) {
+            return;
+        }
+
+        tiles.put(_key, _tile);
+        bytes += _size;
+
+        Iterator<Map.Entry<Long, Object>> iterator = tiles.entrySet().iterator();
+        while (bytes > budget && tiles.size() > 1 && iterator.hasNext()) {
+            Object tile = iterator.next().getValue();
+            bytes -= tile instanceof byte[] ? ((byte[]) tile).length : 2L * ((short[]) tile).length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops all tiles.
+     */
+    synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,718 @@
+package org.helioviewer.viewmodel.view.fitsview;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.changeevent.ChangeEvent;
+import org.helioviewer.viewmodel.changeevent.PlayStateChangedReason;
+import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
+import org.helioviewer.viewmodel.changeevent.TimestampChangedReason;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.metadata.ObserverMetaData;
+import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.LinkedMovieManager;
+import org.helioviewer.viewmodel.view.TimedMovieView;
+import org.helioviewer.viewmodel.view.cache.DateTimeCache;
+import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
+import org.helioviewer.viewmodel.view.jp2view.JHVJPXView.SpeedType;
+import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
+
+/**
+ * Implementation of TimedMovieView for a directory of FITS files.
+ *
+ * <p>
+ * Every FITS file of the directory is one frame, the frames are sorted by
+ * file name. The time stamps are read from the headers in the background, see
+ * {@link FITSSeriesDateTimeCache}. The geometry of all frames is taken from
+ * the first one, as for JPX files.
+ *
+ * <p>
+ * The current area of the frames is decoded ahead of the play cursor into a
+ * bounded cache, which also reports the cache status shown by the movie
+ * panel, see {@link FITSFrameCache}. A frame missing in the cache is decoded
+ * when it is shown.
+ *
+ * <p>
+ * For information about image series, see
+ * {@link org.helioviewer.viewmodel.view.MovieView} and
+ * {@link org.helioviewer.viewmodel.view.TimedMovieView}.
+ */
+public class JHVFITSSeriesView extends JHVFITSView implements TimedMovieView, CachedMovieView {
+
+    private final File[] files;
+
+    // Caching, both are null while the first frame is read
+    private FITSFrameCache frameCache;
+    private DateTimeCache dateTimeCache;
+    private final boolean isCopy;
+
+    /** Serializes reading the sub image, so that it fits the region */
+    private final Object frameLock = new Object();
+    private volatile int currentFrame = 0;
+
+    // Linking movies, if the movie is not linked, this has to be null
+    protected LinkedMovieManager linkedMovieManager;
+
+    // Playing
+    private MoviePlayer player = null;
+    private volatile AnimationMode animationMode = AnimationMode.LOOP;
+    private volatile SpeedType speedType = SpeedType.RELATIV;
+    private volatile int movieSpeed = 20;
+    private volatile float actualFramerate = 0.0f;
+
+    /**
+     * Constructor which opens all FITS files of a local directory.
+     *
+     * @param uri
+     *            Specifies the location of the directory.
+     * @throws IOException
+     *             when the directory contains no FITS files or the first one
+     *             cannot be read.
+     */
+    public JHVFITSSeriesView(URI uri) throws IOException {
+        this(uri, listFrames(uri));
+    }
+
+    /**
+     * Constructor which uses the frames of a given series. The time stamps
+     * are shared, the frames are cached separately.
+     *
+     * @param source
+     *            series to copy
+     */
+    public JHVFITSSeriesView(JHVFITSSeriesView source) {
+        super(source.getFITSImage(), source.getUri());
+
+        files = source.files;
+        frameCache = new FITSFrameCache(this, files, fits);
+        dateTimeCache = source.dateTimeCache;
+        isCopy = true;
+
+        updateSubImageData();
+    }
+
+    private JHVFITSSeriesView(URI uri, File[] frames) throws IOException {
+        super(openFrame(frames[0]), uri);
+
+        files = frames;
+        frameCache = new FITSFrameCache(this, files, fits);
+        dateTimeCache = new FITSSeriesDateTimeCache(this, files);
+        isCopy = false;
+
+        updateSubImageData();
+
+        dateTimeCache.startParsing();
+    }
+
+    /**
+     * Checks whether the given file name denotes a FITS file.
+     *
+     * @param name
+     *            file name
+     * @return True, if the name ends with .fits or .fts
+     */
+    public static boolean isFITSFile(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(".fits") || lowerCaseName.endsWith(".fts");
+    }
+
+    /**
+     * Lists the FITS files of a local directory, sorted by name.
+     */
+    private static File[] listFrames(URI uri) throws IOException {
+        if (!uri.getScheme().equalsIgnoreCase("file"))
+            throw new IOException("FITS series do not support the " + uri.getScheme() + " protocol");
+
+        File[] frames = new File(uri).listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && isFITSFile(file.getName());
+            }
+        });
+
+        if (frames == null || frames.length == 0)
+            throw new IOException("The directory contains no FITS files.");
+
+        Arrays.sort(frames);
+        return frames;
+    }
+
+    /**
+     * Opens the given frame completely.
+     */
+    private static FITSImage openFrame(File file) throws IOException {
+        try {
+            return new FITSImage(file.toURI().toURL().toString());
+        } catch (Exception e) {
+            throw new IOException("FITS image data cannot be accessed.");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The sub image is replaced while holding the frame lock, so that it
+     * cannot be overwritten by the sub image of an older frame or region.
+     */
+    protected void updateSubImageData() {
+        if (frameCache == null) {
+            super.updateSubImageData();
+            return;
+        }
+
+        synchronized (frameLock) {
+            super.updateSubImageData();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reads the area from the frame cache, which decodes the following frames
+     * in the background.
+     */
+    protected ImageData readSubImageData(int level, int x, int y, int height, int width) {
+        if (frameCache == null) {
+            return super.readSubImageData(level, x, y, height, width);
+        }
+
+        ImageData data;
+        synchronized (frameLock) {
+            frameCache.setParameters(level, x, y, height, width);
+            data = frameCache.getFrame(currentFrame);
+        }
+        frameCache.prefetch();
+
+        return data;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Returns the header of the current frame.
+     */
+    public String getHeaderAsXML() {
+        try {
+            return FITSImage.getHeaderAsXML(FITSImage.readHeader(files[currentFrame]));
+        } catch (Exception e) {
+            Log.warn("JHVFITSSeriesView: Cannot read header of " + files[currentFrame], e);
+            return super.getHeaderAsXML();
+        }
+    }
+
+    /**
+     * Returns the file of a frame.
+     *
+     * @param frameNumber
+     *            the frame number
+     * @return The FITS file of the frame
+     */
+    public File getFrameFile(int frameNumber) {
+        return files[frameNumber];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void fireChangeEvent(ChangeEvent aEvent) {
+        notifyViewListeners(aEvent);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DateTimeCache getDateTimeCache() {
+        return dateTimeCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ImageCacheStatus getImageCacheStatus() {
+        return frameCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setCurrentFrame(int frameNumber, ChangeEvent event) {
+        setCurrentFrame(frameNumber, event, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setCurrentFrame(int frameNumber, ChangeEvent event, boolean forceSignal) {
+
+        frameNumber = Math.max(0, Math.min(getMaximumFrameNumber(), frameNumber));
+
+        if (forceSignal && linkedMovieManager != null) {
+            linkedMovieManager.setCurrentFrame(getFrameDateTime(frameNumber), event, forceSignal);
+        } else {
+            boolean changed = setCurrentFrameNumber(frameNumber, event, forceSignal);
+            if (changed && linkedMovieManager != null) {
+                linkedMovieManager.setCurrentFrame(getFrameDateTime(frameNumber), event, forceSignal);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setCurrentFrame(ImmutableDateTime time, ChangeEvent event) {
+        setCurrentFrame(time, event, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setCurrentFrame(ImmutableDateTime time, ChangeEvent event, boolean forceSignal) {
+
+        if (time == null)
+            return;
+
+        if (linkedMovieManager != null && linkedMovieManager.setCurrentFrame(time, event, forceSignal)) {
+            return;
+        }
+
+        int frameNumber = dateTimeCache.getClosestFrameNumber(time.getMillis());
+        if (frameNumber < 0) {
+            return;
+        }
+
+        setCurrentFrameNumber(frameNumber, event, forceSignal);
+    }
+
+    /**
+     * Internal function for setting the current frame number.
+     *
+     * If the frame number has changed, reads the sub image of the new frame
+     * and notifies the listeners.
+     *
+     * @param frameNumber
+     *            the new frame number
+     * @param event
+     *            ChangeEvent to append new reasons to
+     * @param forceSignal
+     *            whether to notify the listeners even if the frame number has
+     *            not changed
+     * @return true, if the frame number has changed
+     */
+    protected boolean setCurrentFrameNumber(int frameNumber, ChangeEvent event, boolean forceSignal) {
+        if (frameNumber == currentFrame && !forceSignal) {
+            return false;
+        }
+
+        synchronized (frameLock) {
+            currentFrame = frameNumber;
+            ImageData data = frameCache.getFrame(frameNumber);
+            if (data != null) {
+                subImageData = data;
+            }
+        }
+        frameCache.prefetch();
+
+        if (m instanceof ObserverMetaData) {
+            ObserverMetaData observerMetaData = (ObserverMetaData) m;
+            observerMetaData.updateDateTime(dateTimeCache.getDateTime(frameNumber));
+            event.addReason(new TimestampChangedReason(this, observerMetaData.getDateTime()));
+        }
+
+        event.addReason(new SubImageDataChangedReason(this));
+        notifyViewListeners(event);
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getCurrentFrameNumber() {
+        return currentFrame;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaximumFrameNumber() {
+        return files.length - 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaximumAccessibleFrameNumber() {
+        if (dateTimeCache == null || frameCache == null) {
+            return -1;
+        }
+        return Math.min(dateTimeCache.getMetaStatus(), frameCache.getImageCachedPartiallyUntil());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ImmutableDateTime getCurrentFrameDateTime() {
+        return dateTimeCache.getDateTime(getCurrentFrameNumber());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ImmutableDateTime getFrameDateTime(int frameNumber) {
+        return dateTimeCache.getDateTime(frameNumber);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setAnimationMode(AnimationMode mode) {
+        animationMode = mode;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setDesiredRelativeSpeed(int framesPerSecond) {
+        speedType = SpeedType.RELATIV;
+        movieSpeed = Math.max(1, framesPerSecond);
+        restartPlayer();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setDesiredAbsoluteSpeed(int observationSecondsPerSecond) {
+        speedType = SpeedType.ABSOLUT;
+        movieSpeed = Math.max(1, observationSecondsPerSecond);
+        restartPlayer();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDesiredSpeed() {
+        return movieSpeed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public SpeedType getSpeedType() {
+        return speedType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void linkMovie() {
+        linkedMovieManager = LinkedMovieManager.getActiveInstance();
+        linkedMovieManager.linkMovie(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unlinkMovie() {
+        if (linkedMovieManager != null) {
+            LinkedMovieManager temp = linkedMovieManager;
+            linkedMovieManager = null;
+            temp.unlinkMovie(this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedMovieManager getLinkedMovieManager() {
+        return linkedMovieManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public float getActualFramerate() {
+        return actualFramerate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void playMovie() {
+        if (getMaximumFrameNumber() > 1) {
+            if (linkedMovieManager == null || !linkedMovieManager.playLinkedMovies()) {
+                // linked movies follow their master
+                if (linkedMovieManager == null || linkedMovieManager.isMaster(this)) {
+                    startPlayer();
+                }
+
+                // send notification
+                ChangeEvent event = new ChangeEvent(new PlayStateChangedReason(this, linkedMovieManager, true));
+                notifyViewListeners(event);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void pauseMovie() {
+        if (!isMoviePlaying()) {
+            return;
+        }
+
+        if (linkedMovieManager != null) {
+            linkedMovieManager.pauseLinkedMovies();
+        }
+
+        stopPlayer();
+
+        // send notification
+        ChangeEvent event = new ChangeEvent(new PlayStateChangedReason(this, linkedMovieManager, false));
+        notifyViewListeners(event);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isMoviePlaying() {
+        return isPlayerRunning() || (linkedMovieManager != null && linkedMovieManager.isPlaying());
+    }
+
+    /**
+     * Destroys the resources associated with this view: unlinks and stops the
+     * movie, stops parsing the time stamps and drops the cached frames. A
+     * copy leaves the time stamps to its source.
+     */
+    public void abolish() {
+        unlinkMovie();
+        pauseMovie();
+        stopPlayer();
+        if (!isCopy) {
+            dateTimeCache.stopParsing();
+        }
+        frameCache.abolish();
+    }
+
+    private synchronized boolean isPlayerRunning() {
+        return player != null;
+    }
+
+    private synchronized void startPlayer() {
+        if (player == null) {
+            player = new MoviePlayer();
+            Thread thread = new Thread(player, "FITS Movie Player");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the player thread, which may be the calling thread, e.g. when
+     * the movie stops at its end.
+     */
+    private void stopPlayer() {
+        MoviePlayer stoppedPlayer;
+        synchronized (this) {
+            stoppedPlayer = player;
+            player = null;
+        }
+
+        if (stoppedPlayer != null) {
+            stoppedPlayer.terminate();
+        }
+    }
+
+    /**
+     * Restarts the player with the new speed, so that an absolute speed is
+     * measured from the current frame.
+     */
+    private void restartPlayer() {
+        if (isPlayerRunning()) {
+            stopPlayer();
+            startPlayer();
+        }
+    }
+
+    /**
+     * Plays the movie on its own thread.
+     *
+     * <p>
+     * The next frame is chosen according to the animation mode and the
+     * speed, which is either a number of frames or a number of observation
+     * seconds per second. If this view is the master of linked movies, the
+     * other movies are updated after every frame.
+     *
+     * <p>
+     * The thread is never interrupted, since an interrupt would close the
+     * file channel of a frame being decoded. Instead, it waits on the player
+     * between two frames.
+     */
+    private class MoviePlayer implements Runnable {
+
+        private volatile boolean stop = false;
+
+        private int direction = 1;
+        private long absoluteStartTime;
+        private long systemStartTime;
+
+        public void run() {
+            resetStartTime(currentFrame);
+
+            int numFrames = 0;
+            long tini = System.currentTimeMillis();
+
+            while (!stop) {
+                long tfrm = System.currentTimeMillis();
+
+                long delay = speedType == SpeedType.ABSOLUT ? moveToNextAbsoluteFrame() : moveToNextRelativeFrame();
+                if (stop) {
+                    break;
+                }
+
+                LinkedMovieManager movieManager = linkedMovieManager;
+                if (movieManager != null && movieManager.isMaster(JHVFITSSeriesView.this)) {
+                    movieManager.updateCurrentFrameToMaster(new ChangeEvent());
+                }
+
+                numFrames++;
+                long tnow = System.currentTimeMillis();
+                if (tnow - tini >= 1000) {
+                    actualFramerate = (numFrames * 1000.0f) / (tnow - tini);
+                    tini = tnow;
+                    numFrames = 0;
+
+                    Log.debug("JHVFITSSeriesView: " + actualFramerate + " fps, " + frameCache.getNumCachedFrames() + " frames and " + frameCache.getCachedBytes() + " bytes cached, " + frameCache.getHits() + " frames from cache, " + frameCache.getMisses() + " decoded");
+                }
+
+                long sleepTime = delay - (tnow - tfrm);
+                if (sleepTime > 0) {
+                    synchronized (this) {
+                        try {
+                            if (!stop) {
+                                wait(sleepTime);
+                            }
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                } else {
+                    Thread.yield();
+                }
+            }
+            actualFramerate = 0.0f;
+        }
+
+        /**
+         * Stops the player after the current frame.
+         */
+        private synchronized void terminate() {
+            stop = true;
+            notifyAll();
+        }
+
+        private void resetStartTime(int frameNumber) {
+            if (speedType == SpeedType.ABSOLUT) {
+                absoluteStartTime = getFrameDateTime(frameNumber).getMillis();
+                systemStartTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Returns the frame following the given one according to the
+         * animation mode, -1 if the movie stops.
+         */
+        private int getNextCandidate(int lastCandidate) {
+            int last = getMaximumFrameNumber();
+
+            switch (animationMode) {
+            case STOP:
+                if (++lastCandidate > last) {
+                    return -1;
+                }
+                return lastCandidate;
+            case SWING:
+                lastCandidate += direction;
+                if (lastCandidate < 0) {
+                    direction = 1;
+                    resetStartTime(0);
+                    return 1;
+                } else if (lastCandidate > last) {
+                    direction = -1;
+                    resetStartTime(last);
+                    return last - 1;
+                }
+                return lastCandidate;
+            default:
+                if (++lastCandidate > last) {
+                    resetStartTime(0);
+                    return 0;
+                }
+                return lastCandidate;
+            }
+        }
+
+        /**
+         * Shows the next frame and returns the time to wait.
+         */
+        private long moveToNextRelativeFrame() {
+            int nextFrame = getNextCandidate(currentFrame);
+            if (nextFrame < 0) {
+                stopAtEnd();
+                return 0;
+            }
+
+            updatePlayDirection();
+            setCurrentFrameNumber(nextFrame, new ChangeEvent(), false);
+            return 1000 / movieSpeed;
+        }
+
+        /**
+         * Shows the frame closest to the elapsed observation time and returns
+         * the time to wait.
+         */
+        private long moveToNextAbsoluteFrame() {
+            int lastCandidate, nextCandidate = currentFrame;
+            long lastDiff, nextDiff = -Long.MAX_VALUE;
+
+            do {
+                lastCandidate = nextCandidate;
+                nextCandidate = getNextCandidate(nextCandidate);
+                if (nextCandidate < 0) {
+                    stopAtEnd();
+                    return 0;
+                }
+
+                lastDiff = nextDiff;
+                nextDiff = Math.abs(getFrameDateTime(nextCandidate).getMillis() - absoluteStartTime) - ((System.currentTimeMillis() - systemStartTime) * movieSpeed);
+            } while (nextDiff < 0 && !stop);
+
+            updatePlayDirection();
+            if (-lastDiff < nextDiff) {
+                setCurrentFrameNumber(lastCandidate, new ChangeEvent(), false);
+                return lastDiff / movieSpeed;
+            } else {
+                setCurrentFrameNumber(nextCandidate, new ChangeEvent(), false);
+                return nextDiff / movieSpeed;
+            }
+        }
+
+        /**
+         * Lets the frame cache decode ahead in the direction of playback.
+         */
+        private void updatePlayDirection() {
+            boolean swing = animationMode == AnimationMode.SWING;
+            frameCache.setPlayDirection(swing ? direction : 1, swing);
+        }
+
+        /**
+         * Stops the movie at its end and rewinds it, as for JPX files.
+         */
+        private void stopAtEnd() {
+            setCurrentFrameNumber(0, new ChangeEvent(), false);
+            pauseMovie();
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package org.helioviewer.viewmodel.view.fitsview;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
 
@@ -10,11 +9,7 @@ import org.helioviewer.viewmodel.changeevent.RegionChangedReason;
 import org.helioviewer.viewmodel.changeevent.RegionUpdatedReason;
 import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.viewmodel.changeevent.ViewportChangedReason;
-import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
-import org.helioviewer.viewmodel.imagedata.ColorMask;
 import org.helioviewer.viewmodel.imagedata.ImageData;
-import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
-import org.helioviewer.viewmodel.imagedata.SingleChannelShortImageData;
 import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.metadata.MetaDataConstructor;
 import org.helioviewer.viewmodel.metadata.ObserverMetaData;
@@ -40,6 +35,11 @@ import org.helioviewer.viewmodel.viewportimagesize.ViewportImageSizeAdapter;
  * For further informations about the behavior of this view,
  * {@link ImageInfoView} is a good start to get into the concept.
  * 
+ * <p>
+ * The sub image is taken from the level of the resolution pyramid of the
+ * {@link FITSImage}, which is the coarsest one still providing at least one
+ * pixel per pixel of the viewport.
+ * 
  * @author Andreas Hoelzl
  * */
 public class JHVFITSView extends AbstractView implements ViewportView, RegionView, SubimageDataView, ImageInfoView, MetaDataView {
@@ -49,6 +49,7 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
     protected FITSImage fits;
     protected ImageData subImageData;
     protected MetaData m;
+    protected int level = 0;
     private URI uri;
 
     /**
@@ -98,19 +99,11 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
 
         m = MetaDataConstructor.getMetaData(fits);
 
-        BufferedImage bi = fits.getImage(0, 0, fits.getPixelHeight(), fits.getPixelWidth());
-
-        if (bi.getColorModel().getPixelSize() <= 8) {
-            subImageData = new SingleChannelByte8ImageData(bi, new ColorMask());
-        } else if (bi.getColorModel().getPixelSize() <= 16) {
-            subImageData = new SingleChannelShortImageData(bi.getColorModel().getPixelSize(), bi, new ColorMask());
-        } else {
-            subImageData = new ARGBInt32ImageData(bi, new ColorMask());
-        }
-
         region = StaticRegion.createAdaptedRegion(m.getPhysicalLowerLeft().getX(), m.getPhysicalLowerLeft().getY(), m.getPhysicalImageSize().getX(), m.getPhysicalImageSize().getY());
 
         viewport = StaticViewport.createAdaptedViewport(100, 100);
+
+        updateSubImageData();
     }
 
     /**
@@ -120,6 +113,31 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
      *            Event that belongs to the request.
      * */
     private void updateImageData(ChangeEvent event) {
+
+        updateSubImageData();
+
+        event.addReason(new SubImageDataChangedReason(this));
+        notifyViewListeners(event);
+    }
+
+    /**
+     * Replaces the sub image by the one of the current region.
+     * 
+     * <p>
+     * Image series override this function to serialize it with changing the
+     * frame.
+     */
+    protected void updateSubImageData() {
+        subImageData = createSubImageData();
+    }
+
+    /**
+     * Reads the sub image of the current region at the resolution needed for
+     * the current viewport.
+     * 
+     * @return Sub image data
+     */
+    protected ImageData createSubImageData() {
         Region r = region;
 
         m = getMetaData();
@@ -130,23 +148,56 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
 
         Vector2dInt imagePostion = ViewHelper.calculateInnerViewportOffset(r, m.getPhysicalRegion(), new ViewportImageSizeAdapter(new StaticViewportImageSize(fits.getPixelWidth(), fits.getPixelHeight())));
 
-        BufferedImage bi = fits.getImage(imagePostion.getX(), imagePostion.getY(), (int) imageHeight, (int) imageWidth);
+        level = getResolutionLevel(imageWidth, imageHeight);
 
-        /*
-         * mageData.getSubimage(imagePostion.getX(), imagePostion.getY(), (int)
-         * imageWidth, (int) imageHeight);
-         */
+        return readSubImageData(level, imagePostion.getX(), imagePostion.getY(), (int) imageHeight, (int) imageWidth);
+    }
 
-        if (bi.getColorModel().getPixelSize() <= 8) {
-            subImageData = new SingleChannelByte8ImageData(bi, new ColorMask());
-        } else if (bi.getColorModel().getPixelSize() <= 16) {
-            subImageData = new SingleChannelShortImageData(bi.getColorModel().getPixelSize(), bi, new ColorMask());
-        } else {
-            subImageData = new ARGBInt32ImageData(bi, new ColorMask());
+    /**
+     * Reads the image data of the given area from the FITS image.
+     * 
+     * <p>
+     * Image series override this function to serve the area of their current
+     * frame.
+     * 
+     * @param level
+     *            Level of the resolution pyramid
+     * @param x
+     *            X pixel coordinate of the top left point of the area
+     * @param y
+     *            Y pixel coordinate of the top left point of the area
+     * @param height
+     *            Height in pixels of the area
+     * @param width
+     *            Width in pixels of the area
+     * @return Image data of the area
+     * @see FITSImage#getImageData(int, int, int, int, int)
+     */
+    protected ImageData readSubImageData(int level, int x, int y, int height, int width) {
+        return fits.getImageData(level, x, y, height, width);
+    }
+
+    /**
+     * Returns the coarsest level of the resolution pyramid, which provides at
+     * least as many pixels as the viewport for the given area.
+     * 
+     * @param imageWidth
+     *            width of the area in pixels of the full resolution
+     * @param imageHeight
+     *            height of the area in pixels of the full resolution
+     * @return Level of the resolution pyramid
+     */
+    private int getResolutionLevel(long imageWidth, long imageHeight) {
+        Viewport v = viewport;
+        if (v == null || v.getWidth() <= 0 || v.getHeight() <= 0) {
+            return 0;
         }
 
-        event.addReason(new SubImageDataChangedReason(this));
-        notifyViewListeners(event);
+        int resolutionLevel = 0;
+        while (resolutionLevel + 1 < fits.getNumLevels() && (imageWidth >> (resolutionLevel + 1)) >= v.getWidth() && (imageHeight >> (resolutionLevel + 1)) >= v.getHeight()) {
+            resolutionLevel++;
+        }
+        return resolutionLevel;
     }
 
     /**
@@ -167,6 +218,16 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
 
         viewport = v;
         event.addReason(new ViewportChangedReason(this, v));
+
+        // read the sub image again, if the resolution does not fit anymore
+        if (region != null && m != null) {
+            double imageMeterPerPixel = m.getPhysicalImageWidth() / fits.getPixelWidth();
+            if (getResolutionLevel(Math.round(region.getWidth() / imageMeterPerPixel), Math.round(region.getHeight() / imageMeterPerPixel)) != level) {
+                updateImageData(event);
+                return true;
+            }
+        }
+
         notifyViewListeners(event);
 
         return true;
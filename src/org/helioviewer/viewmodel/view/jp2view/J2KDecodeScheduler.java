@@ -0,0 +1,199 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.helioviewer.base.math.MathUtils;
+
+/**
+ * Distributes the decoding of a sub image across a worker pool shared by all
+ * J2KRender threads.
+ *
+ * The requested region is split into horizontal stripes, each of which is
+ * decoded by a separate compositor. Since the workers are shared, the number
+ * of open images does not restrict the parallelism, the decoding of several
+ * layers simply queues up.
+ *
+ * Besides, the class provides the bulk routine which extracts the samples of
+ * single channel images. Its loop is kept free of any conditional, so that
+ * the JIT compiler can vectorize it. ARGB values are written into the output
+ * buffer by the compositor directly.
+ *
+ * The number of stripes may be limited with the system property
+ * {@link #STRIPES_PROPERTY}, a value of 1 disables the striped decoding.
+ */
+class J2KDecodeScheduler {
+
+    /** System property limiting the number of stripes per sub image */
+    static final String STRIPES_PROPERTY = "jhv.render.stripes";
+
+    /** Minimum number of pixels per stripe, smaller regions are not split */
+    static final int MIN_STRIPE_PIXELS = 128 * 128;
+
+    /** Minimum number of rows per stripe */
+    static final int MIN_STRIPE_HEIGHT = 32;
+
+    private static final int numWorkers = MathUtils.squeezeToInterval(Runtime.getRuntime().availableProcessors(), 1, 8);
+
+    private static final int maxStripes = readMaxStripes();
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "J2KDecode-" + (count++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private J2KDecodeScheduler() {
+    }
+
+    private static int readMaxStripes() {
+        int stripes = numWorkers;
+        String value = System.getProperty(STRIPES_PROPERTY);
+        if (value != null) {
+            try {
+                stripes = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return MathUtils.squeezeToInterval(stripes, 1, numWorkers);
+    }
+
+    /**
+     * Returns the maximum number of stripes a sub image is split into.
+     *
+     * @return Maximum number of stripes, 1 if striped decoding is disabled
+     */
+    static int getMaxStripes() {
+        return maxStripes;
+    }
+
+    /**
+     * Returns the number of stripes a region of the given size should be split
+     * into.
+     *
+     * @param _width
+     *            width of the region
+     * @param _height
+     *            height of the region
+     * @return Number of stripes, 1 if the region should not be split
+     */
+    static int getNumStripes(int _width, int _height) {
+        long pixels = (long) _width * _height;
+        long stripes = Math.min(pixels / MIN_STRIPE_PIXELS, _height / MIN_STRIPE_HEIGHT);
+        return (int) Math.max(1, Math.min(maxStripes, stripes));
+    }
+
+    /**
+     * Returns the first row of a stripe. The rows are distributed evenly, the
+     * stripe i covers the rows from getStripeStart(i) up to
+     * getStripeStart(i + 1).
+     *
+     * @param _stripe
+     *            index of the stripe, may be equal to the number of stripes
+     * @param _numStripes
+     *            number of stripes
+     * @param _height
+     *            height of the region
+     * @return First row of the stripe relative to the region
+     */
+    static int getStripeStart(int _stripe, int _numStripes, int _height) {
+        return (int) ((long) _stripe * _height / _numStripes);
+    }
+
+    /**
+     * Returns the index in the output buffer of the first pixel of a region
+     * processed by a compositor.
+     *
+     * @param _regionX
+     *            left border of the region relative to the composition buffer
+     * @param _regionY
+     *            upper border of the region relative to the composition buffer
+     * @param _bufferY
+     *            first row of the composition buffer relative to the sub
+     *            image, which is the first row of the stripe
+     * @param _width
+     *            width of the sub image
+     * @return Index of the first pixel in the output buffer
+     */
+    static int getDestinationIndex(int _regionX, int _regionY, int _bufferY, int _width) {
+        return _regionX + (_regionY + _bufferY) * _width;
+    }
+
+    /**
+     * Runs the given tasks on the worker pool and waits until all of them
+     * have finished, even if the calling thread is interrupted meanwhile. The
+     * interrupt status is restored afterwards, so that the caller may react to
+     * it as before.
+     *
+     * @param _tasks
+     *            the decoding tasks
+     * @throws Exception
+     *             the first exception thrown by a task
+     */
+    static void invokeAll(List<? extends Callable<Void>> _tasks) throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(_tasks.size());
+        for (Callable<Void> task : _tasks)
+            futures.add(workers.submit(task));
+
+        boolean interrupted = false;
+        Exception failure = null;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    break;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Extracts the 8 bit samples of a single channel image from the ARGB
+     * values returned by the compositor.
+     *
+     * @param _src
+     *            the ARGB values
+     * @param _srcPos
+     *            index of the first value
+     * @param _srcStride
+     *            number of values per source row
+     * @param _dest
+     *            the output buffer
+     * @param _destPos
+     *            index of the first sample
+     * @param _destStride
+     *            number of samples per output row
+     * @param _width
+     *            number of samples per row to copy
+     * @param _height
+     *            number of rows to copy
+     */
+    static void extractChannel(int[] _src, int _srcPos, int _srcStride, byte[] _dest, int _destPos, int _destStride, int _width, int _height) {
+        for (int row = 0; row < _height; row++, _srcPos += _srcStride, _destPos += _destStride) {
+            for (int col = 0; col < _width; col++) {
+                _dest[_destPos + col] = (byte) (_src[_srcPos + col] >> 8);
+            }
+        }
+    }
+}
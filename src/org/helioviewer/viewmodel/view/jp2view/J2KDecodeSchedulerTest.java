@@ -0,0 +1,125 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that decoding a sub image in stripes assembles the same output as
+ * decoding it at once.
+ *
+ * The Kakadu compositor is replaced by a simulated composition buffer, which
+ * is processed in increments of a few rows and columns, as the compositor
+ * does. Like the compositor, the buffer rejects regions outside of it.
+ */
+public class J2KDecodeSchedulerTest {
+
+    private static final int X = 37;
+    private static final int Y = 53;
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 257;
+
+    /** Sample of the composition at the given position */
+    private static int sample(int _x, int _y) {
+        return ((_x * 31 + _y * 17) & 0xFFFF) << 8 | 0xFF000000;
+    }
+
+    /**
+     * Composition buffer covering the rows of a stripe, which hands out
+     * regions given relative to the buffer.
+     */
+    private static class Buffer {
+        final int x, y, width, height;
+
+        Buffer(int _x, int _y, int _width, int _height) {
+            x = _x;
+            y = _y;
+            width = _width;
+            height = _height;
+        }
+
+        /** As Kdu_compositor_buf.Get_region with an output stride */
+        void getRegion(int _x, int _y, int _width, int _height, int[] _dest, int _destPos, int _destStride) {
+            assertTrue("region outside of the buffer", _x >= 0 && _y >= 0 && _x + _width <= width && _y + _height <= height);
+            for (int row = 0; row < _height; row++)
+                for (int col = 0; col < _width; col++)
+                    _dest[_destPos + row * _destStride + col] = sample(x + _x + col, y + _y + row);
+        }
+    }
+
+    /**
+     * Decodes the rows of a stripe as J2KStripeDecoder and J2KRender do,
+     * processing increments given in composition coordinates.
+     */
+    private static void decode(int _stripeY, int _stripeHeight, byte[] _byteBuffer, int[] _intBuffer) {
+        Buffer buffer = new Buffer(X, Y + _stripeY, WIDTH, _stripeHeight);
+        int[] local = new int[0];
+
+        for (int y = 0; y < _stripeHeight; y += 7) {
+            int height = Math.min(7, _stripeHeight - y);
+            for (int x = 0; x < WIDTH; x += 64) {
+                int width = Math.min(64, WIDTH - x);
+
+                // the processed region, relative to the buffer
+                int newX = (X + x) - buffer.x;
+                int newY = (Y + _stripeY + y) - buffer.y;
+                int destIdx = J2KDecodeScheduler.getDestinationIndex(newX, newY, _stripeY, WIDTH);
+
+                if (_byteBuffer != null) {
+                    local = width * height > local.length ? new int[width * height] : local;
+                    buffer.getRegion(newX, newY, width, height, local, 0, width);
+                    J2KDecodeScheduler.extractChannel(local, 0, width, _byteBuffer, destIdx, WIDTH, width, height);
+                } else {
+                    buffer.getRegion(newX, newY, width, height, _intBuffer, destIdx, WIDTH);
+                }
+            }
+        }
+    }
+
+    private static void decodeStripes(int _numStripes, byte[] _byteBuffer, int[] _intBuffer) {
+        for (int i = 0; i < _numStripes; i++) {
+            int stripeY = J2KDecodeScheduler.getStripeStart(i, _numStripes, HEIGHT);
+            int stripeHeight = J2KDecodeScheduler.getStripeStart(i + 1, _numStripes, HEIGHT) - stripeY;
+            decode(stripeY, stripeHeight, _byteBuffer, _intBuffer);
+        }
+    }
+
+    @Test
+    public void testStripesCoverRegion() {
+        for (int numStripes = 1; numStripes <= 9; numStripes++) {
+            assertEquals(0, J2KDecodeScheduler.getStripeStart(0, numStripes, HEIGHT));
+            assertEquals(HEIGHT, J2KDecodeScheduler.getStripeStart(numStripes, numStripes, HEIGHT));
+        }
+    }
+
+    @Test
+    public void testStripedIntDecode() {
+        int[] expected = new int[WIDTH * HEIGHT];
+        decode(0, HEIGHT, null, expected);
+
+        for (int numStripes = 2; numStripes <= 9; numStripes++) {
+            int[] striped = new int[WIDTH * HEIGHT];
+            decodeStripes(numStripes, null, striped);
+            assertArrayEquals("stripes: " + numStripes, expected, striped);
+        }
+    }
+
+    @Test
+    public void testStripedByteDecode() {
+        byte[] expected = new byte[WIDTH * HEIGHT];
+        decode(0, HEIGHT, expected, null);
+
+        for (int numStripes = 2; numStripes <= 9; numStripes++) {
+            byte[] striped = new byte[WIDTH * HEIGHT];
+            decodeStripes(numStripes, striped, null);
+            assertArrayEquals("stripes: " + numStripes, expected, striped);
+        }
+
+        // the output is the composition itself
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals((byte) (sample(X + x, Y + y) >> 8), expected[y * WIDTH + x]);
+    }
+}
@@ -0,0 +1,234 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Recycles the pixel buffers the J2KRender decodes into.
+ *
+ * A buffer is handed downstream wrapped in an ImageData object when it is
+ * published. The view chain and the display may still use the last
+ * {@link #PROTECTED_FRAMES} published buffers, older ones are returned to the
+ * pool and reused for the next frame of the same size. Thus, playing a movie
+ * only allocates buffers until the pool has filled up, and whenever the size
+ * of the sub image changes.
+ *
+ * Besides, the pool collects metrics about the allocations: the number of
+ * allocated and reused buffers and, if the JVM supports it, the bytes
+ * allocated by the render thread and the garbage collections per frame.
+ *
+ * The pool is used by the render thread only, the metrics may be read by any
+ * thread.
+ */
+class J2KFrameBufferPool {
+
+    /** Number of published buffers, which may still be in use */
+    static final int PROTECTED_FRAMES = 2;
+
+    /** Buffers which were published, the latest one last */
+    private final LinkedList<Object> published = new LinkedList<Object>();
+
+    /** Buffers which can be reused */
+    private final ArrayList<Object> free = new ArrayList<Object>();
+
+    /** Length of the buffers requested last */
+    private int currentLength = -1;
+
+    private volatile long allocatedBuffers = 0;
+    private volatile long allocatedBytes = 0;
+    private volatile long reusedBuffers = 0;
+
+    private volatile long frames = 0;
+    private volatile double allocatedBytesPerFrame = -1;
+    private volatile double collectionsPerFrame = -1;
+
+    private long sampleFrames = 0;
+    private long sampleThreadBytes = -1;
+    private long sampleCollections = -1;
+
+    /**
+     * Returns a byte buffer of the given length. A reused buffer is cleared,
+     * if requested.
+     *
+     * @param length
+     *            number of pixels
+     * @param clear
+     *            whether a reused buffer has to be filled with zeros
+     * @return A byte buffer
+     */
+    byte[] acquireBytes(int length, boolean clear) {
+        byte[] buffer = (byte[]) reuse(length, byte[].class);
+        if (buffer == null) {
+            buffer = new byte[length];
+            allocatedBuffers++;
+            allocatedBytes += length;
+        } else if (clear) {
+            Arrays.fill(buffer, (byte) 0);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns an integer buffer of the given length. A reused buffer is
+     * cleared, if requested.
+     *
+     * @param length
+     *            number of pixels
+     * @param clear
+     *            whether a reused buffer has to be filled with zeros
+     * @return An integer buffer
+     */
+    int[] acquireInts(int length, boolean clear) {
+        int[] buffer = (int[]) reuse(length, int[].class);
+        if (buffer == null) {
+            buffer = new int[length];
+            allocatedBuffers++;
+            allocatedBytes += 4l * length;
+        } else if (clear) {
+            Arrays.fill(buffer, 0);
+        }
+        return buffer;
+    }
+
+    private Object reuse(int length, Class<?> type) {
+        if (length != currentLength) {
+            // the buffers of the former size are not needed anymore
+            free.clear();
+            currentLength = length;
+        }
+
+        for (int i = free.size() - 1; i >= 0; i--) {
+            Object buffer = free.get(i);
+            if (buffer.getClass() == type) {
+                free.remove(i);
+                reusedBuffers++;
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands a buffer downstream. The oldest published buffer, which is no
+     * longer protected, is returned to the pool.
+     *
+     * @param buffer
+     *            the published buffer
+     * @param recyclable
+     *            false, if the consumer may keep the buffer, e.g. while
+     *            exporting a movie
+     */
+    void publish(Object buffer, boolean recyclable) {
+        frames++;
+        if (!recyclable) {
+            // nothing published before may be reused either
+            published.clear();
+            return;
+        }
+
+        published.addLast(buffer);
+        while (published.size() > PROTECTED_FRAMES) {
+            Object old = published.removeFirst();
+            if (old instanceof byte[] ? ((byte[]) old).length == currentLength : ((int[]) old).length == currentLength)
+                free.add(old);
+        }
+    }
+
+    /**
+     * Drops all buffers.
+     */
+    void clear() {
+        published.clear();
+        free.clear();
+        currentLength = -1;
+    }
+
+    /**
+     * Updates the per frame metrics of the render thread. Should be called by
+     * the render thread about once per second.
+     */
+    void sample() {
+        long threadBytes = getThreadAllocatedBytes();
+        long collections = getCollectionCount();
+        long n = frames - sampleFrames;
+
+        if (n > 0) {
+            if (threadBytes >= 0 && sampleThreadBytes >= 0)
+                allocatedBytesPerFrame = (double) (threadBytes - sampleThreadBytes) / n;
+            if (collections >= 0 && sampleCollections >= 0)
+                collectionsPerFrame = (double) (collections - sampleCollections) / n;
+        }
+
+        sampleFrames = frames;
+        sampleThreadBytes = threadBytes;
+        sampleCollections = collections;
+    }
+
+    private static long getThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean.getCollectionCount() < 0)
+                return -1;
+            count += bean.getCollectionCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of buffers allocated so far
+     */
+    long getAllocatedBuffers() {
+        return allocatedBuffers;
+    }
+
+    /**
+     * @return Size of the buffers allocated so far in bytes
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return Number of buffers taken from the pool so far
+     */
+    long getReusedBuffers() {
+        return reusedBuffers;
+    }
+
+    /**
+     * @return Number of published frames
+     */
+    long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Bytes allocated by the render thread per frame during the last
+     *         sample interval, negative if unknown
+     */
+    double getAllocatedBytesPerFrame() {
+        return allocatedBytesPerFrame;
+    }
+
+    /**
+     * @return Garbage collections per frame during the last sample interval,
+     *         negative if unknown
+     */
+    double getCollectionsPerFrame() {
+        return collectionsPerFrame;
+    }
+}
@@ -0,0 +1,247 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+
+/**
+ * Keeps decoded frames of a JPX movie, so that a looping movie can be replayed
+ * by copying the frames instead of decoding them again.
+ *
+ * All frames of a cache were decoded with the same sub image, resolution and
+ * number of quality layers, any change of these parameters clears the cache.
+ * Besides, every frame remembers the data version of its codestream, see
+ * {@link org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache#getDataVersion(long)}
+ * . A frame decoded before new JPIP data arrived for its codestream is not
+ * used again.
+ *
+ * The caches of all views share a budget, which is given in megabytes by the
+ * system property {@link #BUDGET_PROPERTY} and limited to a quarter of the
+ * maximum heap size. A value of 0 disables the caches. Every cache, which was
+ * asked to store a frame since it was cleared, gets an equal share of the
+ * budget. When its share or the budget is
+ * exceeded, a cache drops its least recently used frames, thus the caches of
+ * the other views shrink while they play.
+ *
+ * A cache is only used by its render thread.
+ */
+class J2KFrameCache {
+
+    /** System property with the budget of all caches in megabytes */
+    static final String BUDGET_PROPERTY = "jhv.render.framecache";
+
+    /** Default budget in megabytes */
+    private static final long DEFAULT_BUDGET = 256;
+
+    private static final long budget = readBudget();
+
+    /** Size of the frames of all caches in bytes */
+    private static long totalBytes = 0;
+
+    /** Number of caches asked to store frames since they were cleared */
+    private static int activeCaches = 0;
+
+    /** A decoded frame */
+    private static class Frame {
+        final Object pixels;
+        final long dataVersion;
+        final long size;
+
+        Frame(Object _pixels, long _dataVersion, long _size) {
+            pixels = _pixels;
+            dataVersion = _dataVersion;
+            size = _size;
+        }
+    }
+
+    /** Frames by composition layer, the least recently used one first */
+    private final LinkedHashMap<Integer, Frame> frames = new LinkedHashMap<Integer, Frame>(16, 0.75f, true);
+
+    /** The parameters of the cached frames, the composition layer aside */
+    private JP2ImageParameter params;
+
+    private boolean active = false;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static long readBudget() {
+        long megabytes = DEFAULT_BUDGET;
+        String value = System.getProperty(BUDGET_PROPERTY);
+        if (value != null) {
+            try {
+                megabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Math.max(0, Math.min(megabytes * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Returns whether the frame caches are enabled.
+     *
+     * @return False, if the budget is 0
+     */
+    static boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Copies a cached frame into the given buffer. Exactly one of the buffers
+     * must be given.
+     *
+     * @param _params
+     *            the parameters of the frame
+     * @param _compositionLayer
+     *            the composition layer of the frame
+     * @param _dataVersion
+     *            the current data version of the codestream of the frame
+     * @param _byteBuffer
+     *            output buffer for single channel images, or null
+     * @param _intBuffer
+     *            output buffer for ARGB images, or null
+     * @return True, if the frame was cached and copied
+     */
+    boolean get(JP2ImageParameter _params, int _compositionLayer, long _dataVersion, byte[] _byteBuffer, int[] _intBuffer) {
+        validate(_params);
+
+        Frame frame = frames.get(_compositionLayer);
+        if (frame != null && frame.dataVersion != _dataVersion) {
+            remove(_compositionLayer);
+            frame = null;
+        }
+
+        if (frame != null && _byteBuffer != null && frame.pixels instanceof byte[] && ((byte[]) frame.pixels).length == _byteBuffer.length) {
+            System.arraycopy(frame.pixels, 0, _byteBuffer, 0, _byteBuffer.length);
+        } else if (frame != null && _intBuffer != null && frame.pixels instanceof int[] && ((int[]) frame.pixels).length == _intBuffer.length) {
+            System.arraycopy(frame.pixels, 0, _intBuffer, 0, _intBuffer.length);
+        } else {
+            misses++;
+            return false;
+        }
+
+        hits++;
+        return true;
+    }
+
+    /**
+     * Stores a copy of a decoded frame. Exactly one of the buffers must be
+     * given.
+     *
+     * @param _params
+     *            the parameters of the frame
+     * @param _compositionLayer
+     *            the composition layer of the frame
+     * @param _dataVersion
+     *            the data version of the codestream read before the frame was
+     *            decoded
+     * @param _byteBuffer
+     *            the decoded single channel image, or null
+     * @param _intBuffer
+     *            the decoded ARGB image, or null
+     */
+    void put(JP2ImageParameter _params, int _compositionLayer, long _dataVersion, byte[] _byteBuffer, int[] _intBuffer) {
+        validate(_params);
+        remove(_compositionLayer);
+
+        synchronized (J2KFrameCache.class) {
+            if (!active) {
+                active = true;
+                activeCaches++;
+            }
+        }
+
+        long size = _byteBuffer != null ? _byteBuffer.length : 4l * _intBuffer.length;
+        if (!reserve(size))
+            return;
+
+        Object pixels = _byteBuffer != null ? _byteBuffer.clone() : _intBuffer.clone();
+        frames.put(_compositionLayer, new Frame(pixels, _dataVersion, size));
+    }
+
+    /**
+     * Makes room for a frame of the given size by dropping the least recently
+     * used frames of this cache.
+     *
+     * @return False, if the frame does not fit into the budget
+     */
+    private boolean reserve(long _size) {
+        Iterator<Frame> iterator = frames.values().iterator();
+        while (true) {
+            synchronized (J2KFrameCache.class) {
+                if (totalBytes + _size <= budget && bytes + _size <= budget / activeCaches) {
+                    bytes += _size;
+                    totalBytes += _size;
+                    return true;
+                }
+            }
+            if (!iterator.hasNext())
+                return false;
+
+            Frame frame = iterator.next();
+            iterator.remove();
+            release(frame.size);
+        }
+    }
+
+    private void remove(int _compositionLayer) {
+        Frame frame = frames.remove(_compositionLayer);
+        if (frame != null)
+            release(frame.size);
+    }
+
+    private void release(long _size) {
+        synchronized (J2KFrameCache.class) {
+            bytes -= _size;
+            totalBytes -= _size;
+        }
+    }
+
+    /**
+     * Clears the cache if the parameters other than the composition layer
+     * differ from those of the cached frames.
+     */
+    private void validate(JP2ImageParameter _params) {
+        if (params == null || JP2ImageParameter.isROIDifferent(params, _params) || JP2ImageParameter.isZoomDifferent(params, _params) || JP2ImageParameter.isQualityDifferent(params, _params)) {
+            clear();
+            params = _params;
+        }
+    }
+
+    /**
+     * Drops all frames.
+     */
+    void clear() {
+        frames.clear();
+        synchronized (J2KFrameCache.class) {
+            if (active)
+                activeCaches--;
+            active = false;
+            totalBytes -= bytes;
+            bytes = 0;
+        }
+        params = null;
+    }
+
+    /**
+     * @return Size of the cached frames in bytes
+     */
+    long getSize() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of frames served from the cache
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of frames which had to be decoded
+     */
+    long getMisses() {
+        return misses;
+    }
+}
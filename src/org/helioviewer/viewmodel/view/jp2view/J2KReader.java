@@ -19,12 +19,16 @@ import org.helioviewer.viewmodel.view.jp2view.J2KRender.RenderReasons;
 import org.helioviewer.viewmodel.view.jp2view.JHVJP2View.ReaderMode;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPBandwidthFlowControl;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPFlowControl;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPKakaduFlowControl;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPQuery;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequestField;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPTransferMetrics;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
@@ -65,18 +69,23 @@ class J2KReader implements Runnable {
     /** The JPIPSocket used to connect to the server. */
     private JPIPSocket socket;
 
+    /** Keeps several requests in flight on the socket. */
+    private JPIPPipeline pipeline;
+
     /** The a reference to the cache object used by the run method. */
     private JHV_Kdu_cache cacheRef;
 
     /**
-     * The time when the last response was received. It is used for performing
-     * the flow control. A negative value means that there is not a previous
-     * valid response to take into account.
+     * System property which selects the flow control: "kakadu" for the
+     * algorithm of kdu_show, otherwise the bandwidth-delay product is used.
      */
-    private volatile long lastResponseTime = -1;
+    static final String FLOW_CONTROL_PROPERTY = "jhv.jpip.flowcontrol";
+
+    /** Determines the length of the requests on the current socket. */
+    private JPIPFlowControl flowControl = createFlowControl();
 
-    /** The current length in bytes to use for requests */
-    private volatile int JpipRequestLen = JPIPConstants.MIN_REQUEST_LEN;
+    /** Statistics of the received data per composition layer. */
+    private volatile JPIPTransferMetrics transferMetrics;
 
     /**
      * The constructor. Creates and connects the socket if image is remote.
@@ -151,6 +160,7 @@ class J2KReader implements Runnable {
     /** Releases the resources associated with this object. */
     void abolish() {
         stop();
+        closePipeline();
 
         try {
             if (socket != null) {
@@ -164,48 +174,49 @@ class J2KReader implements Runnable {
     }
 
     /**
-     * This method perfoms the flow control, that is, adjusts dynamically the
-     * value of the variable <code>JPIP_REQUEST_LEN</code>. The used algorithm
-     * is the same as the used one by the viewer kdu_show of Kakadu (if
-     * something works... why not to use it?)
+     * Returns the pipeline of the current socket, creates a new one if the
+     * socket has changed.
      */
-    private void flowControl() {
-        int adjust = 0;
-        int receivedBytes = socket.getReceivedData();
-        long replyTextTime = socket.getReplyTextTime();
-        long replyDataTime = socket.getReplyDataTime();
-
-        long tdat = replyDataTime - replyTextTime;
-
-        if (((receivedBytes - JpipRequestLen) < (JpipRequestLen >> 1)) && (receivedBytes > (JpipRequestLen >> 1))) {
-            if (tdat > 10000)
-                adjust = -1;
-            else if (lastResponseTime > 0) {
-                long tgap = replyTextTime - lastResponseTime;
-
-                if ((tgap + tdat) < 1000)
-                    adjust = +1;
-                else {
-                    double gapRatio = ((double) tgap) / ((double) (tgap + tdat));
-                    double targetRatio = ((double) (tdat + tgap)) / 10000.0;
-
-                    if (gapRatio > targetRatio)
-                        adjust = +1;
-                    else
-                        adjust = -1;
+    private JPIPPipeline getPipeline() {
+        if (pipeline == null || pipeline.getSocket() != socket) {
+            closePipeline();
+            // the estimates belong to the connection
+            flowControl = createFlowControl();
+            pipeline = new JPIPPipeline(socket, new JPIPPipeline.ResponseHandler() {
+                public boolean handle(JPIPResponse res) throws JHV_KduException {
+                    return cacheRef.addJPIPResponseData(res);
                 }
-            }
+            }, JPIPConstants.MAX_PIPELINED_REQUESTS);
         }
+        return pipeline;
+    }
 
-        JpipRequestLen += (JpipRequestLen >> 2) * adjust;
-
-        if (JpipRequestLen > JPIPConstants.MAX_REQUEST_LEN)
-            JpipRequestLen = JPIPConstants.MAX_REQUEST_LEN;
+    /** Stops the ingest thread of the pipeline. */
+    private void closePipeline() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+    }
 
-        if (JpipRequestLen < JPIPConstants.MIN_REQUEST_LEN)
-            JpipRequestLen = JPIPConstants.MIN_REQUEST_LEN;
+    /**
+     * Creates the flow control selected by {@link #FLOW_CONTROL_PROPERTY}.
+     * 
+     * @return New flow control
+     */
+    static JPIPFlowControl createFlowControl() {
+        if ("kakadu".equals(System.getProperty(FLOW_CONTROL_PROPERTY)))
+            return new JPIPKakaduFlowControl();
+        return new JPIPBandwidthFlowControl(JPIPConstants.MAX_PIPELINED_REQUESTS);
+    }
 
-        lastResponseTime = replyDataTime;
+    /**
+     * Returns the statistics of the received data per composition layer.
+     * 
+     * @return Metrics, null if nothing has been requested yet
+     */
+    JPIPTransferMetrics getTransferMetrics() {
+        return transferMetrics;
     }
 
     private JPIPQuery createQuery(JP2ImageParameter currParams, int iniLayer, int endLayer) {
@@ -213,6 +224,8 @@ class J2KReader implements Runnable {
 
         query.setField(JPIPRequestField.CONTEXT.toString(), "jpxl<" + iniLayer + "-" + endLayer + ">");
         query.setField(JPIPRequestField.LAYERS.toString(), String.valueOf(currParams.qualityLayers));
+        // pipelined requests must not preempt each other
+        query.setField(JPIPRequestField.WAIT.toString(), "yes");
 
         Rectangle resDims = currParams.resolution.getResolutionBounds();
 
@@ -223,6 +236,30 @@ class J2KReader implements Runnable {
         return query;
     }
 
+    /**
+     * Selects the next step to request, the first step which is not complete
+     * and has no request in flight, starting at the given step and wrapping
+     * around. A step is not requested again while a request for it is in
+     * flight, the response to that request determines whether it is complete.
+     * 
+     * @param stepQuerys
+     *            the queries of the steps, null if complete
+     * @param inFlight
+     *            number of requests in flight per step
+     * @param from
+     *            the step with the highest priority
+     * @return The step to request next or -1, if every incomplete step is
+     *         in flight
+     */
+    private static int nextStep(JPIPQuery[] stepQuerys, int[] inFlight, int from) {
+        for (int i = 0; i < stepQuerys.length; i++) {
+            int step = (from + i) % stepQuerys.length;
+            if (stepQuerys[step] != null && inFlight[step] == 0)
+                return step;
+        }
+        return -1;
+    }
+
     public boolean isConnected() {
         return (socket != null && socket.isConnected());
     }
@@ -311,7 +348,7 @@ class J2KReader implements Runnable {
                         // queries left
                         // (actually, I do not know, when this might happen...)
                         if (complete) {
-                            if (parentViewRef.isPersistent() && req != null && req.getQuery() != null) {
+                            if (parentViewRef.isPersistent() && req != null && req.getQuery() != null && (pipeline == null || pipeline.getInFlight() == 0)) {
                                 socket.send(req);
                                 socket.receive();
                             }
@@ -331,7 +368,9 @@ class J2KReader implements Runnable {
                             Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
                             int num_layers = layers.getEnd() - layers.getStart() + 1;
 
-                            lastResponseTime = -1;
+                            flowControl.reset();
+                            if (transferMetrics == null || transferMetrics.getNumLayers() != layers.getEnd() + 1)
+                                transferMetrics = new JPIPTransferMetrics(layers.getEnd() + 1);
 
                             int complete_steps = 0;
                             int current_step;
@@ -404,28 +443,35 @@ class J2KReader implements Runnable {
                             }
 
                             req = new JPIPRequest(HTTPRequest.Method.GET);
+                            JPIPPipeline pipe = getPipeline();
+                            int[] inFlight = new int[stepQuerys.length];
 
                             // long time = System.currentTimeMillis();
 
                             // send queries, until everything is complete or
-                            // caching is interrupted
-                            while ((complete_steps < stepQuerys.length) && !stopReading) {
-                                if (current_step >= stepQuerys.length)
-                                    current_step = 0;
+                            // caching is interrupted. Responses of requests
+                            // in flight are collected in any case.
+                            while (((complete_steps < stepQuerys.length) && !stopReading) || pipe.getInFlight() > 0) {
 
-                                // If query is already complete, to to next step
-                                if (stepQuerys[current_step] == null) {
-                                    current_step++;
+                                // keep the pipeline full, the step closest to
+                                // the current one goes first
+                                while (!stopReading && complete_steps < stepQuerys.length && pipe.canSend()) {
+                                    int step = nextStep(stepQuerys, inFlight, current_step);
+                                    if (step < 0)
+                                        break;
 
-                                    continue;
-                                }
+                                    // Update requested package size
+                                    stepQuerys[step].setField(JPIPRequestField.LEN.toString(), String.valueOf(flowControl.getRequestLength()));
 
-                                // Update requested package size
-                                stepQuerys[current_step].setField(JPIPRequestField.LEN.toString(), String.valueOf(JpipRequestLen));
+                                    req.setQuery(stepQuerys[step].toString());
 
-                                req.setQuery(stepQuerys[current_step].toString());
+                                    pipe.send(stepQuerys, step, req);
+                                    inFlight[step]++;
+
+                                    if (strategy == CacheStrategy.ALLFRAMESEQUALLY)
+                                        current_step = step + 1;
+                                }
 
-                                socket.send(req);
                                 if (Boolean.parseBoolean(System.getProperty("export.movie.debug.on"))) {
                                     try {
                                         Thread.sleep(5000);
@@ -434,20 +480,41 @@ class J2KReader implements Runnable {
                                     }
                                     throw new IOException();
                                 }
-                                // long start = System.currentTimeMillis();
-                                res = socket.receive();
-                                // if(iamPersistent)
-                                // System.out.println(res.getResponseSize() /
-                                // (System.currentTimeMillis() - start));
+
+                                JPIPPipeline.Result result;
+                                try {
+                                    result = pipe.take();
+                                } catch (InterruptedException e) {
+                                    // the results of the abandoned requests
+                                    // are recognized by their round
+                                    stopReading = true;
+                                    break;
+                                }
+
+                                if (result.error instanceof IOException)
+                                    throw (IOException) result.error;
+                                if (result.round != stepQuerys)
+                                    continue;
+
+                                int resultStep = result.step;
+                                inFlight[resultStep]--;
+                                if (result.error instanceof JHV_KduException)
+                                    throw (JHV_KduException) result.error;
+                                res = result.response;
 
                                 // receive data
                                 if (res != null) {
 
                                     // Update optimal package size
-                                    flowControl();
+                                    flowControl.update(result.receivedData, result.requestTime, result.replyTextTime, result.replyDataTime);
+
+                                    if (strategy == CacheStrategy.CURRENTFRAMEONLY || strategy == CacheStrategy.CURRENTFRAMEFIRST)
+                                        transferMetrics.addResponse(curLayer, curLayer, result.receivedData, result.replyDataTime - result.replyTextTime, flowControl);
+                                    else
+                                        transferMetrics.addResponse(resultStep * JPIPConstants.MAX_REQ_LAYERS, (resultStep + 1) * JPIPConstants.MAX_REQ_LAYERS - 1, result.receivedData, result.replyDataTime - result.replyTextTime, flowControl);
 
                                     // Downgrade, if necessary
-                                    if (downgradeNecessary && res.getResponseSize() > 0 && parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
+                                    if (downgradeNecessary && result.responseSize > 0 && parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
 
                                         ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
 
@@ -476,13 +543,13 @@ class J2KReader implements Runnable {
                                         downgradeNecessary = false;
                                     }
 
-                                    // add response to cache - if query
-                                    // complete, react
-                                    if (cacheRef.addJPIPResponseData(res)) {
+                                    // response was added to cache by the
+                                    // ingest thread - if query complete, react
+                                    if (result.complete && stepQuerys[resultStep] != null) {
 
                                         // mark query as complete
                                         complete_steps++;
-                                        stepQuerys[current_step] = null;
+                                        stepQuerys[resultStep] = null;
 
                                         // tell the cache status
                                         if (parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
@@ -496,7 +563,7 @@ class J2KReader implements Runnable {
                                                 break;
 
                                             default:
-                                                for (int j = Math.min((current_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.getEnd() + 1) - 1; j >= current_step * JPIPConstants.MAX_REQ_LAYERS; j--) {
+                                                for (int j = Math.min((resultStep + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.getEnd() + 1) - 1; j >= resultStep * JPIPConstants.MAX_REQ_LAYERS; j--) {
 
                                                     cacheStatus.setImageStatus(j, CacheStatus.COMPLETE);
                                                 }
@@ -505,7 +572,7 @@ class J2KReader implements Runnable {
                                     }
 
                                     // Fire ChangeEvent, if wanted
-                                    if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && stepQuerys[current_step] == null) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
+                                    if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && stepQuerys[resultStep] == null) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
 
                                         // if package belongs to current frame,
                                         // tell the render-thread
@@ -515,7 +582,7 @@ class J2KReader implements Runnable {
                                             parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
                                             break;
                                         default:
-                                            if (curLayer / JPIPConstants.MAX_REQ_LAYERS == current_step) {
+                                            if (curLayer / JPIPConstants.MAX_REQ_LAYERS == resultStep) {
                                                 parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
                                             }
                                         }
@@ -523,44 +590,14 @@ class J2KReader implements Runnable {
                                 }
 
                                 // select next query, based on strategy
-                                switch (strategy) {
-                                case MISSINGFRAMESFIRST:
-
+                                if (strategy == CacheStrategy.MISSINGFRAMESFIRST) {
                                     int metaStatus = ((CachedMovieView) parentViewRef).getDateTimeCache().getMetaStatus();
 
                                     if (metaStatus >= Math.min((current_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.getEnd())) {
-
-                                        // if(metaStatus < num_layers-1) {
-                                        // float loadPerSecond =
-                                        // (float)metaStatus /
-                                        // (System.currentTimeMillis() - time) *
-                                        // 1000.0f;
-                                        // int remainingFrames = num_layers -
-                                        // metaStatus;
-                                        // float remainingTime = remainingFrames
-                                        // / loadPerSecond;
-                                        // float playTime = (num_layers -
-                                        // currParams.compositionLayer) / 20.0f;
-                                        // System.out.println(remainingTime +
-                                        // " " + playTime);
-                                        // if(playTime >= remainingTime) {
-                                        // ((CachedMovieView)
-                                        // parentViewRef).playMovie();
-                                        // } else {
-                                        // ((CachedMovieView)
-                                        // parentViewRef).pauseMovie();
-                                        // }
-                                        // }
-
                                         current_step++;
+                                        if (current_step >= stepQuerys.length)
+                                            current_step = 0;
                                     }
-                                    break;
-
-                                case ALLFRAMESEQUALLY:
-                                    current_step++;
-                                    break;
-                                default:
-                                    break;
                                 }
 
                                 // let others do their work, too
@@ -587,6 +624,7 @@ class J2KReader implements Runnable {
                             Log.error(e.getMessage() + ": " + req.getMessageBody() + " " + req.getQuery());
                             e.printStackTrace();
                         }
+                        closePipeline();
                         if (socket != null) {
                             try {
                                 socket.close();
@@ -1,6 +1,8 @@
 package org.helioviewer.viewmodel.view.jp2view;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import kdu_jni.KduException;
 import kdu_jni.Kdu_compositor_buf;
@@ -23,6 +25,8 @@ import org.helioviewer.viewmodel.view.MovieView;
 import org.helioviewer.viewmodel.view.MovieView.AnimationMode;
 import org.helioviewer.viewmodel.view.cache.DateTimeCache;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_thread_env;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
 
@@ -66,16 +70,24 @@ class J2KRender implements Runnable {
 
     private int lastFrame = -1;
 
-    private final static int NUM_BUFFERS = 2;
-
     /** An integer buffer used in the run method. */
     private int[] localIntBuffer = new int[0];
-    private int[][] intBuffer = new int[NUM_BUFFERS][0];
-    private int currentIntBuffer = 0;
+    private int[] intBuffer = null;
 
     /** A byte buffer used in the run method. */
-    private byte[][] byteBuffer = new byte[NUM_BUFFERS][0];
-    private int currentByteBuffer = 0;
+    private byte[] byteBuffer = null;
+
+    /** Recycles the byte and integer buffers */
+    private final J2KFrameBufferPool bufferPool = new J2KFrameBufferPool();
+
+    /** Decoded frames of a looping movie */
+    private final J2KFrameCache frameCache = new J2KFrameCache();
+
+    /** Kakadu objects reused for every frame */
+    private final Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
+    private final Kdu_dims actualBufferedRegion = new Kdu_dims();
+    private final Kdu_dims newRegion = new Kdu_dims();
+    private final Kdu_coords actualOffset = new Kdu_coords();
 
     /** Maximum of samples to process per rendering iteration */
     private final int MAX_RENDER_SAMPLES = 50000;
@@ -141,8 +153,10 @@ class J2KRender implements Runnable {
             } finally {
                 myThread = null;
 
-                intBuffer = new int[NUM_BUFFERS][0];
-                byteBuffer = new byte[NUM_BUFFERS][0];
+                intBuffer = null;
+                byteBuffer = null;
+                bufferPool.clear();
+                frameCache.clear();
             }
         }
     }
@@ -226,15 +240,15 @@ class J2KRender implements Runnable {
             compositorRef.Refresh();
             compositorRef.Remove_compositing_layer(-1, true);
 
-            parentImageRef.deactivateColorLookupTable(numLayer);
-
-            Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
-
-            compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+            // the compositor of the image is only configured as far as
+            // needed, stripes are decoded by compositors of their own
+            boolean layerAdded = false;
 
             if (lastCompositionLayerRendered != numLayer) {
                 lastCompositionLayerRendered = numLayer;
 
+                addCompositingLayer(numLayer);
+                layerAdded = true;
                 parentImageRef.updateResolutionSet(numLayer);
 
                 MetaData metaData = parentViewRef.getMetaData();
@@ -248,79 +262,153 @@ class J2KRender implements Runnable {
                 }
             }
 
-            compositorRef.Set_max_quality_layers(currParams.qualityLayers);
-            compositorRef.Set_scale(false, false, false, currParams.resolution.getZoomPercent());
+            // buffers which are no longer used downstream are reused
+            if (parentImageRef.getNumComponents() < 3) {
+                byteBuffer = bufferPool.acquireBytes(currParams.subImage.getNumPixels(), J2KRenderGlobalOptions.getDoubleBufferingOption());
+            } else {
+                intBuffer = bufferPool.acquireInts(currParams.subImage.getNumPixels(), J2KRenderGlobalOptions.getDoubleBufferingOption());
+            }
 
-            Kdu_dims requestedBufferedRegion = KakaduUtils.roiToKdu_dims(currParams.subImage);
+            // a looping movie is replayed from the decoded frames
+            boolean cacheFrame = (movieMode || linkedMovieMode) && parentViewRef instanceof JHVJPXView && J2KFrameCache.isEnabled();
+            byte[] frameByteBuffer = parentImageRef.getNumComponents() < 3 ? byteBuffer : null;
+            int[] frameIntBuffer = frameByteBuffer == null ? intBuffer : null;
+            long dataVersion = 0;
+
+            if (cacheFrame) {
+                JHV_Kdu_cache cache = parentImageRef.getCacheRef();
+                dataVersion = cache != null ? cache.getDataVersion(numLayer) : 0;
+                if (frameCache.get(currParams, numLayer, dataVersion, frameByteBuffer, frameIntBuffer))
+                    return;
+            } else if (frameCache.getSize() > 0) {
+                frameCache.clear();
+            }
 
-            compositorRef.Set_buffer_surface(requestedBufferedRegion);
+            // large regions are decoded in stripes by the shared workers
+            int numStripes = J2KDecodeScheduler.getNumStripes(currParams.subImage.width, currParams.subImage.height);
+            J2KStripeDecoder[] stripeDecoders = numStripes > 1 ? parentImageRef.getStripeDecoders(numStripes) : null;
+            boolean complete = true;
+            if (stripeDecoders != null) {
+                complete = renderStripes(numLayer, numStripes, stripeDecoders);
+            } else {
+                if (!layerAdded)
+                    addCompositingLayer(numLayer);
+                renderSubImage();
+            }
 
-            Kdu_dims actualBufferedRegion = new Kdu_dims();
-            Kdu_compositor_buf compositorBuf = compositorRef.Get_composition_buffer(actualBufferedRegion);
+            if (cacheFrame && complete)
+                frameCache.put(currParams, numLayer, dataVersion, frameByteBuffer, frameIntBuffer);
 
-            Kdu_coords actualOffset = new Kdu_coords();
-            actualOffset.Assign(actualBufferedRegion.Access_pos());
+        } catch (KduException e) {
+            e.printStackTrace();
+        } finally {
+            parentImageRef.getLock().unlock();
+        }
 
-            Kdu_dims newRegion = new Kdu_dims();
+    }
 
-            if (parentImageRef.getNumComponents() < 3) {
-                currentByteBuffer = (currentByteBuffer + 1) % NUM_BUFFERS;
-                if (currParams.subImage.getNumPixels() != byteBuffer[currentByteBuffer].length || (!movieMode && !linkedMovieMode && !J2KRenderGlobalOptions.getDoubleBufferingOption())) {
-                    byteBuffer[currentByteBuffer] = new byte[currParams.subImage.getNumPixels()];
-                } else if (J2KRenderGlobalOptions.getDoubleBufferingOption()) {
-                    Arrays.fill(byteBuffer[currentByteBuffer], (byte) 0);
-                }
-            } else {
-                currentIntBuffer = (currentIntBuffer + 1) % NUM_BUFFERS;
-                if (currParams.subImage.getNumPixels() != intBuffer[currentIntBuffer].length || (!movieMode && !linkedMovieMode && !J2KRenderGlobalOptions.getDoubleBufferingOption())) {
-                    intBuffer[currentIntBuffer] = new int[currParams.subImage.getNumPixels()];
-                } else if (J2KRenderGlobalOptions.getDoubleBufferingOption()) {
-                    Arrays.fill(intBuffer[currentIntBuffer], 0);
-                }
-            }
+    /**
+     * Adds the composition layer to the compositor of the image. Must be
+     * called while holding the lock of the image.
+     * 
+     * @param numLayer
+     *            composition layer to add
+     * @throws KduException
+     */
+    private void addCompositingLayer(int numLayer) throws KduException {
+        parentImageRef.deactivateColorLookupTable(numLayer);
+        compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+    }
 
-            while (!compositorRef.Is_processing_complete()) {
-                compositorRef.Process(MAX_RENDER_SAMPLES, newRegion);
-                Kdu_coords newOffset = newRegion.Access_pos();
-                Kdu_coords newSize = newRegion.Access_size();
+    /**
+     * Decodes the current sub image with the compositor of the image, to which
+     * the composition layer has been added. Must be called while holding the
+     * lock of the image.
+     * 
+     * @throws KduException
+     */
+    private void renderSubImage() throws KduException {
+        compositorRef.Set_max_quality_layers(currParams.qualityLayers);
+        compositorRef.Set_scale(false, false, false, currParams.resolution.getZoomPercent());
 
-                newOffset.Subtract(actualOffset);
+        Kdu_dims requestedBufferedRegion = KakaduUtils.roiToKdu_dims(currParams.subImage);
 
-                int newPixels = newSize.Get_x() * newSize.Get_y();
-                if (newPixels == 0)
-                    continue;
+        compositorRef.Set_buffer_surface(requestedBufferedRegion);
 
-                localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1] : localIntBuffer;
+        Kdu_compositor_buf compositorBuf = compositorRef.Get_composition_buffer(actualBufferedRegion);
 
-                compositorBuf.Get_region(newRegion, localIntBuffer);
+        actualOffset.Assign(actualBufferedRegion.Access_pos());
 
-                int srcIdx = 0;
-                int destIdx = newOffset.Get_x() + newOffset.Get_y() * currParams.subImage.width;
+        while (!compositorRef.Is_processing_complete()) {
+            compositorRef.Process(MAX_RENDER_SAMPLES, newRegion);
+            Kdu_coords newOffset = newRegion.Access_pos();
+            Kdu_coords newSize = newRegion.Access_size();
 
-                int newWidth = newSize.Get_x();
-                int newHeight = newSize.Get_y();
+            newOffset.Subtract(actualOffset);
 
-                if (parentImageRef.getNumComponents() < 3) {
-                    for (int row = 0; row < newHeight; row++, destIdx += currParams.subImage.width, srcIdx += newWidth) {
-                        for (int col = 0; col < newWidth; ++col) {
-                            byteBuffer[currentByteBuffer][destIdx + col] = (byte) ((localIntBuffer[srcIdx + col] >> 8) & 0xFF);
-                        }
-                    }
-                } else {
-                    for (int row = 0; row < newHeight; row++, destIdx += currParams.subImage.width, srcIdx += newWidth)
-                        System.arraycopy(localIntBuffer, srcIdx, intBuffer[currentIntBuffer], destIdx, newWidth);
-                }
+            int newPixels = newSize.Get_x() * newSize.Get_y();
+            if (newPixels == 0)
+                continue;
+
+            int destIdx = J2KDecodeScheduler.getDestinationIndex(newOffset.Get_x(), newOffset.Get_y(), 0, currParams.subImage.width);
+
+            int newWidth = newSize.Get_x();
+            int newHeight = newSize.Get_y();
+
+            if (parentImageRef.getNumComponents() < 3) {
+                localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1] : localIntBuffer;
+                compositorBuf.Get_region(newRegion, localIntBuffer);
+                J2KDecodeScheduler.extractChannel(localIntBuffer, 0, newWidth, byteBuffer, destIdx, currParams.subImage.width, newWidth, newHeight);
+            } else {
+                compositorBuf.Get_region(newRegion, intBuffer, destIdx, currParams.subImage.width);
             }
+        }
 
-            if (compositorBuf != null)
-                compositorBuf.Native_destroy();
+        if (compositorBuf != null)
+            compositorBuf.Native_destroy();
+    }
 
-        } catch (KduException e) {
-            e.printStackTrace();
-        } finally {
-            parentImageRef.getLock().unlock();
+    /**
+     * Decodes the current sub image in stripes, which are processed
+     * concurrently by the workers of the {@link J2KDecodeScheduler}. Must be
+     * called while holding the lock of the image.
+     * 
+     * @param numLayer
+     *            composition layer to decode
+     * @param numStripes
+     *            number of stripes
+     * @param stripeDecoders
+     *            at least numStripes decoders
+     * @return False, if a stripe could not be decoded
+     */
+    private boolean renderStripes(final int numLayer, int numStripes, J2KStripeDecoder[] stripeDecoders) {
+        final SubImage subImage = currParams.subImage;
+        final int qualityLayers = currParams.qualityLayers;
+        final float zoomPercent = currParams.resolution.getZoomPercent();
+        final byte[] stripeByteBuffer = parentImageRef.getNumComponents() < 3 ? byteBuffer : null;
+        final int[] stripeIntBuffer = stripeByteBuffer == null ? intBuffer : null;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            final J2KStripeDecoder decoder = stripeDecoders[i];
+            final int stripeY = J2KDecodeScheduler.getStripeStart(i, numStripes, subImage.height);
+            final int stripeHeight = J2KDecodeScheduler.getStripeStart(i + 1, numStripes, subImage.height) - stripeY;
+
+            tasks.add(new Callable<Void>() {
+                public Void call() throws KduException {
+                    decoder.decode(numLayer, qualityLayers, zoomPercent, subImage.x, subImage.y, subImage.width, stripeY, stripeHeight, stripeByteBuffer, stripeIntBuffer);
+                    return null;
+                }
+            });
         }
 
+        try {
+            J2KDecodeScheduler.invokeAll(tasks);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
@@ -375,17 +463,23 @@ class J2KRender implements Runnable {
                 int width = currParams.subImage.width;
                 int height = currParams.subImage.height;
 
+                // without movie mode and double buffering, the consumer may
+                // keep the buffer, e.g. while exporting a movie
+                boolean recyclable = movieMode || linkedMovieMode || J2KRenderGlobalOptions.getDoubleBufferingOption();
+
                 if (parentImageRef.getNumComponents() < 3) {
 
-                    if (currParams.subImage.getNumPixels() == byteBuffer[currentByteBuffer].length) {
-                        parentViewRef.setSubimageData(new SingleChannelByte8ImageData(width, height, byteBuffer[currentByteBuffer], new ColorMask()), currParams.subImage, curLayer);
+                    if (byteBuffer != null && currParams.subImage.getNumPixels() == byteBuffer.length) {
+                        bufferPool.publish(byteBuffer, recyclable);
+                        parentViewRef.setSubimageData(new SingleChannelByte8ImageData(width, height, byteBuffer, new ColorMask()), currParams.subImage, curLayer);
                     } else {
                         Log.warn("J2KRender: Params out of sync, skip frame");
                     }
 
                 } else {
-                    if (currParams.subImage.getNumPixels() == intBuffer[currentIntBuffer].length) {
-                        parentViewRef.setSubimageData(new ARGBInt32ImageData(width, height, intBuffer[currentIntBuffer], new ColorMask()), currParams.subImage, curLayer);
+                    if (intBuffer != null && currParams.subImage.getNumPixels() == intBuffer.length) {
+                        bufferPool.publish(intBuffer, recyclable);
+                        parentViewRef.setSubimageData(new ARGBInt32ImageData(width, height, intBuffer, new ColorMask()), currParams.subImage, curLayer);
                     } else {
                         Log.warn("J2KRender: Params out of sync, skip frame");
                     }
@@ -407,6 +501,9 @@ class J2KRender implements Runnable {
                         actualMovieFramerate = (numFrames * 1000.0f) / (tnow - tini);
                         tini = tnow;
                         numFrames = 0;
+
+                        bufferPool.sample();
+                        Log.debug("J2KRender: " + actualMovieFramerate + " fps, " + bufferPool.getAllocatedBytesPerFrame() + " bytes and " + bufferPool.getCollectionsPerFrame() + " collections per frame, " + bufferPool.getAllocatedBuffers() + " buffers allocated, " + bufferPool.getReusedBuffers() + " reused, " + frameCache.getHits() + " frames from cache, " + frameCache.getMisses() + " decoded");
                     }
 
                     lastSleepTime = tmax - (tnow - tfrm);
@@ -435,8 +532,20 @@ class J2KRender implements Runnable {
                 numFrames = 0;
             }
         }
-        byteBuffer = new byte[NUM_BUFFERS][0];
-        intBuffer = new int[NUM_BUFFERS][0];
+        byteBuffer = null;
+        intBuffer = null;
+        bufferPool.clear();
+        frameCache.clear();
+    }
+
+    /**
+     * Returns the pool of the decoded buffers, which also provides the
+     * allocation metrics.
+     * 
+     * @return The buffer pool
+     */
+    J2KFrameBufferPool getFrameBufferPool() {
+        return bufferPool;
     }
 
     private abstract class NextFrameCandidateChooser {
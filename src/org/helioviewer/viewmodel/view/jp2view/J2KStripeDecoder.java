@@ -0,0 +1,149 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import kdu_jni.Jp2_threadsafe_family_src;
+import kdu_jni.Jpx_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_compositor_buf;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+import kdu_jni.Kdu_region_compositor;
+
+/**
+ * Decodes one stripe of a sub image for the {@link J2KDecodeScheduler}.
+ *
+ * Every stripe decoder owns a Jpx_source and a Kdu_region_compositor of its
+ * own, which read from the threadsafe family source of the JP2Image. Thus,
+ * the stripes of an image can be decoded concurrently, whereas the compositor
+ * of the JP2Image must only be used by one thread at a time. A stripe decoder
+ * is used by at most one worker at a time, while the J2KRender holds the lock
+ * of the image.
+ */
+class J2KStripeDecoder {
+
+    /** Maximum of samples to process per rendering iteration */
+    private static final int MAX_RENDER_SAMPLES = 50000;
+
+    private final Jpx_source jpxSrc = new Jpx_source();
+    private final Kdu_region_compositor compositor = new Kdu_region_compositor();
+
+    /** Kakadu objects reused for every stripe */
+    private final Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
+    private final Kdu_dims requestedRegion = new Kdu_dims();
+    private final Kdu_dims actualBufferedRegion = new Kdu_dims();
+    private final Kdu_dims newRegion = new Kdu_dims();
+    private final Kdu_coords actualOffset = new Kdu_coords();
+
+    private int[] localIntBuffer = new int[0];
+
+    /**
+     * Opens the sources of the decoder.
+     *
+     * @param _familySrc
+     *            the family source of the JP2Image
+     * @param _codestreamCacheThreshold
+     *            the amount of cache to allocate to each codestream
+     * @throws KduException
+     */
+    J2KStripeDecoder(Jp2_threadsafe_family_src _familySrc, int _codestreamCacheThreshold) throws KduException {
+        jpxSrc.Open(_familySrc, false);
+        compositor.Create(jpxSrc, _codestreamCacheThreshold);
+        compositor.Set_thread_env(null, 0);
+    }
+
+    /**
+     * Decodes the rows _stripeY up to _stripeY + _stripeHeight of the region
+     * into the output buffer, whose first row is the first row of the region.
+     * Exactly one of the output buffers must be given.
+     *
+     * @param _numLayer
+     *            composition layer to decode
+     * @param _qualityLayers
+     *            number of quality layers to decode
+     * @param _zoomPercent
+     *            scale of the composition
+     * @param _x
+     *            left border of the region
+     * @param _y
+     *            upper border of the region
+     * @param _width
+     *            width of the region
+     * @param _stripeY
+     *            first row of the stripe relative to the region
+     * @param _stripeHeight
+     *            number of rows of the stripe
+     * @param _byteBuffer
+     *            output buffer for single channel images, or null
+     * @param _intBuffer
+     *            output buffer for ARGB images, or null
+     * @throws KduException
+     */
+    void decode(int _numLayer, int _qualityLayers, float _zoomPercent, int _x, int _y, int _width, int _stripeY, int _stripeHeight, byte[] _byteBuffer, int[] _intBuffer) throws KduException {
+        compositor.Refresh();
+        compositor.Remove_compositing_layer(-1, true);
+
+        JP2Image.deactivateColorLookupTable(jpxSrc, _numLayer);
+
+        compositor.Add_compositing_layer(_numLayer, dimsRef1, dimsRef2);
+        compositor.Set_max_quality_layers(_qualityLayers);
+        compositor.Set_scale(false, false, false, _zoomPercent);
+
+        Kdu_coords pos = requestedRegion.Access_pos();
+        Kdu_coords siz = requestedRegion.Access_size();
+        pos.Set_x(_x);
+        pos.Set_y(_y + _stripeY);
+        siz.Set_x(_width);
+        siz.Set_y(_stripeHeight);
+
+        compositor.Set_buffer_surface(requestedRegion);
+
+        Kdu_compositor_buf compositorBuf = compositor.Get_composition_buffer(actualBufferedRegion);
+
+        // regions are read relative to the buffer of the stripe and written
+        // relative to the region
+        actualOffset.Assign(actualBufferedRegion.Access_pos());
+
+        try {
+            while (!compositor.Is_processing_complete()) {
+                compositor.Process(MAX_RENDER_SAMPLES, newRegion);
+                Kdu_coords newOffset = newRegion.Access_pos();
+                Kdu_coords newSize = newRegion.Access_size();
+
+                newOffset.Subtract(actualOffset);
+
+                int newWidth = newSize.Get_x();
+                int newHeight = newSize.Get_y();
+                int newPixels = newWidth * newHeight;
+                if (newPixels == 0)
+                    continue;
+
+                int destIdx = J2KDecodeScheduler.getDestinationIndex(newOffset.Get_x(), newOffset.Get_y(), _stripeY, _width);
+
+                if (_byteBuffer != null) {
+                    localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1] : localIntBuffer;
+                    compositorBuf.Get_region(newRegion, localIntBuffer);
+                    J2KDecodeScheduler.extractChannel(localIntBuffer, 0, newWidth, _byteBuffer, destIdx, _width, newWidth, newHeight);
+                } else {
+                    compositorBuf.Get_region(newRegion, _intBuffer, destIdx, _width);
+                }
+            }
+        } finally {
+            if (compositorBuf != null)
+                compositorBuf.Native_destroy();
+        }
+    }
+
+    /**
+     * Destroys the compositor and the source. The family source of the
+     * JP2Image must still be open.
+     */
+    void abolish() {
+        try {
+            compositor.Remove_compositing_layer(-1, true);
+            compositor.Native_destroy();
+            jpxSrc.Close();
+            jpxSrc.Native_destroy();
+        } catch (KduException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -35,6 +35,7 @@ import org.helioviewer.viewmodel.view.jp2view.concurrency.ReasonSignal;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
 import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
 import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPTransferMetrics;
 import org.helioviewer.viewmodel.viewport.StaticViewport;
 import org.helioviewer.viewmodel.viewport.Viewport;
 import org.helioviewer.viewmodel.viewportimagesize.StaticViewportImageSize;
@@ -414,6 +415,18 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
         return false;
     }
 
+    /**
+     * Returns the statistics of the data received from the JPIP server.
+     * 
+     * @return Metrics per composition layer, null if nothing was requested
+     */
+    public JPIPTransferMetrics getTransferMetrics() {
+        if (reader != null)
+            return reader.getTransferMetrics();
+
+        return null;
+    }
+
     /**
      * Fires a ChangeEvent into the view chain.
      * 
@@ -164,25 +164,12 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
             return;
         }
 
-        int frameNumber = -1;
-        long timeMillis = time.getMillis();
-        long lastDiff, currentDiff = -Long.MAX_VALUE;
-
-        do {
-            lastDiff = currentDiff;
-
-            if (dateTimeCache.getDateTime(++frameNumber) == null) {
-                return;
-            }
-
-            currentDiff = dateTimeCache.getDateTime(frameNumber).getMillis() - timeMillis;
-        } while (currentDiff < 0 && frameNumber < jp2Image.getCompositionLayerRange().getEnd());
-
-        if (-lastDiff < currentDiff) {
-            setCurrentFrameNumber(frameNumber - 1, event, forceSignal);
-        } else {
-            setCurrentFrameNumber(frameNumber, event, forceSignal);
+        int frameNumber = dateTimeCache.getClosestFrameNumber(time.getMillis());
+        if (frameNumber < 0) {
+            return;
         }
+
+        setCurrentFrameNumber(frameNumber, event, forceSignal);
     }
 
     /**
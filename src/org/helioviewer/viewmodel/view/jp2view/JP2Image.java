@@ -90,6 +90,15 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private Kdu_region_compositor compositor = new Kdu_region_compositor();
 
+    /**
+     * Additional compositors, which decode the stripes of a sub image
+     * concurrently. They are created on demand.
+     */
+    private J2KStripeDecoder[] stripeDecoders = new J2KStripeDecoder[0];
+
+    /** The amount of cache to allocate to each codestream */
+    private static final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
+
     /** The range of valid quality layers for the image. */
     private Interval<Integer> qLayerRange;
 
@@ -292,9 +301,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private void createKakaduMachinery() throws JHV_KduException {
 
-        // The amount of cache to allocate to each codestream
-        final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
-
         try {
             // Open the jpx source from the family source
             jpxSrc.Open(familySrc, false);
@@ -700,6 +706,10 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         APIResponseDump.getSingletonInstance().removeResponse(uri);
 
         try {
+            for (J2KStripeDecoder decoder : stripeDecoders)
+                decoder.abolish();
+            stripeDecoders = new J2KStripeDecoder[0];
+
             if (compositor != null) {
                 compositor.Set_thread_env(null, 0);
                 compositor.Remove_compositing_layer(-1, true);
@@ -781,13 +791,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         try {
             lock.lock();
-            Jpx_codestream_source jpxStream = jpxSrc.Access_codestream(0);
-            Jp2_palette palette = jpxStream.Access_palette();
-
-            for (int i = 0; i < palette.Get_num_luts(); i++) {
-                jpxSrc.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
-            }
-
+            deactivateColorLookupTable(jpxSrc, numLayer);
         } catch (KduException e) {
             e.printStackTrace();
         } finally {
@@ -795,6 +799,53 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         }
     }
 
+    /**
+     * Deactivates the internal color lookup table of the given source for the
+     * given composition layer.
+     * 
+     * @param source
+     *            jpx source of this image or of one of its stripe decoders
+     * @param numLayer
+     *            composition layer to deactivate internal color lookup for
+     * @throws KduException
+     */
+    static void deactivateColorLookupTable(Jpx_source source, int numLayer) throws KduException {
+        Jpx_codestream_source jpxStream = source.Access_codestream(0);
+        Jp2_palette palette = jpxStream.Access_palette();
+
+        for (int i = 0; i < palette.Get_num_luts(); i++) {
+            source.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
+        }
+    }
+
+    /**
+     * Returns the given number of stripe decoders, which are created if
+     * necessary. Must only be called while holding the lock of this image.
+     * 
+     * @param num
+     *            number of stripe decoders needed
+     * @return The stripe decoders, or null if they could not be created
+     */
+    J2KStripeDecoder[] getStripeDecoders(int num) {
+        if (stripeDecoders.length < num) {
+            J2KStripeDecoder[] decoders = new J2KStripeDecoder[num];
+            System.arraycopy(stripeDecoders, 0, decoders, 0, stripeDecoders.length);
+
+            for (int i = stripeDecoders.length; i < num; i++) {
+                try {
+                    decoders[i] = new J2KStripeDecoder(familySrc, CODESTREAM_CACHE_THRESHOLD);
+                } catch (KduException e) {
+                    Log.error(">> JP2Image.getStripeDecoders() > Failed to create stripe decoder", e);
+                    for (int j = stripeDecoders.length; j < i; j++)
+                        decoders[j].abolish();
+                    return null;
+                }
+            }
+            stripeDecoders = decoders;
+        }
+        return stripeDecoders;
+    }
+
     Lock getLock() {
         return lock;
     }
@@ -0,0 +1,233 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+
+/**
+ * Keeps several JPIP requests in flight on one channel.
+ *
+ * The requests are sent with HTTP pipelining, the server answers them in the
+ * order they were sent. A dedicated ingest thread receives the responses and
+ * hands them to the {@link ResponseHandler}, usually the kakadu cache, while
+ * the owner of the pipeline already sends the next requests. The owner
+ * collects the outcome of each request with {@link #take()}.
+ *
+ * send and take must only be called by one thread.
+ */
+class JPIPPipeline {
+
+    /**
+     * Consumes the responses on the ingest thread.
+     */
+    interface ResponseHandler {
+        /**
+         * Consumes a response.
+         *
+         * @param res
+         * @return True, if the response completes the request
+         * @throws JHV_KduException
+         */
+        boolean handle(JPIPResponse res) throws JHV_KduException;
+    }
+
+    /**
+     * Outcome of one pipelined request.
+     */
+    static class Result {
+        /** The round, the request was sent in */
+        final Object round;
+
+        /** The step, the request belongs to */
+        final int step;
+
+        /** The response or null, if the request failed */
+        final JPIPResponse response;
+
+        /** Size of the response data in bytes */
+        final long responseSize;
+
+        /** Whether the response completes the request */
+        final boolean complete;
+
+        /** Amount of data (bytes) of the response */
+        final int receivedData;
+
+        /** Time when the request was sent */
+        final long requestTime;
+
+        /** Time when the reply text was received */
+        final long replyTextTime;
+
+        /** Time when the reply data was received */
+        final long replyDataTime;
+
+        /** The error of a failed request */
+        final Exception error;
+
+        private Result(Object _round, int _step, JPIPResponse _response, long _responseSize, boolean _complete, int _receivedData, long _requestTime, long _replyTextTime, long _replyDataTime, Exception _error) {
+            round = _round;
+            step = _step;
+            response = _response;
+            responseSize = _responseSize;
+            complete = _complete;
+            receivedData = _receivedData;
+            requestTime = _requestTime;
+            replyTextTime = _replyTextTime;
+            replyDataTime = _replyDataTime;
+            error = _error;
+        }
+    }
+
+    /** Marker of a request in flight */
+    private static class Pending {
+        final Object round;
+        final int step;
+        final long requestTime;
+
+        Pending(Object _round, int _step, long _requestTime) {
+            round = _round;
+            step = _step;
+            requestTime = _requestTime;
+        }
+    }
+
+    private final JPIPSocket socket;
+    private final ResponseHandler handler;
+    private final int depth;
+
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Thread ingestThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the pipeline and starts its ingest thread.
+     *
+     * @param _socket
+     *            connected socket
+     * @param _handler
+     *            consumer of the responses
+     * @param _depth
+     *            maximum number of requests in flight
+     */
+    JPIPPipeline(JPIPSocket _socket, ResponseHandler _handler, int _depth) {
+        socket = _socket;
+        handler = _handler;
+        depth = Math.max(1, _depth);
+
+        ingestThread = new Thread(new Runnable() {
+            public void run() {
+                ingest();
+            }
+        }, "J2KReader ingest");
+        ingestThread.setDaemon(true);
+        ingestThread.start();
+    }
+
+    /**
+     * Receives the responses in the order the requests were sent.
+     */
+    private void ingest() {
+        while (!closed) {
+            Pending p;
+            try {
+                p = pending.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            Result result;
+            try {
+                JPIPResponse res = socket.receive();
+                if (res == null)
+                    throw new IOException("The server closed the connection.");
+
+                long size = res.getResponseSize();
+                boolean complete = handler.handle(res);
+                result = new Result(p.round, p.step, res, size, complete, socket.getReceivedData(), p.requestTime, socket.getReplyTextTime(), socket.getReplyDataTime(), null);
+            } catch (IOException e) {
+                result = new Result(p.round, p.step, null, 0, false, 0, p.requestTime, 0, 0, e);
+            } catch (JHV_KduException e) {
+                result = new Result(p.round, p.step, null, 0, false, 0, p.requestTime, 0, 0, e);
+            }
+
+            results.add(result);
+
+            // The stream position is unknown after an IOException
+            if (result.error instanceof IOException)
+                break;
+        }
+    }
+
+    /**
+     * Whether another request may be sent without exceeding the depth.
+     *
+     * @return True, if another request may be sent
+     */
+    boolean canSend() {
+        return !closed && inFlight.get() < depth;
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     *
+     * @param round
+     *            identifies the series of requests, so results of an
+     *            abandoned series can be recognized
+     * @param step
+     *            step the request belongs to
+     * @param req
+     * @throws IOException
+     */
+    void send(Object round, int step, JPIPRequest req) throws IOException {
+        inFlight.incrementAndGet();
+        pending.add(new Pending(round, step, System.currentTimeMillis()));
+        socket.send(req);
+    }
+
+    /**
+     * Waits for the outcome of the oldest request in flight.
+     *
+     * @return The result of the request
+     * @throws InterruptedException
+     */
+    Result take() throws InterruptedException {
+        Result result = results.take();
+        inFlight.decrementAndGet();
+        return result;
+    }
+
+    /**
+     * Returns the number of requests whose results were not yet taken.
+     *
+     * @return Number of requests in flight
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the socket of the pipeline.
+     *
+     * @return The socket the requests are sent on
+     */
+    JPIPSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Stops the ingest thread. The socket is not closed.
+     */
+    void close() {
+        closed = true;
+        ingestThread.interrupt();
+    }
+}
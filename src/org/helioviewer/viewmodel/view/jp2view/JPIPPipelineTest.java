@@ -0,0 +1,196 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JPIPPipelineTest {
+
+    private static final byte[] MAIN_HEADER = { (byte) 0xFF, 0x4F, (byte) 0xFF, 0x51, 1, 2, 3, 4 };
+    private static final byte[] PRECINCT = new byte[300];
+
+    private static final int DEPTH = 4;
+
+    private JPIPReplayServer server;
+    private JPIPSocket socket;
+    private JPIPPipeline pipeline;
+
+    /** Segments handed to the handler, in the order they were received */
+    private final List<JPIPDataSegment> segments = new ArrayList<JPIPDataSegment>();
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < PRECINCT.length; i++)
+            PRECINCT[i] = (byte) i;
+
+        byte[] first = JPIPReplayServer.concat(JPIPReplayServer.dataBin(JPIPConstants.MAIN_HEADER_DATA_BIN_CLASS, 0, true, 0, MAIN_HEADER), JPIPReplayServer.endOfResponse(JPIPConstants.EOR_WINDOW_DONE));
+        byte[] partial = JPIPReplayServer.concat(JPIPReplayServer.dataBin(JPIPConstants.PRECINCT_DATA_BIN_CLASS, 1000, false, 0, PRECINCT), JPIPReplayServer.endOfResponse(JPIPConstants.EOR_BYTE_LIMIT_REACHED));
+        byte[] done = JPIPReplayServer.endOfResponse(JPIPConstants.EOR_IMAGE_DONE);
+        server = new JPIPReplayServer(Arrays.asList(first, partial, done));
+
+        socket = new JPIPSocket();
+        socket.connect(server.getURI());
+
+        pipeline = new JPIPPipeline(socket, new JPIPPipeline.ResponseHandler() {
+            public boolean handle(JPIPResponse res) {
+                JPIPDataSegment seg;
+                synchronized (segments) {
+                    while ((seg = res.removeJpipDataSegment()) != null)
+                        segments.add(seg);
+                }
+                return res.isResponseComplete();
+            }
+        }, DEPTH);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pipeline.close();
+        socket.close();
+        server.close();
+    }
+
+    private static JPIPRequest request(int step) {
+        JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+        req.setQuery("stream=" + step + "&len=4000");
+        return req;
+    }
+
+    /**
+     * Sends the requests of the steps, keeping the pipeline full, and returns
+     * the results.
+     */
+    private List<JPIPPipeline.Result> run(Object round, int steps) throws IOException, InterruptedException {
+        List<JPIPPipeline.Result> results = new ArrayList<JPIPPipeline.Result>();
+        int sent = 0;
+        while (results.size() < steps) {
+            while (sent < steps && pipeline.canSend())
+                pipeline.send(round, sent, request(sent++));
+            results.add(pipeline.take());
+        }
+        return results;
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        Object round = new Object();
+        List<JPIPPipeline.Result> results = run(round, 10);
+
+        for (int i = 0; i < results.size(); i++) {
+            JPIPPipeline.Result result = results.get(i);
+            assertNull(result.error);
+            assertTrue(result.round == round);
+            assertEquals(i, result.step);
+            assertNotNull(result.response);
+        }
+        assertEquals(0, pipeline.getInFlight());
+
+        // the first response carries the main header, the second one a
+        // partial precinct, the remaining ones complete the image
+        assertTrue(results.get(0).complete);
+        assertEquals(MAIN_HEADER.length, results.get(0).responseSize);
+        assertTrue(!results.get(1).complete);
+        assertEquals(PRECINCT.length, results.get(1).responseSize);
+        for (int i = 2; i < results.size(); i++)
+            assertTrue(results.get(i).complete);
+
+        // cnew, then one request per step on the same channel
+        List<String> queries = server.getQueries();
+        assertEquals(11, queries.size());
+        assertTrue(queries.get(0).contains("cnew=http"));
+        for (int i = 1; i < queries.size(); i++) {
+            assertTrue(queries.get(i).startsWith("stream=" + (i - 1) + "&"));
+            assertTrue(queries.get(i).contains("cid=" + JPIPReplayServer.CHANNEL_ID));
+        }
+    }
+
+    @Test
+    public void testSegmentsReachHandler() throws Exception {
+        run(new Object(), 2);
+
+        synchronized (segments) {
+            assertEquals(4, segments.size());
+
+            JPIPDataSegment header = segments.get(0);
+            assertEquals(JPIPDatabinClass.MAIN_HEADER_DATABIN, header.classID);
+            assertTrue(header.isFinal);
+            assertEquals(MAIN_HEADER.length, header.length);
+            assertArrayEquals(MAIN_HEADER, Arrays.copyOf(header.data, header.length));
+
+            assertTrue(segments.get(1).isEOR);
+            assertEquals(JPIPConstants.EOR_WINDOW_DONE, segments.get(1).binID);
+
+            JPIPDataSegment precinct = segments.get(2);
+            assertEquals(JPIPDatabinClass.PRECINCT_DATABIN, precinct.classID);
+            assertEquals(1000, precinct.binID);
+            assertTrue(!precinct.isFinal);
+            assertArrayEquals(PRECINCT, Arrays.copyOf(precinct.data, precinct.length));
+
+            assertTrue(segments.get(3).isEOR);
+            assertEquals(JPIPConstants.EOR_BYTE_LIMIT_REACHED, segments.get(3).binID);
+        }
+    }
+
+    @Test
+    public void testRoundTripsOverlap() throws Exception {
+        long delay = 100;
+        int steps = 8;
+        server.setDelay(delay);
+
+        long start = System.currentTimeMillis();
+        List<JPIPPipeline.Result> results = run(new Object(), steps);
+        long duration = System.currentTimeMillis() - start;
+
+        for (JPIPPipeline.Result result : results)
+            assertNull(result.error);
+
+        // one request at a time would take steps * delay
+        assertTrue("took " + duration + " ms", duration < steps * delay / 2);
+    }
+
+    @Test
+    public void testServerClosesConnection() throws Exception {
+        server.setCloseAfter(2);
+
+        Object round = new Object();
+        for (int step = 0; step < DEPTH; step++)
+            pipeline.send(round, step, request(step));
+
+        JPIPPipeline.Result first = pipeline.take();
+        assertNull(first.error);
+        JPIPPipeline.Result second = pipeline.take();
+        assertNull(second.error);
+
+        // the requests after the closing response fail instead of blocking
+        JPIPPipeline.Result third = pipeline.take();
+        assertNotNull(third.error);
+        assertTrue(third.error instanceof IOException);
+        assertTrue(socket.isClosed());
+
+        try {
+            socket.send(request(DEPTH));
+            fail("Sending on a connection closed by the server must fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+
+/**
+ * Local stand-in for a JPIP server, which replays canned jpp-stream
+ * responses. It allows to drive the JPIP client without a network.
+ *
+ * <p>
+ * The first request of a connection creates the channel and is answered with
+ * a JPIP-cnew header and an empty response. Every further request is answered
+ * with the next canned body, the last body is repeated. Requests are read as
+ * soon as they arrive, each response is sent after the configured delay, so
+ * pipelined requests share the simulated round trip.
+ *
+ * <p>
+ * The server can end the connection after a number of requests by answering
+ * with the header "Connection: close".
+ */
+class JPIPReplayServer {
+
+    /** Channel id sent to the clients */
+    static final String CHANNEL_ID = "JPH_REPLAY";
+
+    private final ServerSocket serverSocket;
+    private final List<byte[]> bodies;
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+
+    private volatile long delay = 0;
+    private volatile int closeAfter = -1;
+
+    /** Response to send at a given time */
+    private static class Response {
+        final long due;
+        final byte[] bytes;
+        final boolean close;
+
+        Response(long _due, byte[] _bytes, boolean _close) {
+            due = _due;
+            bytes = _bytes;
+            close = _close;
+        }
+    }
+
+    /**
+     * Starts the server on a free local port.
+     *
+     * @param _bodies
+     *            the jpp-stream bodies of the responses, in the order they are
+     *            sent
+     * @throws IOException
+     */
+    JPIPReplayServer(List<byte[]> _bodies) throws IOException {
+        if (_bodies.isEmpty())
+            throw new IllegalArgumentException("At least one response body is needed");
+
+        bodies = new ArrayList<byte[]>(_bodies);
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "JPIPReplayServer accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the URI of an image on this server.
+     *
+     * @return The URI to connect a JPIPSocket to
+     */
+    URI getURI() {
+        return URI.create("jpip://127.0.0.1:" + serverSocket.getLocalPort() + "/replay.jpx");
+    }
+
+    /**
+     * Sets the delay of every response.
+     *
+     * @param _delay
+     *            delay in milliseconds
+     */
+    void setDelay(long _delay) {
+        delay = _delay;
+    }
+
+    /**
+     * Ends the connection after the given number of requests following the
+     * creation of the channel.
+     *
+     * @param _closeAfter
+     *            number of requests, negative to keep the connection open
+     */
+    void setCloseAfter(int _closeAfter) {
+        closeAfter = _closeAfter;
+    }
+
+    /**
+     * Returns the queries of all requests received so far.
+     *
+     * @return The queries in the order they were received
+     */
+    List<String> getQueries() {
+        synchronized (queries) {
+            return new ArrayList<String>(queries);
+        }
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        synchronized (connections) {
+            for (Socket s : connections) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.add(s);
+
+            final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    readRequests(s, responses);
+                }
+            }, "JPIPReplayServer reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    writeResponses(s, responses);
+                }
+            }, "JPIPReplayServer writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Reads the requests of a connection and queues their responses.
+     */
+    private void readRequests(Socket _socket, BlockingQueue<Response> _responses) {
+        int served = 0;
+        try {
+            InputStream in = _socket.getInputStream();
+            for (;;) {
+                String requestLine = readLine(in);
+                if (requestLine == null)
+                    return;
+
+                // skip the headers, GET requests have no body
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0)
+                    ;
+
+                String[] parts = requestLine.split(" ");
+                String target = parts.length > 1 ? parts[1] : "";
+                String query = target.indexOf('?') >= 0 ? target.substring(target.indexOf('?') + 1) : "";
+                queries.add(query);
+
+                long due = System.currentTimeMillis() + delay;
+                if (query.contains("cnew=")) {
+                    _responses.add(new Response(due, response(endOfResponse(JPIPConstants.EOR_WINDOW_DONE), "JPIP-cnew: cid=" + CHANNEL_ID + ",path=jpip,transport=http", false), false));
+                } else if (query.contains("cclose=")) {
+                    _responses.add(new Response(due, response(new byte[0], null, true), true));
+                    return;
+                } else {
+                    byte[] body = bodies.get(Math.min(served, bodies.size() - 1));
+                    served++;
+                    boolean close = closeAfter >= 0 && served >= closeAfter;
+                    _responses.add(new Response(due, response(body, null, close), close));
+                    if (close)
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        }
+    }
+
+    /**
+     * Sends the queued responses of a connection when they are due.
+     */
+    private void writeResponses(Socket _socket, BlockingQueue<Response> _responses) {
+        try {
+            OutputStream out = _socket.getOutputStream();
+            for (;;) {
+                Response r = _responses.take();
+                long wait = r.due - System.currentTimeMillis();
+                if (wait > 0)
+                    Thread.sleep(wait);
+
+                out.write(r.bytes);
+                out.flush();
+
+                if (r.close) {
+                    _socket.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static String readLine(InputStream _in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = _in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * Builds a HTTP response with a jpp-stream body.
+     */
+    private static byte[] response(byte[] _body, String _header, boolean _close) {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 200 OK\r\n");
+        head.append("Content-Type: image/jpp-stream\r\n");
+        head.append("Content-Length: " + _body.length + "\r\n");
+        if (_header != null)
+            head.append(_header + "\r\n");
+        head.append(_close ? "Connection: close\r\n" : "Connection: Keep-Alive\r\n");
+        head.append("\r\n");
+
+        return concat(head.toString().getBytes(StandardCharsets.ISO_8859_1), _body);
+    }
+
+    /**
+     * Encodes a data-bin message, which always carries its class.
+     *
+     * @param _classId
+     *            standard class identifier of the data-bin
+     * @param _binId
+     *            in-class identifier of the data-bin
+     * @param _isFinal
+     *            whether the message contains the last byte of the data-bin
+     * @param _offset
+     *            offset of the data within the data-bin
+     * @param _data
+     *            data of the message
+     * @return The encoded message
+     */
+    static byte[] dataBin(int _classId, long _binId, boolean _isFinal, int _offset, byte[] _data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // the first byte holds the message class indicator, the final flag
+        // and the highest four bits of the bin id, the following bytes seven
+        // bits each
+        int groups = 1;
+        while ((_binId >> (4 + 7 * (groups - 1))) != 0)
+            groups++;
+
+        int first = (2 << 5) | (_isFinal ? 0x10 : 0) | ((int) (_binId >> (7 * (groups - 1))) & 0x0F);
+        out.write(groups > 1 ? first | 0x80 : first);
+        for (int i = groups - 2; i >= 0; i--) {
+            int value = (int) (_binId >> (7 * i)) & 0x7F;
+            out.write(i > 0 ? value | 0x80 : value);
+        }
+
+        writeVBAS(out, _classId);
+        writeVBAS(out, _offset);
+        writeVBAS(out, _data.length);
+        out.write(_data, 0, _data.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes an EOR message without body.
+     *
+     * @param _reason
+     *            the reason code, e.g. {@link JPIPConstants#EOR_WINDOW_DONE}
+     * @return The encoded message
+     */
+    static byte[] endOfResponse(int _reason) {
+        return new byte[] { 0, (byte) _reason, 0 };
+    }
+
+    /**
+     * Concatenates messages to a body.
+     *
+     * @param _parts
+     *            the messages
+     * @return The concatenated bytes
+     */
+    static byte[] concat(byte[]... _parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : _parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static void writeVBAS(ByteArrayOutputStream _out, long _value) {
+        int groups = 1;
+        while ((_value >> (7 * groups)) != 0)
+            groups++;
+        for (int i = groups - 1; i >= 0; i--) {
+            int value = (int) (_value >> (7 * i)) & 0x7F;
+            _out.write(i > 0 ? value | 0x80 : value);
+        }
+    }
+}
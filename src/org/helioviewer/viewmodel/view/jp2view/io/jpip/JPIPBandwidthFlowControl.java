@@ -0,0 +1,121 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+/**
+ * Flow control based on the bandwidth-delay product of the connection.
+ *
+ * The throughput and the round trip time are estimated with exponentially
+ * weighted moving averages. The request length is chosen, so that a response
+ * lasts at least {@link #RESPONSE_TIME} and the pipelined requests cover the
+ * round trip time. The length changes at most by a factor of two per response,
+ * and it only grows if the responses actually fill the requests.
+ *
+ * The round trip time is only measured if the request was sent after the
+ * previous response was received, otherwise the reply waits for the previous
+ * responses.
+ */
+public class JPIPBandwidthFlowControl implements JPIPFlowControl {
+
+    /** Desired minimum duration of a response in milliseconds */
+    public static final double RESPONSE_TIME = 250;
+
+    /** Round trip time until the first measurement in milliseconds */
+    private static final double INITIAL_RTT = 100;
+
+    /** Weight of a new throughput sample */
+    private static final double THROUGHPUT_GAIN = 0.25;
+
+    /** Weight of a new round trip time sample */
+    private static final double RTT_GAIN = 0.125;
+
+    /** Number of requests in flight on the connection */
+    private final int depth;
+
+    /** Average amount of data of a response in bytes */
+    private double averageBytes = 0;
+
+    /** Average transfer time of the data of a response in milliseconds */
+    private double averageTime = 0;
+
+    /** Average round trip time in milliseconds, negative if not measured */
+    private volatile double roundTripTime = -1;
+
+    /** Estimated throughput in bytes per millisecond, 0 if not measured */
+    private volatile double bandwidth = 0;
+
+    /** Time when the last response was received, negative if unknown */
+    private long lastResponseTime = -1;
+
+    /** The current length in bytes to use for requests */
+    private volatile int requestLen = JPIPConstants.MIN_REQUEST_LEN;
+
+    /**
+     * Default constructor.
+     *
+     * @param _depth
+     *            maximum number of pipelined requests on the connection
+     */
+    public JPIPBandwidthFlowControl(int _depth) {
+        depth = Math.max(1, _depth);
+    }
+
+    public int getRequestLength() {
+        return requestLen;
+    }
+
+    public void reset() {
+        lastResponseTime = -1;
+    }
+
+    public void update(int receivedBytes, long requestTime, long replyTextTime, long replyDataTime) {
+        if (lastResponseTime < 0 || requestTime >= lastResponseTime) {
+            double sample = Math.max(0, replyTextTime - requestTime);
+            roundTripTime = roundTripTime < 0 ? sample : roundTripTime + (sample - roundTripTime) * RTT_GAIN;
+        }
+        lastResponseTime = replyDataTime;
+
+        if (receivedBytes <= 0)
+            return;
+
+        long dataTime = Math.max(0, replyDataTime - replyTextTime);
+        if (averageBytes == 0) {
+            averageBytes = receivedBytes;
+            averageTime = dataTime;
+        } else {
+            averageBytes += (receivedBytes - averageBytes) * THROUGHPUT_GAIN;
+            averageTime += (dataTime - averageTime) * THROUGHPUT_GAIN;
+        }
+        // the data of a small response may arrive within one millisecond
+        bandwidth = averageBytes / Math.max(averageTime, 1);
+
+        double rtt = roundTripTime < 0 ? INITIAL_RTT : roundTripTime;
+        double target = bandwidth * Math.max(RESPONSE_TIME, rtt / Math.max(1, depth - 1));
+
+        // a response which does not fill the request does not tell, whether
+        // a longer request could be served faster
+        if (receivedBytes < (requestLen >> 1))
+            target = Math.min(target, requestLen);
+
+        target = Math.min(target, 2.0 * requestLen);
+        target = Math.max(target, 0.5 * requestLen);
+
+        requestLen = (int) Math.max(JPIPConstants.MIN_REQUEST_LEN, Math.min(JPIPConstants.MAX_REQUEST_LEN, target));
+    }
+
+    /**
+     * Returns the estimated throughput of the connection.
+     *
+     * @return Throughput in bytes per millisecond, 0 if not yet measured
+     */
+    public double getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the estimated round trip time of the connection.
+     *
+     * @return Round trip time in milliseconds, negative if not yet measured
+     */
+    public double getRoundTripTime() {
+        return roundTripTime;
+    }
+}
@@ -0,0 +1,93 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of the byte arrays which hold the data of the JPIP data segments.
+ *
+ * The arrays have a length of a power of two. Once the data of a segment was
+ * added to the Kakadu cache, its array is released to the pool and reused for
+ * one of the next segments. Arrays which are larger than the biggest size
+ * class are not pooled.
+ *
+ * This class is threadsafe.
+ */
+public class JPIPBufferPool {
+
+    /** Smallest pooled array is 2^MIN_SHIFT bytes */
+    private static final int MIN_SHIFT = 10;
+
+    /** Largest pooled array is 2^MAX_SHIFT bytes */
+    private static final int MAX_SHIFT = 20;
+
+    /** Maximum number of free arrays per size class */
+    private static final int MAX_FREE = 32;
+
+    private static final ConcurrentLinkedQueue<byte[]>[] free = createQueues();
+
+    private static final AtomicInteger[] freeCount = new AtomicInteger[MAX_SHIFT - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < freeCount.length; i++)
+            freeCount[i] = new AtomicInteger();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ConcurrentLinkedQueue<byte[]>[] createQueues() {
+        ConcurrentLinkedQueue<byte[]>[] queues = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ConcurrentLinkedQueue<byte[]>();
+        return queues;
+    }
+
+    /**
+     * Returns the size class of an array length, or -1 if it is not pooled.
+     */
+    private static int sizeClass(int length) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns an array of at least the given length. The content of the array
+     * is undefined.
+     *
+     * @param length
+     *            minimum length of the array
+     * @return A pooled or new array
+     */
+    public static byte[] acquire(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0)
+            return new byte[length];
+
+        byte[] array = free[sizeClass].poll();
+        if (array == null)
+            return new byte[1 << (sizeClass + MIN_SHIFT)];
+
+        freeCount[sizeClass].decrementAndGet();
+        return array;
+    }
+
+    /**
+     * Gives an array back to the pool. The caller must not use the array
+     * afterwards. Arrays which do not belong to a size class are ignored.
+     *
+     * @param array
+     *            the released array, may be null
+     */
+    public static void release(byte[] array) {
+        if (array == null)
+            return;
+
+        int sizeClass = sizeClass(array.length);
+        if (sizeClass < 0 || array.length != 1 << (sizeClass + MIN_SHIFT))
+            return;
+
+        if (freeCount[sizeClass].incrementAndGet() <= MAX_FREE)
+            free[sizeClass].offer(array);
+        else
+            freeCount[sizeClass].decrementAndGet();
+    }
+}
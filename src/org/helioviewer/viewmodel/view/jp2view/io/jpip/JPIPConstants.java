@@ -97,4 +97,10 @@ public class JPIPConstants {
      * Maximum number of layers that can be requested at the same time.
      */
     public static final int MAX_REQ_LAYERS = 15;
+
+    /**
+     * Maximum number of requests which are in flight on one channel at the
+     * same time.
+     */
+    public static final int MAX_PIPELINED_REQUESTS = 4;
 }
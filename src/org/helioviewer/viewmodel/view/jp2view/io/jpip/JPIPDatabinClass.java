@@ -27,6 +27,9 @@ public enum JPIPDatabinClass {
     /** Meta data bin class. */
     META_DATABIN(KakaduConstants.KDU_META_DATABIN, JPIPConstants.META_DATA_BIN_CLASS, "M");
 
+    /** All classes, values() creates a new array on every call. */
+    private static final JPIPDatabinClass[] classes = values();
+
     /** The classID as an integer as per the Kakadu library. */
     private int kakaduClassID;
 
@@ -62,6 +65,20 @@ public enum JPIPDatabinClass {
         return standardClassID;
     }
 
+    /**
+     * Returns the class with the given classID as per the JPEG2000 Part-9
+     * standard.
+     * 
+     * @param _standardClassID
+     * @return The class, or null if the classID is not supported
+     */
+    public static JPIPDatabinClass fromStandardClassID(long _standardClassID) {
+        for (JPIPDatabinClass c : classes)
+            if (c.standardClassID == _standardClassID)
+                return c;
+        return null;
+    }
+
     /**
      * Returns the classID as a string as per the JPEG2000 Part-9 standard. Used
      * for cache model updates.
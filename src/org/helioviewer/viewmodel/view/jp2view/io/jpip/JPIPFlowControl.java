@@ -0,0 +1,40 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+/**
+ * Strategy which determines the length of the JPIP requests, i.e. the value of
+ * the <code>len</code> field, from the timing of the previous responses.
+ *
+ * A flow control belongs to one connection. The times are passed as
+ * parameters, so a flow control can also be driven by a simulated clock.
+ */
+public interface JPIPFlowControl {
+
+    /**
+     * Returns the length in bytes to use for the next request.
+     *
+     * @return Request length, between {@link JPIPConstants#MIN_REQUEST_LEN}
+     *         and {@link JPIPConstants#MAX_REQUEST_LEN}
+     */
+    public int getRequestLength();
+
+    /**
+     * Tells the flow control, that a new series of requests starts. The
+     * timing of the previous series must not be related to the next
+     * responses.
+     */
+    public void reset();
+
+    /**
+     * Updates the request length with the measurements of a response.
+     *
+     * @param receivedBytes
+     *            amount of data (bytes) of the response
+     * @param requestTime
+     *            time when the request was sent
+     * @param replyTextTime
+     *            time when the reply text was received
+     * @param replyDataTime
+     *            time when the reply data was received
+     */
+    public void update(int receivedBytes, long requestTime, long replyTextTime, long replyDataTime);
+}
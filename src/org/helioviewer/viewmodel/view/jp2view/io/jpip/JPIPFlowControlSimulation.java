@@ -0,0 +1,149 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.util.Random;
+
+/**
+ * Deterministic simulation which compares the flow control strategies.
+ *
+ * The simulation runs with a virtual clock. It models a link with a given
+ * throughput and round trip time, whose throughput varies randomly by up to
+ * 20% per response, and a server which answers the pipelined requests in
+ * order. The client requests the steps of a movie like the J2KReader does: it
+ * keeps {@link JPIPConstants#MAX_PIPELINED_REQUESTS} requests in flight, cycles
+ * through the incomplete steps and adjusts the request length after every
+ * response.
+ *
+ * Besides the total time and the utilization of the link, the mean duration of
+ * a response is reported. A changed view is only served after the responses in
+ * flight, so long responses make the viewer sluggish.
+ *
+ * Usage: JPIPFlowControlSimulation [steps] [kilobytes per step]
+ */
+public class JPIPFlowControlSimulation {
+
+    /** Size of the header of a response in bytes */
+    private static final int HEADER_SIZE = 200;
+
+    /** Processing time of the server per request in milliseconds */
+    private static final double SERVER_TIME = 2;
+
+    /** Outcome of one simulated transfer */
+    private static class Outcome {
+        double time;
+        int requests;
+        double meanLength;
+        double lengthVariation;
+        double responseTime;
+        double utilization;
+    }
+
+    public static void main(String[] args) {
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int stepSize = (args.length > 1 ? Integer.parseInt(args[1]) : 2048) * 1024;
+
+        // name, throughput (bytes per ms), round trip time (ms)
+        Object[][] links = { { "lan", 10000.0, 2.0 }, { "dsl", 1000.0, 30.0 }, { "transatlantic", 2500.0, 150.0 }, { "satellite", 250.0, 600.0 } };
+
+        System.out.println(String.format("%-14s %-9s %9s %9s %11s %10s %12s %10s", "link", "strategy", "time[s]", "requests", "mean len", "len cv", "utilization", "resp[ms]"));
+        for (Object[] link : links) {
+            double bandwidth = (Double) link[1];
+            double rtt = (Double) link[2];
+            for (int s = 0; s < 2; s++) {
+                JPIPFlowControl flowControl = s == 0 ? new JPIPKakaduFlowControl() : new JPIPBandwidthFlowControl(JPIPConstants.MAX_PIPELINED_REQUESTS);
+                Outcome o = simulate(flowControl, steps, stepSize, bandwidth, rtt, JPIPConstants.MAX_PIPELINED_REQUESTS, new Random(7));
+                System.out.println(String.format("%-14s %-9s %9.2f %9d %11.0f %10.2f %11.0f%% %10.0f", link[0], s == 0 ? "kakadu" : "bandwidth", o.time / 1000, o.requests, o.meanLength, o.lengthVariation, o.utilization * 100, o.responseTime));
+            }
+        }
+    }
+
+    /**
+     * Simulates the transfer of all steps.
+     *
+     * @param flowControl
+     *            the strategy to simulate
+     * @param steps
+     *            number of steps, i.e. of queries for groups of layers
+     * @param stepSize
+     *            data of a step in bytes
+     * @param bandwidth
+     *            mean throughput of the link in bytes per millisecond
+     * @param rtt
+     *            round trip time of the link in milliseconds
+     * @param depth
+     *            maximum number of requests in flight
+     * @param random
+     *            source of the throughput variation
+     * @return The outcome
+     */
+    static Outcome simulate(JPIPFlowControl flowControl, int steps, int stepSize, double bandwidth, double rtt, int depth, Random random) {
+        long[] remaining = new long[steps];
+        for (int i = 0; i < steps; i++)
+            remaining[i] = stepSize;
+
+        // requests in flight: step, length and send time
+        int[] flightStep = new int[depth];
+        int[] flightLength = new int[depth];
+        double[] flightTime = new double[depth];
+        int head = 0, inFlight = 0;
+
+        int completeSteps = 0;
+        int currentStep = 0;
+        double now = 0;
+        double serverFree = 0;
+
+        int requests = 0;
+        double sumLength = 0, sumSquaredLength = 0;
+        long totalBytes = 0;
+        double sumResponseTime = 0;
+
+        flowControl.reset();
+        while (completeSteps < steps || inFlight > 0) {
+            while (completeSteps < steps && inFlight < depth) {
+                int step = currentStep;
+                while (remaining[step] == 0)
+                    step = (step + 1) % steps;
+
+                int slot = (head + inFlight) % depth;
+                flightStep[slot] = step;
+                flightLength[slot] = flowControl.getRequestLength();
+                flightTime[slot] = now;
+                inFlight++;
+                requests++;
+                sumLength += flightLength[slot];
+                sumSquaredLength += (double) flightLength[slot] * flightLength[slot];
+                currentStep = (step + 1) % steps;
+            }
+
+            // the server answers the oldest request
+            int step = flightStep[head];
+            double requestTime = flightTime[head];
+            int bytes = (int) Math.min(flightLength[head], remaining[step]);
+            head = (head + 1) % depth;
+            inFlight--;
+
+            double linkRate = bandwidth * (0.8 + 0.4 * random.nextDouble());
+            double start = Math.max(requestTime + rtt / 2, serverFree) + SERVER_TIME;
+            double replyText = start + rtt / 2 + HEADER_SIZE / linkRate;
+            double replyData = replyText + bytes / linkRate;
+            serverFree = start + (HEADER_SIZE + bytes) / linkRate;
+
+            remaining[step] -= bytes;
+            if (remaining[step] == 0 && bytes > 0)
+                completeSteps++;
+            totalBytes += bytes;
+            sumResponseTime += replyData - start;
+
+            now = replyData;
+            flowControl.update(bytes, (long) requestTime, (long) replyText, (long) replyData);
+        }
+
+        Outcome o = new Outcome();
+        o.time = now;
+        o.requests = requests;
+        o.meanLength = sumLength / requests;
+        o.lengthVariation = Math.sqrt(Math.max(0, sumSquaredLength / requests - o.meanLength * o.meanLength)) / o.meanLength;
+        o.responseTime = sumResponseTime / requests;
+        o.utilization = totalBytes / (now * bandwidth);
+        return o;
+    }
+}
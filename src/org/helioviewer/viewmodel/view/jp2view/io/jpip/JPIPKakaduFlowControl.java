@@ -0,0 +1,62 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+/**
+ * The flow control of the viewer kdu_show of Kakadu. The request length is
+ * increased or decreased by 25%, depending on the ratio of the gap between
+ * two responses and the duration of the responses.
+ */
+public class JPIPKakaduFlowControl implements JPIPFlowControl {
+
+    /**
+     * The time when the last response was received. A negative value means
+     * that there is not a previous valid response to take into account.
+     */
+    private long lastResponseTime = -1;
+
+    /** The current length in bytes to use for requests */
+    private int requestLen = JPIPConstants.MIN_REQUEST_LEN;
+
+    public int getRequestLength() {
+        return requestLen;
+    }
+
+    public void reset() {
+        lastResponseTime = -1;
+    }
+
+    public void update(int receivedBytes, long requestTime, long replyTextTime, long replyDataTime) {
+        int adjust = 0;
+
+        long tdat = replyDataTime - replyTextTime;
+
+        if (((receivedBytes - requestLen) < (requestLen >> 1)) && (receivedBytes > (requestLen >> 1))) {
+            if (tdat > 10000)
+                adjust = -1;
+            else if (lastResponseTime > 0) {
+                long tgap = replyTextTime - lastResponseTime;
+
+                if ((tgap + tdat) < 1000)
+                    adjust = +1;
+                else {
+                    double gapRatio = ((double) tgap) / ((double) (tgap + tdat));
+                    double targetRatio = ((double) (tdat + tgap)) / 10000.0;
+
+                    if (gapRatio > targetRatio)
+                        adjust = +1;
+                    else
+                        adjust = -1;
+                }
+            }
+        }
+
+        requestLen += (requestLen >> 2) * adjust;
+
+        if (requestLen > JPIPConstants.MAX_REQUEST_LEN)
+            requestLen = JPIPConstants.MAX_REQUEST_LEN;
+
+        if (requestLen < JPIPConstants.MIN_REQUEST_LEN)
+            requestLen = JPIPConstants.MIN_REQUEST_LEN;
+
+        lastResponseTime = replyDataTime;
+    }
+}
@@ -0,0 +1,215 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link JPIPSocket#receive()} with the stream
+ * based {@link JPIPSocket#receiveWithStreams()}.
+ *
+ * A series of pipelined responses, with Content-Length and with chunked
+ * transfer encoding, is generated in memory and received by both
+ * implementations. The parsed data segments are compared before the
+ * implementations are timed.
+ *
+ * Usage: JPIPReceiveBenchmark [megabytes] [repetitions]
+ */
+public class JPIPReceiveBenchmark {
+
+    /** Socket which reads the responses from memory instead of the network */
+    private static class MemorySocket extends JPIPSocket {
+        private final InputStream in;
+
+        MemorySocket(byte[] _data) {
+            in = new ByteArrayInputStream(_data);
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+    }
+
+    private static final int RESPONSES = 64;
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        byte[] stream = createStream(megabytes * 1024 * 1024, new Random(42));
+
+        List<JPIPResponse> reference = receiveAll(stream, false);
+        List<JPIPResponse> pooled = receiveAll(stream, true);
+        if (!equal(reference, pooled)) {
+            System.out.println("The received data segments differ");
+            System.exit(1);
+        }
+        System.out.println(reference.size() + " responses, " + stream.length + " bytes, data segments equal");
+
+        for (int i = 0; i < repetitions; i++) {
+            long streams = time(stream, false);
+            long reader = time(stream, true);
+            System.out.println("streams: " + throughput(stream.length, streams) + " MB/s, reader: " + throughput(stream.length, reader) + " MB/s");
+        }
+    }
+
+    private static String throughput(long bytes, long nanos) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+
+    /**
+     * Receives all responses of the stream and releases the segment data like
+     * the kakadu cache does.
+     */
+    private static long time(byte[] stream, boolean useReader) throws IOException {
+        JPIPSocket socket = new MemorySocket(stream);
+        long start = System.nanoTime();
+        JPIPResponse res;
+        while ((res = useReader ? socket.receive() : socket.receiveWithStreams()) != null) {
+            JPIPDataSegment seg;
+            while ((seg = res.removeJpipDataSegment()) != null)
+                if (useReader)
+                    JPIPBufferPool.release(seg.data);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static List<JPIPResponse> receiveAll(byte[] stream, boolean useReader) throws IOException {
+        JPIPSocket socket = new MemorySocket(stream);
+        List<JPIPResponse> responses = new ArrayList<JPIPResponse>();
+        JPIPResponse res;
+        while ((res = useReader ? socket.receive() : socket.receiveWithStreams()) != null)
+            responses.add(res);
+        return responses;
+    }
+
+    private static boolean equal(List<JPIPResponse> a, List<JPIPResponse> b) {
+        if (a.size() != b.size())
+            return false;
+
+        for (int i = 0; i < a.size(); i++) {
+            JPIPResponse resA = a.get(i);
+            JPIPResponse resB = b.get(i);
+            if (resA.isResponseComplete() != resB.isResponseComplete())
+                return false;
+
+            JPIPDataSegment segA, segB;
+            do {
+                segA = resA.removeJpipDataSegment();
+                segB = resB.removeJpipDataSegment();
+                if (segA == null || segB == null)
+                    break;
+                if (segA.isEOR != segB.isEOR || segA.binID != segB.binID || segA.length != segB.length)
+                    return false;
+                if (segA.isEOR)
+                    continue;
+                if (segA.classID != segB.classID || segA.codestreamID != segB.codestreamID || segA.offset != segB.offset || segA.isFinal != segB.isFinal || segA.aux != segB.aux)
+                    return false;
+                if (segA.length > 0 && !Arrays.equals(Arrays.copyOf(segA.data, segA.length), Arrays.copyOf(segB.data, segB.length)))
+                    return false;
+            } while (true);
+
+            if (segA != segB)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates pipelined responses of about the given total size.
+     */
+    private static byte[] createStream(int size, Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 8);
+        for (int i = 0; i < RESPONSES; i++) {
+            byte[] body = createBody(size / RESPONSES, i == RESPONSES - 1, random);
+            boolean chunked = (i % 2) == 1;
+
+            StringBuilder header = new StringBuilder();
+            header.append("HTTP/1.1 200 OK\r\n");
+            header.append("Content-Type: image/jpp-stream\r\n");
+            header.append("Cache-Control: no-cache\r\n");
+            if (chunked)
+                header.append("Transfer-Encoding: chunked\r\n");
+            else
+                header.append("Content-Length: ").append(body.length).append("\r\n");
+            header.append("\r\n");
+            out.write(header.toString().getBytes("US-ASCII"));
+
+            if (chunked) {
+                int pos = 0;
+                while (pos < body.length) {
+                    int len = Math.min(body.length - pos, 1 + random.nextInt(16384));
+                    out.write((Integer.toHexString(len) + "\r\n").getBytes("US-ASCII"));
+                    out.write(body, pos, len);
+                    out.write("\r\n".getBytes("US-ASCII"));
+                    pos += len;
+                }
+                out.write("0\r\n\r\n".getBytes("US-ASCII"));
+            } else {
+                out.write(body);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a jpp-stream message body of main header and precinct data-bins,
+     * terminated by an EOR message.
+     */
+    private static byte[] createBody(int size, boolean last, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 64);
+        long codestream = random.nextInt(100);
+        long classId = -1;
+
+        while (out.size() < size) {
+            boolean mainHeader = random.nextInt(16) == 0;
+            long newClass = mainHeader ? JPIPConstants.MAIN_HEADER_DATA_BIN_CLASS : JPIPConstants.PRECINCT_DATA_BIN_CLASS;
+            int indicator = classId == -1 ? 3 : (newClass != classId ? 2 : 1);
+            long binId = mainHeader ? 0 : random.nextInt(1 << (4 + 7 * random.nextInt(3)));
+            int length = random.nextInt(8192);
+
+            writeBinId(out, binId, indicator, random.nextBoolean());
+            if (indicator >= 2)
+                writeVBAS(out, newClass);
+            if (indicator == 3)
+                writeVBAS(out, codestream);
+            writeVBAS(out, random.nextInt(100000));
+            writeVBAS(out, length);
+
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            out.write(data, 0, length);
+            classId = newClass;
+        }
+
+        out.write(0);
+        out.write(last ? JPIPConstants.EOR_WINDOW_DONE : JPIPConstants.EOR_BYTE_LIMIT_REACHED);
+        writeVBAS(out, 0);
+        return out.toByteArray();
+    }
+
+    private static void writeBinId(ByteArrayOutputStream out, long binId, int indicator, boolean isFinal) {
+        int groups = 0;
+        while ((binId >> (4 + 7 * groups)) != 0)
+            groups++;
+
+        int first = (indicator << 5) | (isFinal ? 0x10 : 0) | (int) ((binId >> (7 * groups)) & 0x0F);
+        out.write(first | (groups > 0 ? 0x80 : 0));
+        for (int i = groups - 1; i >= 0; i--)
+            out.write((int) ((binId >> (7 * i)) & 0x7F) | (i > 0 ? 0x80 : 0));
+    }
+
+    private static void writeVBAS(ByteArrayOutputStream out, long value) {
+        int groups = 1;
+        while ((value >> (7 * groups)) != 0)
+            groups++;
+
+        for (int i = groups - 1; i >= 0; i--)
+            out.write((int) ((value >> (7 * i)) & 0x7F) | (i > 0 ? 0x80 : 0));
+    }
+}
@@ -0,0 +1,488 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPResponse;
+
+/**
+ * Reads HTTP responses with a jpp-stream body from a connection.
+ *
+ * The connection is read in large blocks into one reusable buffer. The HTTP
+ * header lines, the chunk headers and the message headers of the data-bins
+ * are parsed directly in the buffer. The data of each data-bin segment is
+ * copied once, from the buffer into an array of the {@link JPIPBufferPool}.
+ *
+ * Bytes which were read beyond the end of a response stay in the buffer for
+ * the next response, so pipelined responses are supported. One reader must be
+ * used for all responses of a connection.
+ *
+ * @see JPIPDataInputStream
+ */
+public class JPIPResponseReader {
+
+    /** Size of the read buffer, which is also the maximum header line length */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte CR = 13;
+
+    private static final byte LF = 10;
+
+    /** The channel of the connection */
+    private final ReadableByteChannel channel;
+
+    /** The read buffer, position to limit are the unread bytes */
+    private final ByteBuffer buffer;
+
+    /** The backing array of the buffer */
+    private final byte[] array;
+
+    /** True, if the body of the current response is chunked */
+    private boolean chunked;
+
+    /**
+     * Remaining bytes of the current chunk or, if not chunked, of the current
+     * body
+     */
+    private long remaining;
+
+    /** True, if the end of the current body was reached */
+    private boolean bodyDone;
+
+    /** Number of body bytes read of the current response */
+    private int bytesRead;
+
+    /** Start of the last chunk line read */
+    private int chunkLineStart;
+
+    /** The last class identifier read. */
+    private long classId;
+
+    /** The last code-stream index read. */
+    private long codestream;
+
+    /** The first byte of the last VBAS read. */
+    private int vbasFstByte;
+
+    /** The total length in bytes of the last VBAS read. */
+    private int vbasLength;
+
+    /**
+     * Creates a reader of the stream of a connection.
+     *
+     * @param in
+     *            the input stream of the connection
+     */
+    public JPIPResponseReader(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * Creates a reader of a channel.
+     *
+     * @param _channel
+     *            the channel of the connection
+     */
+    public JPIPResponseReader(ReadableByteChannel _channel) {
+        channel = _channel;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        array = buffer.array();
+        buffer.flip();
+    }
+
+    /**
+     * Reads more bytes from the channel. The unread bytes are moved to the
+     * start of the buffer.
+     *
+     * @return False, if the end of stream was reached
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            int n;
+            do {
+                n = channel.read(buffer);
+            } while (n == 0 && buffer.hasRemaining());
+            return n > 0;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Makes sure that a whole line is in the buffer.
+     *
+     * @return The index of the LF which ends the line, -1 if the end of stream
+     *         was reached before any byte of the line
+     * @throws IOException
+     */
+    private int findLineEnd() throws IOException {
+        int searched = 0;
+        for (;;) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for (int i = start + searched; i < limit; i++) {
+                if (array[i] == LF)
+                    return i;
+            }
+            searched = limit - start;
+
+            if (searched >= array.length)
+                throw new ProtocolException("HTTP header line too long");
+            if (!fill()) {
+                if (buffer.hasRemaining())
+                    throw new EOFException("End of stream reached before end of line");
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the line starting at the buffer position without
+     * CRLF.
+     */
+    private int lineLength(int lineEnd) {
+        int end = lineEnd;
+        if (end > buffer.position() && array[end - 1] == CR)
+            end--;
+        return end - buffer.position();
+    }
+
+    private String string(int offset, int length) {
+        return new String(array, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the status line and the headers of the next response.
+     *
+     * @return The response, or null if the end of stream was reached
+     * @throws IOException
+     */
+    public HTTPResponse readHeader() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0)
+            return null;
+
+        int start = buffer.position();
+        int length = lineLength(lineEnd);
+        int space1 = indexOf(start, start + length, (byte) ' ');
+        int space2 = space1 < 0 ? -1 : indexOf(space1 + 1, start + length, (byte) ' ');
+        if (space2 < 0 || !startsWith(start, "HTTP/"))
+            throw new ProtocolException("Invalid HTTP message");
+
+        double ver;
+        int code;
+        try {
+            ver = Double.parseDouble(string(start + 5, space1 - start - 5));
+        } catch (NumberFormatException ex) {
+            throw new ProtocolException("Invalid HTTP version format");
+        }
+        if ((ver < 1) || (ver > HTTPResponse.version))
+            throw new ProtocolException("HTTP version not supported");
+
+        code = 0;
+        for (int i = space1 + 1; i < space2; i++) {
+            if (array[i] < '0' || array[i] > '9')
+                throw new ProtocolException("Invalid HTTP status code format");
+            code = code * 10 + array[i] - '0';
+        }
+
+        HTTPResponse res = new HTTPResponse(code, string(space2 + 1, start + length - space2 - 1));
+        buffer.position(lineEnd + 1);
+
+        // Parses HTTP headers
+        for (;;) {
+            lineEnd = findLineEnd();
+            if (lineEnd < 0)
+                throw new EOFException("End of stream reached before end of HTTP message");
+
+            start = buffer.position();
+            length = lineLength(lineEnd);
+            if (length == 0) {
+                buffer.position(lineEnd + 1);
+                break;
+            }
+
+            int colon = indexOf(start, start + length, (byte) ':');
+            if (colon < 0 || colon + 1 >= start + length || array[colon + 1] != ' ')
+                throw new ProtocolException("Invalid HTTP header format");
+
+            res.setHeader(string(start, colon - start), string(colon + 2, start + length - colon - 2));
+            buffer.position(lineEnd + 1);
+        }
+
+        return res;
+    }
+
+    private int indexOf(int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (array[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int offset, String prefix) {
+        if (buffer.limit() - offset < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (array[offset + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the jpp-stream body of a response and adds its data segments to
+     * the response.
+     *
+     * @param res
+     *            the response, whose header was read by readHeader
+     * @param isChunked
+     *            true, if the transfer encoding is chunked
+     * @param contentLength
+     *            the length of the body if it is not chunked
+     * @throws IOException
+     */
+    public void readBody(JPIPResponse res, boolean isChunked, long contentLength) throws IOException {
+        chunked = isChunked;
+        remaining = isChunked ? -1 : contentLength;
+        bodyDone = false;
+        bytesRead = 0;
+        classId = 0;
+        codestream = 0;
+
+        JPIPDataSegment seg;
+        while ((seg = readSegment()) != null)
+            res.addJpipDataSegment(seg);
+
+        // skip the rest of the body
+        while (ensureBody()) {
+            int n = (int) Math.min(buffer.remaining(), remaining);
+            buffer.position(buffer.position() + n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * @return The number of body bytes read of the last response
+     */
+    public int getNumberOfBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Makes sure that at least one byte of the body is in the buffer.
+     *
+     * @return False, if the end of the body was reached
+     * @throws IOException
+     */
+    private boolean ensureBody() throws IOException {
+        if (bodyDone)
+            return false;
+
+        if (remaining == 0) {
+            if (!chunked) {
+                bodyDone = true;
+                return false;
+            }
+            // CRLF after the chunk
+            readChunkLine();
+            remaining = -1;
+        }
+
+        if (remaining < 0) {
+            long size = parseHex(readChunkLine());
+            if (size == 0) {
+                // trailer
+                while (readChunkLine() != 0)
+                    ;
+                bodyDone = true;
+                return false;
+            }
+            remaining = size;
+        }
+
+        if (!buffer.hasRemaining() && !fill())
+            throw new EOFException("End of stream reached before end of body");
+        return true;
+    }
+
+    /**
+     * Consumes a line of the chunked encoding.
+     *
+     * @return The length of the line without CRLF
+     * @throws IOException
+     */
+    private int readChunkLine() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0)
+            throw new EOFException("Unexpected end of stream decoding chunk");
+        int length = lineLength(lineEnd);
+        chunkLineStart = buffer.position();
+        buffer.position(lineEnd + 1);
+        return length;
+    }
+
+    private long parseHex(int length) throws IOException {
+        long value = 0;
+        int digits = 0;
+        for (int i = chunkLineStart; i < chunkLineStart + length; i++) {
+            int c = array[i];
+            int d;
+            if (c >= '0' && c <= '9')
+                d = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                d = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                d = c - 'A' + 10;
+            else if (c == ';' || c == ' ')
+                break;
+            else
+                throw new ProtocolException("Invalid chunk length format");
+            value = (value << 4) | d;
+            digits++;
+        }
+        if (digits == 0)
+            throw new ProtocolException("Invalid chunk length format");
+        return value;
+    }
+
+    /**
+     * Reads one byte of the body.
+     *
+     * @return The byte, or -1 if the end of the body was reached
+     * @throws IOException
+     */
+    private int read() throws IOException {
+        if (!buffer.hasRemaining() || remaining <= 0) {
+            if (!ensureBody())
+                return -1;
+        }
+        remaining--;
+        bytesRead++;
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Reads bytes of the body into an array.
+     *
+     * @throws IOException
+     */
+    private void read(byte[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!ensureBody())
+                throw new EOFException("EOF reached before read " + len + " bytes");
+
+            int n = (int) Math.min(len, Math.min(buffer.remaining(), remaining));
+            buffer.get(dst, off, n);
+            off += n;
+            len -= n;
+            remaining -= n;
+            bytesRead += n;
+        }
+    }
+
+    /**
+     * Reads an VBAS integer from the body. The length in bytes of the VBAS is
+     * stored in the <code>vbasLength</code>variable, and the first byte of the
+     * VBAS is stored in the <code>vbasFstByte</code> variable.
+     *
+     * @throws java.io.IOException
+     */
+    private long readVBAS() throws IOException {
+        int c;
+        long value = 0;
+
+        vbasLength = 0;
+
+        do {
+            if (vbasLength >= 9)
+                throw new ProtocolException("VBAS length not supported");
+
+            if ((c = read()) < 0) {
+                if (vbasLength > 0)
+                    throw new EOFException("EOF reached before completing VBAS");
+                else
+                    return -1;
+            }
+
+            value = (value << 7) | (long) (c & 0x7F);
+
+            if (vbasLength == 0)
+                vbasFstByte = c;
+            vbasLength++;
+
+        } while ((c & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Reads the next data segment of the body. The data is stored in an array
+     * of the {@link JPIPBufferPool}.
+     *
+     * @return The segment, or null if the end of the body was reached
+     * @throws IOException
+     */
+    private JPIPDataSegment readSegment() throws IOException {
+        int m;
+        long id;
+        if ((id = readVBAS()) < 0)
+            return null;
+
+        JPIPDataSegment seg = new JPIPDataSegment();
+
+        seg.binID = id;
+
+        if (vbasFstByte == 0) {
+            seg.isEOR = true;
+
+            if ((seg.binID = read()) < 0)
+                throw new EOFException("EOF reached before completing EOR message");
+
+            seg.length = (int) readVBAS();
+
+        } else {
+            seg.isEOR = false;
+            seg.binID &= (long) ~(0x70 << ((vbasLength - 1) * 7));
+
+            seg.isFinal = ((vbasFstByte & 0x10) != 0);
+
+            m = (vbasFstByte & 0x7F) >> 5;
+
+            if (m == 0)
+                throw new ProtocolException("Invalid Bin-ID value format");
+            else if (m >= 2) {
+                classId = readVBAS();
+                if (m > 2)
+                    codestream = readVBAS();
+            }
+            seg.codestreamID = codestream;
+
+            seg.classID = JPIPDatabinClass.fromStandardClassID(classId);
+            if (seg.classID == null)
+                throw new ProtocolException("Invalid databin classID");
+
+            seg.offset = (int) readVBAS();
+            seg.length = (int) readVBAS();
+
+            if ((classId == JPIPConstants.EXTENDED_PRECINCT_DATA_BIN_CLASS) || (classId == JPIPConstants.EXTENDED_TILE_DATA_BIN_CLASS))
+                seg.aux = readVBAS();
+        }
+
+        if (seg.length > 0) {
+            seg.data = JPIPBufferPool.acquire(seg.length);
+            read(seg.data, 0, seg.length);
+        }
+
+        return seg;
+    }
+}
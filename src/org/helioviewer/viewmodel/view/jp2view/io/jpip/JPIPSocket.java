@@ -42,6 +42,16 @@ public class JPIPSocket extends HTTPSocket {
     /** Time when received the last reply data */
     private long replyDataTm = 0;
 
+    /** Reads the responses of this connection */
+    private JPIPResponseReader reader;
+
+    /**
+     * Serializes connecting, writing and closing. Requests are sent by the
+     * reader thread, while the ingest thread closes the connection when the
+     * server ends it.
+     */
+    private final Object connectionLock = new Object();
+
     /** Default constructor. */
     public JPIPSocket() {
         super();
@@ -57,7 +67,9 @@ public class JPIPSocket extends HTTPSocket {
      * @throws IOException
      */
     public Object connect(URI _uri) throws IOException {
-        super.connect(_uri);
+        synchronized (connectionLock) {
+            super.connect(_uri);
+        }
 
         jpipPath = _uri.getPath();
 
@@ -107,29 +119,49 @@ public class JPIPSocket extends HTTPSocket {
 
     };
 
+    /**
+     * Reconnects to the last used host, and using the last used port.
+     */
+    public void reconnect() throws IOException {
+        synchronized (connectionLock) {
+            super.reconnect();
+        }
+    }
+
     /** Closes the JPIPSocket */
     public void close() throws IOException {
-        if (this.isClosed())
-            return;
+        synchronized (connectionLock) {
+            if (this.isClosed())
+                return;
 
-        try {
-            if (jpipChannelID != null) {
-                JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+            try {
+                if (jpipChannelID != null) {
+                    JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
 
-                JPIPQuery query = new JPIPQuery();
-                query.setField(JPIPRequestField.CCLOSE.toString(), jpipChannelID);
-                query.setField(JPIPRequestField.LEN.toString(), "0");
-                req.setQuery(query.toString());
+                    JPIPQuery query = new JPIPQuery();
+                    query.setField(JPIPRequestField.CCLOSE.toString(), jpipChannelID);
+                    query.setField(JPIPRequestField.LEN.toString(), "0");
+                    req.setQuery(query.toString());
 
-                send(req);
+                    send(req);
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                super.close();
             }
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally{
+    /**
+     * Closes the connection after the server ended it, without sending a
+     * request.
+     */
+    private void closeByServer() throws IOException {
+        synchronized (connectionLock) {
             super.close();
         }
-
     }
 
     /**
@@ -179,11 +211,13 @@ public class JPIPSocket extends HTTPSocket {
         if (_req.getMethod() == HTTPRequest.Method.POST)
             str.append(queryStr);
 
-        if (!isConnected()) {
-            reconnect();
+        synchronized (connectionLock) {
+            if (!isConnected()) {
+                reconnect();
+            }
+            // Writes the result to the output stream.
+            getOutputStream().write(str.toString().getBytes());
         }
-        // Writes the result to the output stream.
-        getOutputStream().write(str.toString().getBytes());
     }
 
     private String getResponseHeadersAsString(HTTPResponse res) {
@@ -196,8 +230,63 @@ public class JPIPSocket extends HTTPSocket {
         return result;
     }
 
-    /** Receives a JPIPResponse returning null if EOS reached */
+    /**
+     * Receives a JPIPResponse returning null if EOS reached. The response is
+     * read with a {@link JPIPResponseReader}, the data of the segments is
+     * stored in arrays of the {@link JPIPBufferPool}.
+     */
     public JPIPResponse receive() throws IOException {
+        if (reader == null)
+            reader = new JPIPResponseReader(getInputStream());
+
+        HTTPResponse httpRes = reader.readHeader();
+        if (httpRes == null)
+            return null;
+
+        JPIPResponse res = new JPIPResponse(httpRes);
+
+        if (res.getCode() != 200)
+            throw new IOException("Invalid status code returned (" + res.getCode() + ")");
+        if (res.getHeader("Content-Type") != null && !res.getHeader("Content-Type").equals("image/jpp-stream"))
+            throw new IOException("Expected image/jpp-stream content!\n" + getResponseHeadersAsString(res));
+
+        boolean chunked;
+        long contentLength = 0;
+        String transferEncoding = res.getHeader("Transfer-Encoding") == null ? "" : res.getHeader("Transfer-Encoding").trim();
+        if (transferEncoding.equals("") || transferEncoding.equals("identity")) {
+            String contentLengthString = res.getHeader("Content-Length") == null ? "" : res.getHeader("Content-Length").trim();
+            try {
+                contentLength = Long.parseLong(contentLengthString);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length header: " + contentLengthString + "\n" + getResponseHeadersAsString(res));
+            }
+            chunked = false;
+        } else if (transferEncoding.equals("chunked")) {
+            chunked = true;
+        } else {
+            throw new IOException("Unsupported transfer encoding: " + transferEncoding + "\n" + getResponseHeadersAsString(res));
+        }
+
+        replyTextTm = System.currentTimeMillis();
+
+        reader.readBody(res, chunked, contentLength);
+
+        if (res.getHeader("Connection") != null && res.getHeader("Connection").equals("close")) {
+            closeByServer();
+        }
+        replyDataTm = System.currentTimeMillis();
+        receivedData = reader.getNumberOfBytesRead();
+
+        return res;
+    }
+
+    /**
+     * Receives a JPIPResponse with the stream based parsers, returning null if
+     * EOS reached. It reads the connection byte by byte and must not be mixed
+     * with receive() on the same connection. Kept as reference for the
+     * {@link JPIPResponseReader}.
+     */
+    public JPIPResponse receiveWithStreams() throws IOException {
         // long tini = System.currentTimeMillis();
 
         HTTPResponse httpRes = (HTTPResponse) super.receive();
@@ -237,7 +326,7 @@ public class JPIPSocket extends HTTPSocket {
             res.addJpipDataSegment(seg);
 
         if (res.getHeader("Connection") != null && res.getHeader("Connection").equals("close")) {
-            super.close();
+            closeByServer();
         }
         replyDataTm = System.currentTimeMillis();
         receivedData = jpip.getNumberOfBytesRead();
@@ -0,0 +1,130 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+/**
+ * Statistics of the data received per composition layer.
+ *
+ * A response usually covers several layers, its data and transfer time are
+ * distributed evenly over them. Besides, the request length and the estimates
+ * of the flow control at the time of the last response are kept.
+ *
+ * This class is threadsafe.
+ */
+public class JPIPTransferMetrics {
+
+    private final long[] receivedBytes;
+    private final int[] responses;
+    private final double[] transferTime;
+
+    private int requestLength = 0;
+    private double bandwidth = 0;
+    private double roundTripTime = -1;
+
+    /**
+     * Default constructor.
+     *
+     * @param numLayers
+     *            number of composition layers of the image
+     */
+    public JPIPTransferMetrics(int numLayers) {
+        receivedBytes = new long[Math.max(1, numLayers)];
+        responses = new int[receivedBytes.length];
+        transferTime = new double[receivedBytes.length];
+    }
+
+    /**
+     * Adds a response.
+     *
+     * @param firstLayer
+     *            first composition layer of the request
+     * @param lastLayer
+     *            last composition layer of the request
+     * @param bytes
+     *            amount of data (bytes) of the response
+     * @param time
+     *            transfer time of the response in milliseconds
+     * @param flowControl
+     *            the flow control of the connection
+     */
+    public synchronized void addResponse(int firstLayer, int lastLayer, int bytes, long time, JPIPFlowControl flowControl) {
+        firstLayer = Math.max(0, firstLayer);
+        lastLayer = Math.min(receivedBytes.length - 1, lastLayer);
+        int count = lastLayer - firstLayer + 1;
+        for (int i = firstLayer; i <= lastLayer; i++) {
+            receivedBytes[i] += bytes / count;
+            responses[i]++;
+            transferTime[i] += (double) time / count;
+        }
+
+        requestLength = flowControl.getRequestLength();
+        if (flowControl instanceof JPIPBandwidthFlowControl) {
+            bandwidth = ((JPIPBandwidthFlowControl) flowControl).getBandwidth();
+            roundTripTime = ((JPIPBandwidthFlowControl) flowControl).getRoundTripTime();
+        }
+    }
+
+    /**
+     * Returns the number of composition layers.
+     *
+     * @return Number of layers
+     */
+    public int getNumLayers() {
+        return receivedBytes.length;
+    }
+
+    /**
+     * Returns the amount of data received for a layer.
+     *
+     * @param layer
+     * @return Received bytes
+     */
+    public synchronized long getReceivedBytes(int layer) {
+        return receivedBytes[layer];
+    }
+
+    /**
+     * Returns the number of responses which contained data of a layer.
+     *
+     * @param layer
+     * @return Number of responses
+     */
+    public synchronized int getResponses(int layer) {
+        return responses[layer];
+    }
+
+    /**
+     * Returns the throughput of a layer.
+     *
+     * @param layer
+     * @return Throughput in bytes per millisecond, 0 if not measured
+     */
+    public synchronized double getThroughput(int layer) {
+        return transferTime[layer] > 0 ? receivedBytes[layer] / transferTime[layer] : 0;
+    }
+
+    /**
+     * Returns the request length after the last response.
+     *
+     * @return Request length in bytes
+     */
+    public synchronized int getRequestLength() {
+        return requestLength;
+    }
+
+    /**
+     * Returns the throughput estimated by the flow control.
+     *
+     * @return Throughput in bytes per millisecond, 0 if not estimated
+     */
+    public synchronized double getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the round trip time estimated by the flow control.
+     *
+     * @return Round trip time in milliseconds, negative if not estimated
+     */
+    public synchronized double getRoundTripTime() {
+        return roundTripTime;
+    }
+}
@@ -1,12 +1,7 @@
 package org.helioviewer.viewmodel.view.jp2view.kakadu;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import kdu_jni.KduException;
@@ -15,6 +10,7 @@ import kdu_jni.Kdu_cache;
 import org.helioviewer.base.logging.Log;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPBufferPool;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
@@ -55,12 +51,38 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     private volatile int newData;
 
+    /**
+     * Number of data segments added per codestream, see
+     * {@link #getDataVersion(long)}.
+     */
+    private long[] dataVersions = new long[0];
+
     /**
      * This flags indicates if the server has to be loaded/saved to disk.
      */
     private boolean iamPersistent = true;
 
-    private static long maxCacheSize = 0;
+    /**
+     * Reads and writes the cache file. Null if its not using a cache file.
+     */
+    private final KakaduCacheFile cacheStore;
+
+    /**
+     * Gives the cache file access to the databins.
+     */
+    private final KakaduCacheFile.Databins databins = new KakaduCacheFile.Databins() {
+        public void addDatabin(int classID, long codestreamID, long databinID, byte[] data, int offset, int length, boolean isComplete) throws KduException {
+            Add_to_databin(classID, codestreamID, databinID, data, offset, length, isComplete, false, true);
+        }
+
+        public int getDatabinLength(int classID, long codestreamID, long databinID, boolean[] isComplete) throws KduException {
+            return Get_databin_length(classID, codestreamID, databinID, isComplete);
+        }
+
+        public int getDatabinPrefix(int classID, long codestreamID, long databinID, byte[] buffer, int length) throws KduException {
+            return Get_databin_prefix(classID, codestreamID, databinID, buffer, length);
+        }
+    };
 
     /**
      * Main constructor used when you want to use a cache file.
@@ -76,10 +98,11 @@ public class JHV_Kdu_cache extends Kdu_cache {
             cacheFile = new File(_cachePath.getAbsolutePath() + File.separator + targetID + ".hvc");
         else
             cacheFile = null;
+        cacheStore = cacheFile != null ? new KakaduCacheFile(cacheFile) : null;
         newData = 0;
 
         if (cacheFile != null)
-            readCacheFromFile();
+            openCacheFile();
     }
 
     /**
@@ -97,10 +120,11 @@ public class JHV_Kdu_cache extends Kdu_cache {
             cacheFile = new File(_cachePath.getAbsolutePath() + File.separator + targetID + ".hvc");
         else
             cacheFile = null;
+        cacheStore = (cacheFile != null) && iamPersistent ? new KakaduCacheFile(cacheFile) : null;
         newData = 0;
 
         if ((cacheFile != null) && iamPersistent)
-            readCacheFromFile();
+            openCacheFile();
     }
 
     /**
@@ -111,6 +135,26 @@ public class JHV_Kdu_cache extends Kdu_cache {
         status = imageCacheStatus;
     }
 
+    /**
+     * Returns the data version of a codestream. The version changes whenever
+     * data is added to one of the databins of the codestream, thus images
+     * decoded from the codestream are outdated if its version has changed.
+     * 
+     * @param codestreamID
+     * @return Data version of the codestream
+     */
+    public synchronized long getDataVersion(long codestreamID) {
+        return codestreamID >= 0 && codestreamID < dataVersions.length ? dataVersions[(int) codestreamID] : 0;
+    }
+
+    private synchronized void incrementDataVersion(long codestreamID) {
+        if (codestreamID < 0 || codestreamID > Integer.MAX_VALUE - 1)
+            return;
+        if (codestreamID >= dataVersions.length)
+            dataVersions = Arrays.copyOf(dataVersions, (int) Math.max(codestreamID + 1, 2 * dataVersions.length));
+        dataVersions[(int) codestreamID]++;
+    }
+
     /**
      * Returns the amount of new data.
      * 
@@ -177,9 +221,14 @@ public class JHV_Kdu_cache extends Kdu_cache {
      * not be used again.
      */
     public boolean Close() {
-        if ((cacheFile != null) && iamPersistent)
+        if ((cacheFile != null) && iamPersistent) {
             writeCacheToFile();
 
+            KakaduCacheDirectory directory = KakaduCacheDirectory.getSingletonInstance();
+            directory.recordDownload(newData);
+            directory.unpin(cacheFile);
+        }
+
         try {
             super.Close();
 
@@ -214,8 +263,12 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     public boolean addJPIPResponseData(JPIPResponse jRes) throws JHV_KduException {
         JPIPDataSegment data;
-        while ((data = jRes.removeJpipDataSegment()) != null && !data.isEOR)
+        while ((data = jRes.removeJpipDataSegment()) != null && !data.isEOR) {
             addDataSegment(data);
+            // Kakadu has copied the data
+            JPIPBufferPool.release(data.data);
+            data.data = null;
+        }
         return jRes.isResponseComplete();
     }
 
@@ -230,6 +283,10 @@ public class JHV_Kdu_cache extends Kdu_cache {
             Add_to_databin(_data.classID.getKakaduClassID(), _data.codestreamID, _data.binID, _data.data, _data.offset, _data.length, _data.isFinal, true, false);
 
             newData += _data.length;
+            incrementDataVersion(_data.codestreamID);
+
+            if (cacheStore != null)
+                cacheStore.touch(_data.classID.getKakaduClassID(), _data.codestreamID, _data.binID);
 
         } catch (KduException ex) {
             throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
@@ -250,93 +307,23 @@ public class JHV_Kdu_cache extends Kdu_cache {
     }
 
     /**
-     * Attempts to write the present cache object to a file as specified by the
-     * cacheFile variable. The file format is firmly based on the one used in
-     * the kdu_show application.
+     * Attempts to append the new data of the present cache object to the file
+     * as specified by the cacheFile variable.
      * 
      * @return true, if the file could be written successfully, false otherwise
      */
     private boolean writeCacheToFile() {
-        File fTarget = cacheFile;
-        FileOutputStream fStream = null;
-        try {
-            if (fTarget.exists() && !fTarget.delete())
-                return false;
-            if (!fTarget.createNewFile())
-                return false;
-            fStream = new FileOutputStream(fTarget);
-            fStream.write("hvc/1.0\n".getBytes());
-        } catch (Exception ex) {
-            Log.error("Error in writeToCacheMethod in file (" + fTarget + ") and FileOutputStream creation.");
-            ex.printStackTrace();
-            return false;
-        }
-
-        int bufferIndex, i;
-        byte[] headerBuffer = new byte[24];
-        byte[] byteBuffer = new byte[512];
-
-        long codestreamID, databinID;
-        boolean isComplete[] = new boolean[1];
-        int databinClassID, length, idBits, codestreamBits;
-
-        try {
-            codestreamID = this.Get_next_codestream(-1);
-            while (codestreamID >= 0) {
-                for (databinClassID = 0; databinClassID < 5; databinClassID++) {
-                    databinID = this.Get_next_lru_databin(databinClassID, codestreamID, -1, false);
-                    while (databinID >= 0) {
-                        length = this.Get_databin_length(databinClassID, codestreamID, databinID, isComplete);
-                        if ((length > 0) || isComplete[0]) {
-                            if (length > byteBuffer.length) {
-                                byteBuffer = new byte[byteBuffer.length + length + 256];
-                            }
-                            length = this.Get_databin_prefix(databinClassID, codestreamID, databinID, byteBuffer, length);
-                            bufferIndex = 0;
-                            if (isComplete[0])
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID + 1);
-                            else
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID);
-                            for (codestreamBits = 0; (codestreamID >> codestreamBits) > 0; codestreamBits += 8)
-                                ;
-                            for (idBits = 0; (databinID >> idBits) > 0; idBits += 8)
-                                ;
-                            headerBuffer[bufferIndex++] = (byte) ((codestreamBits << 1) | (idBits >> 3));
-                            for (i = codestreamBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (codestreamID >> i);
-                            for (i = idBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (databinID >> i);
-                            for (i = 24; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (length >> i);
-                            fStream.write(headerBuffer, 0, bufferIndex);
-                            fStream.write(byteBuffer, 0, length);
-                        }
-                        databinID = this.Get_next_lru_databin(databinClassID, codestreamID, databinID, false);
-                    }
-                }
-                codestreamID = this.Get_next_codestream(codestreamID);
-            }
-        } catch (Exception ex) {
-            Log.error("Error in writeToCacheMethod in actual writing algorithm.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            byteBuffer = null;
-            headerBuffer = null;
-        }
-
-        try {
-            fStream.flush();
-            fStream.close();
-        } catch (Exception ex) {
-            Log.error("Error in writeToCacheMethod in file and FileOutputStream closure.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            fStream = null;
-        }
+        return cacheStore.close(databins);
+    }
 
-        return true;
+    /**
+     * Pins the cache file in the cache directory and reads it.
+     */
+    private void openCacheFile() {
+        KakaduCacheDirectory directory = KakaduCacheDirectory.getSingletonInstance();
+        directory.pin(cacheFile);
+        long size = cacheFile.length();
+        directory.recordOpen(readCacheFromFile(), size);
     }
 
     /**
@@ -349,84 +336,7 @@ public class JHV_Kdu_cache extends Kdu_cache {
      *         otherwise
      */
     private boolean readCacheFromFile() {
-        File fTarget = cacheFile;
-        // FileInputStream fStream = null;
-        BufferedInputStream fStream = null;
-        try {
-            try {
-                if (!fTarget.exists())
-                    return false;
-
-                // fStream = new FileInputStream(fTarget);
-                fStream = new BufferedInputStream(new FileInputStream(fTarget), 1000000);
-
-                char c;
-                String str = "";
-                while ((c = (char) fStream.read()) != '\n') {
-                    str += c;
-                }
-                if (!str.equalsIgnoreCase("hvc/1.0")) {
-                    throw new JHV_KduException("Wrong cache file format.");
-                }
-            } catch (Exception ex) {
-                Log.error("Error in readFromCacheMethod in file and FileInputStream creation.");
-                ex.printStackTrace();
-                return false;
-            }
-
-            int bufferIndex, i;
-            byte[] byteBuffer = new byte[512];
-            int[] intBuffer;
-
-            long databinID, codestreamID;
-            int idBytes, codestreamBytes, length, databinClassID;
-
-            try {
-
-                while (fStream.read(byteBuffer, 0, 2) == 2) {
-
-                    intBuffer = uByteToInt(byteBuffer);
-                    codestreamBytes = (intBuffer[1] >> 4) & 0x0F;
-                    idBytes = intBuffer[1] & 0x0F;
-                    if (fStream.read(byteBuffer, 2, (codestreamBytes + idBytes + 4)) != (codestreamBytes + idBytes + 4))
-                        break;
-                    intBuffer = uByteToInt(byteBuffer);
-                    for (codestreamID = 0, bufferIndex = 2, i = 0; i < codestreamBytes; i++)
-                        codestreamID = (codestreamID << 8) + intBuffer[bufferIndex++];
-                    for (databinID = 0, i = 0; i < idBytes; i++)
-                        databinID = (databinID << 8) + intBuffer[bufferIndex++];
-                    for (length = 0, i = 0; i < 4; i++)
-                        length = (length << 8) + intBuffer[bufferIndex++];
-                    boolean isComplete = ((intBuffer[0] & 1) == 1) ? true : false;
-                    databinClassID = (intBuffer[0] >> 1);
-                    if (length > byteBuffer.length) {
-                        byteBuffer = new byte[byteBuffer.length + length + 256];
-                    }
-                    if (fStream.read(byteBuffer, 0, length) != length)
-                        break;
-                    if ((databinClassID >= 0) && (databinClassID < 5))
-                        this.Add_to_databin(databinClassID, codestreamID, databinID, byteBuffer, 0, length, isComplete, false, true);
-                }
-            } catch (Exception ex) {
-                Log.error("Error in readFromCacheMethod in actual read algorithm.");
-                ex.printStackTrace();
-                return false;
-            } finally {
-                byteBuffer = null;
-                intBuffer = null;
-            }
-            return true;
-        } finally {
-            try {
-                if (fStream != null) {
-                    fStream.close();
-                }
-            } catch (Exception ex) {
-                Log.error("Error in readFromCacheMethod in file and FileInputStream closure.");
-                ex.printStackTrace();
-                return false;
-            }
-        }
+        return cacheStore.open(databins);
     }
 
     /**
@@ -479,31 +389,11 @@ public class JHV_Kdu_cache extends Kdu_cache {
         return cacheModel.toString();
     }
 
-    /**
-     * Private helped method to convert a unsigned byte array to an integer
-     * array. This method is only necessary since Java does not have unsigned
-     * types.
-     * 
-     * @param _x
-     *            unsigned byte array to convert
-     * @return converted integer array
-     */
-    private static int[] uByteToInt(byte[] _x) {
-        int[] ret = new int[_x.length];
-        for (int i = 0; i < _x.length; i++)
-            ret[i] = (_x[i] & 0xFF);
-        return ret;
-    }
-
     /**
      * @return All the cache files stored in the cache directory.
      */
     public static File[] getCacheFiles(File cachePath) {
-        return cachePath.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return (name.toUpperCase().endsWith(".HVC"));
-            }
-        });
+        return KakaduCacheDirectory.getCacheFiles(cachePath);
     }
 
     /**
@@ -513,36 +403,30 @@ public class JHV_Kdu_cache extends Kdu_cache {
         return cacheFile;
     }
 
+    /**
+     * Sets the cache directory and its size limit.
+     * 
+     * @param cachePath
+     *            the cache directory
+     * @param maxSize
+     *            size limit in megabytes, zero for no limit
+     * @see KakaduCacheDirectory
+     */
     public static void updateCacheDirectory(File cachePath, double maxSize) {
-        maxCacheSize = Math.round(maxSize * 1048576.0);
-        updateCacheDirectory(cachePath);
+        KakaduCacheDirectory directory = KakaduCacheDirectory.getSingletonInstance();
+        directory.setDirectory(cachePath);
+        directory.setBudget(Math.round(maxSize * 1048576.0));
     }
 
     /**
      * This method allows to remove the cache files according to the size limit
      * specified in the properties of the application. The files are removed
-     * following a LRU order.
+     * following a LRU order by the {@link KakaduCacheDirectory} in the
+     * background.
      */
     public static void updateCacheDirectory(File cachePath) {
-        if (maxCacheSize <= 0)
-            return;
-
-        File[] list = getCacheFiles(cachePath);
-
-        Arrays.sort(list, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                return (int) (o1.lastModified() - o2.lastModified());
-            }
-        });
-
-        long total = 0;
-
-        for (File f : list)
-            total += f.length();
-
-        for (int i = 0; (total > maxCacheSize) && (i < list.length); i++) {
-            total -= list[i].length();
-            list[i].delete();
-        }
+        KakaduCacheDirectory directory = KakaduCacheDirectory.getSingletonInstance();
+        directory.setDirectory(cachePath);
+        directory.requestEviction();
     }
 };
@@ -0,0 +1,373 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.helioviewer.base.logging.Log;
+
+/**
+ * Keeps the size of the JPIP cache directory within a byte budget.
+ *
+ * The directory keeps an index of the cache files, their sizes and the time
+ * they were used last. A low priority thread removes the least recently used
+ * files whenever the budget is exceeded, and rescans the directory
+ * periodically to notice files written by other instances of the application.
+ * The files of caches which are in use are pinned and never removed.
+ *
+ * Besides, the directory counts how many caches could be read from a file and
+ * how much of their data came from the disk, which helps to choose the budget.
+ *
+ * This class is threadsafe.
+ */
+public class KakaduCacheDirectory implements Runnable {
+
+    // Singleton pattern
+    private static final KakaduCacheDirectory singletonInstance = new KakaduCacheDirectory();
+
+    public static KakaduCacheDirectory getSingletonInstance() {
+        return singletonInstance;
+    }
+
+    /** Interval between two scans of the directory in milliseconds */
+    private static final long RESCAN_INTERVAL = 60000;
+
+    /** A file of the index */
+    private static class Entry {
+        final File file;
+        long size;
+        long lastAccess;
+        int pins;
+
+        Entry(File _file, long _size, long _lastAccess) {
+            file = _file;
+            size = _size;
+            lastAccess = _lastAccess;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private File directory;
+    private long budget = 0;
+    private long totalSize = 0;
+    private boolean scanned = false;
+    private long lastScan = 0;
+    private boolean evictionRequested = false;
+    private Thread thread;
+
+    private int hits = 0;
+    private int misses = 0;
+    private long bytesFromDisk = 0;
+    private long bytesDownloaded = 0;
+    private int evictedFiles = 0;
+    private long evictedBytes = 0;
+
+    private KakaduCacheDirectory() {
+    }
+
+    /**
+     * Sets the directory of the cache files and starts the eviction thread.
+     *
+     * @param _directory
+     */
+    public synchronized void setDirectory(File _directory) {
+        if (_directory == null || _directory.equals(directory))
+            return;
+
+        directory = _directory;
+        entries.clear();
+        totalSize = 0;
+        scanned = false;
+        requestEviction();
+
+        if (thread == null) {
+            thread = new Thread(this, "Cache directory");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Sets the maximum size of all cache files.
+     *
+     * @param _budget
+     *            budget in bytes, zero or negative for no limit
+     */
+    public synchronized void setBudget(long _budget) {
+        budget = _budget;
+        requestEviction();
+    }
+
+    /**
+     * Returns the maximum size of all cache files.
+     *
+     * @return Budget in bytes, zero or negative for no limit
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Wakes up the eviction thread.
+     */
+    public synchronized void requestEviction() {
+        evictionRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Protects a cache file from eviction while its cache is in use.
+     *
+     * @param file
+     */
+    public synchronized void pin(File file) {
+        Entry entry = getEntry(file);
+        entry.pins++;
+        entry.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Releases a cache file after its cache was closed. The size of the file
+     * is updated.
+     *
+     * @param file
+     */
+    public synchronized void unpin(File file) {
+        Entry entry = getEntry(file);
+        entry.pins = Math.max(0, entry.pins - 1);
+        entry.lastAccess = System.currentTimeMillis();
+
+        totalSize -= entry.size;
+        entry.size = file.length();
+        totalSize += entry.size;
+
+        if (budget > 0 && totalSize > budget)
+            requestEviction();
+    }
+
+    private Entry getEntry(File file) {
+        String key = file.getAbsolutePath();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(file, file.length(), file.lastModified());
+            entries.put(key, entry);
+            totalSize += entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * Counts the opening of a cache.
+     *
+     * @param hit
+     *            whether the cache could be read from a file
+     * @param bytes
+     *            size of the file
+     */
+    public synchronized void recordOpen(boolean hit, long bytes) {
+        if (hit) {
+            hits++;
+            bytesFromDisk += bytes;
+        } else {
+            misses++;
+        }
+    }
+
+    /**
+     * Counts the data a cache has received from the server.
+     *
+     * @param bytes
+     */
+    public synchronized void recordDownload(long bytes) {
+        bytesDownloaded += bytes;
+    }
+
+    /**
+     * Returns the size of all cache files. Scans the directory, if this has
+     * not yet been done.
+     *
+     * @return Size in bytes
+     */
+    public long getTotalSize() {
+        synchronized (this) {
+            if (scanned || directory == null)
+                return totalSize;
+        }
+        scan();
+        synchronized (this) {
+            return totalSize;
+        }
+    }
+
+    /**
+     * Returns the share of the opened caches which could be read from a file.
+     *
+     * @return Hit rate between 0 and 1, negative if no cache was opened yet
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? -1 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Returns the share of the data which was read from the disk instead of
+     * being downloaded.
+     *
+     * @return Byte hit rate between 0 and 1, negative if there was no data
+     */
+    public synchronized double getByteHitRate() {
+        return bytesFromDisk + bytesDownloaded == 0 ? -1 : (double) bytesFromDisk / (bytesFromDisk + bytesDownloaded);
+    }
+
+    /**
+     * Returns the number of files removed to keep the budget.
+     *
+     * @return Number of evicted files
+     */
+    public synchronized int getEvictedFiles() {
+        return evictedFiles;
+    }
+
+    /**
+     * Returns the amount of data removed to keep the budget.
+     *
+     * @return Evicted bytes
+     */
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * @return All the cache files stored in the cache directory.
+     */
+    public static File[] getCacheFiles(File cachePath) {
+        return cachePath.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return (name.toUpperCase().endsWith(".HVC"));
+            }
+        });
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                long wait = RESCAN_INTERVAL - (System.currentTimeMillis() - lastScan);
+                while (!evictionRequested && wait > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    wait = RESCAN_INTERVAL - (System.currentTimeMillis() - lastScan);
+                }
+                evictionRequested = false;
+            }
+
+            boolean rescan;
+            synchronized (this) {
+                rescan = !scanned || System.currentTimeMillis() - lastScan >= RESCAN_INTERVAL;
+            }
+            if (rescan)
+                scan();
+            evict();
+        }
+    }
+
+    /**
+     * Updates the index with the files of the directory. The directory is
+     * listed without holding the lock.
+     */
+    private void scan() {
+        File dir;
+        synchronized (this) {
+            dir = directory;
+        }
+        if (dir == null)
+            return;
+
+        File[] list = getCacheFiles(dir);
+        if (list == null)
+            list = new File[0];
+
+        long[] sizes = new long[list.length];
+        long[] modified = new long[list.length];
+        for (int i = 0; i < list.length; i++) {
+            sizes[i] = list[i].length();
+            modified[i] = list[i].lastModified();
+        }
+
+        synchronized (this) {
+            if (dir != directory)
+                return;
+
+            Map<String, Entry> previous = new HashMap<String, Entry>(entries);
+            entries.clear();
+            totalSize = 0;
+            for (int i = 0; i < list.length; i++) {
+                String key = list[i].getAbsolutePath();
+                Entry entry = previous.remove(key);
+                if (entry == null)
+                    entry = new Entry(list[i], sizes[i], modified[i]);
+                else
+                    entry.size = sizes[i];
+                entries.put(key, entry);
+                totalSize += entry.size;
+            }
+
+            // pinned caches, whose files do not exist yet
+            for (Map.Entry<String, Entry> e : previous.entrySet()) {
+                if (e.getValue().pins > 0) {
+                    entries.put(e.getKey(), e.getValue());
+                    totalSize += e.getValue().size;
+                }
+            }
+
+            scanned = true;
+            lastScan = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Removes the least recently used files which are not pinned, until the
+     * budget is kept.
+     */
+    private synchronized void evict() {
+        if (budget <= 0 || totalSize <= budget)
+            return;
+
+        List<Entry> candidates = new ArrayList<Entry>();
+        for (Entry entry : entries.values())
+            if (entry.pins == 0)
+                candidates.add(entry);
+
+        Collections.sort(candidates, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.lastAccess < o2.lastAccess ? -1 : (o1.lastAccess > o2.lastAccess ? 1 : 0);
+            }
+        });
+
+        int files = 0;
+        long bytes = 0;
+        for (int i = 0; totalSize > budget && i < candidates.size(); i++) {
+            Entry entry = candidates.get(i);
+            if (entry.file.delete() || !entry.file.exists()) {
+                entries.remove(entry.file.getAbsolutePath());
+                totalSize -= entry.size;
+                files++;
+                bytes += entry.size;
+            }
+        }
+
+        if (files > 0) {
+            evictedFiles += files;
+            evictedBytes += bytes;
+            Log.debug(">> KakaduCacheDirectory.evict() > Removed " + files + " cache files (" + bytes + " bytes), hit rate " + getHitRate() + ", byte hit rate " + getByteHitRate());
+        }
+    }
+}
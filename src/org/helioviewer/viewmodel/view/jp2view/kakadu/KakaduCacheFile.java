@@ -0,0 +1,802 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import kdu_jni.KduException;
+
+import org.helioviewer.base.logging.Log;
+
+/**
+ * The persistent cache file of a {@link JHV_Kdu_cache}.
+ *
+ * The file starts with the line "hvc/2.0" followed by records. Each record
+ * consists of a fixed size header (class of the databin and completeness flag,
+ * codestream, databin identifier, offset and length of the data) and the data.
+ * When the cache is closed, only the data which was added to the databins since
+ * the file was read is appended. The records are applied in the order they
+ * were written, so a databin may be spread over several records.
+ *
+ * The records are read in large blocks into a heap buffer. The file is not
+ * memory mapped, since a mapped file can not be truncated, deleted or renamed
+ * on Windows. While reading, an index of the persisted length of every databin
+ * is built, which determines the data to append. Files with many small records are compacted in the background after
+ * the last cache using them was closed: the records of each databin are merged
+ * and sorted by codestream, class and databin identifier.
+ *
+ * Files in the former format "hvc/1.0" are read and replaced by the new format
+ * when the cache is closed.
+ *
+ * Kakadu's cache can not fetch databins on demand, so all records are loaded
+ * when the cache is opened.
+ */
+class KakaduCacheFile {
+
+    /** The format written by this class */
+    static final String FORMAT = "hvc/2.0";
+
+    /** The former format, which is only read */
+    static final String LEGACY_FORMAT = "hvc/1.0";
+
+    /** Size of the first line */
+    private static final int FORMAT_SIZE = FORMAT.length() + 1;
+
+    /** Size of a record header: flags, codestream, databin, offset, length */
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+
+    /** Size of the blocks read at once, bigger records are read as a whole */
+    private static final int READ_WINDOW = 1024 * 1024;
+
+    /** Number of databin classes stored in the cache file */
+    private static final int DATABIN_CLASSES = 5;
+
+    /** Files with more records per databin are compacted */
+    private static final int COMPACTION_RATIO = 4;
+
+    /**
+     * Access to the databins of the cache.
+     */
+    interface Databins {
+        /**
+         * Adds data to a databin.
+         *
+         * @param classID
+         * @param codestreamID
+         * @param databinID
+         * @param data
+         *            the data, starting at index 0
+         * @param offset
+         *            offset of the data within the databin
+         * @param length
+         *            length of the data
+         * @param isComplete
+         *            whether the databin is complete
+         * @throws KduException
+         */
+        void addDatabin(int classID, long codestreamID, long databinID, byte[] data, int offset, int length, boolean isComplete) throws KduException;
+
+        /**
+         * Returns the length of the contiguous prefix of a databin.
+         *
+         * @param classID
+         * @param codestreamID
+         * @param databinID
+         * @param isComplete
+         *            receives whether the databin is complete
+         * @return Length of the prefix
+         * @throws KduException
+         */
+        int getDatabinLength(int classID, long codestreamID, long databinID, boolean[] isComplete) throws KduException;
+
+        /**
+         * Copies the prefix of a databin.
+         *
+         * @param classID
+         * @param codestreamID
+         * @param databinID
+         * @param buffer
+         *            receives the prefix
+         * @param length
+         *            maximum length to copy
+         * @return Number of copied bytes
+         * @throws KduException
+         */
+        int getDatabinPrefix(int classID, long codestreamID, long databinID, byte[] buffer, int length) throws KduException;
+    }
+
+    /**
+     * Identifies a databin.
+     */
+    private static final class Databin implements Comparable<Databin> {
+        final int classID;
+        final long codestreamID;
+        final long databinID;
+
+        Databin(int _classID, long _codestreamID, long _databinID) {
+            classID = _classID;
+            codestreamID = _codestreamID;
+            databinID = _databinID;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Databin))
+                return false;
+            Databin d = (Databin) o;
+            return classID == d.classID && codestreamID == d.codestreamID && databinID == d.databinID;
+        }
+
+        public int hashCode() {
+            long h = codestreamID * 31 + databinID;
+            return (int) (h ^ (h >>> 32)) * 8 + classID;
+        }
+
+        public int compareTo(Databin d) {
+            if (codestreamID != d.codestreamID)
+                return codestreamID < d.codestreamID ? -1 : 1;
+            if (classID != d.classID)
+                return classID < d.classID ? -1 : 1;
+            if (databinID != d.databinID)
+                return databinID < d.databinID ? -1 : 1;
+            return 0;
+        }
+    }
+
+    /**
+     * A record of the file, used for compaction.
+     */
+    private static final class Record {
+        final Databin databin;
+        final long dataPosition;
+        final int offset;
+        final int length;
+        final boolean isComplete;
+
+        Record(Databin _databin, long _dataPosition, int _offset, int _length, boolean _isComplete) {
+            databin = _databin;
+            dataPosition = _dataPosition;
+            offset = _offset;
+            length = _length;
+            isComplete = _isComplete;
+        }
+    }
+
+    /** Receives the records while scanning a file */
+    private interface RecordVisitor {
+        void visit(Databin databin, ByteBuffer data, long dataPosition, int offset, int length, boolean isComplete) throws KduException;
+    }
+
+    /**
+     * Locks of the files which are in use and the number of users, i.e. open
+     * caches and running compactions. A lock is removed when its last user
+     * releases it.
+     */
+    private static final Map<String, int[]> users = new HashMap<String, int[]>();
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Cache compaction");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private final File file;
+
+    /**
+     * Lock of the file, shared by all caches using the same file, null if this
+     * cache is not open
+     */
+    private int[] lock = null;
+
+    /**
+     * Persisted length of each databin, shifted left by one, the lowest bit is
+     * the completeness.
+     */
+    private final Map<Databin, Long> persisted = new HashMap<Databin, Long>();
+
+    /** Databins which have changed since they were persisted */
+    private final Set<Databin> dirty = Collections.synchronizedSet(new HashSet<Databin>());
+
+    /** Length of the file after it was read or written by this object */
+    private long expectedLength = 0;
+
+    /** Number of records in the file */
+    private int records = 0;
+
+    /** Whether the file has to be written completely */
+    private boolean rewrite = false;
+
+    /**
+     * Default constructor.
+     *
+     * @param _file
+     *            the cache file
+     */
+    KakaduCacheFile(File _file) {
+        file = _file;
+    }
+
+    /**
+     * Returns the lock of a file and registers the caller as its user.
+     *
+     * @param f
+     * @return the lock, which contains the number of users
+     */
+    private static int[] acquire(File f) {
+        synchronized (users) {
+            String key = f.getAbsolutePath();
+            int[] count = users.get(key);
+            if (count == null) {
+                count = new int[1];
+                users.put(key, count);
+            }
+            count[0]++;
+            return count;
+        }
+    }
+
+    /**
+     * Unregisters a user of the lock of a file. The lock is dropped when it is
+     * not used anymore.
+     *
+     * @param f
+     * @param count
+     *            the lock returned by {@link #acquire(File)}
+     */
+    private static void release(File f, int[] count) {
+        synchronized (users) {
+            if (--count[0] == 0)
+                users.remove(f.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the file.
+     *
+     * @return The cache file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Marks a databin as changed. Only changed databins are written.
+     *
+     * @param classID
+     * @param codestreamID
+     * @param databinID
+     */
+    void touch(int classID, long codestreamID, long databinID) {
+        if (classID >= 0 && classID < DATABIN_CLASSES)
+            dirty.add(new Databin(classID, codestreamID, databinID));
+    }
+
+    /**
+     * Reads the file into the databins. The file stays registered as used
+     * until {@link #close(Databins)} is called.
+     *
+     * @param target
+     *            receives the data
+     * @return true, if the cache file could be read successfully, false
+     *         otherwise
+     */
+    boolean open(Databins target) {
+        if (lock == null)
+            lock = acquire(file);
+        synchronized (lock) {
+            if (!file.exists())
+                return false;
+
+            try {
+                String format = readFormat(file);
+                if (format.equalsIgnoreCase(LEGACY_FORMAT)) {
+                    readLegacy(target);
+                    rewrite = true;
+                    return true;
+                }
+                if (!format.equals(FORMAT))
+                    throw new JHV_KduException("Wrong cache file format.");
+
+                readRecords(target);
+                return true;
+            } catch (Exception ex) {
+                Log.error("Error in readFromCacheMethod reading " + file + ".");
+                ex.printStackTrace();
+                rewrite = true;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Appends the changed databins to the file and releases it. The file is
+     * compacted in the background, if necessary.
+     *
+     * @param source
+     *            provides the data
+     * @return true, if the file could be written successfully, false otherwise
+     */
+    boolean close(Databins source) {
+        int[] fileLock = lock != null ? lock : acquire(file);
+        lock = null;
+        synchronized (fileLock) {
+            boolean success;
+            try {
+                if (rewrite || file.length() < expectedLength)
+                    success = writeAll(source);
+                else
+                    success = append(source);
+            } finally {
+                release(file, fileLock);
+            }
+
+            if (success && records > COMPACTION_RATIO * persisted.size())
+                scheduleCompaction(file);
+            return success;
+        }
+    }
+
+    private static String readFormat(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            StringBuilder str = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n' && str.length() < 16)
+                str.append((char) c);
+            return str.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads all records of the file. A broken record at the end of the file,
+     * e.g. after a crash, is cut off if no other cache uses the file.
+     */
+    private void readRecords(final Databins target) throws IOException, KduException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            final byte[][] buffer = { new byte[64 * 1024] };
+
+            long end = scan(channel, new RecordVisitor() {
+                public void visit(Databin databin, ByteBuffer data, long dataPosition, int offset, int length, boolean isComplete) throws KduException {
+                    if (length > buffer[0].length)
+                        buffer[0] = new byte[Math.max(length, buffer[0].length * 2)];
+                    data.get(buffer[0], 0, length);
+                    target.addDatabin(databin.classID, databin.codestreamID, databin.databinID, buffer[0], offset, length, isComplete);
+
+                    Long p = persisted.get(databin);
+                    int persistedLength = p == null ? 0 : (int) (p.longValue() >> 1);
+                    boolean persistedComplete = p != null && (p.longValue() & 1) != 0;
+                    persistedLength = Math.max(persistedLength, offset + length);
+                    persisted.put(databin, ((long) persistedLength << 1) | (persistedComplete || isComplete ? 1 : 0));
+                    records++;
+                }
+            });
+
+            if (end < channel.size() && lock[0] == 1) {
+                Log.error("Cutting off broken records of the cache file " + file + ".");
+                channel.truncate(end);
+            }
+            expectedLength = channel.size();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Scans the records of a file.
+     *
+     * @return The end of the last valid record
+     */
+    private static long scan(FileChannel channel, RecordVisitor visitor) throws IOException, KduException {
+        long size = channel.size();
+        long position = FORMAT_SIZE;
+        long windowStart = position;
+        ByteBuffer window = ByteBuffer.allocate((int) Math.max(RECORD_HEADER_SIZE, Math.min(READ_WINDOW, size - position)));
+        window.limit(0);
+
+        while (position + RECORD_HEADER_SIZE <= size) {
+            if (position + RECORD_HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = read(channel, window, windowStart, RECORD_HEADER_SIZE, size);
+                if (window.limit() < RECORD_HEADER_SIZE)
+                    return position;
+            }
+
+            int index = (int) (position - windowStart);
+            int flags = window.getInt(index);
+            long codestreamID = window.getLong(index + 4);
+            long databinID = window.getLong(index + 12);
+            int offset = window.getInt(index + 20);
+            int length = window.getInt(index + 24);
+            int classID = flags >> 1;
+
+            long dataPosition = position + RECORD_HEADER_SIZE;
+            if (classID < 0 || classID >= DATABIN_CLASSES || codestreamID < 0 || databinID < 0 || offset < 0 || length < 0 || dataPosition + length > size)
+                return position;
+
+            if (dataPosition + length > windowStart + window.limit()) {
+                windowStart = position;
+                window = read(channel, window, windowStart, RECORD_HEADER_SIZE + length, size);
+                if (window.limit() < RECORD_HEADER_SIZE + length)
+                    return position;
+            }
+
+            ByteBuffer data = window.duplicate();
+            data.position((int) (dataPosition - windowStart));
+            data.limit(data.position() + length);
+            visitor.visit(new Databin(classID, codestreamID, databinID), data, dataPosition, offset, length, (flags & 1) != 0);
+
+            position = dataPosition + length;
+        }
+        return position;
+    }
+
+    /**
+     * Reads a block of the file into a buffer, which is replaced by a bigger
+     * one if it can not hold the needed bytes.
+     *
+     * @return The buffer holding the block from index 0 to its limit
+     */
+    private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long position, int needed, long size) throws IOException {
+        if (buffer.capacity() < needed)
+            buffer = ByteBuffer.allocate(needed);
+
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), size - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a file in the format "hvc/1.0". The databins are persisted again
+     * when the cache is closed.
+     */
+    private void readLegacy(Databins target) throws IOException, KduException {
+        BufferedInputStream fStream = new BufferedInputStream(new FileInputStream(file), 1000000);
+        try {
+            while (fStream.read() != '\n')
+                ;
+
+            int bufferIndex, i;
+            byte[] byteBuffer = new byte[512];
+            int[] intBuffer;
+
+            long databinID, codestreamID;
+            int idBytes, codestreamBytes, length, databinClassID;
+
+            while (fStream.read(byteBuffer, 0, 2) == 2) {
+
+                intBuffer = uByteToInt(byteBuffer);
+                codestreamBytes = (intBuffer[1] >> 4) & 0x0F;
+                idBytes = intBuffer[1] & 0x0F;
+                if (fStream.read(byteBuffer, 2, (codestreamBytes + idBytes + 4)) != (codestreamBytes + idBytes + 4))
+                    break;
+                intBuffer = uByteToInt(byteBuffer);
+                for (codestreamID = 0, bufferIndex = 2, i = 0; i < codestreamBytes; i++)
+                    codestreamID = (codestreamID << 8) + intBuffer[bufferIndex++];
+                for (databinID = 0, i = 0; i < idBytes; i++)
+                    databinID = (databinID << 8) + intBuffer[bufferIndex++];
+                for (length = 0, i = 0; i < 4; i++)
+                    length = (length << 8) + intBuffer[bufferIndex++];
+                boolean isComplete = ((intBuffer[0] & 1) == 1) ? true : false;
+                databinClassID = (intBuffer[0] >> 1);
+                if (length > byteBuffer.length) {
+                    byteBuffer = new byte[byteBuffer.length + length + 256];
+                }
+                if (fStream.read(byteBuffer, 0, length) != length)
+                    break;
+                if ((databinClassID >= 0) && (databinClassID < DATABIN_CLASSES)) {
+                    target.addDatabin(databinClassID, codestreamID, databinID, byteBuffer, 0, length, isComplete);
+                    touch(databinClassID, codestreamID, databinID);
+                }
+            }
+        } finally {
+            fStream.close();
+        }
+    }
+
+    /**
+     * Private helped method to convert a unsigned byte array to an integer
+     * array. This method is only necessary since Java does not have unsigned
+     * types.
+     *
+     * @param _x
+     *            unsigned byte array to convert
+     * @return converted integer array
+     */
+    private static int[] uByteToInt(byte[] _x) {
+        int[] ret = new int[_x.length];
+        for (int i = 0; i < _x.length; i++)
+            ret[i] = (_x[i] & 0xFF);
+        return ret;
+    }
+
+    /**
+     * Appends the changed parts of the dirty databins.
+     */
+    private boolean append(Databins source) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() == 0)
+                channel.write(ByteBuffer.wrap((FORMAT + "\n").getBytes("US-ASCII")));
+            channel.position(channel.size());
+
+            Databin[] changed;
+            synchronized (dirty) {
+                changed = dirty.toArray(new Databin[dirty.size()]);
+                dirty.clear();
+            }
+            writeDatabins(channel, source, changed, false);
+
+            expectedLength = channel.size();
+            return true;
+        } catch (Exception ex) {
+            Log.error("Error in writeToCacheMethod appending to " + file + ".");
+            ex.printStackTrace();
+            return false;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Writes all known databins into a new file, which replaces the cache
+     * file.
+     */
+    private boolean writeAll(Databins source) {
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap((FORMAT + "\n").getBytes("US-ASCII")));
+
+            Set<Databin> all = new HashSet<Databin>(persisted.keySet());
+            synchronized (dirty) {
+                all.addAll(dirty);
+                dirty.clear();
+            }
+            Databin[] databins = all.toArray(new Databin[all.size()]);
+            Arrays.sort(databins);
+
+            persisted.clear();
+            records = 0;
+            writeDatabins(channel, source, databins, true);
+            channel.force(false);
+            raf.close();
+            raf = null;
+
+            if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+                Log.error("Error in writeToCacheMethod replacing " + file + ".");
+                return false;
+            }
+            expectedLength = file.length();
+            rewrite = false;
+            return true;
+        } catch (Exception ex) {
+            Log.error("Error in writeToCacheMethod writing " + temp + ".");
+            ex.printStackTrace();
+            return false;
+        } finally {
+            close(raf);
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    /**
+     * Writes the part of each databin which is not yet persisted.
+     */
+    private void writeDatabins(FileChannel channel, Databins source, Databin[] databins, boolean full) throws IOException, KduException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        byte[] buffer = new byte[64 * 1024];
+        boolean[] isComplete = new boolean[1];
+
+        for (Databin databin : databins) {
+            int length = source.getDatabinLength(databin.classID, databin.codestreamID, databin.databinID, isComplete);
+
+            Long p = full ? null : persisted.get(databin);
+            int persistedLength = p == null ? 0 : (int) (p.longValue() >> 1);
+            boolean persistedComplete = p != null && (p.longValue() & 1) != 0;
+            if (length < persistedLength || (length == persistedLength && (!isComplete[0] || persistedComplete)))
+                continue;
+
+            if (length > buffer.length)
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            length = source.getDatabinPrefix(databin.classID, databin.codestreamID, databin.databinID, buffer, length);
+            if (length < persistedLength)
+                continue;
+
+            header.clear();
+            header.putInt((databin.classID << 1) | (isComplete[0] ? 1 : 0));
+            header.putLong(databin.codestreamID);
+            header.putLong(databin.databinID);
+            header.putInt(persistedLength);
+            header.putInt(length - persistedLength);
+            header.flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(buffer, persistedLength, length - persistedLength));
+
+            persisted.put(databin, ((long) length << 1) | (isComplete[0] ? 1 : 0));
+            records++;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void close(RandomAccessFile raf) {
+        try {
+            if (raf != null)
+                raf.close();
+        } catch (IOException ex) {
+            Log.error("Error closing the cache file.", ex);
+        }
+    }
+
+    /**
+     * Compacts a file in the background.
+     *
+     * @param f
+     */
+    static void scheduleCompaction(final File f) {
+        compactor.execute(new Runnable() {
+            public void run() {
+                compact(f);
+            }
+        });
+    }
+
+    /**
+     * Merges the records of each databin and sorts them by codestream, class
+     * and databin identifier. Files which are used by a cache are skipped.
+     *
+     * @param f
+     * @return true, if the file was compacted
+     */
+    static boolean compact(File f) {
+        int[] lock = acquire(f);
+        synchronized (lock) {
+            try {
+                return compactLocked(f, lock);
+            } finally {
+                release(f, lock);
+            }
+        }
+    }
+
+    /**
+     * Compacts a file while its lock is held. The compaction is one of the
+     * users of the lock, the file is skipped if there are others.
+     *
+     * @param f
+     * @param lock
+     * @return true, if the file was compacted
+     */
+    private static boolean compactLocked(File f, int[] lock) {
+        if (lock[0] > 1 || !f.exists())
+            return false;
+
+        File temp = new File(f.getPath() + ".tmp");
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        try {
+            if (!readFormat(f).equals(FORMAT))
+                return false;
+
+            in = new RandomAccessFile(f, "r");
+            FileChannel inChannel = in.getChannel();
+
+            final List<Record> list = new ArrayList<Record>();
+            scan(inChannel, new RecordVisitor() {
+                public void visit(Databin databin, ByteBuffer data, long dataPosition, int offset, int length, boolean isComplete) {
+                    list.add(new Record(databin, dataPosition, offset, length, isComplete));
+                }
+            });
+
+            // stable, the records of a databin stay in the order they
+            // were written
+            Collections.sort(list, new Comparator<Record>() {
+                public int compare(Record a, Record b) {
+                    return a.databin.compareTo(b.databin);
+                }
+            });
+
+            out = new RandomAccessFile(temp, "rw");
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            writeFully(outChannel, ByteBuffer.wrap((FORMAT + "\n").getBytes("US-ASCII")));
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            int i = 0;
+            while (i < list.size()) {
+                // merge the records which continue the first one
+                Record first = list.get(i);
+                int end = first.offset + first.length;
+                boolean isComplete = first.isComplete;
+                int j = i + 1;
+                while (j < list.size() && list.get(j).databin.equals(first.databin) && list.get(j).offset <= end) {
+                    end = Math.max(end, list.get(j).offset + list.get(j).length);
+                    isComplete |= list.get(j).isComplete;
+                    j++;
+                }
+
+                header.clear();
+                header.putInt((first.databin.classID << 1) | (isComplete ? 1 : 0));
+                header.putLong(first.databin.codestreamID);
+                header.putLong(first.databin.databinID);
+                header.putInt(first.offset);
+                header.putInt(end - first.offset);
+                header.flip();
+                writeFully(outChannel, header);
+
+                int written = first.offset;
+                for (int k = i; k < j; k++) {
+                    Record r = list.get(k);
+                    int skip = written - r.offset;
+                    if (skip >= r.length)
+                        continue;
+                    long count = r.length - skip;
+                    long position = r.dataPosition + skip;
+                    while (count > 0) {
+                        long transferred = inChannel.transferTo(position, count, outChannel);
+                        position += transferred;
+                        count -= transferred;
+                    }
+                    written = r.offset + r.length;
+                }
+                i = j;
+            }
+            outChannel.force(false);
+            out.close();
+            out = null;
+            in.close();
+            in = null;
+
+            if (!f.delete() || !temp.renameTo(f)) {
+                Log.error("Error replacing " + f + " by the compacted cache file.");
+                return false;
+            }
+            return true;
+        } catch (Exception ex) {
+            Log.error("Error compacting the cache file " + f + ".", ex);
+            return false;
+        } finally {
+            close(in);
+            close(out);
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+}
@@ -200,7 +200,8 @@ public class GLFilterView extends StandardFilterView implements
 	 */
 	protected void refilter() {
 		super.refilter();
-		filteredDataIsUpToDate = (filteredData != null);
+		// fused views filter on demand
+		filteredDataIsUpToDate = (filteredData != null || fusedIntoNextView);
 	}
 
 	public boolean checkGLErrors(GL gl, String message) {